@@ -0,0 +1,136 @@
+package project.benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import project.common.*;
+import project.server.backend.*;
+
+/**
+ * Program obciąża menedżer klientów serwera równoczesnymi logowaniami i wylogowaniami wielu klientów łączących się
+ * z tego samego adresu IP, tak jak klienty zza NAT. Dla rosnącej liczby wątków program wypisuje liczbę cykli
+ * logowania na sekundę i sprawdza, czy po zakończeniu nie pozostał żaden zalogowany klient ani użytkownik.
+ *
+ * Parametry: liczba cykli logowania każdego wątku (domyślnie 2000) oraz liczba użytkowników (domyślnie 8).
+ */
+public class ClientsManagerBenchmark {
+
+    // Liczby wątków, dla których wykonywany jest pomiar
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+    /**
+     * Metoda uruchamia pomiar.
+     * @param args Liczba cykli logowania każdego wątku oraz liczba użytkowników.
+     * @throws Exception Wyjątek wyrzucany, gdy pomiar się nie powiedzie.
+     */
+    public static void main(String[] args) throws Exception {
+        int cycles = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int users = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        Path root = Files.createTempDirectory("clients-benchmark");
+        InetAddress address = InetAddress.getLoopbackAddress();
+        boolean failed = false;
+
+        for(int threads : THREADS) {
+            ServerClientsManager manager = new ServerClientsManager(root.toString(), new SilentListener());
+            AtomicInteger lost = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            for(int i = 0; i < threads; i++) {
+                String login = "user" + (i % users);
+                results.add(pool.submit(() -> {
+                    start.await();
+                    for(int j = 0; j < cycles; j++) {
+                        ServerClient client = manager.addClient(address, login, new StubConnection(address), 0);
+                        // Klient musi być rozróżnialny od innych klientów z tego samego adresu
+                        if(manager.getClient(client.getSession()) != client || !manager.removeClient(client))
+                            lost.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            for(Future<?> result : results)
+                result.get();
+            long elapsed = System.nanoTime() - begin;
+            pool.shutdown();
+
+            int remaining = 0;
+            for(int i = 0; i < users; i++) {
+                if(manager.getUser("user" + i) != null)
+                    remaining++;
+            }
+            boolean ok = lost.get() == 0 && remaining == 0 && manager.getClient(address) == null;
+            failed |= !ok;
+            System.out.printf("threads=%2d  logins/s=%10.0f  lost=%d  remaining users=%d  %s%n", threads,
+                    threads * (double) cycles / (elapsed / 1e9), lost.get(), remaining, ok ? "OK" : "FAILED");
+        }
+        System.exit(failed ? 1 : 0);
+    }
+
+    // Słuchacz ignorujący wszystkie zdarzenia serwera
+    private static class SilentListener implements ServerListener {
+        @Override
+        public void userLoggedIn(String username, String directoryPath) {}
+
+        @Override
+        public void userLoggedOut(String username) {}
+
+        @Override
+        public void filesUpdated(String username) {}
+
+        @Override
+        public void log(String message) {}
+
+        @Override
+        public void errorOccured(String message) {}
+    }
+
+    // Połączenie, które odrzuca wszystkie wysyłane ramki
+    private static class StubConnection implements Connection {
+        private InetAddress address;
+        private volatile boolean closed;
+
+        StubConnection(InetAddress address) {
+            this.address = address;
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void setBandwidth(TokenBucket receive, TokenBucket send) {}
+
+        @Override
+        public void send(Command command, int requestId, HeaderWriter header, File body, long offset, long size,
+                         boolean temporary) throws IOException {
+            if(temporary && body != null)
+                body.delete();
+        }
+
+        @Override
+        public void send(Command command, int requestId, HeaderWriter header, List<FileSlice> body) throws IOException {}
+
+        @Override
+        public void send(Command command, HeaderWriter header, SharedBuffer body) throws IOException {
+            body.release();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package project.benchmark;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import project.common.*;
+import project.server.backend.*;
+
+/**
+ * Program sprawdza, czy żądanie usunięcia pliku zgłoszone w trakcie wysyłania dużego pliku wyprzedza pozostałą część
+ * tego pliku. Serwer wysyła klientowi duży plik połączeniem, które przekazuje każdą ramkę z danymi z opóźnieniem, tak
+ * jak wolne łącze, a po wysłaniu pierwszej ramki zgłaszane jest usunięcie innego pliku. Program wypisuje kolejność
+ * wysłanych ramek i kończy się błędem, gdy żądanie usunięcia zostało wysłane dopiero po całym dużym pliku.
+ *
+ * Parametry: rozmiar dużego pliku w megabajtach (domyślnie 16) oraz opóźnienie ramki w milisekundach (domyślnie 50).
+ */
+public class SendOrderCheck {
+
+    // Login użytkownika i ścieżki plików używanych w sprawdzeniu
+    private static final String LOGIN = "user";
+    private static final String LARGE_FILE = "large.bin";
+    private static final String DELETED_FILE = "deleted.txt";
+
+    /**
+     * Metoda uruchamia sprawdzenie.
+     * @param args Rozmiar dużego pliku w megabajtach oraz opóźnienie ramki w milisekundach.
+     * @throws Exception Wyjątek wyrzucany, gdy sprawdzenie się nie powiedzie.
+     */
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 50;
+        Path root = Files.createTempDirectory("send-order-check");
+        Path directory = Files.createDirectories(root.resolve(LOGIN));
+        byte[] block = new byte[1024 * 1024];
+        new Random(1).nextBytes(block);
+        try(OutputStream output = Files.newOutputStream(directory.resolve(LARGE_FILE))) {
+            for(int i = 0; i < megabytes; i++)
+                output.write(block);
+        }
+
+        InetAddress address = InetAddress.getLoopbackAddress();
+        ServerClientsManager manager = new ServerClientsManager(root.toString(), new SilentListener());
+        RecordingConnection connection = new RecordingConnection(address, delay);
+        ServerClient client = manager.addClient(address, LOGIN, connection, 0);
+
+        // Klient nie posiada pliku, więc serwer wysyła go w całości, a w trakcie wysyłania zgłaszane jest usunięcie
+        client.sendFileDelta(LARGE_FILE, Delta.Signature.empty());
+        if(!connection.firstBody.await(30, TimeUnit.SECONDS))
+            throw new IllegalStateException("Large file was not sent");
+        client.sendDelete(DELETED_FILE);
+        if(!connection.lastBody.await(10L * megabytes * (delay + 1000), TimeUnit.MILLISECONDS))
+            throw new IllegalStateException("Large file was not sent completely");
+        manager.removeClient(client);
+
+        // Żądanie usunięcia musi zostać wysłane przed ostatnią ramką z danymi dużego pliku
+        List<Command> sent = connection.getSent();
+        int delete = sent.indexOf(Command.DELETE_FILE);
+        int last = sent.lastIndexOf(Command.SEND_RANGE) >= 0 ? sent.lastIndexOf(Command.SEND_RANGE) : sent.lastIndexOf(Command.SEND_FILE);
+        int bodies = Collections.frequency(sent, Command.SEND_RANGE) + Collections.frequency(sent, Command.SEND_FILE);
+        boolean ok = delete >= 0 && delete < last;
+        System.out.println("frames: " + sent);
+        System.out.printf("file frames=%d  delete at=%d  last file frame at=%d  %s%n", bodies, delete, last,
+                ok ? "OK" : "FAILED");
+        System.exit(ok ? 0 : 1);
+    }
+
+    // Słuchacz ignorujący wszystkie zdarzenia serwera
+    private static class SilentListener implements ServerListener {
+        @Override
+        public void userLoggedIn(String username, String directoryPath) {}
+
+        @Override
+        public void userLoggedOut(String username) {}
+
+        @Override
+        public void filesUpdated(String username) {}
+
+        @Override
+        public void log(String message) {}
+
+        @Override
+        public void errorOccured(String message) {}
+    }
+
+    // Blokujące połączenie, które zapamiętuje komendy wysyłanych ramek i przekazuje ramki z danymi z opóźnieniem
+    private static class RecordingConnection implements Connection {
+        private InetAddress address;
+        private long delay;
+        private volatile boolean closed;
+        private List<Command> sent = new ArrayList<>();
+        private long remaining = -1;
+        CountDownLatch firstBody = new CountDownLatch(1);
+        CountDownLatch lastBody = new CountDownLatch(1);
+
+        RecordingConnection(InetAddress address, long delay) {
+            this.address = address;
+            this.delay = delay;
+        }
+
+        synchronized List<Command> getSent() {
+            return new ArrayList<>(sent);
+        }
+
+        @Override
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void setBandwidth(TokenBucket receive, TokenBucket send) {}
+
+        @Override
+        public void send(Command command, int requestId, HeaderWriter header, File body, long offset, long size,
+                         boolean temporary) throws IOException {
+            record(command, header, size);
+            if(temporary && body != null)
+                body.delete();
+        }
+
+        @Override
+        public void send(Command command, int requestId, HeaderWriter header, List<FileSlice> body) throws IOException {
+            record(command, header, FileSlice.length(body));
+        }
+
+        @Override
+        public void send(Command command, HeaderWriter header, SharedBuffer body) throws IOException {
+            record(command, header, body.getSize());
+            body.release();
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        // Zapamiętuje komendę ramki, a dla ramek z danymi pliku odczytuje z parametrów rozmiar i pozycję pliku
+        private void record(Command command, HeaderWriter header, long length) throws IOException {
+            synchronized(this) {
+                sent.add(command);
+            }
+            if(command != Command.SEND_FILE && command != Command.SEND_RANGE)
+                return;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            header.write(new DataOutputStream(bytes));
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            input.readUTF();
+            input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+
+            // Wolne łącze przekazuje dane ramki przez określony czas
+            try { Thread.sleep(delay); }
+            catch(InterruptedException e) { throw new InterruptedIOException(); }
+            synchronized(this) {
+                if(remaining < 0)
+                    remaining = size - offset;
+                remaining -= length;
+                firstBody.countDown();
+                if(remaining <= 0)
+                    lastBody.countDown();
+            }
+        }
+    }
+}
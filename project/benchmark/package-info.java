@@ -0,0 +1,4 @@
+/**
+ * Pakiet zawiera programy mierzące wydajność i poprawność elementów aplikacji pod dużym obciążeniem.
+ */
+package project.benchmark;
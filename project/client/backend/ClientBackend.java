@@ -2,6 +2,9 @@ package project.client.backend;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
 import java.util.concurrent.*;
 import project.common.*;
 
@@ -21,18 +24,64 @@ public class ClientBackend {
     // Unikalny wirtualny adres IP
     private InetAddress addresIP;
 
-    // Socket serwera na którym oczekuje się na połączenia
-    private ServerSocket serverSocket;
+    // Trwałe połączenie z serwerem, przez które przesyłane są wszystkie komunikaty
+    private SocketConnection connection;
 
-    // Wątek, który działa w tle i akceptuje wszystkie przychodzące połączenia
-    private Thread acceptingThread;
+    // Wątek, który działa w tle i odczytuje wszystkie komunikaty przychodzące od serwera
+    private Thread readingThread;
 
-    // Pula wątków w której umieszczane są wszystkie zadania wysyłania komunikatów do serwera
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    // Dodatkowe połączenia z serwerem, którymi równolegle przesyłane są fragmenty dużych plików
+    private List<SocketConnection> streams = new CopyOnWriteArrayList<>();
+
+    // Obiekt dobierający liczbę połączeń na podstawie przepustowości łącza z serwerem
+    private ParallelTransfer parallelTransfer = new ParallelTransfer();
+
+    // Możliwości protokołu obsługiwane przez serwer, przesłane po udanym logowaniu
+    private volatile int serverCapabilities;
+
+    // Identyfikator sesji nadany przez serwer, którym dodatkowe połączenia są dołączane do tego klienta
+    private volatile long session;
+
+    // Obiekt decydujący o kompresji plików na podstawie szybkości kompresji i przepustowości łącza z serwerem
+    private Compression compression = new Compression();
+
+    // Drzewo Merkle katalogu lokalnego, tworzone po zalogowaniu do uzgodnienia katalogu z serwerem
+    private volatile MerkleTree tree = new MerkleTree();
+
+    // Pliki odbierane od serwera we fragmentach według ścieżek
+    private Map<String, RangeAssembly> assemblies = new HashMap<>();
+
+    // Duże pliki wysyłane na serwer w kolejnych fragmentach według ścieżek
+    private Map<String, SlicedTransfer> slicedTransfers = new ConcurrentHashMap<>();
+
+    // Flaga informująca, że klient kończy działanie i zamknięcie połączenia jest spodziewane
+    private volatile boolean stopping;
+
+    // Flaga informująca, czy wątki klienta są wątkami wirtualnymi
+    private boolean virtual;
+
+    // Pula wątków w której wykonywane są zadania klienta
+    private ExecutorService executor;
+
+    // Harmonogram wykonujący w puli zadania wysyłania komunikatów do serwera według ich priorytetów
+    private TransferScheduler scheduler;
+
+    // Obiekt odkładający wysyłanie plików do momentu, aż przestaną się zmieniać
+    private Debouncer debouncer;
 
     // Obiekt służący do wykrywania zmian w katalogu lokalnym
     private ClientWatcher clientWatcher;
 
+    // Skróty zawartości plików katalogu lokalnego
+    private HashCache hashCache;
+
+    // Pliki, o których przesłanie poprosił serwer, więc muszą zostać wysłane nawet bez zmiany zawartości, wraz
+    // z informacjami o częściowo odebranych przez serwer danych
+    private Map<String, Resume> requestedUploads = new ConcurrentHashMap<>();
+
+    // Żądania wysłane do serwera, oczekujące na odpowiedź lub na przesłanie pliku
+    private PendingRequests requests = new PendingRequests();
+
     /**
      * Konstruuje obiekt backendu klienta.
      * @param login Login użytownika.
@@ -42,16 +91,38 @@ public class ClientBackend {
      * @throws IOException Wyjątek wyrzucany gdy nastąpi problem podczas operacji wejścia/wyjścia
      */
     public ClientBackend(String login, String directory, int port, ClientListener clientListener) throws IOException {
+        this(login, directory, port, clientListener, false);
+    }
+
+    /**
+     * Konstruuje obiekt backendu klienta, którego zadania są wykonywane przez wątki wirtualne lub zwykłe wątki.
+     * @param login Login użytownika.
+     * @param directory Ścieżka do katalogu lokalnego użytkonika.
+     * @param port Numer portu na którym ma odbywać się komunikacja.
+     * @param clientListener Obiekt słuchacza, którego metody mają być wywoływane w odpowiedzi na zachodzące zdarzenia.
+     * @param virtual true aby używać wątków wirtualnych, o ile są dostępne, false aby używać zwykłych wątków.
+     * @throws IOException Wyjątek wyrzucany gdy nastąpi problem podczas operacji wejścia/wyjścia
+     */
+    public ClientBackend(String login, String directory, int port, ClientListener clientListener, boolean virtual) throws IOException {
         // Zapamiętanie parametrów
         this.login = login;
         this.directory = directory;
         this.port = port;
         this.addresIP = VirtualIP.allocateIP(IP_GROUP, IP_START);
         this.clientListener = clientListener;
+        this.virtual = virtual;
+
+        // Stworzenie puli wątków oraz obiektów, które wykonują w niej zadania
+        executor = Threads.newPool("client", false, virtual);
+        scheduler = new TransferScheduler(executor);
+        debouncer = new Debouncer(scheduler);
 
         // Stworzenie menedżera klientów
         clientWatcher = new ClientWatcher(this);
 
+        // Wczytanie zapamiętanych skrótów plików
+        hashCache = new HashCache(new File(directory));
+
         // Wysłanie logu
         clientListener.log("## Client running on port " + port + ", login is " + login);
     }
@@ -64,6 +135,15 @@ public class ClientBackend {
         return directory;
     }
 
+    /**
+     * Metoda zwraca spis wszystkich plików w katalogu lokalnym wraz ze skrótami ich zawartości. Skróty są wyznaczane
+     * ponownie tylko dla plików, które zmieniły się od ostatniego spisu.
+     * @return Spis plików katalogu lokalnego.
+     */
+    public Manifest getFiles() {
+        return hashCache.scan();
+    }
+
     /**
      * Metoda zwraca login użytkownika.
      * @return Login użytkownika.
@@ -81,7 +161,7 @@ public class ClientBackend {
     }
 
     /**
-     * Metoda zwraca numer portu służącego do komunikacji.
+     * Metoda zwraca numer portu serwera służącego do komunikacji.
      * @return Numer portu.
      */
     public int getPort() {
@@ -105,14 +185,98 @@ public class ClientBackend {
     }
 
     /**
-     * Metoda uruchamia mechanizmy klienta odpowiedzialne za komunikację z serwerem.
-     * @throws IOException Wyjątek zwracany w przypadku problemu z utworzeniem Socketu.
+     * Metoda zwraca żądania wysłane do serwera, np. aby odczytać ich liczbę lub średni czas odpowiedzi.
+     * @return Żądania oczekujące na odpowiedź serwera.
+     */
+    public PendingRequests getRequests() {
+        return requests;
+    }
+
+    /**
+     * Metoda informuje, czy klient kończy działanie.
+     * @return true jeżeli klient kończy działanie, false w przeciwnym wypadku.
+     */
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Metoda nawiązuje trwałe połączenie z serwerem, uruchamia odczytywanie przychodzących komunikatów i loguje
+     * użytkownika.
+     * @throws IOException Wyjątek zwracany w przypadku problemu z nawiązaniem połączenia.
      */
     public void start() throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.bind(new InetSocketAddress(addresIP, 0));
+            channel.connect(new InetSocketAddress(InetAddress.getByName(ImportantConstants.SERVER_ADDRESS), port));
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        connection = new SocketConnection(channel);
+        readingThread = Threads.newThread("reader", new ClientReader(connection, this, clientListener, false), virtual);
+        readingThread.start();
         sendLogin(login);
-        serverSocket = new ServerSocket(port, 256, addresIP);
-        acceptingThread = new Thread(new ClientAccepter(serverSocket, this, clientListener));
-        acceptingThread.start();
+    }
+
+    /**
+     * Metoda nawiązuje z serwerem dodatkowe połączenia, którymi równolegle przesyłane są fragmenty dużych plików.
+     * Wywoływana jest po udanym logowaniu. Nieudane nawiązanie połączenia nie jest błędem, pliki są wtedy przesyłane
+     * mniejszą liczbą połączeń.
+     */
+    public void openStreams() {
+        executor.execute(() -> {
+            for(int i = streams.size() + 1; i < ParallelTransfer.MAX_STREAMS; i++) {
+                try {
+                    SocketChannel channel = SocketChannel.open();
+                    try {
+                        channel.bind(new InetSocketAddress(addresIP, 0));
+                        channel.connect(new InetSocketAddress(InetAddress.getByName(ImportantConstants.SERVER_ADDRESS), port));
+                    } catch(IOException e) {
+                        channel.close();
+                        throw e;
+                    }
+                    SocketConnection stream = new SocketConnection(channel);
+                    stream.send(Command.ATTACH_STREAM, output -> {
+                        output.writeUTF(login);
+                        output.writeLong(session);
+                    });
+                    streams.add(stream);
+                    Threads.newThread("stream-reader", new ClientReader(stream, this, clientListener, true), virtual).start();
+                } catch(IOException e) {
+                    clientListener.log("!! Unable to open additional connection to server");
+                    return;
+                }
+            }
+            clientListener.log("## Opened " + streams.size() + " additional connections to server");
+        });
+    }
+
+    /**
+     * Metoda ustawia możliwości protokołu obsługiwane przez serwer.
+     * @param capabilities Maska możliwości przesłana przez serwer po udanym logowaniu.
+     */
+    void setServerCapabilities(int capabilities) {
+        serverCapabilities = capabilities;
+    }
+
+    /**
+     * Metoda ustawia identyfikator sesji nadany przez serwer, który klient podaje przy dołączaniu dodatkowych połączeń.
+     * @param session Identyfikator sesji przesłany przez serwer po udanym logowaniu.
+     */
+    void setSession(long session) {
+        this.session = session;
+    }
+
+    /**
+     * Metoda odłącza zamknięte lub zerwane dodatkowe połączenie z serwerem.
+     * @param stream Dodatkowe połączenie z serwerem.
+     */
+    void streamClosed(SocketConnection stream) {
+        if(streams.remove(stream) && !stopping)
+            clientListener.log("!! Additional connection to server was lost");
+        stream.close();
     }
 
     /**
@@ -120,11 +284,18 @@ public class ClientBackend {
      */
     public void stop() {
         try {
-            sendLogout(login);
-            serverSocket.close();
-            acceptingThread.interrupt();
+            // Dokończenie wysyłania oczekujących komunikatów i wylogowanie
+            debouncer.flush();
             executor.shutdown();
             executor.awaitTermination(1, TimeUnit.HOURS);
+            hashCache.flush();
+            stopping = true;
+            sendLogout(login);
+            connection.close();
+            for(SocketConnection stream : streams)
+                stream.close();
+            abortAssemblies();
+            requests.close();
         }
         catch(Exception e) {
             clientListener.errorOccured();
@@ -132,31 +303,28 @@ public class ClientBackend {
     }
 
     /**
-     * Metoda wysyła do serwera komunikat o logowaniu.
+     * Metoda wysyła do serwera komunikat o logowaniu wraz z możliwościami i wersją protokołu obsługiwanymi przez klienta.
+     * Komunikat jest wysyłany natychmiast, aby poprzedził wszystkie pozostałe komunikaty.
      * @param login Login użytkownika.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
      */
-    public void sendLogin(String login) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                clientListener.log("<< sending login request");
-                stream.writeInt(Command.LOGIN.asInt());
-                stream.writeUTF(login);
-            }
+    public void sendLogin(String login) throws IOException {
+        clientListener.log("<< sending login request");
+        connection.send(Command.LOGIN, stream -> {
+            stream.writeUTF(login);
+            stream.writeInt(Capability.supported());
+            stream.writeInt(FrameHeader.VERSION);
         });
     }
 
     /**
-     * Metoda wysyła do serwera komunikat o wylogowaniu.
+     * Metoda wysyła do serwera komunikat o wylogowaniu. Komunikat jest wysyłany natychmiast.
      * @param login Login użytkownika.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
      */
-    public void sendLogout(String login) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                clientListener.log("<< sending logout request");
-                stream.writeInt(Command.LOGOUT.asInt());
-                stream.writeUTF(login);
-            }
-        });
+    public void sendLogout(String login) throws IOException {
+        clientListener.log("<< sending logout request");
+        connection.send(Command.LOGOUT, stream -> stream.writeUTF(login));
     }
 
     /**
@@ -164,32 +332,98 @@ public class ClientBackend {
      * @param relativePath Ścieżka do pliku w katalogu lokalnym.
      */
     public void sendFileCheck(String relativePath) {
+        checkFile(relativePath);
+    }
+
+    /**
+     * Metoda wysyła powiadomienie o pliku jaki istnieje w katalogu lokalnym i zwraca wynik, który serwer odsyła, gdy
+     * ma już aktualną wersję pliku, w razie potrzeby po jej pobraniu. Równoczesne powiadomienia o tym samym pliku są
+     * łączone w jedno.
+     * @param relativePath Ścieżka do pliku w katalogu lokalnym.
+     * @return Wynik powiadomienia, false gdy ścieżka wskazuje katalog.
+     */
+    public CompletableFuture<Boolean> checkFile(String relativePath) {
         // Odczytanie daty modyfikacji
-        File file = new File(directory, relativePath);
+        File file = localFile(relativePath);
         long modificationTime = file.lastModified();
 
         // Upewnienie się, że nie jest to katalog
         if(file.isDirectory())
-            return;
+            return CompletableFuture.completedFuture(false);
 
-        // Wysłanie wiadomości
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        // Wysłanie wiadomości wraz ze skrótem, który wyznaczany jest dopiero w wątku wysyłającym
+        return requests.submit(Command.CHECK_FILE, relativePath, requestId -> scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                byte[] hash = hashCache.hash(relativePath);
                 clientListener.log("<< sending file advertisement for " + relativePath);
-                stream.writeInt(Command.CHECK_FILE.asInt());
-                stream.writeUTF(relativePath);
-                stream.writeLong(modificationTime);
+                connection.send(Command.CHECK_FILE, requestId, stream -> {
+                    stream.writeUTF(relativePath);
+                    stream.writeLong(modificationTime);
+                    Manifest.writeHash(stream, hash);
+                });
+            }
+        }));
+    }
+
+    /**
+     * Metoda zwraca drzewo Merkle katalogu lokalnego utworzone podczas ostatniego uzgadniania katalogu z serwerem.
+     * @return Drzewo plików katalogu lokalnego.
+     */
+    public MerkleTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Metoda rozpoczyna uzgadnianie katalogu lokalnego z serwerem. Jeżeli serwer obsługuje drzewa Merkle, wysyłany
+     * jest jedynie korzeń drzewa katalogu lokalnego, w przeciwnym wypadku spis wszystkich plików w jednej ramce.
+     */
+    public void sendManifest() {
+        scheduler.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Manifest manifest = getFiles();
+                if(Capability.MERKLE.isIn(serverCapabilities)) {
+                    tree = new MerkleTree(manifest);
+                    clientListener.log("<< sending tree root of " + manifest.size() + " files");
+                    connection.send(Command.MERKLE_NODES, tree.root()::write);
+                    return;
+                }
+                clientListener.log("<< sending manifest of " + manifest.size() + " files");
+                connection.send(Command.MANIFEST, manifest::write);
             }
         });
     }
 
     /**
-     * Metoda wysyła do serwera powiadomienia o wszystkich plikach jakie istnieją w katalogu lokalnym.
+     * Metoda wysyła do serwera skróty węzłów drzewa Merkle katalogu lokalnego, które serwer powinien porównać ze
+     * swoimi.
+     * @param nodes Węzły drzewa.
      */
-    public void sendFileCheckAll() {
-        String[] list = new File(directory).list();
-        for(String name : list)
-            sendFileCheck(name);
+    public void sendTreeNodes(MerkleTree.Nodes nodes) {
+        scheduler.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                clientListener.log("<< sending " + nodes.size() + " tree nodes");
+                connection.send(Command.MERKLE_NODES, nodes::write);
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła do serwera spis plików z liści drzewa Merkle, którymi różnią się katalogi klienta i serwera.
+     * @param reply true jeżeli spis jest odpowiedzią na spis serwera, false jeżeli serwer powinien odesłać swój spis.
+     * @param leaves Numery liści.
+     * @param manifest Spis plików katalogu lokalnego należących do liści.
+     */
+    public void sendTreeEntries(boolean reply, List<Integer> leaves, Manifest manifest) {
+        scheduler.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                clientListener.log("<< sending " + manifest.size() + " files of " + leaves.size() + " tree leaves");
+                connection.send(Command.MERKLE_ENTRIES, stream -> {
+                    stream.writeBoolean(reply);
+                    MerkleTree.writeLeaves(stream, leaves);
+                    manifest.write(stream);
+                });
+            }
+        });
     }
 
     /**
@@ -197,11 +431,58 @@ public class ClientBackend {
      * @param relativePath Ścieżka do pliku, którego tyczy się proźba.
      */
     public void sendFileRequest(String relativePath) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        requestFile(relativePath);
+    }
+
+    /**
+     * Metoda wysyła do serwera proźbę o przesłanie danego pliku i zwraca wynik, który jest ustalany po odebraniu pliku
+     * do katalogu lokalnego lub po otrzymaniu od serwera odpowiedzi, że nie posiada pliku. Równoczesne proźby o ten
+     * sam plik są łączone w jedną, a liczba próśb oczekujących na wynik jest ograniczona.
+     * @param relativePath Ścieżka do pliku, którego tyczy się proźba.
+     * @return Wynik proźby, true gdy plik został odebrany, false gdy serwer go nie posiada lub go usunął.
+     */
+    public CompletableFuture<Boolean> requestFile(String relativePath) {
+        return requests.submit(Command.NEED_FILE, relativePath, requestId -> scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Resume resume = partialFile(relativePath).getResume();
                 clientListener.log("<< sending send request for file " + relativePath);
-                stream.writeInt(Command.NEED_FILE.asInt());
-                stream.writeUTF(relativePath);
+                connection.send(Command.NEED_FILE, requestId, stream -> {
+                    stream.writeUTF(relativePath);
+                    resume.write(stream);
+                });
+            }
+        }));
+    }
+
+    /**
+     * Metoda wysyła do serwera odpowiedź na jego żądanie. Ramki bez identyfikatora żądania pozostają bez odpowiedzi.
+     * @param requestId Identyfikator żądania z nagłówka ramki.
+     * @param result Wynik żądania.
+     */
+    void sendResponse(int requestId, boolean result) {
+        if(requestId == FrameHeader.NO_REQUEST)
+            return;
+        scheduler.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                clientListener.log("<< sending response " + result + " to request " + requestId);
+                connection.send(Command.RESPONSE, requestId, stream -> stream.writeBoolean(result));
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła do serwera jedną proźbę o przesłanie wszystkich podanych plików. Dla plików, których odbieranie
+     * zostało przerwane, dołączana jest informacja o już odebranych danych.
+     * @param relativePaths Ścieżki do plików, których tyczy się proźba.
+     */
+    public void sendFileRequests(List<String> relativePaths) {
+        scheduler.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Map<String, Resume> requests = new LinkedHashMap<>();
+                for(String relativePath : relativePaths)
+                    requests.put(relativePath, partialFile(relativePath).getResume());
+                clientListener.log("<< sending send request for " + relativePaths.size() + " files");
+                connection.send(Command.NEED_FILES, stream -> Resume.writeRequests(stream, requests));
             }
         });
     }
@@ -211,128 +492,313 @@ public class ClientBackend {
      * @param relativePath Nazwa pliku, którego tyczy się żądanie.
      */
     public void sendFileDelete(String relativePath) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        // Plik oczekujący na wysłanie lub wysyłany we fragmentach nie istnieje już w katalogu lokalnym
+        debouncer.cancel(relativePath);
+        cancelSlices(relativePath);
+        hashCache.forget(relativePath);
+
+        scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
                 clientListener.log("<< sending delete request for file " + relativePath);
-                stream.writeInt(Command.DELETE_FILE.asInt());
-                stream.writeUTF(relativePath);
+                connection.send(Command.DELETE_FILE, stream -> stream.writeUTF(relativePath));
             }
         });
     }
 
     /**
-     * Metoda wysyła plik na na serwer do swojego zdalnego katalogu lub do innego użytkownika.
+     * Metoda wysyła na serwer żądania usunięcia plików podkatalogu, które są znane backendowi, ale nie ma ich już
+     * w katalogu lokalnym, np. po usunięciu lub przeniesieniu całego podkatalogu.
+     * @param relativePath Ścieżka podkatalogu, pusta dla całego katalogu lokalnego.
+     */
+    public void sendMissingDeletes(String relativePath) {
+        for(String path : hashCache.paths(relativePath)) {
+            if(!localFile(path).exists())
+                sendFileDelete(path);
+        }
+    }
+
+    /**
+     * Metoda wysyła plik na na serwer do swojego zdalnego katalogu lub do innego użytkownika. Wysłanie następuje
+     * dopiero, gdy plik przestanie się zmieniać, a kolejne wywołania dla tego samego pliku przed jego wysłaniem
+     * skutkują tylko jednym wysłaniem.
      * @param relativePath Ścieżka do wysyłanego pliku.
      * @param login null jeżeli plik jest wysyłany do własnego katalogu zdanego, lub login użytkownika do którego plik ma być wysłany.
      */
     public void sendFileData(String relativePath, String login) {
-        // Odczytanie czasu modyfikacji i rozmiaru pliku.
-        File file = new File(directory, relativePath);
-        long modificationTime = file.lastModified();
-        long size = file.length();
+        File file = localFile(relativePath);
+        String key = login == null ? relativePath : login + "/" + relativePath;
+
+        debouncer.schedule(key, file, PriorityTaskQueue.Priority.forSize(file.length()), new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                if(!file.isFile())
+                    return;
+
+                // Plik, którego zmieniła się tylko data modyfikacji, nie musi być ponownie wysyłany
+                Resume resume = login == null ? requestedUploads.remove(relativePath) : null;
+                if(login == null && resume == null && !hashCache.hasChanged(relativePath)) {
+                    clientListener.log("## File " + relativePath + " content is unchanged, skipping upload");
+                    return;
+                }
 
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                try { TimeUnit.SECONDS.sleep(1); }
-                catch(Exception e) {};
+                // Serwer ma już początek tej wersji pliku, więc wystarczy dokończyć przesyłanie
+                long offset = resume == null ? 0 : resume.offsetFor(file, file.lastModified(), file.length());
+                if(offset > 0) {
+                    sendWholeFile(connection, relativePath, null, file, offset);
+                    return;
+                }
 
-                // Gdy plik jest wysyłany do własnego katalogu
-                if(login == null) {
-                    clientListener.log("<< sending file " + relativePath);
-                    stream.writeInt(Command.SEND_FILE.asInt());
+                // Duże pliki wysyłane do własnego katalogu są przesyłane różnicowo, więc najpierw potrzebna jest
+                // sygnatura wersji na serwerze
+                if(login == null && Delta.isWorthwhile(file.length())) {
+                    clientListener.log("<< sending signature request for file " + relativePath);
+                    connection.send(Command.REQUEST_SIGNATURE, stream -> stream.writeUTF(relativePath));
+                    return;
                 }
 
-                // Gdy plik jest wysyłany do innego użytkownika
-                else {
-                    clientListener.log("<< sending file " + relativePath + " to " + login);
-                    stream.writeInt(Command.SEND_TO_USER.asInt());
-                    stream.writeUTF(login);
+                sendWholeFile(connection, relativePath, login, file, 0);
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła na serwer różnicę pomiędzy plikiem lokalnym a wersją na serwerze opisaną sygnaturą. Jeżeli
+     * sygnatura jest pusta lub różnica nie jest mniejsza od pliku, plik wysyłany jest w całości.
+     * @param relativePath Ścieżka do wysyłanego pliku.
+     * @param signature Sygnatura wersji pliku na serwerze.
+     */
+    public void sendFileDelta(String relativePath, Delta.Signature signature) {
+        File file = localFile(relativePath);
+        scheduler.execute(relativePath, PriorityTaskQueue.Priority.forSize(file.length()), new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                if(!file.isFile())
+                    return;
+
+                // Serwer nie posiada pliku lub nie udało mu się odtworzyć różnicy
+                if(signature.isEmpty()) {
+                    sendWholeFile(connection, relativePath, null, file, 0);
+                    return;
                 }
 
-                // Wysłanie metainformacji
-                stream.writeUTF(relativePath);
-                stream.writeLong(modificationTime);
-                stream.writeLong(size);
-
-                // Wysłanie danych pliku
-                try(FileInputStream input = new FileInputStream(file)) {
-                    for(long pos=0; pos<size; pos++) {
-                        int aByte = input.read();
-                        stream.write(aByte);
-                        stream.flush();
-                    }
+                // Wyznaczenie różnicy, która nie opłaca się, gdy plik zmienił się prawie w całości
+                Delta.Patch patch = Delta.Patch.create(file, signature);
+                if(!patch.isSmaller()) {
+                    patch.discard();
+                    sendWholeFile(connection, relativePath, null, file, 0);
+                    return;
                 }
+
+                cancelSlices(relativePath);
+                clientListener.log("<< sending delta of file " + relativePath + " (" + patch.getLength() + " bytes)");
+                connection.send(Command.SEND_DELTA, stream -> patch.writeHeader(stream, relativePath), patch.getFile(), patch.getLength(), true);
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła do serwera sygnaturę lokalnej wersji pliku, aby serwer mógł przesłać go różnicowo. Gdy plik nie
+     * istnieje wysyłana jest pusta sygnatura.
+     * @param relativePath Ścieżka do pliku w katalogu lokalnym.
+     */
+    public void sendSignature(String relativePath) {
+        File file = localFile(relativePath);
+        scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Delta.Signature signature = file.isFile() ? Delta.Signature.compute(file) : Delta.Signature.empty();
+                clientListener.log("<< sending signature of file " + relativePath);
+                connection.send(Command.SIGNATURE, stream -> {
+                    stream.writeUTF(relativePath);
+                    signature.write(stream);
+                });
             }
         });
     }
 
     /**
-     * Metoda wysyła plik na serwer, do katalogu zdalnego użytkownika.
+     * Metoda prosi serwer o przesłanie pliku w całości, wysyłając mu pustą sygnaturę. Wykorzystywana jest, gdy nie
+     * udało się odtworzyć pliku z różnicy. Żądanie pliku oczekujące na wynik jest kończone wyjątkowo, ponieważ plik
+     * nie został odebrany, a kolejne żądanie tego pliku zostanie wysłane ponownie.
+     * @param relativePath Ścieżka do pliku w katalogu lokalnym.
+     */
+    public void requestFullFile(String relativePath) {
+        requests.fail(Command.NEED_FILE, relativePath, new IOException("Unable to receive file " + relativePath));
+        scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                clientListener.log("<< requesting whole file " + relativePath);
+                connection.send(Command.SIGNATURE, stream -> {
+                    stream.writeUTF(relativePath);
+                    Delta.Signature.empty().write(stream);
+                });
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła plik na serwer, do katalogu zdalnego użytkownika, np. na żądanie serwera.
      * @param relativePath Ścieżka do wysyłanego pliku.
      */
     public void sendFileData(String relativePath) {
+        sendRequestedFile(relativePath, Resume.none());
+    }
+
+    /**
+     * Metoda wysyła na serwer plik, o który poprosił serwer. Jeżeli serwer posiada już początek tej samej wersji
+     * pliku, wysyłana jest jedynie pozostała część.
+     * @param relativePath Ścieżka do wysyłanego pliku.
+     * @param resume Informacja o częściowo odebranych przez serwer danych pliku.
+     */
+    public void sendRequestedFile(String relativePath, Resume resume) {
+        requestedUploads.put(relativePath, resume);
+        sendFileData(relativePath, null);
+    }
+
+    /**
+     * Metoda wysyła na serwer plik zmieniony w katalogu lokalnym. Plik nie jest wysyłany, jeżeli jego zawartość
+     * nie zmieniła się od ostatniego wyznaczenia skrótu, np. gdy zmieniono jedynie datę modyfikacji.
+     * @param relativePath Ścieżka do zmienionego pliku.
+     */
+    public void sendFileChange(String relativePath) {
         sendFileData(relativePath, null);
     }
 
     /**
-     * Metoda tworzy w katalogu lokalnym plik o podanej nazwie i dacie modyfikacji oraz wczytuje do niego dane pobrane ze strumienia.
+     * Metoda tworzy w katalogu lokalnym plik o podanej nazwie i dacie modyfikacji oraz wczytuje do niego dane pobrane z kanału.
+     * Dane są najpierw zapisywane do ukrytego pliku częściowego, który po przerwaniu połączenia pozostaje na dysku,
+     * aby można było wznowić odbieranie, a plik docelowy jest podmieniany dopiero po odebraniu całości.
      * @param relativePath Nazwa pliku do utworzenia.
      * @param modificationTime Data modyfikacji pliku.
-     * @param size Ilość bajtów, która ma zostać wczytana ze strumienia do pliku.
-     * @param input Strumień z którego dane będą wczytywane do pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której serwer wysyła dane, wcześniejsze dane znajdują się w pliku częściowym.
+     * @param input Kanał z którego dane będą wczytywane do pliku.
      */
-    public void receiveFile(String relativePath, long modificationTime, long size, DataInputStream input) {
-        // Ignorowanie zmian w katalogu lokalnym odnoście tworzonego pliku
-        clientWatcher.addIgnore(relativePath);
-
-        File newFile = new File(directory, relativePath);
-        File parent = newFile.getParentFile();
+    public void receiveFile(String relativePath, long modificationTime, long size, long offset, ReadableByteChannel input) {
+        PartialFile partial = partialFile(relativePath);
+
+        // Wczytanie danych do pliku częściowego
+        try(FileChannel output = partial.open(modificationTime, size, offset)) {
+            try {
+                FileTransfer.receive(input, output, size - offset);
+            } catch(IOException e) {
+                clientListener.log("!! IOException occured when receiving file, received data is kept for resuming");
+                partial.keep();
+                requests.fail(Command.NEED_FILE, relativePath, e);
+                return;
+            }
+        } catch(IOException e) {
+            // Nie można wznowić odbierania, więc plik jest pobierany ponownie w całości
+            clientListener.log("!! Unable to resume file " + relativePath + ", requesting whole file");
+            requestFullFile(relativePath);
+            return;
+        }
 
-        // Tworzenie katalogu jeżeli nie istnieje
-        if(!parent.exists())
-            parent.mkdirs();
+        install(relativePath, partial, modificationTime);
+    }
 
-        // Kasowanie pliku jeżeli istnieje
-        if(newFile.exists())
-            newFile.delete();
+    /**
+     * Metoda zapisuje w pliku częściowym fragment pliku przesyłanego przez serwer równolegle kilkoma połączeniami.
+     * Pierwszy fragment transferu rozpoczyna składanie pliku, a fragment, który dopełni plik, podmienia nim plik
+     * w katalogu lokalnym. Metoda może być wywoływana jednocześnie przez wątki odczytujące różne połączenia.
+     * @param relativePath Nazwa pliku.
+     * @param modificationTime Data modyfikacji pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której serwer wysyła plik, wcześniejsze dane znajdują się w pliku częściowym.
+     * @param transfer Identyfikator transferu nadany przez serwer.
+     * @param start Pozycja fragmentu w pliku.
+     * @param length Długość fragmentu.
+     * @param input Kanał z którego odczytywane są dane fragmentu.
+     */
+    public void receiveRange(String relativePath, long modificationTime, long size, long offset, long transfer,
+                             long start, long length, ReadableByteChannel input) {
+        RangeAssembly assembly;
+        synchronized(assemblies) {
+            assembly = assemblies.get(relativePath);
+            if(assembly == null || !assembly.belongsTo(transfer)) {
+                // Poprzedni transfer tego pliku nie zostanie już dokończony
+                if(assembly != null)
+                    assembly.abort();
+                assembly = new RangeAssembly(partialFile(relativePath), modificationTime, size, offset, transfer);
+                assemblies.put(relativePath, assembly);
+                try {
+                    assembly.start();
+                } catch(IOException e) {
+                    // Nie można wznowić odbierania, więc plik jest pobierany ponownie w całości
+                    clientListener.log("!! Unable to resume file " + relativePath + ", requesting whole file");
+                    requestFullFile(relativePath);
+                }
+            }
+        }
 
-        // Tworzenie pustego pliku
-        try { newFile.createNewFile(); }
-        catch(IOException e) {
-            clientListener.log("!! Unable do create file in local directory");
+        // Fragment należy do przerwanego transferu lub jest niepoprawny
+        RangeAssembly.Range range = assembly.open(start, length);
+        if(range == null)
             return;
-        }
 
-        // Wczytanie danych do pliku bajt po bajcie
-        try(FileOutputStream output = new FileOutputStream(newFile)) {
-            for (long pos = 0; pos < size; pos++) {
-                int aByte = input.read();
-                output.write(aByte);
-            }
+        try {
+            range.transferFrom(input, length);
         } catch(IOException e) {
-            clientListener.log("!! IOException occured when receiving file");
+            clientListener.log("!! IOException occured when receiving file, received data is kept for resuming");
+            requests.fail(Command.NEED_FILE, relativePath, e);
+        }
+        if(!range.complete())
             return;
+
+        synchronized(assemblies) {
+            assemblies.remove(relativePath, assembly);
         }
+        install(relativePath, assembly.getPartial(), modificationTime);
+    }
 
-        // Ustawienie czasu modyfikacji
-        newFile.setLastModified(modificationTime);
+    /**
+     * Metoda odtwarza w katalogu lokalnym nową wersję pliku z jego obecnej wersji oraz różnicy pobranej ze strumienia.
+     * Jeżeli odtworzony plik nie zgadza się ze skrótem podanym przez serwer, plik jest pobierany ponownie w całości.
+     * @param relativePath Nazwa pliku.
+     * @param modificationTime Data modyfikacji nowej wersji pliku.
+     * @param size Rozmiar nowej wersji pliku.
+     * @param digest Skrót MD5 nowej wersji pliku.
+     * @param input Strumień z którego odczytywana jest różnica.
+     */
+    public void receiveFileDelta(String relativePath, long modificationTime, long size, byte[] digest, DataInputStream input) {
+        // Ignorowanie zmian w katalogu lokalnym odnoście odtwarzanego pliku
+        clientWatcher.addIgnore(relativePath);
 
-        // Aktywowanie obserwowania pliku
-        clientWatcher.removeIgnore(relativePath);
+        File file = localFile(relativePath);
+        File part = hiddenFile(relativePath, ".part");
+        try {
+            byte[] result = Delta.apply(file, input, part);
+
+            // Odtworzony plik różni się od pliku na serwerze, np. gdy wersja lokalna zmieniła się w międzyczasie
+            if(part.length() != size || !Arrays.equals(result, digest))
+                throw new IOException("Digest mismatch");
+
+            Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            file.setLastModified(modificationTime);
+            hashCache.hash(relativePath);
+            requests.complete(Command.NEED_FILE, relativePath, true);
+        } catch(IOException e) {
+            clientListener.log("!! Unable to apply delta for file " + relativePath + ", requesting whole file");
+            part.delete();
+            requestFullFile(relativePath);
+        } finally {
+            // Aktywowanie obserwowania pliku
+            clientWatcher.removeIgnore(relativePath);
+        }
 
         // Powiadomienie za pomocą listenera o dokonaniu zmian w katalogu
         clientListener.filesUpdated();
     }
 
     /**
-     * Metoda sprawdza, czy plik określony ścieżką jest aktualniejszy od przekazanej daty modyfikacji.
+     * Metoda sprawdza, czy plik określony ścieżką jest aktualniejszy od przekazanej daty modyfikacji. Plik o takiej
+     * samej zawartości jest zawsze aktualny, niezależnie od daty modyfikacji.
      * @param relativePath Ścieżka do pliku w katalogu lokalnym, którego aktualność jest sprawdzana.
      * @param otherModificationTime Czas modyfikacji do porównania.
+     * @param otherHash Skrót zawartości do porównania lub null, gdy nie jest znany.
      * @return true jeżeli plik określony ścieżką jest aktualny, false w przeciwnym wypadku.
      */
-    public boolean isFileUpToDate(String relativePath, long otherModificationTime) {
+    public boolean isFileUpToDate(String relativePath, long otherModificationTime, byte[] otherHash) {
         clientListener.log("## Checking if file " + relativePath + " is up to date");
-        File file = new File(directory, relativePath);
+        if(otherHash != null && Arrays.equals(hashCache.hash(relativePath), otherHash))
+            return true;
+        File file = localFile(relativePath);
         long modificationTime = file.lastModified();
         if(modificationTime < otherModificationTime)
             return false;
@@ -347,26 +813,192 @@ public class ClientBackend {
     public void deleteFile(String relativePath) {
         clientListener.log("## Deleting file " + relativePath);
         clientWatcher.addIgnore(relativePath);
-        File file = new File(directory, relativePath);
+        File file = localFile(relativePath);
         file.delete();
+        hashCache.forget(relativePath);
+        requests.complete(Command.NEED_FILE, relativePath, false);
+
+        // Fragmenty usuniętego pliku nie zostaną już odebrane
+        synchronized(assemblies) {
+            RangeAssembly assembly = assemblies.remove(relativePath);
+            if(assembly != null)
+                assembly.abort();
+        }
+
+        // Usunięcie katalogów, które po usunięciu pliku pozostały puste
+        File root = new File(directory);
+        for(File parent = file.getParentFile(); parent != null && !parent.equals(root); parent = parent.getParentFile()) {
+            if(!parent.delete())
+                break;
+        }
         clientWatcher.removeIgnore(relativePath);
 
         // Powiadomienie listenera o dokonaniu zmian w katalogu lokalnym.
         clientListener.filesUpdated();
     }
 
+    // Podmienia plik w katalogu lokalnym odebranym plikiem częściowym
+    private void install(String relativePath, PartialFile partial, long modificationTime) {
+        // Ignorowanie zmian w katalogu lokalnym odnoście podmienianego pliku
+        clientWatcher.addIgnore(relativePath);
+        File newFile = localFile(relativePath);
+        try {
+            // Tworzenie katalogu jeżeli nie istnieje
+            newFile.getParentFile().mkdirs();
+
+            Files.move(partial.getFile().toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            partial.complete();
+        } catch(IOException e) {
+            clientListener.log("!! Unable do create file in local directory");
+            partial.discard();
+            requests.fail(Command.NEED_FILE, relativePath, e);
+            clientWatcher.removeIgnore(relativePath);
+            return;
+        }
+
+        // Ustawienie czasu modyfikacji i zapamiętanie skrótu odebranej zawartości, dzięki czemu ponowne wykrycie pliku,
+        // np. podczas przeglądania nowego podkatalogu, nie powoduje odesłania go na serwer
+        newFile.setLastModified(modificationTime);
+        hashCache.hash(relativePath);
+        requests.complete(Command.NEED_FILE, relativePath, true);
+
+        // Aktywowanie obserwowania pliku
+        clientWatcher.removeIgnore(relativePath);
+
+        // Powiadomienie za pomocą listenera o dokonaniu zmian w katalogu
+        clientListener.filesUpdated();
+    }
+
+    // Przerywa składanie plików, których fragmenty nie zostaną już odebrane
+    private void abortAssemblies() {
+        synchronized(assemblies) {
+            for(RangeAssembly assembly : assemblies.values())
+                assembly.abort();
+            assemblies.clear();
+        }
+    }
+
+    // Zwraca ukryty plik częściowy, do którego odbierany jest plik
+    private PartialFile partialFile(String relativePath) {
+        return new PartialFile(hiddenFile(relativePath, ".partial"));
+    }
+
+    // Zwraca plik w katalogu lokalnym, sprawdzając że ścieżka nie wychodzi poza ten katalog
+    private File localFile(String relativePath) {
+        return SafePath.resolve(new File(directory), relativePath);
+    }
+
+    // Zwraca ukryty plik pomocniczy leżący w tym samym katalogu co plik o podanej ścieżce
+    private File hiddenFile(String relativePath, String suffix) {
+        File file = localFile(relativePath);
+        return new File(file.getParentFile(), "." + file.getName() + suffix);
+    }
+
+    // Wysyła cały plik do własnego katalogu zdalnego lub do innego użytkownika, opcjonalnie od podanej pozycji
+    private void sendWholeFile(Connection connection, String relativePath, String login, File file, long offset) throws IOException {
+        // Wcześniejsza wersja pliku, której fragmenty są jeszcze wysyłane, jest już nieaktualna
+        if(login == null)
+            cancelSlices(relativePath);
+
+        // Odczytanie czasu modyfikacji i rozmiaru pliku w chwili wysyłania
+        long modificationTime = file.lastModified();
+        long size = file.length();
+
+        // Gdy plik jest wysyłany do własnego katalogu
+        if(login == null)
+            clientListener.log("<< sending file " + relativePath + (offset > 0 ? " from byte " + offset : ""));
+
+        // Gdy plik jest wysyłany do innego użytkownika
+        else
+            clientListener.log("<< sending file " + relativePath + " to " + login);
+
+        // Pliki wysyłane do własnego katalogu zdalnego, które dobrze się kompresują, są przesyłane w postaci
+        // skompresowanej, o ile serwer obsługuje kompresję, w fragmentach kompresowanych osobno tuż przed wysłaniem
+        int level = login == null && Capability.COMPRESSION.isIn(serverCapabilities) ? compression.chooseLevel(file, offset, size) : Compression.NONE;
+        if(level != Compression.NONE) {
+            sendSlices(connection, relativePath, modificationTime, size, file, offset, level);
+            return;
+        }
+
+        // Duże pliki wysyłane do własnego katalogu zdalnego są przesyłane równolegle wszystkimi połączeniami
+        List<Connection> connections = new ArrayList<>();
+        connections.add(connection);
+        connections.addAll(streams);
+        if(login == null && parallelTransfer.isWorthwhile(size - offset, connections.size())) {
+            parallelTransfer.send(connections, executor, relativePath, modificationTime, size, file, offset);
+            return;
+        }
+
+        // Pozostałe duże pliki wysyłane do własnego katalogu zdalnego są przesyłane we fragmentach, pomiędzy którymi
+        // harmonogram może wysłać inne komunikaty
+        if(login == null && SlicedTransfer.isWorthwhile(size - offset)) {
+            sendSlices(connection, relativePath, modificationTime, size, file, offset, Compression.NONE);
+            return;
+        }
+
+        // Wysłanie metainformacji oraz danych pliku
+        Command command = login == null ? Command.SEND_FILE : Command.SEND_TO_USER;
+        long begin = System.nanoTime();
+        connection.send(command, stream -> {
+            if(login != null)
+                stream.writeUTF(login);
+            stream.writeUTF(relativePath);
+            stream.writeLong(modificationTime);
+            stream.writeLong(size);
+            if(login == null)
+                stream.writeLong(offset);
+        }, file, offset, size - offset, false);
+        compression.record(size - offset, System.nanoTime() - begin);
+    }
+
+    // Rozpoczyna wysyłanie pliku we fragmentach, opcjonalnie kompresowanych
+    private void sendSlices(Connection connection, String relativePath, long modificationTime, long size, File file,
+                            long offset, int level) throws IOException {
+        SlicedTransfer transfer = new SlicedTransfer(connection, relativePath, modificationTime, size, FileSlice.of(file, size), offset, level, compression);
+        slicedTransfers.put(relativePath, transfer);
+        sendSlice(transfer);
+    }
+
+    // Wysyła kolejny fragment pliku i zgłasza wysłanie następnego jako komunikat sterujący, który wyprzedzają jedynie
+    // zadania zgłoszone w trakcie wysyłania poprzedniego fragmentu
+    private void sendSlice(SlicedTransfer transfer) throws IOException {
+        String relativePath = transfer.getRelativePath();
+        boolean more = false;
+        try {
+            // Plik mógł zostać usunięty przed wykryciem tego przez obserwatora, który wyśle żądanie usunięcia
+            if(localFile(relativePath).isFile())
+                more = transfer.sendNext();
+        } finally {
+            if(!more)
+                slicedTransfers.remove(relativePath, transfer);
+        }
+        if(more) {
+            scheduler.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+                void send(Connection connection) throws IOException {
+                    sendSlice(transfer);
+                }
+            });
+        }
+    }
+
+    // Przerywa wysyłanie pliku we fragmentach, np. gdy plik został usunięty lub zostanie wysłana jego nowsza wersja
+    private void cancelSlices(String relativePath) {
+        SlicedTransfer transfer = slicedTransfers.remove(relativePath);
+        if(transfer != null)
+            transfer.cancel();
+    }
+
      // Jest to klasa pomocnicza, która umożliwia uniknięcie pisania powtarzającego się kodu w metodach wysyłąjących komendy do serwera.
     private abstract class SendWrapper implements Runnable {
         public void run() {
-            try (Socket socket = new Socket(InetAddress.getByName(ImportantConstants.SERVER_ADDRESS), port, addresIP, 0)) {
-                DataOutputStream stream = new DataOutputStream(socket.getOutputStream());
-                send(stream);
+            try {
+                send(connection);
             } catch (IOException e) {
                 clientListener.errorOccured();
             }
         }
 
-         // Metoda w której powinno wystąpić wysyłamie komunikatu za pomocą strumienia stream w klasach pochodnych
-        abstract void send(DataOutputStream stream) throws IOException;
+         // Metoda w której powinno wystąpić wysyłamie komunikatu za pomocą połączenia w klasach pochodnych
+        abstract void send(Connection connection) throws IOException;
     }
 }
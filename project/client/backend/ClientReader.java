@@ -1,100 +1,284 @@
 package project.client.backend;
 
-import project.common.Command;
+import project.common.*;
 
 import java.io.*;
-import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
 
 /**
- * Zadanie odpowiedzialne za odczytanie danych ze strumienia wejściowego socketa, zinterpretowanie ich jako rozkazu
- * oraz podjęcie odpowiedniego działania.
+ * Zadanie odpowiedzialne za odczytywanie kolejnych ramek z trwałego połączenia z serwerem, zinterpretowanie ich jako
+ * rozkazów oraz podjęcie odpowiedniego działania. Zadanie działa aż do zamknięcia lub zerwania połączenia.
  */
 class ClientReader implements Runnable {
 
     // Parametry przekazane w konstruktorze
-    private Socket socket;
+    private SocketConnection connection;
     private ClientBackend clientBackend;
     private ClientListener clientListener;
+    private boolean stream;
 
     /**
-     * Konnstruuje obiekt odczytujący dane z przekazanego socketa, posługując się przy tym przekazanym backendem.
-     * @param socket Socket z którego będzie odczytany rozkaz.
+     * Konnstruuje obiekt odczytujący ramki z przekazanego połączenia, posługując się przy tym przekazanym backendem.
+     * @param connection Połączenie z serwerem z którego będą odczytywane rozkazy.
      * @param clientBackend Backend który będzie wykorzystywany przy reagowaniu na otrzymane polecenia.
      * @param clientListener Obiekt słuchacza używany do powiadamiania frontendu o zachodzących zdarzeniach.
+     * @param stream true jeżeli połączenie jest dodatkowym połączeniem służącym do przesyłania fragmentów plików,
+     *               którego zerwanie nie przerywa pracy klienta, false w przeciwnym wypadku.
      */
-    public ClientReader(Socket socket, ClientBackend clientBackend, ClientListener clientListener) {
-        this.socket = socket;
+    public ClientReader(SocketConnection connection, ClientBackend clientBackend, ClientListener clientListener, boolean stream) {
+        this.connection = connection;
         this.clientBackend = clientBackend;
         this.clientListener = clientListener;
+        this.stream = stream;
     }
 
     /**
-     * Zadanie odczytujące rozkaz ze strumienia i odpowiednio reagujące.
+     * Zadanie odczytujące kolejne rozkazy z połączenia i odpowiednio reagujące.
      */
     public void run() {
         try {
-            DataInputStream input = new DataInputStream(socket.getInputStream());
-            int command = input.readInt();
-
-            // Udało się pomyślnie zalogować
-            if (command == Command.LOGIN_SUCCESS.asInt()) {
-                clientListener.log(">> receiving login success");
-                clientBackend.sendFileCheckAll();
+            while(true)
+                handle(connection.receive());
+        } catch (IOException e) {
+            // Zerwanie dodatkowego połączenia, pliki są dalej przesyłane pozostałymi połączeniami
+            if(stream) {
+                clientBackend.streamClosed(connection);
+                return;
             }
 
-            // Otrzymano wiadomość o istnieniu pliku na serwerze
-            else if (command == Command.CHECK_FILE.asInt()) {
-                String relativePath = input.readUTF();
-                long modificationTime = input.readLong();
-                clientListener.log(">> receiving advertisement for file " + relativePath);
-                if(!clientBackend.isFileUpToDate(relativePath, modificationTime))
-                    clientBackend.sendFileRequest(relativePath);
+            // Zerwanie połączenia, które nie zostało zamknięte przez klienta
+            if(!connection.isClosed() && !clientBackend.isStopping()) {
+                clientListener.log("!! IOException occured while receiving data from server");
+                clientListener.errorOccured();
             }
+        }
+    }
 
-            // Otrzymano żądanie wysłąnia pliku na serwer
-            else if (command == Command.NEED_FILE.asInt()) {
-                String relativePath = input.readUTF();
-                clientListener.log(">> receiving request for file " + relativePath);
-                clientBackend.sendFileData(relativePath);
-            }
+    // Metoda reaguje na pojedynczą odebraną ramkę
+    private void handle(Frame frame) throws IOException {
+        Command command = frame.getCommand();
+        DataInputStream input = frame.getHeader();
 
-            // Otrzymano plik
-            else if (command == Command.SEND_FILE.asInt()) {
-                String relativePath = input.readUTF();
-                long modificationTime = input.readLong();
-                long size = input.readLong();
-                clientListener.log(">> receiving file " + relativePath);
-                clientBackend.receiveFile(relativePath, modificationTime, size, input);
-            }
+        // Udało się pomyślnie zalogować
+        if (command == Command.LOGIN_SUCCESS) {
+            clientListener.log(">> receiving login success");
+            int capabilities = input.available() > 0 ? input.readInt() : 0;
+            long session = input.available() > 0 ? input.readLong() : 0;
+            int version = input.available() > 0 ? input.readInt() : 0;
 
-            // Otrzymano żądanie usunięcia pliku
-            else if (command == Command.DELETE_FILE.asInt()) {
-                String relativePath = input.readUTF();
-                clientListener.log(">> receiving delete request for file " + relativePath);
-                clientBackend.deleteFile(relativePath);
+            // Serwer o niezgodnej wersji protokołu nie zrozumiałby dalszych komend
+            if(!FrameHeader.isSupported(version)) {
+                clientListener.log("!! Server uses unsupported protocol version " + version);
+                clientListener.errorOccured();
+                return;
             }
+            clientBackend.setServerCapabilities(capabilities);
+            clientBackend.setSession(session);
+            clientBackend.sendManifest();
+            clientBackend.openStreams();
+        }
 
-            // Otrzymano powiadomienie o aktywnym użytkowniku
-            else if (command == Command.USER_ACTIVE.asInt()) {
-                String login = input.readUTF();
-                clientListener.log(">> receiving active user " + login);
-                clientListener.userLogginIn(login);
-            }
+        // Serwer odrzucił logowanie, ponieważ nie obsługuje wersji protokołu klienta
+        else if (command == Command.LOGIN_REJECTED) {
+            int version = input.readInt();
+            clientListener.log("!! Login rejected by server using protocol version " + version + ": " + input.readUTF());
+            clientListener.errorOccured();
+        }
 
-            // Otrzymano powiadomienie o nieaktywnym użytkowniku
-            else if (command == Command.USER_INACTIVE.asInt()) {
-                String login = input.readUTF();
-                clientListener.log(">> receiving inactive user " + login);
-                clientListener.userLogginOut(login);
+        // Otrzymano wiadomość o istnieniu pliku na serwerze
+        else if (command == Command.CHECK_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            byte[] hash = Manifest.readHash(input);
+            clientListener.log(">> receiving advertisement for file " + relativePath);
+
+            // Serwer czeka na odpowiedź, którą można wysłać dopiero po pobraniu nowszej wersji pliku, a nieudane
+            // pobranie również wymaga odpowiedzi
+            int requestId = frame.getRequestId();
+            if(clientBackend.isFileUpToDate(relativePath, modificationTime, hash))
+                clientBackend.sendResponse(requestId, true);
+            else
+                clientBackend.requestFile(relativePath).whenComplete((received, error) ->
+                        clientBackend.sendResponse(requestId, error == null && received));
+        }
+
+        // Otrzymano spis plików na serwerze
+        else if (command == Command.MANIFEST) {
+            Manifest manifest = Manifest.read(input);
+            clientListener.log(">> receiving manifest of " + manifest.size() + " files");
+
+            // Porównanie spisu z katalogiem lokalnym i zażądanie nowszych plików jednym komunikatem
+            List<String> needed = manifest.newerThan(clientBackend.getFiles());
+            if(!needed.isEmpty())
+                clientBackend.sendFileRequests(needed);
+        }
+
+        // Otrzymano skróty węzłów drzewa Merkle katalogu na serwerze
+        else if (command == Command.MERKLE_NODES) {
+            MerkleTree.Nodes nodes = MerkleTree.Nodes.read(input);
+            clientListener.log(">> receiving " + nodes.size() + " tree nodes");
+
+            // Zejście w głąb różniących się poddrzew oraz porównanie plików różniących się liści
+            List<Integer> leaves = new ArrayList<>();
+            MerkleTree tree = clientBackend.getTree();
+            MerkleTree.Nodes children = tree.compare(nodes, leaves);
+            if(!children.isEmpty())
+                clientBackend.sendTreeNodes(children);
+            if(!leaves.isEmpty())
+                clientBackend.sendTreeEntries(false, leaves, tree.entries(leaves));
+        }
+
+        // Otrzymano spis plików na serwerze z różniących się liści drzewa Merkle
+        else if (command == Command.MERKLE_ENTRIES) {
+            boolean reply = input.readBoolean();
+            List<Integer> leaves = MerkleTree.readLeaves(input);
+            Manifest manifest = Manifest.read(input);
+            clientListener.log(">> receiving " + manifest.size() + " files of " + leaves.size() + " tree leaves");
+
+            // Zażądanie nowszych plików i odesłanie własnego spisu tych liści, aby serwer mógł zrobić to samo
+            Manifest local = clientBackend.getTree().entries(leaves);
+            List<String> needed = manifest.newerThan(local);
+            if(!needed.isEmpty())
+                clientBackend.sendFileRequests(needed);
+            if(!reply)
+                clientBackend.sendTreeEntries(true, leaves, local);
+        }
+
+        // Otrzymano żądanie wysłania wielu plików na serwer
+        else if (command == Command.NEED_FILES) {
+            Map<String, Resume> requests = Resume.readRequests(input);
+            clientListener.log(">> receiving request for " + requests.size() + " files");
+            for(Map.Entry<String, Resume> request : requests.entrySet())
+                clientBackend.sendRequestedFile(request.getKey(), request.getValue());
+        }
+
+        // Otrzymano żądanie wysłąnia pliku na serwer
+        else if (command == Command.NEED_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            Resume resume = Resume.read(input);
+            clientListener.log(">> receiving request for file " + relativePath);
+
+            // Serwer czeka na plik, więc o jego braku trzeba go powiadomić
+            if(!SafePath.resolve(new File(clientBackend.getDirectory()), relativePath).isFile())
+                clientBackend.sendResponse(frame.getRequestId(), false);
+            else
+                clientBackend.sendRequestedFile(relativePath, resume);
+        }
+
+        // Otrzymano odpowiedź na żądanie wysłane do serwera
+        else if (command == Command.RESPONSE) {
+            boolean result = input.readBoolean();
+            clientListener.log(">> receiving response " + result + " to request " + frame.getRequestId());
+            clientBackend.getRequests().complete(frame.getRequestId(), result);
+        }
+
+        // Otrzymano plik
+        else if (command == Command.SEND_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            clientListener.log(">> receiving file " + relativePath);
+            clientBackend.receiveFile(relativePath, modificationTime, size, offset, frame.getBodyChannel());
+        }
+
+        // Otrzymano skompresowany plik, który jest rozpakowywany w trakcie odbierania
+        else if (command == Command.SEND_COMPRESSED) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            clientListener.log(">> receiving compressed file " + relativePath);
+            try(ReadableByteChannel inflated = Compression.inflate(frame.getBodyChannel())) {
+                clientBackend.receiveFile(relativePath, modificationTime, size, offset, inflated);
             }
+        }
 
-            // Otrzymano powiadomienie o zatrzymaniu serwera
-            else if (command == Command.SERVER_DOWN.asInt()) {
-                clientListener.errorOccured();
+        // Otrzymano fragment pliku przesyłanego równolegle
+        else if (command == Command.SEND_RANGE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            long transfer = input.readLong();
+            long start = input.readLong();
+            clientListener.log(">> receiving range of file " + relativePath + " from byte " + start);
+            clientBackend.receiveRange(relativePath, modificationTime, size, offset, transfer, start,
+                    frame.getBodyLength(), frame.getBodyChannel());
+        }
+
+        // Otrzymano skompresowany fragment pliku, który jest rozpakowywany w trakcie odbierania
+        else if (command == Command.SEND_COMPRESSED_RANGE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            long transfer = input.readLong();
+            long start = input.readLong();
+            long length = input.readLong();
+            clientListener.log(">> receiving compressed range of file " + relativePath + " from byte " + start);
+            try(ReadableByteChannel inflated = Compression.inflate(frame.getBodyChannel())) {
+                clientBackend.receiveRange(relativePath, modificationTime, size, offset, transfer, start, length, inflated);
             }
+        }
 
-        } catch (IOException e) {
-            clientListener.log("!! IOException occured while receiving data from server");
+        // Serwer chce przesłać plik różnicowo i prosi o sygnaturę wersji lokalnej
+        else if (command == Command.REQUEST_SIGNATURE) {
+            String relativePath = SafePath.check(input.readUTF());
+            clientListener.log(">> receiving signature request for file " + relativePath);
+            clientBackend.sendSignature(relativePath);
         }
+
+        // Otrzymano sygnaturę wersji pliku na serwerze, więc można wysłać różnicę
+        else if (command == Command.SIGNATURE) {
+            String relativePath = SafePath.check(input.readUTF());
+            Delta.Signature signature = Delta.Signature.read(input);
+            clientListener.log(">> receiving signature of file " + relativePath);
+            clientBackend.sendFileDelta(relativePath, signature);
+        }
+
+        // Otrzymano różnicę pliku
+        else if (command == Command.SEND_DELTA) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            byte[] digest = new byte[input.readUnsignedShort()];
+            input.readFully(digest);
+            clientListener.log(">> receiving delta of file " + relativePath);
+            clientBackend.receiveFileDelta(relativePath, modificationTime, size, digest, frame.getBody());
+        }
+
+        // Otrzymano żądanie usunięcia pliku
+        else if (command == Command.DELETE_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            clientListener.log(">> receiving delete request for file " + relativePath);
+            clientBackend.deleteFile(relativePath);
+        }
+
+        // Otrzymano zbiorcze powiadomienie o aktywnych i nieaktywnych użytkownikach
+        else if (command == Command.PRESENCE) {
+            List<String> active = readLogins(input);
+            List<String> inactive = readLogins(input);
+            clientListener.log(">> receiving " + active.size() + " active and " + inactive.size() + " inactive users");
+            for(String login : active)
+                clientListener.userLogginIn(login);
+            for(String login : inactive)
+                clientListener.userLogginOut(login);
+        }
+
+        // Otrzymano powiadomienie o zatrzymaniu serwera
+        else if (command == Command.SERVER_DOWN) {
+            clientListener.errorOccured();
+        }
+    }
+
+    // Odczytuje liczbę loginów oraz loginy
+    private static List<String> readLogins(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        List<String> logins = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            logins.add(input.readUTF());
+        return logins;
     }
-}
\ No newline at end of file
+}
@@ -1,17 +1,35 @@
 package project.client.backend;
 
+import project.common.*;
 import java.io.*;
 import java.nio.file.*;
+import java.nio.file.attribute.*;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
 
 /**
- * Klasa obserwuje katalog lokalny użytkownika i reaguje na zmiany w nim. W przypadku pojawienia się ręcznie dodanych
- * plików wysyła je na serwer, a w przypadku skasowania wysyła na serwer żądanie skasowania pliku.
- * Dostępne są również metody, które umożliwiają ignorowanie zmian w katalogu dotyczących danego pliku.
+ * Klasa obserwuje katalog lokalny użytkownika wraz ze wszystkimi podkatalogami i reaguje na zmiany w nich. W przypadku
+ * pojawienia się ręcznie dodanych plików wysyła je na serwer, a w przypadku skasowania wysyła na serwer żądanie
+ * skasowania pliku. Zdarzenia utworzenia i modyfikacji tego samego pliku są łączone przez backend, więc plik jest
+ * wysyłany tylko raz.
+ *
+ * Zmiany wykonane przez sam backend, np. zapisanie pliku odebranego z serwera, nie są odsyłane na serwer. Backend
+ * oznacza początek i koniec zapisu pliku, a po zakończeniu zapisu obserwator zapamiętuje rozmiar i datę modyfikacji,
+ * które pozostawił zapis. Zdarzenie dotyczące pliku w takim stanie jest skutkiem zapisu backendu i jest pomijane,
+ * a pierwsze zdarzenie, po którym stan pliku jest inny, oznacza zmianę wykonaną przez użytkownika. Zapamiętany stan
+ * jest zapominany, gdy od zakończenia zapisu minie czas EXPIRY, ponieważ wszystkie zdarzenia wywołane zapisem zostały
+ * już wtedy odebrane.
+ *
+ * Usługa obserwowania zmian nie obserwuje podkatalogów, dlatego każdy podkatalog jest rejestrowany osobno, a nowe
+ * podkatalogi są rejestrowane w chwili utworzenia i przeglądane, aby wysłać pliki utworzone przed rejestracją.
+ * Gdy zdarzeń jest zbyt wiele i część z nich przepadła, ponownie przeglądany jest tylko katalog, którego dotyczyło
+ * przepełnienie.
  */
 public class ClientWatcher implements Runnable {
 
+    /** Czas w milisekundach, po którym zapomniany jest stan pliku pozostawiony przez zakończony zapis backendu. */
+    public static final long EXPIRY = 10000;
+
     // Parametry przekazane w konstruktorze
     private ClientBackend clientBackend;
     private ClientListener clientListener;
@@ -19,9 +37,52 @@ public class ClientWatcher implements Runnable {
     // Obiekt służący do powiadamiania o zmianach w katalogu
     private WatchService watchService = FileSystems.getDefault().newWatchService();
 
-    // Listy zawierające nazwy plików, których zmiany mają być ignorowane
-    private List<String> activeIgnoreList = Collections.synchronizedList(new LinkedList<>());
-    private List<String> inactiveIgnoreList = Collections.synchronizedList(new LinkedList<>());
+    // Katalog lokalny oraz klucze obserwowanych katalogów według ich ścieżek
+    private Path root;
+    private Map<Path, WatchKey> watched = new HashMap<>();
+
+    /**
+     * Klasa opisuje stan pliku, który pozostawiły zapisy wykonane przez backend.
+     */
+    private static class Expectation {
+        // Liczba trwających zapisów pliku
+        final int writers;
+
+        // Rozmiar pliku (-1 gdy plik nie istnieje) i data modyfikacji pozostawione przez ostatni zapis
+        final long size;
+        final long modificationTime;
+
+        // Chwila zakończenia ostatniego zapisu w nanosekundach, znacząca tylko gdy nie trwa żaden zapis
+        final long finished;
+
+        Expectation(int writers, long size, long modificationTime) {
+            this.writers = writers;
+            this.size = size;
+            this.modificationTime = modificationTime;
+            this.finished = System.nanoTime();
+        }
+
+        // Sprawdza, czy od zakończenia ostatniego zapisu minęło tyle czasu, że stan pliku można zapomnieć
+        boolean isExpired(long now) {
+            return writers == 0 && now - finished > TimeUnit.MILLISECONDS.toNanos(EXPIRY);
+        }
+
+        // Sprawdza, czy plik jest w stanie pozostawionym przez zapis backendu
+        boolean matches(Path path) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return attributes.size() == size && attributes.lastModifiedTime().toMillis() == modificationTime;
+            } catch(IOException e) {
+                return size < 0;
+            }
+        }
+    }
+
+    // Stany plików zapisanych przez backend według ścieżek, odczytywane bez blokowania przy każdym zdarzeniu
+    private ConcurrentMap<String, Expectation> expectations = new ConcurrentHashMap<>();
+
+    // Chwila ostatniego usuwania przedawnionych stanów plików w nanosekundach, używana tylko przez wątek obserwatora
+    private long purged = System.nanoTime();
 
     /**
      * Konstruuje obiekt wykrywający zmiany w katalogu lokalnym i reagujący na nie.
@@ -31,8 +92,11 @@ public class ClientWatcher implements Runnable {
     public ClientWatcher(ClientBackend clientBackend) throws IOException {
         this.clientBackend = clientBackend;
         this.clientListener = clientBackend.getClientListener();
-        Path path = Paths.get(clientBackend.getDirectory());
-        path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.root = Paths.get(clientBackend.getDirectory());
+
+        // Zarejestrowanie katalogu lokalnego i wszystkich jego podkatalogów
+        watched.put(root, root.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+        scan(root, false);
 
         Thread thread = new Thread(this);
         thread.setDaemon(true);
@@ -40,20 +104,34 @@ public class ClientWatcher implements Runnable {
     }
 
     /**
-     * Metoda dodaję plik do listy wyjątków. Zmiany dotyczące tego pliku będą ignorowane.
-     * @param relativePath Ścieżka do ignorowanego pliku.
+     * Metoda oznacza początek zapisu lub usuwania pliku przez backend. Do czasu wywołania metody removeIgnore zmiany
+     * dotyczące tego pliku będą ignorowane.
+     * @param relativePath Ścieżka do zapisywanego pliku.
      */
     public void addIgnore(String relativePath) {
-        activeIgnoreList.add(relativePath);
+        expectations.compute(relativePath, (path, expected) ->
+                new Expectation(expected == null ? 1 : expected.writers + 1, -1, 0));
     }
 
     /**
-     * Metoda usówa plik z listy wyjątków. Zmiany dotyczące tego pliku nie będą już ignorowane.
-     * @param relativePath Ścieżka do pliku.
+     * Metoda oznacza koniec zapisu lub usuwania pliku przez backend i zapamiętuje stan, w którym zapis pozostawił plik.
+     * Zdarzenia, po których plik nadal jest w tym stanie, będą ignorowane, a zmiany wykonane później przez
+     * użytkownika będą wysyłane na serwer.
+     * @param relativePath Ścieżka do zapisanego pliku.
      */
     public void removeIgnore(String relativePath) {
-        inactiveIgnoreList.add(relativePath);
-        activeIgnoreList.remove(relativePath);
+        // Odczytanie stanu pliku po zapisie
+        long size = -1;
+        long modificationTime = 0;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(root.resolve(relativePath), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            size = attributes.size();
+            modificationTime = attributes.lastModifiedTime().toMillis();
+        } catch(IOException e) {}
+
+        Expectation written = new Expectation(0, size, modificationTime);
+        expectations.compute(relativePath, (path, expected) -> expected == null || expected.writers <= 1 ? written :
+                new Expectation(expected.writers - 1, written.size, written.modificationTime));
     }
 
     /**
@@ -62,34 +140,64 @@ public class ClientWatcher implements Runnable {
      */
     public void run() {
         try {
-            WatchKey key;
-            while ((key = watchService.take()) != null) {
+            while (true) {
+                // Oczekiwanie na zdarzenia jest ograniczone w czasie, aby przedawnione stany plików były usuwane
+                // również wtedy, gdy w katalogu nic się nie dzieje
+                WatchKey key = watchService.poll(EXPIRY, TimeUnit.MILLISECONDS);
+                purgeExpectations();
+                if(key == null)
+                    continue;
+
+                Path directory = (Path) key.watchable();
                 for (WatchEvent<?> event : key.pollEvents()) {
+                    // Część zdarzeń przepadła, więc katalog jest przeglądany ponownie
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        clientListener.log("## Too many changes in " + relative(directory) + ", rescanning");
+                        scan(directory, true);
+                        clientBackend.sendMissingDeletes(relative(directory));
+                        clientListener.filesUpdated();
+                        continue;
+                    }
                     if(event.context()==null)
                         continue;
 
-                    String relativePath = event.context().toString();
-                    File file = new File(clientBackend.getDirectory(), relativePath);
+                    Path path = directory.resolve((Path) event.context());
+                    String relativePath = relative(path);
 
-                    // Ignorowanie ukrytych plików
-                    if(file.isDirectory() || relativePath.startsWith("."))
+                    // Ignorowanie ukrytych plików i katalogów
+                    if(Manifest.isHidden(relativePath))
                         continue;
 
-                    // Ignorowanie plików z listy
-                    if(activeIgnoreList.contains(relativePath) || inactiveIgnoreList.contains(relativePath)) {
+                    // Ignorowanie zmian wykonanych przez backend
+                    if(isOwnChange(relativePath, path))
+                        continue;
+
+                    if(Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                        // Gdy utworzono lub przeniesiono do katalogu nowy podkatalog
+                        if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            clientListener.log("## Directory " + relativePath + " was manually created");
+                            scan(path, true);
+                            clientListener.filesUpdated();
+                        }
                         continue;
                     }
 
                     // Gdy stworzono nowy plik
                     if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
                         clientListener.log("## File " + relativePath + " was manually created");
-                        clientBackend.sendFileData(relativePath);
+                        clientBackend.sendFileChange(relativePath);
                     }
 
                     // Gdy zmodyfikowano plik
                     if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
                         clientListener.log("## File " + relativePath + " was manually modified");
-                        clientBackend.sendFileData(relativePath);
+                        clientBackend.sendFileChange(relativePath);
+                    }
+
+                    // Gdy usunięto lub przeniesiono poza katalog cały podkatalog
+                    else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE && forget(path)) {
+                        clientListener.log("## Directory " + relativePath + " was manually deleted");
+                        clientBackend.sendMissingDeletes(relativePath);
                     }
 
                     // Gdy usunięto plik
@@ -100,11 +208,101 @@ public class ClientWatcher implements Runnable {
 
                     // Powiadomienie frontendu o dokonaniu zmian w katalogu
                     clientListener.filesUpdated();
-                    inactiveIgnoreList.clear();
                 }
+
+                // Klucz usuniętego katalogu przestaje być ważny, ale pozostaje zapamiętany do czasu obsłużenia
+                // zdarzenia usunięcia w katalogu nadrzędnym, aby rozpoznać, że usunięto katalog
                 key.reset();
             }
             // Standardowy sposób zakończenia wątku (wykonanie n
-        } catch(InterruptedException e) {}
+        } catch(InterruptedException | ClosedWatchServiceException e) {}
+    }
+
+    // Rejestruje katalog wraz z podkatalogami i opcjonalnie wysyła znalezione w nich pliki
+    private void scan(Path directory, boolean send) {
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attributes) {
+                    if(!path.equals(root) && Manifest.isHidden(relative(path)))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    if(!watched.containsKey(path)) {
+                        try {
+                            watched.put(path, path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                                    StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY));
+                        } catch(IOException e) {
+                            clientListener.log("!! Unable to watch directory " + relative(path));
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    String relativePath = relative(path);
+                    if(send && attributes.isRegularFile() && !Manifest.isHidden(relativePath) && !isOwnChange(relativePath, path))
+                        clientBackend.sendFileChange(relativePath);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch(IOException e) {
+            clientListener.log("!! Unable to scan directory " + relative(directory));
+        }
+    }
+
+    // Sprawdza, czy zdarzenie dotyczące pliku jest skutkiem zapisu wykonanego przez backend
+    private boolean isOwnChange(String relativePath, Path path) {
+        Expectation expected = expectations.get(relativePath);
+        if(expected == null)
+            return false;
+        if(expected.writers > 0)
+            return true;
+        if(expected.matches(path)) {
+            // Zdarzenia wywołane zapisem po upływie czasu przedawnienia już nie nadejdą
+            if(expected.isExpired(System.nanoTime()))
+                expectations.remove(relativePath, expected);
+            return true;
+        }
+
+        // Plik zmienił się po zapisie backendu, więc kolejne zdarzenia pochodzą od użytkownika
+        expectations.remove(relativePath, expected);
+        return false;
+    }
+
+    // Usuwa stany plików, których zapisy zakończyły się dawniej niż czas przedawnienia, najwyżej raz na ten czas
+    private void purgeExpectations() {
+        long now = System.nanoTime();
+        if(now - purged < TimeUnit.MILLISECONDS.toNanos(EXPIRY))
+            return;
+        purged = now;
+        for(Map.Entry<String, Expectation> entry : expectations.entrySet()) {
+            if(entry.getValue().isExpired(now))
+                expectations.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    // Przestaje obserwować usunięty katalog i jego podkatalogi, zwraca false gdy ścieżka nie była obserwowanym katalogiem
+    private boolean forget(Path directory) {
+        if(!watched.containsKey(directory))
+            return false;
+        Iterator<Map.Entry<Path, WatchKey>> iterator = watched.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Path, WatchKey> entry = iterator.next();
+            if(entry.getKey().startsWith(directory)) {
+                entry.getValue().cancel();
+                iterator.remove();
+            }
+        }
+        return true;
+    }
+
+    // Zwraca ścieżkę względem katalogu lokalnego
+    private String relative(Path path) {
+        return Manifest.relativePath(root, path);
     }
 }
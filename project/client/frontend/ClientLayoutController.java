@@ -65,12 +65,8 @@ public class ClientLayoutController {
         ObservableList items = fileTable.getItems();
         items.clear();
 
-        for(File file : new File(backend.getDirectory()).listFiles()) {
-            String filename = file.getName();
-            long size = file.length();
-
-            items.add(new FileModel(filename, size, FileModel.convertToReadableTime(file.lastModified())));
-        }
+        for(Manifest.Entry entry : Manifest.scan(new File(backend.getDirectory())).getEntries())
+            items.add(new FileModel(entry.getPath(), entry.getSize(), FileModel.convertToReadableTime(entry.getModificationTime())));
     }
 
     /**
@@ -0,0 +1,45 @@
+package project.common;
+
+/**
+ * Typ wyliczeniowy zawierający opcjonalne możliwości protokołu, które klient i serwer uzgadniają podczas logowania.
+ * Każda strona dołącza do komendy LOGIN lub LOGIN_SUCCESS maskę obsługiwanych możliwości, a z danej możliwości można
+ * korzystać tylko wtedy, gdy obsługuje ją druga strona. Strona, która nie przesłała maski, nie obsługuje żadnej
+ * z możliwości.
+ */
+public enum Capability {
+    /** Przesyłanie plików skompresowanych komendami SEND_COMPRESSED i SEND_COMPRESSED_RANGE. */
+    COMPRESSION(0),
+    /** Uzgadnianie katalogów po zalogowaniu za pomocą drzew Merkle zamiast pełnych spisów plików. */
+    MERKLE(1);
+
+    // Numer bitu możliwości w masce
+    private int bit;
+
+    /**
+     * Konstruktor tworzy możliwość o przekazanym numerze bitu.
+     * @param bit Numer bitu możliwości w masce.
+     */
+    Capability(int bit) {
+        this.bit = bit;
+    }
+
+    /**
+     * Metoda sprawdza, czy możliwość znajduje się w masce przesłanej przez drugą stronę.
+     * @param mask Maska możliwości.
+     * @return true jeżeli możliwość jest obsługiwana, false w przeciwnym wypadku.
+     */
+    public boolean isIn(int mask) {
+        return (mask & (1 << bit)) != 0;
+    }
+
+    /**
+     * Metoda zwraca maskę wszystkich możliwości obsługiwanych przez tę wersję programu.
+     * @return Maska obsługiwanych możliwości.
+     */
+    public static int supported() {
+        int mask = 0;
+        for(Capability capability : values())
+            mask |= 1 << capability.bit;
+        return mask;
+    }
+}
@@ -4,29 +4,88 @@ package project.common;
  * Typ wyliczeniowy zawierający wszystkie komendy za pomocą których zachomi komunikacja klienta z serwerem.
  */
 public enum Command {
-    /** Komenda logowania, wysyłana przez klienty, występuje po niej login użytkownika. */
+    /** Komenda logowania, wysyłana przez klienty, występuje po niej login użytkownika, maska możliwości protokołu
+     * obsługiwanych przez klienta oraz wersja protokołu klienta. */
     LOGIN(1),
     /** Komenda wylogowania, wysyłana przez klienty, nic po niej nie występuje. */
     LOGOUT(2),
-    /** Komenda udanego logowania, wysyłana przez serwer, nic po niej nie występuje. */
+    /** Komenda udanego logowania, wysyłana przez serwer, występuje po niej maska możliwości protokołu obsługiwanych
+     * przez serwer, identyfikator sesji oraz wersja protokołu serwera. */
     LOGIN_SUCCESS(3),
-    /** Komenda wysyłania pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku, data modyfikacji i dane pliku. */
+    /** Komenda wysyłania pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku, data modyfikacji,
+     * rozmiar, pozycja od której przesyłany jest plik oraz dane pliku od tej pozycji. Niezerowa pozycja oznacza
+     * wznowienie przesyłania, a odbiorca dopisuje dane do częściowo odebranego pliku. */
     SEND_FILE(4),
     /** Komenda żądania usunięcia pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku. */
     DELETE_FILE(5),
-    /** Komenda informująca o istnieniu pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku, rozmiar i data modyfikacji. */
+    /** Komenda informująca o istnieniu pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku, data
+     * modyfikacji oraz skrót zawartości poprzedzony jego długością, zerową gdy skrót nie jest znany. Nagłówek ramki
+     * zawiera identyfikator żądania, a odbiorca odpowiada komendą RESPONSE po upewnieniu się, że ma aktualny plik,
+     * w razie potrzeby po pobraniu go od nadawcy. */
     CHECK_FILE(6),
-    /** Komenda żądania przesłania pliku przez drugą stronę, wysyłana przez serwer i klienty, występuje po niej nazwa pliku. */
+    /** Komenda żądania przesłania pliku przez drugą stronę, wysyłana przez serwer i klienty, występuje po niej nazwa
+     * pliku oraz liczba odebranych już bajtów, a gdy jest dodatnia, także data modyfikacji i rozmiar odbieranej wersji
+     * pliku oraz skrót ostatnich odebranych bajtów, na podstawie których nadawca decyduje o wznowieniu przesyłania.
+     * Nagłówek ramki zawiera identyfikator żądania, które kończy odebranie pliku, a gdy pliku nie ma, odpowiedź
+     * RESPONSE z wynikiem false. */
     NEED_FILE(7),
-    /** Komenda informująca o aktywnym użytkowniku, wysyłana przez serwer, występuje po niej nazwa użytkownika */
-    USER_ACTIVE(8),
-    /** Komenda informująca o nieaktywnym użytkowniku, wysyłana przez serwer, występuje po niej nazwa użytkownika */
-    USER_INACTIVE(9),
     /** Komenda wysyłania pliku przez jednego klienta do drugiego, wysyłana jedynie przez klienty, występuje po niej nazwa pliku,
      * rozmiar, data modyfikacji oraz zawartość pliku.*/
     SEND_TO_USER(10),
     /** Komenda informująca o zatrzymywaniu serwera, wysyłana przez serwer, nic po niej nie występuje */
-    SERVER_DOWN(11);
+    SERVER_DOWN(11),
+    /** Komenda przesyłająca spis wszystkich plików katalogu, wysyłana przez serwer i klienty po zalogowaniu, występuje
+     * po niej liczba plików oraz dla każdego pliku nazwa, rozmiar, data modyfikacji i opcjonalny skrót zawartości. */
+    MANIFEST(12),
+    /** Komenda żądania przesłania wielu plików przez drugą stronę, wysyłana przez serwer i klienty w odpowiedzi na spis
+     * plików, występuje po niej liczba plików oraz dla każdego pliku nazwa i informacja o częściowo odebranych danych
+     * w postaci takiej jak w komendzie NEED_FILE. */
+    NEED_FILES(13),
+    /** Komenda żądania sygnatury pliku przed przesłaniem różnicowym, wysyłana przez serwer i klienty, występuje po niej
+     * nazwa pliku. */
+    REQUEST_SIGNATURE(14),
+    /** Komenda przesyłająca sygnaturę posiadanej wersji pliku, wysyłana przez serwer i klienty, występuje po niej nazwa
+     * pliku oraz sygnatura. Pusta sygnatura oznacza, że plik ma zostać przesłany w całości. */
+    SIGNATURE(15),
+    /** Komenda przesyłania różnicowego pliku, wysyłana przez serwer i klienty, występuje po niej nazwa pliku, data
+     * modyfikacji, rozmiar, skrót zawartości oraz różnica jako dane ramki. */
+    SEND_DELTA(16),
+    /** Komenda dołączenia dodatkowego połączenia do zalogowanego klienta, wysyłana przez klienty jako pierwsza komenda
+     * nowego połączenia, występuje po niej login użytkownika. Dodatkowe połączenia służą do równoległego przesyłania
+     * fragmentów dużych plików. */
+    ATTACH_STREAM(17),
+    /** Komenda wysyłania fragmentu pliku przesyłanego równolegle, wysyłana przez serwer i klienty dowolnym połączeniem
+     * klienta, występuje po niej nazwa pliku, data modyfikacji, rozmiar, pozycja od której przesyłany jest plik,
+     * identyfikator transferu, pozycja fragmentu oraz dane fragmentu. */
+    SEND_RANGE(18),
+    /** Komenda wysyłania skompresowanego pliku, wysyłana przez serwer i klienty, o ile druga strona obsługuje kompresję,
+     * występuje po niej nazwa pliku, data modyfikacji, rozmiar, pozycja od której przesyłany jest plik oraz dane pliku
+     * od tej pozycji skompresowane algorytmem Deflate. */
+    SEND_COMPRESSED(19),
+    /** Komenda przesyłająca skróty węzłów drzewa Merkle katalogu, wysyłana przez klienty po zalogowaniu z korzeniem
+     * drzewa, a następnie przez obie strony z dziećmi węzłów, które się różnią, występuje po niej liczba węzłów oraz
+     * dla każdego węzła jego numer i skrót. */
+    MERKLE_NODES(20),
+    /** Komenda przesyłająca spis plików należących do różniących się liści drzewa Merkle, wysyłana przez serwer
+     * i klienty, występuje po niej flaga odpowiedzi, numery liści oraz spis plików. Strona, która otrzymała spis bez
+     * flagi odpowiedzi, odsyła spis swoich plików z tych samych liści. */
+    MERKLE_ENTRIES(21),
+    /** Komenda informująca o zmianach aktywności użytkowników, wysyłana przez serwer, występuje po niej liczba i loginy
+     * aktywnych użytkowników oraz liczba i loginy nieaktywnych użytkowników. Po zalogowaniu klient otrzymuje w ten sposób
+     * wszystkich aktywnych użytkowników. */
+    PRESENCE(22),
+    /** Komenda odpowiedzi na żądanie, którego identyfikator znajduje się w nagłówku ramki, wysyłana przez serwer
+     * i klienty, występuje po niej wynik żądania. Odpowiedź na NEED_FILE jest wysyłana tylko wtedy, gdy pliku nie ma,
+     * ponieważ odebranie pliku kończy żądanie, a odpowiedź na CHECK_FILE po upewnieniu się, że plik jest aktualny. */
+    RESPONSE(23),
+    /** Komenda odrzucenia logowania, wysyłana przez serwer, gdy nie obsługuje wersji protokołu klienta, występuje po
+     * niej wersja protokołu serwera oraz opis przyczyny. Serwer ignoruje dalsze komendy połączenia. */
+    LOGIN_REJECTED(24),
+    /** Komenda wysyłania skompresowanego fragmentu pliku, wysyłana przez serwer i klienty, o ile druga strona obsługuje
+     * kompresję, występuje po niej nazwa pliku, data modyfikacji, rozmiar, pozycja od której przesyłany jest plik,
+     * identyfikator transferu, pozycja fragmentu, długość fragmentu po rozpakowaniu oraz dane fragmentu skompresowane
+     * algorytmem Deflate. Fragmenty są składane tak samo jak fragmenty wysyłane komendą SEND_RANGE. */
+    SEND_COMPRESSED_RANGE(25);
 
     // Liczba jednoznacznie identyfikująca komendę
     private int number;
@@ -46,4 +105,17 @@ public enum Command {
     public int asInt() {
         return this.number;
     }
+
+    /**
+     * Metoda zwraca komendę o podanym identyfikatorze.
+     * @param number Liczba jednoznacznie identyfikująca komendę.
+     * @return Komenda o podanym identyfikatorze lub null, jeżeli taka komenda nie istnieje.
+     */
+    public static Command fromInt(int number) {
+        for(Command command : values()) {
+            if(command.number == number)
+                return command;
+        }
+        return null;
+    }
 }
@@ -0,0 +1,333 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Klasa decyduje, czy i jak mocno kompresować przesyłane pliki, oraz kompresuje je algorytmem Deflate. Przed wysłaniem
+ * pliku kompresowanych jest kilka próbek z różnych miejsc pliku na każdym z poziomów kompresji. Próbki, które prawie
+ * się nie zmniejszają, oznaczają dane już skompresowane (np. zdjęcia, filmy, archiwa), które są wysyłane bez zmian.
+ * W pozostałych przypadkach wybierany jest poziom, przy którym suma czasu kompresji i przesłania skompresowanych danych
+ * jest najkrótsza, na podstawie zmierzonej szybkości kompresji oraz przepustowości łącza. Na wolnym łączu opłaca się
+ * więc mocna kompresja, a w szybkiej sieci lokalnej słaba kompresja lub jej brak.
+ *
+ * Obiekt przechowuje pomiary dla jednego łącza, dlatego powinien być wspólny dla wszystkich transferów przez to łącze.
+ */
+public class Compression {
+
+    /** Wartość oznaczająca wysłanie pliku bez kompresji. */
+    public static final int NONE = -1;
+
+    /** Minimalny rozmiar pliku, od którego rozważana jest kompresja. */
+    public static final long MIN_SIZE = 16 * 1024;
+
+    // Rozważane poziomy kompresji, od najszybszego do najmocniejszego
+    private static final int[] LEVELS = { Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION };
+
+    // Rozmiar i liczba próbek pliku
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLES = 3;
+
+    // Stopień kompresji próbek, powyżej którego dane uznawane są za już skompresowane
+    private static final double INCOMPRESSIBLE = 0.9;
+
+    // Minimalny zysk czasu, dla którego opłaca się kompresować
+    private static final double MIN_GAIN = 0.1;
+
+    // Przepustowość łącza zakładana przed pierwszym pomiarem, w bajtach na nanosekundę (100 Mbit/s)
+    private static final double DEFAULT_LINK_RATE = 12.5e6 / 1e9;
+
+    // Minimalna liczba bajtów transferu, dla którego mierzona jest przepustowość łącza
+    private static final long MIN_MEASURED = 1024 * 1024;
+
+    // Waga najnowszego pomiaru w średnich
+    private static final double WEIGHT = 0.3;
+
+    // Flaga informująca, czy kompresja jest włączona
+    private static volatile boolean enabled = true;
+
+    // Średnia przepustowość łącza oraz szybkość kompresji na poszczególnych poziomach, 0 gdy nie były mierzone
+    private double linkRate;
+    private double[] compressionRates = new double[LEVELS.length];
+
+    /**
+     * Metoda informuje, czy kompresja jest włączona.
+     * @return true jeżeli kompresja jest włączona, false w przeciwnym wypadku.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Metoda włącza lub wyłącza kompresję przesyłanych plików. Kompresja jest domyślnie włączona.
+     * @param value true aby włączyć kompresję, false aby pliki zawsze były wysyłane bez zmian.
+     */
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Metoda wybiera poziom kompresji dla przesyłanego fragmentu pliku na podstawie jego próbek.
+     * @param file Przesyłany plik.
+     * @param offset Pozycja od której przesyłany jest plik.
+     * @param size Rozmiar pliku.
+     * @return Poziom kompresji lub NONE, gdy plik należy wysłać bez kompresji.
+     */
+    public int chooseLevel(File file, long offset, long size) {
+        return chooseLevel(FileSlice.of(file, size), offset, size);
+    }
+
+    /**
+     * Metoda wybiera poziom kompresji dla przesyłanej części zawartości opisanej ciągiem zakresów plików na podstawie
+     * jej próbek.
+     * @param content Ciąg zakresów opisujący przesyłaną zawartość.
+     * @param offset Pozycja od której przesyłana jest zawartość.
+     * @param size Rozmiar zawartości.
+     * @return Poziom kompresji lub NONE, gdy zawartość należy wysłać bez kompresji.
+     */
+    public int chooseLevel(List<FileSlice> content, long offset, long size) {
+        if(!enabled || size - offset < MIN_SIZE)
+            return NONE;
+
+        byte[] sample;
+        try { sample = sample(content, offset, size); }
+        catch(IOException e) { return NONE; }
+        return chooseLevel(sample);
+    }
+
+    /**
+     * Metoda wybiera poziom kompresji dla zawartości pliku odczytanej do bufora na podstawie jej próbek.
+     * @param content Zawartość pliku.
+     * @return Poziom kompresji lub NONE, gdy plik należy wysłać bez kompresji.
+     */
+    public int chooseLevel(ByteBuffer content) {
+        if(!enabled || content.remaining() < MIN_SIZE)
+            return NONE;
+        return chooseLevel(sample(content));
+    }
+
+    /**
+     * Metoda uwzględnia przepustowość łącza zmierzoną podczas wysyłania pliku.
+     * @param bytes Liczba wysłanych bajtów.
+     * @param nanos Czas wysyłania w nanosekundach.
+     */
+    public synchronized void record(long bytes, long nanos) {
+        if(bytes < MIN_MEASURED || nanos <= 0)
+            return;
+        double rate = (double) bytes / nanos;
+        linkRate = linkRate == 0 ? rate : linkRate * (1 - WEIGHT) + rate * WEIGHT;
+    }
+
+    /**
+     * Metoda kompresuje fragment zawartości opisanej ciągiem zakresów plików do bufora, który można wysłać jako dane
+     * ramki SEND_COMPRESSED_RANGE. Fragment jest kompresowany w pamięci, więc jego długość powinna być ograniczona,
+     * np. do długości fragmentu przesyłanego przez SlicedTransfer.
+     * @param source Ciąg zakresów opisujący zawartość.
+     * @param start Pozycja fragmentu w zawartości.
+     * @param length Długość fragmentu.
+     * @param level Poziom kompresji.
+     * @return Bufor ze skompresowanymi danymi, posiadający jedno odwołanie, lub null, gdy przekroczyłby łączny rozmiar
+     *         buforów.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt zawartości się nie powiedzie.
+     */
+    public static SharedBuffer compress(List<FileSlice> source, long start, long length, int level) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, Integer.MAX_VALUE));
+        Deflater deflater = new Deflater(level);
+        try(InputStream input = FileSlice.open(FileSlice.range(source, start, length));
+            OutputStream output = new DeflaterOutputStream(bytes, deflater, FileTransfer.getChunkSize())) {
+            FileTransfer.copy(input, output, length);
+        } finally {
+            deflater.end();
+        }
+        return SharedBuffer.copyOf(bytes.toByteArray(), bytes.size());
+    }
+
+    /**
+     * Metoda kompresuje zawartość współdzielonego bufora do nowego bufora, który można wysłać jako dane ramki
+     * SEND_COMPRESSED, np. wielu odbiorcom jednocześnie.
+     * @param source Bufor z kompresowaną zawartością.
+     * @param level Poziom kompresji.
+     * @return Bufor ze skompresowanymi danymi, posiadający jedno odwołanie, lub null, gdy przekroczyłby łączny rozmiar
+     *         buforów.
+     */
+    public static SharedBuffer compress(SharedBuffer source, int level) {
+        ByteBuffer content = source.getData();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.remaining() / 2);
+        byte[] input = new byte[FileTransfer.getChunkSize()];
+        byte[] output = new byte[FileTransfer.getChunkSize()];
+        Deflater deflater = new Deflater(level);
+        try {
+            while(content.hasRemaining()) {
+                int length = Math.min(content.remaining(), input.length);
+                content.get(input, 0, length);
+                deflater.setInput(input, 0, length);
+                while(!deflater.needsInput())
+                    bytes.write(output, 0, deflater.deflate(output));
+            }
+            deflater.finish();
+            while(!deflater.finished())
+                bytes.write(output, 0, deflater.deflate(output));
+        } finally {
+            deflater.end();
+        }
+        return SharedBuffer.copyOf(bytes.toByteArray(), bytes.size());
+    }
+
+    /**
+     * Metoda zwraca kanał, z którego można odczytać rozpakowane dane skompresowanego kanału. Zamknięcie zwróconego
+     * kanału zwalnia zasoby dekompresji i zamyka kanał źródłowy.
+     * @param compressed Kanał ze skompresowanymi danymi.
+     * @return Kanał z rozpakowanymi danymi.
+     */
+    public static ReadableByteChannel inflate(ReadableByteChannel compressed) {
+        return Channels.newChannel(new InflaterInputStream(Channels.newInputStream(compressed), new Inflater(), FileTransfer.getChunkSize()) {
+            @Override
+            public void close() throws IOException {
+                inf.end();
+                super.close();
+            }
+        });
+    }
+
+    /**
+     * Klasa rozpakowuje skompresowane dane dostarczane kawałkami, np. przez pętlę zdarzeń, i zapisuje rozpakowane dane
+     * do kanału docelowego.
+     */
+    public static class Inflating {
+
+        // Kanał docelowy przekazany w konstruktorze
+        private WritableByteChannel target;
+
+        // Obiekt rozpakowujący dane oraz bufory danych skompresowanych i rozpakowanych
+        private Inflater inflater = new Inflater();
+        private byte[] input = new byte[FileTransfer.getChunkSize()];
+        private byte[] output = new byte[FileTransfer.getChunkSize()];
+
+        /**
+         * Konstruuje obiekt rozpakowujący dane do podanego kanału.
+         * @param target Kanał do którego zapisywane są rozpakowane dane.
+         */
+        public Inflating(WritableByteChannel target) {
+            this.target = target;
+        }
+
+        /**
+         * Metoda rozpakowuje kolejny kawałek skompresowanych danych.
+         * @param buffer Bufor ze skompresowanymi danymi.
+         * @return Liczba przetworzonych bajtów skompresowanych danych.
+         * @throws IOException Wyjątek wyrzucany, gdy dane są niepoprawne lub zapis się nie powiedzie.
+         */
+        public int write(ByteBuffer buffer) throws IOException {
+            int count = buffer.remaining();
+            while(buffer.hasRemaining() && !inflater.finished()) {
+                int length = Math.min(buffer.remaining(), input.length);
+                buffer.get(input, 0, length);
+                inflater.setInput(input, 0, length);
+                drain();
+            }
+
+            // Dane za końcem skompresowanego strumienia są pomijane
+            buffer.position(buffer.limit());
+            return count;
+        }
+
+        /**
+         * Metoda zwalnia zasoby dekompresji.
+         */
+        public void end() {
+            inflater.end();
+        }
+
+        // Zapisuje do kanału docelowego wszystkie dane, które można rozpakować z dostarczonego kawałka
+        private void drain() throws IOException {
+            try {
+                while(!inflater.needsInput() && !inflater.finished()) {
+                    int length = inflater.inflate(output);
+                    if(length == 0 && inflater.needsDictionary())
+                        throw new IOException("Unsupported compressed data");
+                    ByteBuffer inflated = ByteBuffer.wrap(output, 0, length);
+                    while(inflated.hasRemaining())
+                        target.write(inflated);
+                }
+            } catch(DataFormatException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    // Wybiera poziom kompresji, dla którego kompresja i przesłanie próbki trwałyby najkrócej
+    private int chooseLevel(byte[] sample) {
+        double link;
+        synchronized(this) { link = linkRate > 0 ? linkRate : DEFAULT_LINK_RATE; }
+
+        // Porównanie czasu przesłania bajtu bez kompresji z czasem kompresji i przesłania na każdym poziomie
+        int best = NONE;
+        double bestTime = (1 - MIN_GAIN) / link;
+        for(int i = 0; i < LEVELS.length; i++) {
+            Deflater deflater = new Deflater(LEVELS[i]);
+            long begin = System.nanoTime();
+            long compressed;
+            try { compressed = deflate(deflater, sample); }
+            finally { deflater.end(); }
+            double ratio = (double) compressed / sample.length;
+            double rate = recordCompression(i, sample.length, System.nanoTime() - begin);
+
+            // Dane już skompresowane nie zmniejszą się również na mocniejszych poziomach
+            if(i == 0 && ratio > INCOMPRESSIBLE)
+                return NONE;
+
+            double time = 1 / rate + ratio / link;
+            if(time < bestTime) {
+                best = LEVELS[i];
+                bestTime = time;
+            }
+        }
+        return best;
+    }
+
+    // Odczytuje próbki z kilku równomiernie rozłożonych miejsc przesyłanej części zawartości
+    private static byte[] sample(List<FileSlice> content, long offset, long size) throws IOException {
+        long remaining = size - offset;
+        int samples = (int) Math.min(SAMPLES, Math.max(1, remaining / SAMPLE_SIZE));
+        int length = (int) Math.min(SAMPLE_SIZE, remaining / samples);
+        byte[] sample = new byte[samples * length];
+        for(int i = 0; i < samples; i++)
+            FileSlice.read(content, offset + (remaining - length) * i / Math.max(1, samples - 1), sample, i * length, length);
+        return sample;
+    }
+
+    // Kopiuje próbki z kilku równomiernie rozłożonych miejsc zawartości bufora
+    private static byte[] sample(ByteBuffer content) {
+        int remaining = content.remaining();
+        int samples = Math.min(SAMPLES, Math.max(1, remaining / SAMPLE_SIZE));
+        int length = Math.min(SAMPLE_SIZE, remaining / samples);
+        byte[] sample = new byte[samples * length];
+        for(int i = 0; i < samples; i++) {
+            ByteBuffer source = content.duplicate();
+            source.position(content.position() + (int) ((long) (remaining - length) * i / Math.max(1, samples - 1)));
+            source.get(sample, i * length, length);
+        }
+        return sample;
+    }
+
+    // Kompresuje dane i zwraca długość wyniku
+    private static long deflate(Deflater deflater, byte[] data) {
+        byte[] buffer = new byte[SAMPLE_SIZE];
+        deflater.setInput(data);
+        deflater.finish();
+        long length = 0;
+        while(!deflater.finished())
+            length += deflater.deflate(buffer);
+        return length;
+    }
+
+    // Uwzględnia zmierzoną szybkość kompresji na danym poziomie i zwraca jej średnią
+    private synchronized double recordCompression(int index, long bytes, long nanos) {
+        double rate = (double) bytes / Math.max(1, nanos);
+        compressionRates[index] = compressionRates[index] == 0 ? rate : compressionRates[index] * (1 - WEIGHT) + rate * WEIGHT;
+        return compressionRates[index];
+    }
+}
@@ -0,0 +1,183 @@
+package project.common;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Interfejs reprezentuje trwałe, dwukierunkowe połączenie pomiędzy klientem a serwerem, przez które przesyłane są
+ * wszystkie komendy oraz dane plików. Połączenie jest nawiązywane raz podczas logowania i utrzymywane aż do wylogowania.
+ *
+ * Każda wiadomość jest przesyłana jako ramka o postaci: nagłówek zawierający identyfikator komendy, długość
+ * parametrów, długość danych oraz identyfikator żądania, a po nim parametry komendy oraz dane. Dzięki temu odbiorca
+ * zawsze wie gdzie kończy się ramka i może pominąć ramki, których nie rozumie. Format nagłówka opisuje klasa
+ * FrameHeader. Wysyłanie ramek musi być bezpieczne wielowątkowo.
+ */
+public interface Connection extends Closeable {
+
+    /**
+     * Interfejs umożliwiający zapisanie parametrów komendy do strumienia.
+     */
+    interface HeaderWriter {
+        /**
+         * Metoda zapisuje parametry komendy do strumienia.
+         * @param stream Strumień do którego zapisywane są parametry.
+         * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+         */
+        void write(DataOutputStream stream) throws IOException;
+    }
+
+    /**
+     * Metoda zwraca adres IP drugiej strony połączenia.
+     * @return Adres IP drugiej strony połączenia.
+     */
+    InetAddress getAddress();
+
+    /**
+     * Metoda informuje, czy połączenie zostało zamknięte.
+     * @return true jeżeli połączenie zostało zamknięte, false w przeciwnym wypadku.
+     */
+    boolean isClosed();
+
+    /**
+     * Metoda informuje, czy wysłanie ramki blokuje wątek wywołujący aż do przekazania jej danych do gniazda. Połączenia,
+     * które jedynie umieszczają ramki w kolejce, powinny zwracać false.
+     * @return true jeżeli wysyłanie jest blokujące, false w przeciwnym wypadku.
+     */
+    default boolean isBlocking() {
+        return true;
+    }
+
+    /**
+     * Metoda czeka, aż ramki wysłane dotychczas przez połączenie zostaną przekazane do gniazda. Połączenia blokujące
+     * przekazują ramki do gniazda już podczas wysyłania, więc nie muszą czekać.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie zostało zamknięte przed wysłaniem ramek.
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Metoda ustawia ograniczenia przepustowości danych odbieranych i wysyłanych ramek, np. zawartości plików.
+     * Nagłówki i parametry ramek nie są ograniczane.
+     * @param receive Wiadro ograniczające odbierane dane lub null, gdy nie są ograniczane.
+     * @param send Wiadro ograniczające wysyłane dane lub null, gdy nie są ograniczane.
+     */
+    void setBandwidth(TokenBucket receive, TokenBucket send);
+
+    /**
+     * Metoda wysyła ramkę zawierającą jedynie komendę oraz jej parametry.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, HeaderWriter header) throws IOException {
+        send(command, header, null, 0);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę oraz jej parametry, która jest żądaniem o podanym identyfikatorze lub
+     * odpowiedzią na takie żądanie.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, int requestId, HeaderWriter header) throws IOException {
+        send(command, requestId, header, null, 0, 0, false);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz zawartość pliku.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, HeaderWriter header, File body, long size) throws IOException {
+        send(command, header, body, size, false);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz zawartość pliku, który może być plikiem tymczasowym.
+     * Plik tymczasowy jest usuwany przez połączenie po jego wysłaniu lub porzuceniu, ponieważ wysłanie może nastąpić
+     * już po powrocie z metody.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @param temporary true jeżeli plik ma zostać usunięty po wysłaniu, false w przeciwnym wypadku.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, HeaderWriter header, File body, long size, boolean temporary) throws IOException {
+        send(command, header, body, 0, size, temporary);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz fragment zawartości pliku zaczynający się od podanej
+     * pozycji, np. przy wznawianiu przerwanego przesyłania.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param offset Pozycja w pliku od której wysyłana jest zawartość.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @param temporary true jeżeli plik ma zostać usunięty po wysłaniu, false w przeciwnym wypadku.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, HeaderWriter header, File body, long offset, long size, boolean temporary) throws IOException {
+        send(command, FrameHeader.NO_REQUEST, header, body, offset, size, temporary);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz fragment zawartości pliku, która jest żądaniem
+     * o podanym identyfikatorze lub odpowiedzią na takie żądanie.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param offset Pozycja w pliku od której wysyłana jest zawartość.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @param temporary true jeżeli plik ma zostać usunięty po wysłaniu, false w przeciwnym wypadku.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    void send(Command command, int requestId, HeaderWriter header, File body, long offset, long size, boolean temporary) throws IOException;
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę oraz jej parametry, której danymi są kolejno zawartości podanych
+     * zakresów plików, np. fragmentów, z których magazyn serwera składa plik.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Ciąg zakresów plików, których zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    default void send(Command command, HeaderWriter header, List<FileSlice> body) throws IOException {
+        send(command, FrameHeader.NO_REQUEST, header, body);
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę oraz jej parametry, której danymi są kolejno zawartości podanych
+     * zakresów plików, a która jest żądaniem o podanym identyfikatorze lub odpowiedzią na takie żądanie.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Ciąg zakresów plików, których zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    void send(Command command, int requestId, HeaderWriter header, List<FileSlice> body) throws IOException;
+
+    /**
+     * Metoda wysyła ramkę, której danymi jest zawartość współdzielonego bufora, np. plik wysyłany jednocześnie wielu
+     * odbiorcom. Połączenie przejmuje odwołanie do bufora i zwalnia je po wysłaniu lub porzuceniu ramki, ponieważ
+     * wysłanie może nastąpić już po powrocie z metody.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Bufor którego zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    void send(Command command, HeaderWriter header, SharedBuffer body) throws IOException;
+
+    /**
+     * Metoda zamyka połączenie.
+     */
+    void close();
+}
@@ -0,0 +1,194 @@
+package project.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa opóźnia akcje dotyczące plików do momentu, w którym plik przestanie się zmieniać. Każde zgłoszenie akcji dla
+ * danego klucza (zazwyczaj ścieżki pliku) odracza ją o okres ciszy, a kolejne zgłoszenia dla tego samego klucza
+ * zastępują poprzednie, dzięki czemu seria zmian jednego pliku skutkuje tylko jednym wysłaniem. Jeżeli po upływie
+ * okresu ciszy rozmiar lub data modyfikacji pliku są inne niż przy ostatnim sprawdzeniu, oczekiwanie jest przedłużane.
+ *
+ * Odliczanie czasu odbywa się w jednym, wspólnym wątku, który nie wykonuje samych akcji, lecz przekazuje je do
+ * wykonawcy podanego w konstruktorze, razem z kluczem i priorytetem akcji. Oczekiwanie nie zajmuje więc żadnego wątku
+ * wykonawcy. Wykonawca może wstrzymać zgłaszającego, np. gdy kolejka wysyłania jest pełna, dlatego wątek odliczający
+ * przekazuje akcje wykonawcy za pośrednictwem wspólnej puli wątków, a akcje są przekazywane zawsze poza blokadą obiektu.
+ * Dzięki temu wolny odbiorca nie wstrzymuje odliczania ani zgłoszeń dla pozostałych obiektów.
+ */
+public class Debouncer {
+
+    /** Domyślny okres ciszy w milisekundach. */
+    public static final long DEFAULT_QUIET_PERIOD = 300;
+
+    // Aktualny domyślny okres ciszy
+    private static volatile long defaultQuietPeriod = DEFAULT_QUIET_PERIOD;
+
+    // Wspólny wątek odliczający czas dla wszystkich obiektów
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "debouncer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Wspólna pula wątków przekazujących akcje wykonawcom, które mogą czekać na miejsce w kolejce
+    private static final ExecutorService dispatcher = Threads.newPool("debouncer-dispatch", true, false);
+
+    // Oczekująca akcja dotycząca jednego klucza
+    private static class Pending {
+        File file;
+        PriorityTaskQueue.Priority priority;
+        Runnable action;
+        long length;
+        long modificationTime;
+        long generation;
+        ScheduledFuture<?> future;
+    }
+
+    // Parametry przekazane w konstruktorze
+    private TransferExecutor executor;
+    private long quietPeriod;
+
+    // Oczekujące akcje, dostęp synchronizowany na obiekcie
+    private Map<String, Pending> pending = new HashMap<>();
+
+    // Flaga informująca o zamknięciu obiektu
+    private boolean closed;
+
+    /**
+     * Metoda zwraca domyślny okres ciszy, używany przez obiekty tworzone bez jego podania.
+     * @return Okres ciszy w milisekundach.
+     */
+    public static long getDefaultQuietPeriod() {
+        return defaultQuietPeriod;
+    }
+
+    /**
+     * Metoda zmienia domyślny okres ciszy. Zmiana dotyczy obiektów tworzonych po jej dokonaniu.
+     * @param period Nowy okres ciszy w milisekundach.
+     */
+    public static void setDefaultQuietPeriod(long period) {
+        if(period < 0)
+            throw new IllegalArgumentException("Quiet period must not be negative");
+        defaultQuietPeriod = period;
+    }
+
+    /**
+     * Konstruuje obiekt korzystający z domyślnego okresu ciszy.
+     * @param executor Wykonawca, w którym wykonywane są akcje.
+     */
+    public Debouncer(TransferExecutor executor) {
+        this(executor, defaultQuietPeriod);
+    }
+
+    /**
+     * Konstruuje obiekt o podanym okresie ciszy.
+     * @param executor Wykonawca, w którym wykonywane są akcje.
+     * @param quietPeriod Okres ciszy w milisekundach.
+     */
+    public Debouncer(TransferExecutor executor, long quietPeriod) {
+        this.executor = executor;
+        this.quietPeriod = quietPeriod;
+    }
+
+    /**
+     * Metoda zgłasza akcję, która zostanie wykonana, gdy plik przestanie się zmieniać. Jeżeli dla danego klucza
+     * oczekuje już akcja, to jest ona zastępowana nową, a odliczanie rozpoczyna się od nowa.
+     * @param key Klucz grupujący zgłoszenia, zazwyczaj ścieżka pliku.
+     * @param file Plik, którego zmiany są obserwowane.
+     * @param priority Priorytet, z jakim akcja zostanie przekazana wykonawcy.
+     * @param action Akcja do wykonania.
+     */
+    public synchronized void schedule(String key, File file, PriorityTaskQueue.Priority priority, Runnable action) {
+        if(closed)
+            return;
+
+        Pending entry = pending.get(key);
+        if(entry == null) {
+            entry = new Pending();
+            pending.put(key, entry);
+        }
+        else
+            entry.future.cancel(false);
+
+        entry.file = file;
+        entry.priority = priority;
+        entry.action = action;
+        entry.length = file.length();
+        entry.modificationTime = file.lastModified();
+        arm(key, entry);
+    }
+
+    /**
+     * Metoda anuluje oczekującą akcję dotyczącą danego klucza, np. gdy plik został usunięty.
+     * @param key Klucz akcji.
+     * @return true jeżeli akcja oczekiwała i została anulowana, false w przeciwnym wypadku.
+     */
+    public synchronized boolean cancel(String key) {
+        Pending entry = pending.remove(key);
+        if(entry == null)
+            return false;
+        entry.future.cancel(false);
+        return true;
+    }
+
+    /**
+     * Metoda natychmiast przekazuje do wykonania wszystkie oczekujące akcje, bez czekania na upływ okresu ciszy.
+     */
+    public void flush() {
+        Map<String, Pending> flushed;
+        synchronized(this) {
+            flushed = new LinkedHashMap<>(pending);
+            pending.clear();
+            for(Pending entry : flushed.values())
+                entry.future.cancel(false);
+        }
+        for(Map.Entry<String, Pending> entry : flushed.entrySet())
+            dispatch(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Metoda anuluje wszystkie oczekujące akcje. Kolejne zgłoszenia są ignorowane.
+     */
+    public synchronized void close() {
+        closed = true;
+        for(Pending entry : pending.values())
+            entry.future.cancel(false);
+        pending.clear();
+    }
+
+    // Rozpoczyna odliczanie okresu ciszy dla akcji
+    private void arm(String key, Pending entry) {
+        long generation = ++entry.generation;
+        entry.future = timer.schedule(() -> fire(key, entry, generation), quietPeriod, TimeUnit.MILLISECONDS);
+    }
+
+    // Wykonywana po upływie okresu ciszy, przedłuża oczekiwanie jeżeli plik nadal się zmienia
+    private void fire(String key, Pending entry, long generation) {
+        synchronized(this) {
+            if(pending.get(key) != entry || entry.generation != generation)
+                return;
+
+            long length = entry.file.length();
+            long modificationTime = entry.file.lastModified();
+            if(length != entry.length || modificationTime != entry.modificationTime) {
+                entry.length = length;
+                entry.modificationTime = modificationTime;
+                arm(key, entry);
+                return;
+            }
+            pending.remove(key);
+        }
+
+        // Wątek odliczający nie może czekać na wykonawcę
+        try { dispatcher.execute(() -> dispatch(key, entry)); }
+        catch(RejectedExecutionException e) {}
+    }
+
+    // Przekazuje akcję do wykonawcy
+    private void dispatch(String key, Pending entry) {
+        try { executor.execute(key, entry.priority, entry.action); }
+        // Pula została już zamknięta, więc akcja nie ma znaczenia
+        catch(RejectedExecutionException e) {}
+    }
+}
@@ -0,0 +1,497 @@
+package project.common;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Klasa implementuje przesyłanie różnicowe plików na wzór algorytmu rsync. Odbiorca, który posiada starszą wersję
+ * pliku, wyznacza jej sygnaturę, czyli słabą sumę kontrolną (toczącą się) oraz silny skrót MD5 każdego bloku.
+ * Nadawca przegląda nową wersję pliku bajt po bajcie, wyszukując bloki występujące w sygnaturze, i zapisuje różnicę
+ * jako ciąg odwołań do bloków odbiorcy przeplatanych nowymi danymi. Odbiorca odtwarza z różnicy nową wersję pliku
+ * i sprawdza jej skrót, a w razie niezgodności żąda przesłania całego pliku.
+ *
+ * Różnica ma postać ciągu operacji poprzedzonego rozmiarem bloku:
+ * COPY (numer pierwszego bloku, liczba bloków), LITERAL (długość, dane) oraz END kończącej różnicę.
+ */
+public class Delta {
+
+    /** Minimalny rozmiar pliku, od którego opłaca się przesyłanie różnicowe. Mniejsze pliki są wysyłane w całości. */
+    public static final long MIN_SIZE = 64 * 1024;
+
+    /** Długość silnego skrótu bloku w bajtach. */
+    public static final int STRONG_LENGTH = 16;
+
+    // Najmniejszy i największy rozmiar bloku
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+
+    // Największa długość pojedynczej operacji LITERAL
+    private static final int MAX_LITERAL = 64 * 1024;
+
+    // Kody operacji różnicy
+    private static final int END = 0;
+    private static final int COPY = 1;
+    private static final int LITERAL = 2;
+
+    // Flaga informująca, czy przesyłanie różnicowe jest włączone
+    private static volatile boolean enabled = true;
+
+    /**
+     * Klasa reprezentuje sygnaturę pliku, czyli sumy kontrolne wszystkich jego bloków.
+     */
+    public static class Signature {
+
+        // Rozmiar bloku oraz sumy kontrolne kolejnych bloków
+        private int blockSize;
+        private int[] weak;
+        private byte[][] strong;
+
+        // Indeks bloków według słabej sumy kontrolnej oraz filtr pozwalający szybko odrzucić większość okien
+        private Map<Integer, List<Integer>> index;
+        private BitSet filter;
+
+        private Signature(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * Metoda zwraca pustą sygnaturę, która oznacza, że odbiorca nie posiada pliku i musi on zostać wysłany w całości.
+         * @return Pusta sygnatura.
+         */
+        public static Signature empty() {
+            return new Signature(0, new int[0], new byte[0][]);
+        }
+
+        /**
+         * Metoda wyznacza sygnaturę pliku.
+         * @param file Plik, którego sygnatura jest wyznaczana.
+         * @return Sygnatura pliku.
+         * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku się nie powiedzie.
+         */
+        public static Signature compute(File file) throws IOException {
+            int blockSize = blockSizeFor(file.length());
+            int count = (int) ((file.length() + blockSize - 1) / blockSize);
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][];
+
+            MessageDigest digest = md5();
+            byte[] block = new byte[blockSize];
+            try(InputStream input = new FileInputStream(file)) {
+                for(int i = 0; i < count; i++) {
+                    int length = readBlock(input, block);
+                    if(length <= 0) {
+                        count = i;
+                        break;
+                    }
+                    weak[i] = weakChecksum(block, 0, length);
+                    digest.update(block, 0, length);
+                    strong[i] = digest.digest();
+                }
+            }
+            return new Signature(blockSize, Arrays.copyOf(weak, count), Arrays.copyOf(strong, count));
+        }
+
+        /**
+         * Metoda odczytuje sygnaturę zapisaną za pomocą metody write.
+         * @param input Strumień z którego odczytywana jest sygnatura.
+         * @return Odczytana sygnatura.
+         * @throws IOException Wyjątek wyrzucany, gdy sygnatura jest niepoprawna.
+         */
+        public static Signature read(DataInputStream input) throws IOException {
+            int blockSize = input.readInt();
+            int count = input.readInt();
+            int[] weak = new int[count];
+            byte[][] strong = new byte[count][];
+            for(int i = 0; i < count; i++) {
+                weak[i] = input.readInt();
+                strong[i] = new byte[STRONG_LENGTH];
+                input.readFully(strong[i]);
+            }
+            return new Signature(blockSize, weak, strong);
+        }
+
+        /**
+         * Metoda zapisuje sygnaturę do strumienia.
+         * @param output Strumień do którego zapisywana jest sygnatura.
+         * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+         */
+        public void write(DataOutputStream output) throws IOException {
+            output.writeInt(blockSize);
+            output.writeInt(weak.length);
+            for(int i = 0; i < weak.length; i++) {
+                output.writeInt(weak[i]);
+                output.write(strong[i]);
+            }
+        }
+
+        /**
+         * Metoda informuje, czy sygnatura jest pusta.
+         * @return true jeżeli sygnatura nie zawiera żadnych bloków, false w przeciwnym wypadku.
+         */
+        public boolean isEmpty() {
+            return weak.length == 0;
+        }
+
+        // Zwraca numer bloku o podanych sumach kontrolnych lub -1, gdy takiego bloku nie ma
+        private int find(int weakChecksum, byte[] window, int start, int length, MessageDigest digest) {
+            if(index == null) {
+                index = new HashMap<>();
+                filter = new BitSet(1 << 16);
+                for(int i = 0; i < weak.length; i++) {
+                    index.computeIfAbsent(weak[i], key -> new ArrayList<>(1)).add(i);
+                    filter.set(hash16(weak[i]));
+                }
+            }
+            if(!filter.get(hash16(weakChecksum)))
+                return -1;
+            List<Integer> candidates = index.get(weakChecksum);
+            if(candidates == null)
+                return -1;
+
+            // Silny skrót jest liczony tylko gdy zgadza się słaba suma kontrolna
+            digest.update(window, start, length - start);
+            digest.update(window, 0, start);
+            byte[] hash = digest.digest();
+            for(int candidate : candidates) {
+                if(Arrays.equals(strong[candidate], hash))
+                    return candidate;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Klasa reprezentuje różnicę pliku zapisaną do pliku tymczasowego, gotową do wysłania jako dane ramki.
+     */
+    public static class Patch {
+
+        // Plik tymczasowy z różnicą oraz opis nowej wersji pliku
+        private File file;
+        private long size;
+        private long modificationTime;
+        private byte[] digest;
+
+        private Patch(File file, long size, long modificationTime, byte[] digest) {
+            this.file = file;
+            this.size = size;
+            this.modificationTime = modificationTime;
+            this.digest = digest;
+        }
+
+        /**
+         * Metoda wyznacza różnicę pomiędzy plikiem, a wersją opisaną sygnaturą i zapisuje ją do pliku tymczasowego.
+         * @param source Nowa wersja pliku.
+         * @param signature Sygnatura wersji posiadanej przez odbiorcę.
+         * @return Różnica pliku.
+         * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku lub zapis różnicy się nie powiedzie.
+         */
+        public static Patch create(File source, Signature signature) throws IOException {
+            long size = source.length();
+            long modificationTime = source.lastModified();
+            File file = File.createTempFile("file-cloud", ".delta");
+            try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), FileTransfer.getChunkSize()))) {
+                byte[] digest = encode(source, signature, output);
+                return new Patch(file, size, modificationTime, digest);
+            } catch(IOException e) {
+                file.delete();
+                throw e;
+            }
+        }
+
+        /**
+         * Metoda zwraca plik tymczasowy zawierający różnicę.
+         * @return Plik z różnicą.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Metoda zwraca długość różnicy.
+         * @return Długość różnicy w bajtach.
+         */
+        public long getLength() {
+            return file.length();
+        }
+
+        /**
+         * Metoda informuje, czy przesłanie różnicy jest mniejsze od przesłania całego pliku.
+         * @return true jeżeli różnica jest krótsza od pliku, false w przeciwnym wypadku.
+         */
+        public boolean isSmaller() {
+            return getLength() < size;
+        }
+
+        /**
+         * Metoda zapisuje opis nowej wersji pliku w postaci parametrów komendy SEND_DELTA.
+         * @param output Strumień parametrów komendy.
+         * @param relativePath Ścieżka pliku.
+         * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+         */
+        public void writeHeader(DataOutputStream output, String relativePath) throws IOException {
+            output.writeUTF(relativePath);
+            output.writeLong(modificationTime);
+            output.writeLong(size);
+            output.writeShort(digest.length);
+            output.write(digest);
+        }
+
+        /**
+         * Metoda usuwa plik tymczasowy z różnicą.
+         */
+        public void discard() {
+            file.delete();
+        }
+    }
+
+    /**
+     * Metoda informuje, czy przesyłanie różnicowe jest włączone.
+     * @return true jeżeli przesyłanie różnicowe jest włączone, false w przeciwnym wypadku.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Metoda włącza lub wyłącza przesyłanie różnicowe. Tryb ten jest domyślnie włączony.
+     * @param value true aby włączyć przesyłanie różnicowe, false aby pliki zawsze były wysyłane w całości.
+     */
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    /**
+     * Metoda informuje, czy plik o podanym rozmiarze powinien być przesłany różnicowo.
+     * @param size Rozmiar pliku w bajtach.
+     * @return true jeżeli należy najpierw poprosić odbiorcę o sygnaturę, false jeżeli plik należy wysłać w całości.
+     */
+    public static boolean isWorthwhile(long size) {
+        return enabled && size >= MIN_SIZE;
+    }
+
+    /**
+     * Metoda zapisuje różnicę pomiędzy plikiem, a wersją opisaną sygnaturą.
+     * @param file Nowa wersja pliku.
+     * @param signature Sygnatura wersji posiadanej przez odbiorcę.
+     * @param output Strumień do którego zapisywana jest różnica.
+     * @return Skrót MD5 całej nowej wersji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku lub zapis różnicy się nie powiedzie.
+     */
+    public static byte[] encode(File file, Signature signature, DataOutputStream output) throws IOException {
+        int blockSize = signature.blockSize;
+        MessageDigest fileDigest = md5();
+        MessageDigest blockDigest = md5();
+        output.writeInt(blockSize);
+
+        try(InputStream input = new BufferedInputStream(new FileInputStream(file), FileTransfer.getChunkSize())) {
+            Encoder encoder = new Encoder(output);
+            byte[] window = new byte[blockSize];
+
+            // Wypełnienie okna pierwszym blokiem
+            int length = readBlock(input, window);
+            fileDigest.update(window, 0, Math.max(length, 0));
+            int start = 0;
+            int a = 0, b = 0;
+            if(length == blockSize) {
+                int checksum = weakChecksum(window, 0, length);
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+            }
+
+            while(length == blockSize) {
+                int block = signature.find(a | (b << 16), window, start, blockSize, blockDigest);
+
+                // Okno pokrywa się z blokiem odbiorcy, więc kolejne okno zaczyna się za nim
+                if(block >= 0) {
+                    encoder.copy(block);
+                    length = readBlock(input, window);
+                    fileDigest.update(window, 0, Math.max(length, 0));
+                    start = 0;
+                    if(length == blockSize) {
+                        int checksum = weakChecksum(window, 0, length);
+                        a = checksum & 0xffff;
+                        b = checksum >>> 16;
+                    }
+                    continue;
+                }
+
+                // Przesunięcie okna o jeden bajt, najstarszy bajt trafia do nowych danych
+                int next = input.read();
+                byte old = window[start];
+                encoder.literal(old);
+                if(next < 0) {
+                    // Koniec pliku, pozostała część okna jest wysyłana jako nowe dane
+                    for(int i = 1; i < blockSize; i++)
+                        encoder.literal(window[(start + i) % blockSize]);
+                    length = 0;
+                    break;
+                }
+                fileDigest.update((byte) next);
+                window[start] = (byte) next;
+                start = (start + 1) % blockSize;
+                a = (a - (old & 0xff) + (next & 0xff)) & 0xffff;
+                b = (b - blockSize * (old & 0xff) + a) & 0xffff;
+            }
+
+            // Niepełny ostatni blok pliku
+            for(int i = 0; i < length; i++)
+                encoder.literal(window[i]);
+
+            encoder.finish();
+        }
+        return fileDigest.digest();
+    }
+
+    /**
+     * Metoda odtwarza nową wersję pliku na podstawie starej wersji oraz różnicy.
+     * @param base Stara wersja pliku.
+     * @param input Strumień z którego odczytywana jest różnica.
+     * @param target Plik do którego zapisywana jest nowa wersja.
+     * @return Skrót MD5 odtworzonej wersji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy różnica jest niepoprawna lub odczyt i zapis się nie powiedzie.
+     */
+    public static byte[] apply(File base, DataInputStream input, File target) throws IOException {
+        MessageDigest digest = md5();
+        int blockSize = input.readInt();
+        byte[] buffer = new byte[Math.max(blockSize, MAX_LITERAL)];
+
+        try(RandomAccessFile source = new RandomAccessFile(base, "r");
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(target), FileTransfer.getChunkSize())) {
+            while(true) {
+                int operation = input.readUnsignedByte();
+                if(operation == END)
+                    break;
+
+                // Skopiowanie bloków ze starej wersji pliku
+                if(operation == COPY) {
+                    long offset = (long) input.readInt() * blockSize;
+                    long count = (long) input.readInt() * blockSize;
+                    count = Math.min(count, source.length() - offset);
+                    if(offset < 0 || count < 0)
+                        throw new IOException("Delta refers to missing blocks");
+                    source.seek(offset);
+                    while(count > 0) {
+                        int read = (int) Math.min(buffer.length, count);
+                        source.readFully(buffer, 0, read);
+                        output.write(buffer, 0, read);
+                        digest.update(buffer, 0, read);
+                        count -= read;
+                    }
+                }
+
+                // Przepisanie nowych danych
+                else if(operation == LITERAL) {
+                    int length = input.readInt();
+                    if(length < 0 || length > buffer.length)
+                        throw new IOException("Invalid delta literal");
+                    input.readFully(buffer, 0, length);
+                    output.write(buffer, 0, length);
+                    digest.update(buffer, 0, length);
+                }
+
+                else
+                    throw new IOException("Invalid delta operation");
+            }
+        }
+        return digest.digest();
+    }
+
+    // Zapisuje operacje różnicy, łącząc kolejne bloki i kolejne bajty w jedną operację
+    private static class Encoder {
+        private DataOutputStream output;
+        private byte[] literal = new byte[MAX_LITERAL];
+        private int literalLength;
+        private int copyStart = -1;
+        private int copyCount;
+
+        Encoder(DataOutputStream output) {
+            this.output = output;
+        }
+
+        void copy(int block) throws IOException {
+            flushLiteral();
+            if(copyStart >= 0 && copyStart + copyCount == block) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyStart = block;
+            copyCount = 1;
+        }
+
+        void literal(byte value) throws IOException {
+            flushCopy();
+            literal[literalLength++] = value;
+            if(literalLength == literal.length)
+                flushLiteral();
+        }
+
+        void finish() throws IOException {
+            flushLiteral();
+            flushCopy();
+            output.writeByte(END);
+        }
+
+        private void flushCopy() throws IOException {
+            if(copyStart < 0)
+                return;
+            output.writeByte(COPY);
+            output.writeInt(copyStart);
+            output.writeInt(copyCount);
+            copyStart = -1;
+        }
+
+        private void flushLiteral() throws IOException {
+            if(literalLength == 0)
+                return;
+            output.writeByte(LITERAL);
+            output.writeInt(literalLength);
+            output.write(literal, 0, literalLength);
+            literalLength = 0;
+        }
+    }
+
+    // Dobiera rozmiar bloku do rozmiaru pliku, podobnie jak rsync
+    private static int blockSizeFor(long size) {
+        int blockSize = (int) Math.min(MAX_BLOCK_SIZE, Math.sqrt(size));
+        blockSize = Math.max(MIN_BLOCK_SIZE, blockSize);
+        return blockSize & ~7;
+    }
+
+    // Skraca słabą sumę kontrolną do 16 bitów na potrzeby filtra
+    private static int hash16(int checksum) {
+        return (checksum ^ (checksum >>> 16)) & 0xffff;
+    }
+
+    // Wyznacza słabą sumę kontrolną bloku
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0, b = 0;
+        for(int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += (length - i) * (data[offset + i] & 0xff);
+        }
+        return (a & 0xffff) | ((b & 0xffff) << 16);
+    }
+
+    // Wypełnia bufor danymi ze strumienia, zwraca liczbę odczytanych bajtów
+    private static int readBlock(InputStream input, byte[] block) throws IOException {
+        int length = 0;
+        while(length < block.length) {
+            int read = input.read(block, length, block.length - length);
+            if(read < 0)
+                break;
+            length += read;
+        }
+        return length;
+    }
+
+    // Tworzy obiekt wyznaczający skróty MD5
+    private static MessageDigest md5() {
+        try { return MessageDigest.getInstance("MD5"); }
+        // Każda implementacja Javy musi udostępniać algorytm MD5
+        catch(NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+}
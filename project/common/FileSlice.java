@@ -0,0 +1,180 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje ciągły zakres bajtów pliku. Ciąg zakresów opisuje zawartość, która nie musi być zapisana w jednym
+ * pliku, np. plik magazynu serwera złożony z fragmentów przechowywanych w osobnych plikach. Taką zawartość można
+ * wysłać jako dane jednej ramki i odczytywać strumieniowo bez wcześniejszego składania jej w pliku tymczasowym.
+ *
+ * Długość zakresu jest długością zapowiadaną odbiorcy. Jeżeli plik w międzyczasie się skrócił, połączenia uzupełniają
+ * brakujące bajty zerami, tak jak przy wysyłaniu zwykłego pliku.
+ */
+public class FileSlice {
+
+    // Parametry przekazane w konstruktorze
+    private File file;
+    private long offset;
+    private long length;
+
+    /**
+     * Konstruuje zakres bajtów pliku.
+     * @param file Plik zawierający zakres.
+     * @param offset Pozycja początku zakresu w pliku.
+     * @param length Długość zakresu w bajtach.
+     */
+    public FileSlice(File file, long offset, long length) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Metoda zwraca plik zawierający zakres.
+     * @return Plik zawierający zakres.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Metoda zwraca pozycję początku zakresu w pliku.
+     * @return Pozycja początku zakresu.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Metoda zwraca długość zakresu.
+     * @return Długość zakresu w bajtach.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Metoda zwraca ciąg złożony z jednego zakresu obejmującego początek pliku.
+     * @param file Plik z zawartością.
+     * @param size Liczba bajtów pliku należących do zawartości.
+     * @return Ciąg zakresów.
+     */
+    public static List<FileSlice> of(File file, long size) {
+        return Collections.singletonList(new FileSlice(file, 0, size));
+    }
+
+    /**
+     * Metoda zwraca łączną długość ciągu zakresów.
+     * @param slices Ciąg zakresów.
+     * @return Łączna długość w bajtach.
+     */
+    public static long length(List<FileSlice> slices) {
+        long length = 0;
+        for(FileSlice slice : slices)
+            length += slice.length;
+        return length;
+    }
+
+    /**
+     * Metoda zwraca ciąg zakresów opisujący część zawartości opisanej podanym ciągiem.
+     * @param slices Ciąg zakresów opisujący całą zawartość.
+     * @param offset Pozycja początku części w zawartości.
+     * @param length Długość części w bajtach.
+     * @return Ciąg zakresów opisujący część zawartości, krótszy gdy zawartość kończy się przed końcem części.
+     */
+    public static List<FileSlice> range(List<FileSlice> slices, long offset, long length) {
+        List<FileSlice> range = new ArrayList<>();
+        long start = 0;
+        long end = offset + length;
+        for(FileSlice slice : slices) {
+            long from = Math.max(offset, start);
+            long to = Math.min(end, start + slice.length);
+            if(from < to)
+                range.add(new FileSlice(slice.file, slice.offset + from - start, to - from));
+            start += slice.length;
+            if(start >= end)
+                break;
+        }
+        return range;
+    }
+
+    /**
+     * Metoda otwiera strumień odczytujący kolejno zawartość zakresów. Pliki są otwierane dopiero wtedy, gdy strumień
+     * dojdzie do ich zakresu, więc ciąg może składać się z dowolnej liczby zakresów.
+     * @param slices Ciąg zakresów.
+     * @return Strumień odczytujący zawartość zakresów.
+     */
+    public static InputStream open(List<FileSlice> slices) {
+        return new SliceInputStream(slices.iterator());
+    }
+
+    /**
+     * Metoda odczytuje część zawartości opisanej ciągiem zakresów.
+     * @param slices Ciąg zakresów opisujący zawartość.
+     * @param position Pozycja w zawartości od której odczytywane są dane.
+     * @param target Tablica do której zapisywane są dane.
+     * @param offset Pozycja w tablicy od której zapisywane są dane.
+     * @param length Liczba bajtów do odczytania.
+     * @throws IOException Wyjątek wyrzucany, gdy zawartość jest za krótka lub odczyt się nie powiedzie.
+     */
+    public static void read(List<FileSlice> slices, long position, byte[] target, int offset, int length) throws IOException {
+        try(DataInputStream input = new DataInputStream(open(range(slices, position, length)))) {
+            input.readFully(target, offset, length);
+        }
+    }
+
+    // Strumień odczytujący kolejno zawartość zakresów
+    private static class SliceInputStream extends InputStream {
+        private Iterator<FileSlice> slices;
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+
+        SliceInputStream(Iterator<FileSlice> slices) {
+            this.slices = slices;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if(length == 0)
+                return 0;
+
+            // Przejście do kolejnego zakresu, gdy bieżący został odczytany lub plik okazał się krótszy
+            while(channel == null || remaining == 0) {
+                close();
+                if(!slices.hasNext())
+                    return -1;
+                FileSlice slice = slices.next();
+                channel = new FileInputStream(slice.file).getChannel();
+                position = slice.offset;
+                remaining = slice.length;
+            }
+
+            int count = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, remaining)), position);
+            if(count < 0) {
+                remaining = 0;
+                return read(buffer, offset, length);
+            }
+            position += count;
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa służy do przesyłania zawartości plików pomiędzy strumieniami i kanałami dużymi fragmentami zamiast bajt po
+ * bajcie. Każdy wątek posiada własne bufory, które są wykorzystywane ponownie przy kolejnych transferach, dzięki czemu
+ * przesyłanie nie wymaga przydzielania pamięci. Wątki wirtualne wypożyczają bufory ze wspólnej puli na czas transferu,
+ * więc pamięć buforów zależy od liczby trwających transferów, a nie od liczby połączeń. Rozmiar fragmentu jest wspólny dla serwera i klientów i może zostać
+ * zmieniony przed rozpoczęciem transferów.
+ *
+ * Domyślnie pliki są przesyłane w trybie bez kopiowania, w którym dane przekazywane są przez jądro systemu za pomocą
+ * FileChannel.transferTo oraz FileChannel.transferFrom i nie trafiają do buforów Javy.
+ */
+public class FileTransfer {
+
+    /** Domyślny rozmiar fragmentu w bajtach. */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    // Aktualny rozmiar fragmentu
+    private static volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    // Flaga informująca, czy pliki mają być przesyłane bez kopiowania przez pamięć Javy
+    private static volatile boolean zeroCopy = true;
+
+    // Bufory poszczególnych wątków
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<>();
+    private static final ThreadLocal<ByteBuffer> directBuffers = new ThreadLocal<>();
+
+    // Bufory wypożyczane wątkom wirtualnym, których jest zbyt wiele, aby każdy miał własne bufory
+    private static final Queue<byte[]> sharedBuffers = new ConcurrentLinkedQueue<>();
+    private static final Queue<ByteBuffer> sharedDirectBuffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Metoda zwraca rozmiar fragmentu, którymi przesyłane są pliki.
+     * @return Rozmiar fragmentu w bajtach.
+     */
+    public static int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Metoda zmienia rozmiar fragmentu, którymi przesyłane są pliki.
+     * @param size Nowy rozmiar fragmentu w bajtach.
+     */
+    public static void setChunkSize(int size) {
+        if(size <= 0)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        chunkSize = size;
+    }
+
+    /**
+     * Metoda informuje, czy pliki są przesyłane bez kopiowania przez pamięć Javy.
+     * @return true jeżeli włączony jest tryb bez kopiowania, false w przeciwnym wypadku.
+     */
+    public static boolean isZeroCopy() {
+        return zeroCopy;
+    }
+
+    /**
+     * Metoda włącza lub wyłącza przesyłanie plików bez kopiowania przez pamięć Javy. Tryb ten jest domyślnie włączony.
+     * @param enabled true aby włączyć tryb bez kopiowania, false aby dane przechodziły przez bufory.
+     */
+    public static void setZeroCopy(boolean enabled) {
+        zeroCopy = enabled;
+    }
+
+    /**
+     * Metoda przepisuje dokładnie podaną liczbę bajtów ze strumienia wejściowego do wyjściowego.
+     * @param input Strumień z którego odczytywane są dane.
+     * @param output Strumień do którego zapisywane są dane.
+     * @param count Liczba bajtów do przepisania.
+     * @throws IOException Wyjątek wyrzucany, gdy strumień wejściowy skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    public static void copy(InputStream input, OutputStream output, long count) throws IOException {
+        byte[] buffer = buffer();
+        try {
+            while(count > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, count));
+                if(read < 0)
+                    throw new EOFException();
+                output.write(buffer, 0, read);
+                count -= read;
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Metoda wysyła do kanału dokładnie podaną liczbę bajtów pliku, licząc od jego początku. W trybie bez kopiowania
+     * dane są przekazywane przez jądro systemu za pomocą FileChannel.transferTo, w przeciwnym wypadku przechodzą
+     * przez bufor bieżącego wątku. Jeżeli plik w międzyczasie się skrócił, brakujące bajty są uzupełniane zerami,
+     * aby odbiorca otrzymał zapowiedzianą liczbę bajtów.
+     * @param file Kanał wysyłanego pliku.
+     * @param size Liczba bajtów do wysłania.
+     * @param output Kanał do którego zapisywana jest zawartość pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku lub zapis do kanału się nie powiedzie.
+     */
+    public static void send(FileChannel file, long size, WritableByteChannel output) throws IOException {
+        send(file, 0, size, output);
+    }
+
+    /**
+     * Metoda wysyła do kanału dokładnie podaną liczbę bajtów pliku, licząc od podanej pozycji.
+     * @param file Kanał wysyłanego pliku.
+     * @param offset Pozycja w pliku od której wysyłane są dane.
+     * @param size Liczba bajtów do wysłania.
+     * @param output Kanał do którego zapisywana jest zawartość pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku lub zapis do kanału się nie powiedzie.
+     */
+    public static void send(FileChannel file, long offset, long size, WritableByteChannel output) throws IOException {
+        long position = offset;
+        long end = offset + size;
+
+        // Przekazanie danych przez jądro systemu
+        if(zeroCopy) {
+            while(position < end) {
+                long count = file.transferTo(position, end - position, output);
+                if(count <= 0)
+                    break;
+                position += count;
+            }
+        }
+
+        // Przekazanie danych przez bufor, również uzupełnianie brakujących bajtów zerami
+        if(position >= end)
+            return;
+        ByteBuffer buffer = directBuffer();
+        try {
+            while(position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if(file.read(buffer, position) < 0) {
+                    while(buffer.hasRemaining())
+                        buffer.put((byte) 0);
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                while(buffer.hasRemaining())
+                    output.write(buffer);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Metoda zapisuje do pliku, od jego bieżącej pozycji, dokładnie podaną liczbę bajtów odczytanych z kanału.
+     * W trybie bez kopiowania wykorzystywana jest metoda FileChannel.transferFrom.
+     * @param input Kanał z którego odczytywane są dane.
+     * @param file Kanał pliku do którego zapisywane są dane.
+     * @param count Liczba bajtów do przepisania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał wejściowy skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    public static void receive(ReadableByteChannel input, FileChannel file, long count) throws IOException {
+        long position = file.position();
+        receive(input, file, position, count);
+        file.position(position + count);
+    }
+
+    /**
+     * Metoda zapisuje do pliku, od podanej pozycji, dokładnie podaną liczbę bajtów odczytanych z kanału. Bieżąca
+     * pozycja pliku nie jest zmieniana, dzięki czemu kilka wątków może jednocześnie zapisywać różne fragmenty
+     * tego samego pliku.
+     * @param input Kanał z którego odczytywane są dane.
+     * @param file Kanał pliku do którego zapisywane są dane.
+     * @param position Pozycja w pliku od której zapisywane są dane.
+     * @param count Liczba bajtów do przepisania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał wejściowy skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    public static void receive(ReadableByteChannel input, FileChannel file, long position, long count) throws IOException {
+        long end = position + count;
+
+        // Przekazanie danych przez jądro systemu, które nie zapisuje danych za końcem pliku
+        if(zeroCopy && position <= file.size()) {
+            while(position < end) {
+                long transferred = file.transferFrom(input, position, end - position);
+                if(transferred <= 0)
+                    throw new EOFException();
+                position += transferred;
+            }
+        }
+
+        // Przekazanie danych przez bufor
+        if(position >= end)
+            return;
+        ByteBuffer buffer = directBuffer();
+        try {
+            while(position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if(input.read(buffer) < 0)
+                    throw new EOFException();
+                buffer.flip();
+                while(buffer.hasRemaining())
+                    position += file.write(buffer, position);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    // Zwraca bufor bieżącego wątku o aktualnym rozmiarze fragmentu
+    private static byte[] buffer() {
+        if(Threads.isVirtualThread()) {
+            byte[] buffer = sharedBuffers.poll();
+            return buffer != null && buffer.length == chunkSize ? buffer : new byte[chunkSize];
+        }
+        byte[] buffer = buffers.get();
+        if(buffer == null || buffer.length != chunkSize) {
+            buffer = new byte[chunkSize];
+            buffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    // Zwraca bufor bieżącego wątku poza stertą Javy o aktualnym rozmiarze fragmentu
+    private static ByteBuffer directBuffer() {
+        if(Threads.isVirtualThread()) {
+            ByteBuffer buffer = sharedDirectBuffers.poll();
+            return buffer != null && buffer.capacity() == chunkSize ? buffer : ByteBuffer.allocateDirect(chunkSize);
+        }
+        ByteBuffer buffer = directBuffers.get();
+        if(buffer == null || buffer.capacity() != chunkSize) {
+            buffer = ByteBuffer.allocateDirect(chunkSize);
+            directBuffers.set(buffer);
+        }
+        return buffer;
+    }
+
+    // Zwraca do wspólnej puli bufor wypożyczony przez wątek wirtualny
+    private static void release(byte[] buffer) {
+        if(Threads.isVirtualThread() && buffer.length == chunkSize)
+            sharedBuffers.offer(buffer);
+    }
+
+    // Zwraca do wspólnej puli bufor poza stertą Javy wypożyczony przez wątek wirtualny
+    private static void release(ByteBuffer buffer) {
+        if(Threads.isVirtualThread() && buffer.capacity() == chunkSize)
+            sharedDirectBuffers.offer(buffer);
+    }
+}
@@ -0,0 +1,153 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Klasa reprezentuje pojedynczą ramkę odebraną za pomocą połączenia. Ramka składa się z komendy, parametrów komendy
+ * (np. nazwy pliku, daty modyfikacji) oraz opcjonalnych danych, którymi zazwyczaj jest zawartość pliku.
+ * Dane ramki są odczytywane bezpośrednio z połączenia, dlatego muszą zostać odczytane przed odebraniem kolejnej ramki.
+ * Nieodczytane dane są pomijane automatycznie przy odbieraniu następnej ramki.
+ */
+public class Frame {
+
+    // Komenda przesłana w ramce
+    private Command command;
+
+    // Identyfikator żądania, którego dotyczy ramka
+    private int requestId;
+
+    // Strumień parametrów komendy
+    private DataInputStream header;
+
+    // Kanał oraz strumień danych ramki
+    private ReadableByteChannel bodyChannel;
+    private DataInputStream body;
+
+    // Liczba bajtów danych ramki
+    private long bodyLength;
+
+    // Liczba bajtów danych, które nie zostały jeszcze odczytane
+    private long remaining;
+
+    /**
+     * Konstruuje ramkę o podanej komendzie, parametrach oraz danych.
+     * @param command Komenda przesłana w ramce lub null, jeżeli komenda nie jest znana.
+     * @param requestId Identyfikator żądania, którego dotyczy ramka.
+     * @param header Parametry komendy.
+     * @param bodyLength Liczba bajtów danych ramki.
+     * @param source Kanał połączenia, z którego będą odczytywane dane ramki.
+     */
+    Frame(Command command, int requestId, byte[] header, long bodyLength, ReadableByteChannel source) {
+        this.command = command;
+        this.requestId = requestId;
+        this.header = new DataInputStream(new ByteArrayInputStream(header));
+        this.bodyChannel = new BodyChannel(source);
+        this.body = new DataInputStream(Channels.newInputStream(bodyChannel));
+        this.bodyLength = bodyLength;
+        this.remaining = bodyLength;
+    }
+
+    /**
+     * Metoda zwraca komendę przesłaną w ramce.
+     * @return Komenda lub null, jeżeli odebrano nieznaną komendę.
+     */
+    public Command getCommand() {
+        return command;
+    }
+
+    /**
+     * Metoda zwraca identyfikator żądania, którego dotyczy ramka.
+     * @return Identyfikator żądania lub FrameHeader.NO_REQUEST, gdy ramka nie dotyczy żadnego żądania.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Metoda zwraca strumień, z którego można odczytać parametry komendy.
+     * @return Strumień parametrów komendy.
+     */
+    public DataInputStream getHeader() {
+        return header;
+    }
+
+    /**
+     * Metoda zwraca strumień, z którego można odczytać dane ramki. Strumień kończy się po odczytaniu wszystkich
+     * danych ramki, a jego zamknięcie nie zamyka połączenia.
+     * @return Strumień danych ramki.
+     */
+    public DataInputStream getBody() {
+        return body;
+    }
+
+    /**
+     * Metoda zwraca kanał, z którego można odczytać dane ramki. Kanał umożliwia przekazanie danych bezpośrednio do
+     * pliku za pomocą FileChannel.transferFrom. Kanał kończy się po odczytaniu wszystkich danych ramki, a jego
+     * zamknięcie nie zamyka połączenia.
+     * @return Kanał danych ramki.
+     */
+    public ReadableByteChannel getBodyChannel() {
+        return bodyChannel;
+    }
+
+    /**
+     * Metoda zwraca liczbę bajtów danych ramki.
+     * @return Liczba bajtów danych ramki.
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Metoda pomija wszystkie nieodczytane dane ramki.
+     * @param buffer Bufor do którego odczytywane są pomijane dane.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie zostanie przerwane.
+     */
+    void skipBody(ByteBuffer buffer) throws IOException {
+        while(remaining > 0) {
+            buffer.clear();
+            if(bodyChannel.read(buffer) < 0)
+                throw new EOFException();
+        }
+    }
+
+    // Kanał ograniczający odczyt z połączenia do danych tej ramki
+    private class BodyChannel implements ReadableByteChannel {
+        private ReadableByteChannel source;
+
+        BodyChannel(ReadableByteChannel source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if(remaining <= 0)
+                return -1;
+
+            // Ograniczenie odczytu do pozostałych danych ramki
+            int limit = buffer.limit();
+            if(buffer.remaining() > remaining)
+                buffer.limit(buffer.position() + (int) remaining);
+            int count;
+            try { count = source.read(buffer); }
+            finally { buffer.limit(limit); }
+
+            if(count < 0)
+                throw new EOFException();
+            remaining -= count;
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() {
+            // Zamknięcie kanału danych nie może zamknąć połączenia
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Klasa koduje i dekoduje nagłówki ramek protokołu, wspólne dla wszystkich implementacji połączenia. Nagłówek ma stały
+ * rozmiar i zawiera numer komendy (int), długość parametrów (int), długość danych ramki (long) oraz identyfikator
+ * żądania (int), który strona odpowiadająca na żądanie umieszcza w ramce odpowiedzi, dzięki czemu jednym połączeniem
+ * może być jednocześnie przesyłanych wiele żądań, a odpowiedzi mogą przychodzić w dowolnej kolejności.
+ *
+ * Wersję protokołu strony uzgadniają podczas logowania: klient dołącza swoją wersję do komendy LOGIN, a serwer
+ * odpowiada komendą LOGIN_SUCCESS zawierającą jego wersję lub komendą LOGIN_REJECTED, gdy wersji klienta nie obsługuje.
+ * Klient, który nie obsługuje wersji serwera, kończy pracę. Zmiana formatu ramek lub parametrów komend wymaga zmiany
+ * wersji, dzięki czemu strony o niezgodnych wersjach nie próbują się porozumieć.
+ *
+ * Obiekt nagłówka może być wykorzystywany wielokrotnie, więc dekodowanie kolejnych nagłówków nie wymaga przydzielania
+ * pamięci.
+ */
+public class FrameHeader {
+
+    /** Wersja protokołu, którą strony uzgadniają podczas logowania. */
+    public static final int VERSION = 2;
+
+    /** Rozmiar nagłówka ramki w bajtach. */
+    public static final int SIZE = 20;
+
+    /** Największa długość parametrów ramki w bajtach. Mieści spis lub sygnaturę bardzo dużego katalogu albo pliku,
+     * a chroni przed przydzieleniem pamięci na parametry o długości zapowiedzianej przez wadliwą lub wrogą stronę. */
+    public static final int MAX_PARAMETER_LENGTH = 16 * 1024 * 1024;
+
+    /** Identyfikator oznaczający ramkę, która nie dotyczy żadnego żądania. */
+    public static final int NO_REQUEST = 0;
+
+    // Pola zdekodowanego nagłówka
+    private int command;
+    private int parameterLength;
+    private long bodyLength;
+    private int requestId;
+
+    /**
+     * Metoda sprawdza, czy wersja protokołu drugiej strony jest obsługiwana.
+     * @param version Wersja protokołu przesłana przez drugą stronę, 0 gdy jej nie przesłała.
+     * @return true jeżeli wersja jest obsługiwana, false w przeciwnym wypadku.
+     */
+    public static boolean isSupported(int version) {
+        return version == VERSION;
+    }
+
+    /**
+     * Metoda dekoduje nagłówek ramki zapisany w buforze od jego początku.
+     * @param header Bufor z całym nagłówkiem.
+     * @throws IOException Wyjątek wyrzucany, gdy długości są niepoprawne lub parametry są dłuższe niż
+     * MAX_PARAMETER_LENGTH, a połączenie należy wtedy zamknąć.
+     */
+    public void decode(ByteBuffer header) throws IOException {
+        command = header.getInt(0);
+        parameterLength = header.getInt(4);
+        bodyLength = header.getLong(8);
+        requestId = header.getInt(16);
+        if(parameterLength < 0 || bodyLength < 0)
+            throw new IOException("Invalid frame length");
+        if(parameterLength > MAX_PARAMETER_LENGTH)
+            throw new IOException("Frame parameters too long: " + parameterLength);
+    }
+
+    /**
+     * Metoda koduje nagłówek ramki wraz z parametrami komendy.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param bodyLength Liczba bajtów danych ramki.
+     * @return Zakodowany nagłówek ramki wraz z parametrami.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis parametrów się nie powiedzie lub są one dłuższe niż
+     * MAX_PARAMETER_LENGTH, ponieważ odbiorca zamknąłby połączenie.
+     */
+    public static byte[] encode(Command command, int requestId, Connection.HeaderWriter header, long bodyLength) throws IOException {
+        // Zapisanie parametrów, aby poznać ich długość
+        ByteArrayOutputStream parameters = new ByteArrayOutputStream();
+        if(header != null)
+            header.write(new DataOutputStream(parameters));
+        if(parameters.size() > MAX_PARAMETER_LENGTH)
+            throw new IOException("Frame parameters too long: " + parameters.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(SIZE + parameters.size());
+        DataOutputStream stream = new DataOutputStream(bytes);
+        stream.writeInt(command.asInt());
+        stream.writeInt(parameters.size());
+        stream.writeLong(bodyLength);
+        stream.writeInt(requestId);
+        parameters.writeTo(stream);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Metoda zwraca numer komendy, który można zamienić na komendę metodą Command.fromInt.
+     * @return Numer komendy.
+     */
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * Metoda zwraca długość parametrów komendy.
+     * @return Długość parametrów w bajtach.
+     */
+    public int getParameterLength() {
+        return parameterLength;
+    }
+
+    /**
+     * Metoda zwraca długość danych ramki.
+     * @return Długość danych w bajtach.
+     */
+    public long getBodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Metoda zwraca identyfikator żądania.
+     * @return Identyfikator żądania lub NO_REQUEST, gdy ramka nie dotyczy żadnego żądania.
+     */
+    public int getRequestId() {
+        return requestId;
+    }
+}
@@ -0,0 +1,321 @@
+package project.common;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa przechowuje skróty zawartości plików katalogu, aby decyzje o przesyłaniu plików mogły być podejmowane na
+ * podstawie zawartości, a nie tylko daty modyfikacji. Skrót pliku jest ponownie wyznaczany tylko wtedy, gdy zmienił
+ * się rozmiar, data modyfikacji lub identyfikator pliku w systemie plików (np. numer i-węzła), dlatego po ponownym
+ * uruchomieniu nie trzeba odczytywać wszystkich plików.
+ *
+ * Skróty są zapisywane w ukrytym pliku w tym samym katalogu, który jest pomijany przy tworzeniu spisów i
+ * obserwowaniu zmian. Zmiany są zapisywane zbiorczo: na końcu tworzenia spisu, kilka sekund po pierwszej niezapisanej
+ * zmianie oraz przy wywołaniu metody flush, dzięki czemu wyznaczenie skrótów wielu plików nie zapisuje całego pliku ze
+ * skrótami po każdym z nich. Skróty są wyznaczane poza monitorem obiektu, więc odczyt dużego pliku nie wstrzymuje
+ * innych wątków korzystających z zapamiętanych skrótów.
+ */
+public class HashCache {
+
+    /** Nazwa pliku, w którym zapisywane są skróty. */
+    public static final String FILE_NAME = ".hashcache";
+
+    /** Algorytm wyznaczania skrótów zawartości plików. */
+    public static final String ALGORITHM = "SHA-256";
+
+    // Liczba identyfikująca plik ze skrótami
+    private static final int MAGIC = 0x48434831;
+
+    // Czas od pierwszej niezapisanej zmiany do zapisania skrótów na dysku w milisekundach
+    private static final long SAVE_DELAY = 5000;
+
+    // Wspólny wątek zapisujący zmienione skróty wszystkich obiektów
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "hash-cache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Klasa reprezentuje zapamiętany skrót pliku wraz z atrybutami, dla których został wyznaczony. Wpis nie jest
+     * zmieniany po umieszczeniu w pamięci.
+     */
+    private static class Record {
+        long size;
+        long modificationTime;
+        String key;
+        byte[] hash;
+
+        // Sprawdza, czy plik o podanych atrybutach nie zmienił się od wyznaczenia skrótu
+        boolean matches(BasicFileAttributes attributes) {
+            return size == attributes.size() && modificationTime == attributes.lastModifiedTime().toMillis() &&
+                    key.equals(String.valueOf(attributes.fileKey()));
+        }
+    }
+
+    // Katalog, którego pliki są opisywane
+    private File directory;
+
+    // Zapamiętane skróty według ścieżek, dostęp synchronizowany na obiekcie
+    private Map<String, Record> records = new HashMap<>();
+
+    // Flaga informująca, że zapamiętane skróty różnią się od zapisanych na dysku, oraz zaplanowany zapis
+    private boolean modified;
+    private ScheduledFuture<?> pendingSave;
+
+    // Obiekt zapewniający, że plik ze skrótami zapisuje naraz tylko jeden wątek
+    private final Object saveLock = new Object();
+
+    /**
+     * Konstruuje obiekt przechowujący skróty plików katalogu i wczytuje skróty zapisane wcześniej. Uszkodzony
+     * lub nieistniejący plik ze skrótami oznacza, że skróty zostaną wyznaczone od nowa.
+     * @param directory Katalog, którego pliki są opisywane.
+     */
+    public HashCache(File directory) {
+        this.directory = directory;
+        load();
+    }
+
+    /**
+     * Metoda zwraca skrót zawartości pliku, wyznaczając go tylko wtedy, gdy plik zmienił się od ostatniego
+     * wyznaczenia skrótu. Nowe skróty są zapisywane na dysku zbiorczo.
+     * @param relativePath Ścieżka do pliku względem katalogu.
+     * @return Skrót zawartości pliku lub null, gdy plik nie istnieje lub nie można go odczytać.
+     */
+    public byte[] hash(String relativePath) {
+        return lookup(relativePath);
+    }
+
+    /**
+     * Metoda sprawdza, czy zawartość pliku zmieniła się od ostatniego wyznaczenia jego skrótu. Pozwala pominąć
+     * wysyłanie pliku, którego data modyfikacji zmieniła się, ale zawartość pozostała taka sama.
+     * @param relativePath Ścieżka do pliku względem katalogu.
+     * @return true jeżeli zawartość się zmieniła lub nie jest znany jej wcześniejszy skrót, false w przeciwnym wypadku.
+     */
+    public boolean hasChanged(String relativePath) {
+        Record previous;
+        synchronized(this) {
+            previous = records.get(relativePath);
+        }
+        byte[] hash = lookup(relativePath);
+        return previous == null || hash == null || !Arrays.equals(previous.hash, hash);
+    }
+
+    /**
+     * Metoda usuwa zapamiętany skrót pliku, np. gdy plik został usunięty lub nadpisany zawartością z serwera.
+     * @param relativePath Ścieżka do pliku względem katalogu.
+     */
+    public synchronized void forget(String relativePath) {
+        if(records.remove(relativePath) != null)
+            markModified();
+    }
+
+    /**
+     * Metoda zwraca ścieżki plików o zapamiętanych skrótach, które znajdują się w podanym podkatalogu, np. aby ustalić,
+     * jakie pliki zniknęły razem z usuniętym podkatalogiem.
+     * @param relativePath Ścieżka podkatalogu względem katalogu, pusta dla całego katalogu.
+     * @return Ścieżki plików podkatalogu, również w jego podkatalogach.
+     */
+    public synchronized List<String> paths(String relativePath) {
+        String prefix = relativePath.isEmpty() ? "" : relativePath + "/";
+        List<String> paths = new ArrayList<>();
+        for(String path : records.keySet()) {
+            if(path.startsWith(prefix))
+                paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Metoda tworzy spis wszystkich plików katalogu wraz ze skrótami ich zawartości. Skróty plików, które już nie
+     * istnieją, są usuwane, a po utworzeniu spisu wszystkie zmiany są zapisywane na dysku.
+     * @return Spis plików katalogu.
+     */
+    public Manifest scan() {
+        Manifest manifest = Manifest.scan(directory);
+        Manifest result = new Manifest();
+        Set<String> paths = new HashSet<>();
+        for(Manifest.Entry entry : manifest.getEntries()) {
+            byte[] hash = lookup(entry.getPath());
+            result.add(new Manifest.Entry(entry.getPath(), entry.getSize(), entry.getModificationTime(), hash));
+            paths.add(entry.getPath());
+        }
+        synchronized(this) {
+            if(records.keySet().retainAll(paths))
+                markModified();
+        }
+        flush();
+        return result;
+    }
+
+    /**
+     * Metoda zapamiętuje skrót pliku wyznaczony podczas jego zapisywania, aby nie trzeba było odczytywać go ponownie.
+     * Należy ją wywołać po ustawieniu daty modyfikacji pliku.
+     * @param relativePath Ścieżka do pliku względem katalogu.
+     * @param hash Skrót zawartości pliku.
+     */
+    public void put(String relativePath, byte[] hash) {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(SafePath.resolve(directory, relativePath).toPath(), BasicFileAttributes.class);
+        } catch(IOException e) {
+            forget(relativePath);
+            return;
+        }
+        synchronized(this) {
+            records.put(relativePath, record(attributes, hash));
+            markModified();
+        }
+    }
+
+    /**
+     * Metoda od razu zapisuje na dysku zmienione skróty, nie czekając na zaplanowany zapis. Należy ją wywołać przed
+     * zakończeniem pracy z katalogiem.
+     */
+    public void flush() {
+        save();
+    }
+
+    /**
+     * Metoda tworzy obiekt wyznaczający skróty zawartości plików.
+     * @return Obiekt wyznaczający skróty.
+     */
+    public static MessageDigest newDigest() {
+        try { return MessageDigest.getInstance(ALGORITHM); }
+        // Każda implementacja Javy musi udostępniać algorytm SHA-256
+        catch(NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+    }
+
+    /**
+     * Metoda wyznacza skrót zawartości pliku.
+     * @param file Plik, którego skrót jest wyznaczany.
+     * @return Skrót zawartości pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt pliku się nie powiedzie.
+     */
+    public static byte[] compute(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[FileTransfer.getChunkSize()];
+        try(InputStream input = new FileInputStream(file)) {
+            int count;
+            while((count = input.read(buffer)) > 0)
+                digest.update(buffer, 0, count);
+        }
+        return digest.digest();
+    }
+
+    // Zwraca skrót pliku z pamięci lub wyznacza go poza monitorem obiektu, gdy plik się zmienił
+    private byte[] lookup(String relativePath) {
+        File file = SafePath.resolve(directory, relativePath);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            if(!attributes.isRegularFile())
+                throw new FileNotFoundException(relativePath);
+            synchronized(this) {
+                Record record = records.get(relativePath);
+                if(record != null && record.matches(attributes))
+                    return record.hash;
+            }
+
+            // Plik mógł zmienić się w trakcie odczytu, wtedy skrót nie jest zapamiętywany
+            byte[] hash = compute(file);
+            BasicFileAttributes after = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Record computed = record(attributes, hash);
+            if(computed.matches(after)) {
+                synchronized(this) {
+                    records.put(relativePath, computed);
+                    markModified();
+                }
+            }
+            return hash;
+        } catch(IOException e) {
+            forget(relativePath);
+            return null;
+        }
+    }
+
+    // Oznacza skróty jako zmienione i planuje ich zapis, wywoływana z monitorem obiektu
+    private void markModified() {
+        modified = true;
+        if(pendingSave == null)
+            pendingSave = timer.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    // Tworzy wpis dla pliku o podanych atrybutach
+    private static Record record(BasicFileAttributes attributes, byte[] hash) {
+        Record record = new Record();
+        record.size = attributes.size();
+        record.modificationTime = attributes.lastModifiedTime().toMillis();
+        record.key = String.valueOf(attributes.fileKey());
+        record.hash = hash;
+        return record;
+    }
+
+    // Wczytuje skróty zapisane na dysku
+    private void load() {
+        File file = new File(directory, FILE_NAME);
+        if(!file.isFile())
+            return;
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(input.readInt() != MAGIC)
+                return;
+            int count = input.readInt();
+            for(int i = 0; i < count; i++) {
+                String path = input.readUTF();
+                Record record = new Record();
+                record.size = input.readLong();
+                record.modificationTime = input.readLong();
+                record.key = input.readUTF();
+                record.hash = new byte[input.readUnsignedShort()];
+                input.readFully(record.hash);
+                records.put(path, record);
+            }
+        } catch(IOException e) {
+            records.clear();
+        }
+    }
+
+    // Zapisuje skróty na dysku, jeżeli się zmieniły, podmieniając cały plik naraz; plik jest zapisywany poza monitorem
+    private void save() {
+        synchronized(saveLock) {
+            Map<String, Record> snapshot;
+            synchronized(this) {
+                if(pendingSave != null) {
+                    pendingSave.cancel(false);
+                    pendingSave = null;
+                }
+                if(!modified || !directory.isDirectory())
+                    return;
+                snapshot = new HashMap<>(records);
+                modified = false;
+            }
+
+            File file = new File(directory, FILE_NAME);
+            File temporary = new File(directory, FILE_NAME + ".tmp");
+            try {
+                try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(snapshot.size());
+                    for(Map.Entry<String, Record> entry : snapshot.entrySet()) {
+                        Record record = entry.getValue();
+                        output.writeUTF(entry.getKey());
+                        output.writeLong(record.size);
+                        output.writeLong(record.modificationTime);
+                        output.writeUTF(record.key);
+                        output.writeShort(record.hash.length);
+                        output.write(record.hash);
+                    }
+                }
+                Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException e) {
+                temporary.delete();
+                synchronized(this) {
+                    modified = true;
+                }
+            }
+        }
+    }
+}
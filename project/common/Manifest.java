@@ -0,0 +1,269 @@
+package project.common;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje spis plików katalogu, czyli ich nazwy, rozmiary, daty modyfikacji oraz opcjonalne skróty
+ * zawartości. Spis jest wysyłany w całości w jednej ramce po zalogowaniu, a druga strona porównuje go ze swoim
+ * katalogiem i odpowiada jedną listą potrzebnych plików, zamiast wymieniać osobne komunikaty dla każdego pliku.
+ *
+ * Spis obejmuje również pliki w podkatalogach, których ścieżki względem katalogu są zapisywane z separatorem '/'
+ * niezależnie od systemu operacyjnego. Ukryte pliki i katalogi, tzn. których nazwa zaczyna się od kropki, są pomijane.
+ */
+public class Manifest {
+
+    /**
+     * Klasa reprezentuje pojedynczy plik w spisie.
+     */
+    public static class Entry {
+
+        // Parametry przekazane w konstruktorze
+        private String path;
+        private long size;
+        private long modificationTime;
+        private byte[] hash;
+
+        /**
+         * Konstruuje wpis opisujący plik.
+         * @param path Ścieżka pliku względem katalogu.
+         * @param size Rozmiar pliku w bajtach.
+         * @param modificationTime Data modyfikacji pliku.
+         * @param hash Skrót zawartości pliku lub null, gdy nie jest znany.
+         */
+        public Entry(String path, long size, long modificationTime, byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.modificationTime = modificationTime;
+            this.hash = hash;
+        }
+
+        /**
+         * Metoda zwraca ścieżkę pliku.
+         * @return Ścieżka pliku względem katalogu.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Metoda zwraca rozmiar pliku.
+         * @return Rozmiar pliku w bajtach.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Metoda zwraca datę modyfikacji pliku.
+         * @return Data modyfikacji pliku.
+         */
+        public long getModificationTime() {
+            return modificationTime;
+        }
+
+        /**
+         * Metoda zwraca skrót zawartości pliku.
+         * @return Skrót zawartości pliku lub null, gdy nie jest znany.
+         */
+        public byte[] getHash() {
+            return hash;
+        }
+
+        /**
+         * Metoda sprawdza, czy oba wpisy opisują tę samą zawartość pliku. Wymaga, aby oba skróty były znane.
+         * @param other Wpis z którym porównywany jest ten wpis.
+         * @return true jeżeli skróty obu wpisów są znane i równe, false w przeciwnym wypadku.
+         */
+        public boolean hasSameContent(Entry other) {
+            return other != null && hash != null && other.hash != null && size == other.size && Arrays.equals(hash, other.hash);
+        }
+    }
+
+    // Wpisy spisu według ścieżek
+    private Map<String, Entry> entries = new LinkedHashMap<>();
+
+    /**
+     * Metoda tworzy spis wszystkich plików znajdujących się w katalogu i jego podkatalogach. Ukryte pliki i katalogi
+     * są pomijane. Atrybuty każdego pliku są odczytywane tylko raz, podczas przechodzenia drzewa katalogów.
+     * @param directory Katalog, którego spis jest tworzony.
+     * @return Spis plików katalogu.
+     */
+    public static Manifest scan(File directory) {
+        Manifest manifest = new Manifest();
+        Path root = directory.toPath();
+        if(!Files.isDirectory(root))
+            return manifest;
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+                    if(!dir.equals(root) && dir.getFileName().toString().startsWith("."))
+                        return FileVisitResult.SKIP_SUBTREE;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if(attributes.isRegularFile() && !file.getFileName().toString().startsWith("."))
+                        manifest.add(new Entry(relativePath(root, file), attributes.size(), attributes.lastModifiedTime().toMillis(), null));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // Plik mógł zostać usunięty w trakcie tworzenia spisu
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch(IOException e) {
+            // Spis zawiera pliki odwiedzone przed wystąpieniem błędu
+        }
+        return manifest;
+    }
+
+    /**
+     * Metoda wyznacza ścieżkę pliku względem katalogu w postaci używanej w spisach, z separatorem '/'.
+     * @param root Katalog względem którego wyznaczana jest ścieżka.
+     * @param file Plik znajdujący się w katalogu lub jego podkatalogu.
+     * @return Ścieżka pliku względem katalogu.
+     */
+    public static String relativePath(Path root, Path file) {
+        StringBuilder path = new StringBuilder();
+        for(Path name : root.relativize(file)) {
+            if(path.length() > 0)
+                path.append('/');
+            path.append(name.toString());
+        }
+        return path.toString();
+    }
+
+    /**
+     * Metoda sprawdza, czy ścieżka wskazuje ukryty plik lub plik w ukrytym katalogu, które nie są synchronizowane.
+     * @param relativePath Ścieżka pliku względem katalogu.
+     * @return true jeżeli któryś element ścieżki zaczyna się od kropki, false w przeciwnym wypadku.
+     */
+    public static boolean isHidden(String relativePath) {
+        for(String name : relativePath.split("/")) {
+            if(name.startsWith("."))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Metoda odczytuje spis zapisany za pomocą metody write.
+     * @param input Strumień z którego odczytywany jest spis.
+     * @return Odczytany spis.
+     * @throws IOException Wyjątek wyrzucany, gdy spis jest niepoprawny.
+     */
+    public static Manifest read(DataInputStream input) throws IOException {
+        Manifest manifest = new Manifest();
+        int count = input.readInt();
+        for(int i = 0; i < count; i++) {
+            String path = SafePath.check(input.readUTF());
+            long size = input.readLong();
+            long modificationTime = input.readLong();
+            manifest.add(new Entry(path, size, modificationTime, readHash(input)));
+        }
+        return manifest;
+    }
+
+    /**
+     * Metoda zapisuje spis do strumienia w zwartej postaci.
+     * @param output Strumień do którego zapisywany jest spis.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeInt(entries.size());
+        for(Entry entry : entries.values()) {
+            output.writeUTF(entry.path);
+            output.writeLong(entry.size);
+            output.writeLong(entry.modificationTime);
+            writeHash(output, entry.hash);
+        }
+    }
+
+    /**
+     * Metoda zapisuje opcjonalny skrót zawartości pliku, poprzedzony jego długością.
+     * @param output Strumień do którego zapisywany jest skrót.
+     * @param hash Skrót zawartości lub null, gdy nie jest znany.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public static void writeHash(DataOutputStream output, byte[] hash) throws IOException {
+        if(hash == null)
+            output.writeShort(0);
+        else {
+            output.writeShort(hash.length);
+            output.write(hash);
+        }
+    }
+
+    /**
+     * Metoda odczytuje skrót zapisany za pomocą metody writeHash.
+     * @param input Strumień z którego odczytywany jest skrót.
+     * @return Skrót zawartości lub null, gdy nie był znany.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt się nie powiedzie.
+     */
+    public static byte[] readHash(DataInputStream input) throws IOException {
+        int length = input.readUnsignedShort();
+        if(length == 0)
+            return null;
+        byte[] hash = new byte[length];
+        input.readFully(hash);
+        return hash;
+    }
+
+    /**
+     * Metoda dodaje wpis do spisu, zastępując wpis o tej samej ścieżce.
+     * @param entry Dodawany wpis.
+     */
+    public void add(Entry entry) {
+        entries.put(entry.path, entry);
+    }
+
+    /**
+     * Metoda zwraca wpis dotyczący pliku o podanej ścieżce.
+     * @param path Ścieżka pliku.
+     * @return Wpis lub null, gdy pliku nie ma w spisie.
+     */
+    public Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Metoda zwraca wszystkie wpisy spisu.
+     * @return Niemodyfikowalna kolekcja wpisów.
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Metoda zwraca liczbę plików w spisie.
+     * @return Liczba plików.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Metoda wyznacza pliki z tego spisu, których brakuje w drugim spisie lub które są w nim starsze. Pliki o tej
+     * samej zawartości nie są wybierane niezależnie od dat modyfikacji, jeżeli oba spisy zawierają skróty.
+     * @param other Spis z którym porównywany jest ten spis, zazwyczaj spis lokalnego katalogu.
+     * @return Lista ścieżek plików, które należy pobrać.
+     */
+    public List<String> newerThan(Manifest other) {
+        List<String> result = new ArrayList<>();
+        for(Entry entry : entries.values()) {
+            Entry local = other.get(entry.path);
+            if(entry.hasSameContent(local))
+                continue;
+            if(local == null || local.modificationTime < entry.modificationTime)
+                result.add(entry.path);
+        }
+        return result;
+    }
+}
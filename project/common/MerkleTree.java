@@ -0,0 +1,298 @@
+package project.common;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje drzewo skrótów (drzewo Merkle) opisujące zawartość katalogu, dzięki któremu klient i serwer mogą
+ * ustalić, którymi plikami różnią się ich katalogi, bez przesyłania spisu wszystkich plików. Pliki są przydzielane do
+ * liści drzewa na podstawie skrótu ścieżki, skrót liścia opisuje wszystkie jego pliki, a skrót węzła wewnętrznego
+ * skróty jego dzieci. Strony zaczynają od porównania korzeni i schodzą w głąb tylko tam, gdzie skróty się różnią,
+ * więc ilość przesyłanych danych zależy od liczby zmienionych plików, a nie od rozmiaru katalogu.
+ *
+ * Skróty węzłów są wyznaczane dopiero, gdy są potrzebne, a zmiana pliku unieważnia jedynie skróty na drodze od jego
+ * liścia do korzenia.
+ */
+public class MerkleTree {
+
+    /** Liczba dzieci każdego węzła wewnętrznego. */
+    public static final int FANOUT = 16;
+
+    // Liczba poziomów poniżej korzenia
+    private static final int DEPTH = 3;
+
+    // Numer pierwszego liścia, liczba liści oraz liczba wszystkich węzłów, węzły są numerowane poziomami od korzenia
+    private static final int FIRST_LEAF = (pow(FANOUT, DEPTH) - 1) / (FANOUT - 1);
+    private static final int LEAF_COUNT = pow(FANOUT, DEPTH);
+    private static final int NODE_COUNT = FIRST_LEAF + LEAF_COUNT;
+
+    /**
+     * Klasa reprezentuje zbiór węzłów drzewa wraz z ich skrótami, przesyłany drugiej stronie do porównania.
+     */
+    public static class Nodes {
+
+        // Numery węzłów oraz ich skróty
+        private List<Integer> ids = new ArrayList<>();
+        private List<byte[]> hashes = new ArrayList<>();
+
+        /**
+         * Metoda odczytuje węzły zapisane za pomocą metody write.
+         * @param input Strumień z którego odczytywane są węzły.
+         * @return Odczytane węzły.
+         * @throws IOException Wyjątek wyrzucany, gdy węzły są niepoprawne.
+         */
+        public static Nodes read(DataInputStream input) throws IOException {
+            Nodes nodes = new Nodes();
+            int count = input.readInt();
+            if(count < 0 || count > NODE_COUNT)
+                throw new IOException("Invalid node count");
+            for(int i = 0; i < count; i++) {
+                int id = input.readInt();
+                byte[] hash = Manifest.readHash(input);
+                if(id < 0 || id >= NODE_COUNT || hash == null)
+                    throw new IOException("Invalid node");
+                nodes.add(id, hash);
+            }
+            return nodes;
+        }
+
+        /**
+         * Metoda zapisuje węzły do strumienia.
+         * @param output Strumień do którego zapisywane są węzły.
+         * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+         */
+        public void write(DataOutputStream output) throws IOException {
+            output.writeInt(ids.size());
+            for(int i = 0; i < ids.size(); i++) {
+                output.writeInt(ids.get(i));
+                Manifest.writeHash(output, hashes.get(i));
+            }
+        }
+
+        /**
+         * Metoda informuje, czy zbiór nie zawiera żadnego węzła.
+         * @return true jeżeli zbiór jest pusty, false w przeciwnym wypadku.
+         */
+        public boolean isEmpty() {
+            return ids.isEmpty();
+        }
+
+        /**
+         * Metoda zwraca liczbę węzłów w zbiorze.
+         * @return Liczba węzłów.
+         */
+        public int size() {
+            return ids.size();
+        }
+
+        // Dodaje węzeł do zbioru
+        private void add(int id, byte[] hash) {
+            ids.add(id);
+            hashes.add(hash);
+        }
+    }
+
+    // Wpisy plików poszczególnych liści według ścieżek, null dla pustych liści
+    private List<TreeMap<String, Manifest.Entry>> leaves = new ArrayList<>(Collections.nCopies(LEAF_COUNT, (TreeMap<String, Manifest.Entry>) null));
+
+    // Skróty węzłów, null gdy skrót trzeba wyznaczyć ponownie
+    private byte[][] hashes = new byte[NODE_COUNT][];
+
+    /**
+     * Konstruuje drzewo pustego katalogu.
+     */
+    public MerkleTree() {
+    }
+
+    /**
+     * Konstruuje drzewo katalogu opisanego spisem.
+     * @param manifest Spis plików katalogu.
+     */
+    public MerkleTree(Manifest manifest) {
+        for(Manifest.Entry entry : manifest.getEntries())
+            put(entry);
+    }
+
+    /**
+     * Metoda dodaje lub zastępuje wpis pliku.
+     * @param entry Wpis pliku.
+     */
+    public synchronized void put(Manifest.Entry entry) {
+        int leaf = leafOf(entry.getPath());
+        TreeMap<String, Manifest.Entry> entries = leaves.get(leaf);
+        if(entries == null) {
+            entries = new TreeMap<>();
+            leaves.set(leaf, entries);
+        }
+        entries.put(entry.getPath(), entry);
+        invalidate(FIRST_LEAF + leaf);
+    }
+
+    /**
+     * Metoda usuwa wpis pliku.
+     * @param path Ścieżka pliku.
+     */
+    public synchronized void remove(String path) {
+        int leaf = leafOf(path);
+        TreeMap<String, Manifest.Entry> entries = leaves.get(leaf);
+        if(entries != null && entries.remove(path) != null) {
+            if(entries.isEmpty())
+                leaves.set(leaf, null);
+            invalidate(FIRST_LEAF + leaf);
+        }
+    }
+
+    /**
+     * Metoda zwraca korzeń drzewa, od którego porównania rozpoczyna się uzgadnianie katalogów.
+     * @return Zbiór zawierający korzeń drzewa.
+     */
+    public synchronized Nodes root() {
+        Nodes nodes = new Nodes();
+        nodes.add(0, hash(0));
+        return nodes;
+    }
+
+    /**
+     * Metoda porównuje węzły drugiej strony z węzłami tego drzewa. Dla każdego różniącego się węzła wewnętrznego
+     * zwracane są dzieci tego węzła w tym drzewie, które druga strona powinna porównać ze swoimi, a różniące się
+     * liście są dodawane do podanej listy, ponieważ ich pliki trzeba porównać bezpośrednio.
+     * @param remote Węzły drugiej strony.
+     * @param differing Lista do której dodawane są numery różniących się liści.
+     * @return Dzieci różniących się węzłów wewnętrznych, które należy przesłać drugiej stronie.
+     */
+    public synchronized Nodes compare(Nodes remote, List<Integer> differing) {
+        Nodes children = new Nodes();
+        for(int i = 0; i < remote.ids.size(); i++) {
+            int id = remote.ids.get(i);
+            if(Arrays.equals(hash(id), remote.hashes.get(i)))
+                continue;
+            if(id >= FIRST_LEAF)
+                differing.add(id);
+            else {
+                for(int child = id * FANOUT + 1; child <= id * FANOUT + FANOUT; child++)
+                    children.add(child, hash(child));
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Metoda zwraca spis plików należących do podanych liści.
+     * @param ids Numery liści.
+     * @return Spis plików liści.
+     */
+    public synchronized Manifest entries(Collection<Integer> ids) {
+        Manifest manifest = new Manifest();
+        for(int id : ids) {
+            TreeMap<String, Manifest.Entry> entries = id >= FIRST_LEAF && id < NODE_COUNT ? leaves.get(id - FIRST_LEAF) : null;
+            if(entries != null) {
+                for(Manifest.Entry entry : entries.values())
+                    manifest.add(entry);
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Metoda zapisuje numery liści do strumienia.
+     * @param output Strumień do którego zapisywane są numery.
+     * @param ids Numery liści.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public static void writeLeaves(DataOutputStream output, List<Integer> ids) throws IOException {
+        output.writeInt(ids.size());
+        for(int id : ids)
+            output.writeInt(id);
+    }
+
+    /**
+     * Metoda odczytuje numery liści zapisane za pomocą metody writeLeaves.
+     * @param input Strumień z którego odczytywane są numery.
+     * @return Numery liści.
+     * @throws IOException Wyjątek wyrzucany, gdy numery są niepoprawne.
+     */
+    public static List<Integer> readLeaves(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        if(count < 0 || count > LEAF_COUNT)
+            throw new IOException("Invalid leaf count");
+        List<Integer> ids = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            int id = input.readInt();
+            if(id < FIRST_LEAF || id >= NODE_COUNT)
+                throw new IOException("Invalid leaf");
+            ids.add(id);
+        }
+        return ids;
+    }
+
+    // Zwraca skrót węzła, wyznaczając go, gdy nie jest aktualny
+    private byte[] hash(int id) {
+        if(hashes[id] != null)
+            return hashes[id];
+        MessageDigest digest = HashCache.newDigest();
+        if(id >= FIRST_LEAF) {
+            // Skrót liścia opisuje ścieżki i zawartość plików, a gdy skrót zawartości nie jest znany, jej rozmiar
+            // i datę modyfikacji
+            TreeMap<String, Manifest.Entry> entries = leaves.get(id - FIRST_LEAF);
+            if(entries != null) {
+                for(Manifest.Entry entry : entries.values()) {
+                    digest.update(entry.getPath().getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(longBytes(entry.getSize()));
+                    if(entry.getHash() != null)
+                        digest.update(entry.getHash());
+                    else
+                        digest.update(longBytes(entry.getModificationTime()));
+                }
+            }
+        }
+        else {
+            for(int child = id * FANOUT + 1; child <= id * FANOUT + FANOUT; child++)
+                digest.update(hash(child));
+        }
+        hashes[id] = digest.digest();
+        return hashes[id];
+    }
+
+    // Unieważnia skróty węzła i wszystkich jego przodków
+    private void invalidate(int id) {
+        while(true) {
+            hashes[id] = null;
+            if(id == 0)
+                return;
+            id = (id - 1) / FANOUT;
+        }
+    }
+
+    // Wyznacza liść, do którego należy plik o podanej ścieżce
+    private static int leafOf(String path) {
+        // Wymieszanie bitów skrótu ścieżki, który jest taki sam na każdej maszynie wirtualnej
+        int hash = path.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & 0x7fffffff) % LEAF_COUNT;
+    }
+
+    // Zwraca bajty liczby w kolejności od najbardziej znaczącego
+    private static byte[] longBytes(long value) {
+        byte[] bytes = new byte[8];
+        for(int i = 7; i >= 0; i--) {
+            bytes[i] = (byte) value;
+            value >>>= 8;
+        }
+        return bytes;
+    }
+
+    // Podnosi liczbę do potęgi
+    private static int pow(int base, int exponent) {
+        int result = 1;
+        for(int i = 0; i < exponent; i++)
+            result *= base;
+        return result;
+    }
+}
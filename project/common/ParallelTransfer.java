@@ -0,0 +1,201 @@
+package project.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Klasa wysyła duże pliki równolegle kilkoma połączeniami. Plik jest dzielony na ciągłe fragmenty, z których każdy
+ * jest wysyłany komendą SEND_RANGE innym połączeniem i w osobnym wątku, a odbiorca zapisuje je na ich pozycjach
+ * w pliku częściowym. Dzięki temu jeden plik nie jest ograniczony przepustowością pojedynczego połączenia TCP.
+ *
+ * Liczba fragmentów zależy od rozmiaru pliku, ponieważ zbyt małe fragmenty nie zdążą rozpędzić połączenia, oraz od
+ * przepustowości zmierzonej podczas wcześniejszych transferów: wybierana jest liczba połączeń, która dotychczas dawała
+ * najlepszą przepustowość, a co kilka transferów sprawdzana jest liczba sąsiednia, aby wykryć zmianę warunków w sieci.
+ * Obiekt powinien być wspólny dla wszystkich transferów przez to samo łącze.
+ */
+public class ParallelTransfer {
+
+    /** Maksymalna liczba połączeń, którymi jednocześnie przesyłany jest jeden plik. */
+    public static final int MAX_STREAMS = 4;
+
+    /** Minimalny rozmiar fragmentu w bajtach, mniejsze pliki są przesyłane jednym połączeniem. */
+    public static final long MIN_RANGE_SIZE = 4 * 1024 * 1024;
+
+    // Liczba transferów, co którą sprawdzana jest sąsiednia liczba połączeń
+    private static final int PROBE_INTERVAL = 4;
+
+    // Waga najnowszego pomiaru w średniej przepustowości
+    private static final double WEIGHT = 0.5;
+
+    // Kolejne identyfikatory transferów
+    private static final AtomicLong transfers = new AtomicLong(System.nanoTime());
+
+    // Średnia przepustowość w bajtach na nanosekundę według liczby połączeń, 0 gdy nie była mierzona
+    private double[] throughput = new double[MAX_STREAMS + 1];
+
+    // Liczba połączeń wybrana dla kolejnego transferu
+    private int preferred = MAX_STREAMS;
+
+    // Liczba zmierzonych transferów oraz kierunek kolejnego sprawdzenia
+    private int measured;
+    private int probe = -1;
+
+    /**
+     * Metoda informuje, czy opłaca się przesłać podaną liczbę bajtów równolegle.
+     * @param remaining Liczba bajtów pliku do przesłania.
+     * @param streams Liczba dostępnych połączeń.
+     * @return true jeżeli plik powinien zostać przesłany kilkoma połączeniami, false w przeciwnym wypadku.
+     */
+    public boolean isWorthwhile(long remaining, int streams) {
+        return streams > 1 && remaining >= 2 * MIN_RANGE_SIZE;
+    }
+
+    /**
+     * Metoda wysyła plik, lub jego część od podanej pozycji, dzieląc go na fragmenty wysyłane równolegle podanymi
+     * połączeniami. Metoda kończy działanie po wysłaniu wszystkich fragmentów.
+     * @param connections Połączenia, którymi mogą być wysyłane fragmenty.
+     * @param executor Pula wątków w której wysyłane są fragmenty.
+     * @param relativePath Ścieżka do pliku po stronie odbiorcy.
+     * @param modificationTime Data modyfikacji pliku.
+     * @param size Rozmiar pliku.
+     * @param body Wysyłany plik.
+     * @param offset Pozycja od której wysyłany jest plik.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie któregoś z fragmentów się nie powiedzie.
+     */
+    public void send(List<? extends Connection> connections, ExecutorService executor, String relativePath,
+                     long modificationTime, long size, File body, long offset) throws IOException {
+        send(connections, executor, relativePath, modificationTime, size, FileSlice.of(body, size), offset);
+    }
+
+    /**
+     * Metoda wysyła zawartość pliku opisaną ciągiem zakresów plików, lub jej część od podanej pozycji, dzieląc ją na
+     * fragmenty wysyłane równolegle podanymi połączeniami. Metoda kończy działanie po wysłaniu wszystkich fragmentów.
+     * @param connections Połączenia, którymi mogą być wysyłane fragmenty.
+     * @param executor Pula wątków w której wysyłane są fragmenty.
+     * @param relativePath Ścieżka do pliku po stronie odbiorcy.
+     * @param modificationTime Data modyfikacji pliku.
+     * @param size Rozmiar pliku.
+     * @param body Ciąg zakresów opisujący zawartość pliku.
+     * @param offset Pozycja od której wysyłany jest plik.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie któregoś z fragmentów się nie powiedzie.
+     */
+    public void send(List<? extends Connection> connections, ExecutorService executor, String relativePath,
+                     long modificationTime, long size, List<FileSlice> body, long offset) throws IOException {
+        long transfer = nextTransfer();
+        long remaining = size - offset;
+        int degree = degree(remaining, connections.size());
+
+        // Podział pozostałej części pliku na ciągłe fragmenty o zbliżonej długości
+        long[] starts = new long[degree + 1];
+        for(int i = 0; i <= degree; i++)
+            starts[i] = offset + remaining * i / degree;
+
+        boolean blocking = true;
+        List<Future<Void>> futures = new ArrayList<>();
+        long begin = System.nanoTime();
+        for(int i = 1; i <= degree; i++) {
+            Connection connection = connections.get(i - 1);
+            long start = starts[i - 1];
+            long length = starts[i] - start;
+            blocking &= connection.isBlocking();
+
+            Callable<Void> task = () -> {
+                connection.send(Command.SEND_RANGE, stream -> {
+                    stream.writeUTF(relativePath);
+                    stream.writeLong(modificationTime);
+                    stream.writeLong(size);
+                    stream.writeLong(offset);
+                    stream.writeLong(transfer);
+                    stream.writeLong(start);
+                }, FileSlice.range(body, start, length));
+                return null;
+            };
+
+            // Ostatni fragment jest wysyłany w bieżącym wątku
+            if(i < degree)
+                futures.add(executor.submit(task));
+            else
+                futures.add(run(task));
+        }
+
+        // Oczekiwanie na wysłanie wszystkich fragmentów
+        IOException error = null;
+        for(Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch(ExecutionException e) {
+                if(error == null)
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if(error == null)
+                    error = new InterruptedIOException();
+            }
+        }
+        if(error != null)
+            throw error;
+
+        // Przepustowość można zmierzyć tylko wtedy, gdy wysyłanie czeka na przekazanie danych do gniazda
+        if(blocking)
+            record(degree, remaining, System.nanoTime() - begin);
+    }
+
+    /**
+     * Metoda nadaje identyfikator kolejnemu transferowi, którego fragmenty są wysyłane komendą SEND_RANGE.
+     * @return Identyfikator transferu.
+     */
+    public static long nextTransfer() {
+        return transfers.incrementAndGet();
+    }
+
+    /**
+     * Metoda wyznacza liczbę połączeń, którymi zostanie przesłana podana liczba bajtów.
+     * @param remaining Liczba bajtów pliku do przesłania.
+     * @param streams Liczba dostępnych połączeń.
+     * @return Liczba fragmentów, na które zostanie podzielony plik.
+     */
+    public synchronized int degree(long remaining, int streams) {
+        long bySize = Math.max(1, remaining / MIN_RANGE_SIZE);
+        return (int) Math.max(1, Math.min(Math.min(preferred, streams), bySize));
+    }
+
+    /**
+     * Metoda uwzględnia przepustowość zmierzoną podczas transferu i wybiera liczbę połączeń dla kolejnych transferów.
+     * @param degree Liczba połączeń, którymi przesłano plik.
+     * @param bytes Liczba przesłanych bajtów.
+     * @param nanos Czas przesyłania w nanosekundach.
+     */
+    public synchronized void record(int degree, long bytes, long nanos) {
+        if(degree < 1 || degree > MAX_STREAMS || nanos <= 0)
+            return;
+        double rate = (double) bytes / nanos;
+        throughput[degree] = throughput[degree] == 0 ? rate : throughput[degree] * (1 - WEIGHT) + rate * WEIGHT;
+
+        // Wybór liczby połączeń o najlepszej dotychczasowej przepustowości
+        int best = degree;
+        for(int i = 1; i <= MAX_STREAMS; i++) {
+            if(throughput[i] > throughput[best])
+                best = i;
+        }
+        preferred = best;
+
+        // Co kilka transferów sprawdzana jest liczba sąsiednia, na przemian mniejsza i większa
+        if(++measured % PROBE_INTERVAL == 0) {
+            int neighbour = best + probe;
+            if(neighbour < 1 || neighbour > MAX_STREAMS)
+                neighbour = best - probe;
+            preferred = neighbour;
+            probe = -probe;
+        }
+    }
+
+    // Wykonuje zadanie wysyłania w bieżącym wątku
+    private static Future<Void> run(Callable<Void> task) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try { future.complete(task.call()); }
+        catch(Exception e) { future.completeExceptionally(e); }
+        return future;
+    }
+}
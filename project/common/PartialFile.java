@@ -0,0 +1,223 @@
+package project.common;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa reprezentuje plik odbierany w częściach, którego dane pozostają na dysku po przerwaniu połączenia, aby można
+ * było wznowić jego odbieranie. Obok danych zapisywany jest mały plik z wersją odbieranego pliku (datą modyfikacji
+ * i rozmiarem), dzięki czemu dane można później dokończyć tylko tą samą wersją pliku. Plik z wersją jest ukryty,
+ * aby nie kolidował z danymi innych plików.
+ *
+ * Ten sam plik częściowy może być w danej chwili odbierany tylko przez jeden transfer. Transfer może jednak zapisywać
+ * dane w wielu fragmentach jednocześnie, np. gdy plik jest przesyłany równolegle kilkoma połączeniami.
+ */
+public class PartialFile {
+
+    // Pliki częściowe, które są aktualnie odbierane
+    private static final Set<String> receiving = ConcurrentHashMap.newKeySet();
+
+    // Parametry przekazane w konstruktorze
+    private File data;
+    private boolean temporary;
+
+    // Plik z wersją odbieranego pliku
+    private File info;
+
+    // Wersja odbieranego pliku, znana po rozpoczęciu odbierania
+    private long modificationTime;
+    private long size;
+
+    // Flaga informująca, że ten obiekt odbiera plik częściowy
+    private boolean acquired;
+
+    /**
+     * Konstruuje obiekt pliku częściowego, który zostaje zachowany po przerwaniu odbierania.
+     * @param data Plik do którego zapisywane są dane.
+     */
+    public PartialFile(File data) {
+        this(data, false);
+    }
+
+    /**
+     * Konstruuje obiekt pliku częściowego.
+     * @param data Plik do którego zapisywane są dane.
+     * @param temporary true jeżeli dane mają zostać usunięte po przerwaniu odbierania, false w przeciwnym wypadku.
+     */
+    public PartialFile(File data, boolean temporary) {
+        this.data = data;
+        this.temporary = temporary;
+        this.info = new File(data.getParentFile(), "." + data.getName() + ".info");
+    }
+
+    /**
+     * Metoda zwraca plik do którego zapisywane są dane.
+     * @return Plik z danymi.
+     */
+    public File getFile() {
+        return data;
+    }
+
+    /**
+     * Metoda zwraca informację o zachowanych danych, którą należy dołączyć do żądania przesłania pliku.
+     * @return Informacja o częściowo odebranych danych lub informacja o braku danych.
+     */
+    public Resume getResume() {
+        if(temporary || receiving.contains(data.getPath()))
+            return Resume.none();
+        try {
+            long[] version = readInfo();
+            long offset = data.length();
+            if(version == null || offset <= 0 || offset > version[1])
+                return Resume.none();
+            return new Resume(offset, version[0], version[1], Resume.digestTail(data, offset));
+        } catch(IOException e) {
+            return Resume.none();
+        }
+    }
+
+    /**
+     * Metoda rozpoczyna odbieranie danych. Gdy pozycja jest równa 0 zachowane dane są odrzucane, w przeciwnym wypadku
+     * dane są dopisywane na końcu, o ile zachowane dane dotyczą tej samej wersji pliku i mają podaną długość.
+     * @param modificationTime Data modyfikacji odbieranej wersji pliku.
+     * @param size Rozmiar odbieranej wersji pliku.
+     * @param offset Pozycja od której nadawca wysyła dane.
+     * @return Kanał do którego należy zapisać dane, ustawiony na podanej pozycji.
+     * @throws IOException Wyjątek wyrzucany, gdy plik jest już odbierany, nie można wznowić odbierania od podanej
+     *                     pozycji lub nie można otworzyć pliku.
+     */
+    public FileChannel open(long modificationTime, long size, long offset) throws IOException {
+        if(!receiving.add(data.getPath()))
+            throw new IOException("File " + data + " is already being received");
+        acquired = true;
+        this.modificationTime = modificationTime;
+        this.size = size;
+        try {
+            if(offset == 0) {
+                data.getParentFile().mkdirs();
+                writeInfo();
+            }
+            else {
+                long[] version = readInfo();
+                if(version == null || version[0] != modificationTime || version[1] != size || data.length() != offset)
+                    throw new IOException("Unable to resume " + data + " at " + offset);
+            }
+            return open(offset);
+        } catch(IOException e) {
+            release();
+            throw e;
+        }
+    }
+
+    /**
+     * Metoda rozpoczyna odbieranie danych, które będą zapisywane w wielu fragmentach jednocześnie, w dowolnej
+     * kolejności. Plik od razu otrzymuje docelowy rozmiar, aby fragmenty można było zapisywać za bieżącym końcem
+     * pliku. Do czasu wywołania metody keep z długością ciągłego początku danych plik nie nadaje się
+     * do wznowienia, ponieważ może zawierać luki.
+     * @param modificationTime Data modyfikacji odbieranej wersji pliku.
+     * @param size Rozmiar odbieranej wersji pliku.
+     * @param offset Pozycja od której nadawca wysyła dane.
+     * @return Kanał do którego należy zapisywać fragmenty na ich pozycjach.
+     * @throws IOException Wyjątek wyrzucany, gdy plik jest już odbierany, nie można wznowić odbierania od podanej
+     *                     pozycji lub nie można otworzyć pliku.
+     */
+    public FileChannel openScattered(long modificationTime, long size, long offset) throws IOException {
+        FileChannel channel = open(modificationTime, size, offset);
+        info.delete();
+        try(RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            file.setLength(size);
+        } catch(IOException e) {
+            channel.close();
+            discard();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Metoda kończy przerwane odbieranie. Dane są zachowywane do wznowienia, chyba że plik jest tymczasowy.
+     */
+    public void keep() {
+        if(temporary)
+            discard();
+        else
+            release();
+    }
+
+    /**
+     * Metoda kończy przerwane odbieranie danych zapisywanych we fragmentach. Zachowywany jest jedynie ciągły początek
+     * danych o podanej długości, chyba że plik jest tymczasowy.
+     * @param length Liczba bajtów od początku pliku, które zostały odebrane bez luk.
+     */
+    public void keep(long length) {
+        if(temporary || length <= 0) {
+            discard();
+            return;
+        }
+        try(RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+            file.setLength(length);
+            writeInfo();
+            release();
+        } catch(IOException e) {
+            discard();
+        }
+    }
+
+    /**
+     * Metoda kończy pomyślne odbieranie, po tym jak dane zostały przeniesione na miejsce docelowe.
+     */
+    public void complete() {
+        info.delete();
+        release();
+    }
+
+    /**
+     * Metoda usuwa dane oraz informację o wersji pliku.
+     */
+    public void discard() {
+        data.delete();
+        info.delete();
+        release();
+    }
+
+    // Zwalnia plik częściowy, aby mógł zostać odebrany przez kolejny transfer
+    private void release() {
+        if(acquired)
+            receiving.remove(data.getPath());
+        acquired = false;
+    }
+
+    // Otwiera plik z danymi do zapisu, porzucając dane za podaną pozycją
+    private FileChannel open(long offset) throws IOException {
+        FileChannel channel = new RandomAccessFile(data, "rw").getChannel();
+        try {
+            channel.truncate(offset);
+            channel.position(offset);
+            return channel;
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Zapisuje wersję odbieranego pliku
+    private void writeInfo() throws IOException {
+        try(DataOutputStream output = new DataOutputStream(new FileOutputStream(info))) {
+            output.writeLong(modificationTime);
+            output.writeLong(size);
+        }
+    }
+
+    // Odczytuje wersję odbieranego pliku jako datę modyfikacji i rozmiar, null jeżeli nie jest znana
+    private long[] readInfo() {
+        if(!info.isFile())
+            return null;
+        try(DataInputStream input = new DataInputStream(new FileInputStream(info))) {
+            return new long[] { input.readLong(), input.readLong() };
+        } catch(IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package project.common;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa śledzi żądania wysłane drugiej stronie połączenia, np. żądania przesłania pliku lub ogłoszenia o pliku,
+ * i udostępnia ich wyniki jako obiekty CompletableFuture. Każde wysłane żądanie otrzymuje identyfikator przesyłany
+ * w nagłówku ramki, który druga strona umieszcza w odpowiedzi. Żądanie może też zostać zakończone na podstawie komendy
+ * i ścieżki pliku, np. gdy żądany plik zostanie odebrany.
+ *
+ * Równoczesne żądania z tą samą komendą dotyczące tej samej ścieżki są łączone w jedno żądanie, a liczba żądań
+ * oczekujących na odpowiedź jest ograniczona. Żądania ponad limit czekają w kolejce i są wysyłane po zakończeniu
+ * wcześniejszych. Wyniki żądań są ustalane poza blokadą obiektu, więc akcje zależne od wyniku mogą wysyłać kolejne
+ * żądania.
+ *
+ * Żądanie, które nie zostało zakończone w określonym czasie od wysłania, np. gdy druga strona pominęła odpowiedź,
+ * jest kończone wyjątkowo, a jego miejsce w limicie jest zwalniane, dzięki czemu kolejne żądanie o ten sam plik
+ * zostanie wysłane ponownie.
+ */
+public class PendingRequests {
+
+    /** Domyślna największa liczba żądań oczekujących na odpowiedź. */
+    public static final int DEFAULT_LIMIT = 256;
+
+    /** Domyślny czas oczekiwania na zakończenie wysłanego żądania w milisekundach. */
+    public static final long DEFAULT_TIMEOUT = 120000;
+
+    // Największa liczba żądań oczekujących na odpowiedź w nowo tworzonych obiektach
+    private static volatile int defaultLimit = DEFAULT_LIMIT;
+
+    // Aktualny czas oczekiwania na zakończenie żądania
+    private static volatile long timeout = DEFAULT_TIMEOUT;
+
+    // Wspólny wątek odliczający czas oczekiwania żądań wszystkich obiektów
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Interfejs obiektu wysyłającego żądanie o nadanym identyfikatorze.
+     */
+    public interface Sender {
+        /**
+         * Metoda wysyła żądanie, np. umieszczając je w kolejce wysyłania.
+         * @param requestId Identyfikator żądania, który należy umieścić w nagłówku ramki.
+         */
+        void send(int requestId);
+    }
+
+    // Żądanie wraz z jego wynikiem
+    private static class Request {
+        String key;
+        Sender sender;
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        int id = FrameHeader.NO_REQUEST;
+        long sent;
+        ScheduledFuture<?> expiry;
+    }
+
+    // Największa liczba żądań oczekujących na odpowiedź
+    private int limit;
+
+    // Żądania według komend i ścieżek oraz wysłane żądania według identyfikatorów, dostęp synchronizowany na obiekcie
+    private Map<String, Request> requests = new HashMap<>();
+    private Map<Integer, Request> outstanding = new HashMap<>();
+    private Deque<Request> waiting = new ArrayDeque<>();
+    private int lastId;
+    private boolean closed;
+
+    // Statystyki zakończonych żądań, dostęp synchronizowany na obiekcie
+    private long completed;
+    private long totalLatency;
+
+    /**
+     * Konstruuje obiekt z domyślnym limitem żądań oczekujących na odpowiedź.
+     */
+    public PendingRequests() {
+        this(defaultLimit);
+    }
+
+    /**
+     * Konstruuje obiekt z podanym limitem żądań oczekujących na odpowiedź.
+     * @param limit Największa liczba żądań oczekujących na odpowiedź.
+     */
+    public PendingRequests(int limit) {
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Metoda zwraca największą liczbę żądań oczekujących na odpowiedź w nowo tworzonych obiektach.
+     * @return Największa liczba żądań.
+     */
+    public static int getDefaultLimit() {
+        return defaultLimit;
+    }
+
+    /**
+     * Metoda zmienia największą liczbę żądań oczekujących na odpowiedź w nowo tworzonych obiektach.
+     * @param limit Największa liczba żądań.
+     */
+    public static void setDefaultLimit(int limit) {
+        defaultLimit = Math.max(1, limit);
+    }
+
+    /**
+     * Metoda zwraca czas, po którym niezakończone żądanie jest kończone wyjątkowo.
+     * @return Czas oczekiwania w milisekundach.
+     */
+    public static long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Metoda zmienia czas, po którym niezakończone żądanie jest kończone wyjątkowo. Zmiana dotyczy żądań wysyłanych
+     * po jej dokonaniu.
+     * @param period Czas oczekiwania w milisekundach.
+     */
+    public static void setTimeout(long period) {
+        if(period <= 0)
+            throw new IllegalArgumentException("Timeout must be positive");
+        timeout = period;
+    }
+
+    /**
+     * Metoda zmienia największą liczbę żądań oczekujących na odpowiedź. Po zwiększeniu limitu wysyłane są żądania
+     * czekające w kolejce.
+     * @param limit Największa liczba żądań.
+     */
+    public void setLimit(int limit) {
+        List<Request> started;
+        synchronized(this) {
+            this.limit = Math.max(1, limit);
+            started = startWaiting();
+        }
+        send(started);
+    }
+
+    /**
+     * Metoda zgłasza żądanie. Jeżeli żądanie z tą samą komendą dotyczące tej samej ścieżki nie zostało jeszcze
+     * zakończone, zwracany jest jego wynik, a nowe żądanie nie jest wysyłane.
+     * @param command Komenda żądania.
+     * @param relativePath Ścieżka do pliku, którego dotyczy żądanie.
+     * @param sender Obiekt wysyłający żądanie, wywoływany od razu lub gdy zwolni się miejsce.
+     * @return Wynik żądania, kończony wyjątkowo, gdy połączenie zostanie zamknięte przed otrzymaniem odpowiedzi.
+     */
+    public CompletableFuture<Boolean> submit(Command command, String relativePath, Sender sender) {
+        Request request;
+        synchronized(this) {
+            String key = key(command, relativePath);
+            Request existing = requests.get(key);
+            if(existing != null)
+                return existing.future;
+
+            request = new Request();
+            request.key = key;
+            request.sender = sender;
+            if(closed) {
+                request.future.completeExceptionally(new IOException("Connection is closed"));
+                return request.future;
+            }
+            requests.put(key, request);
+
+            // Żądanie czeka, aż zakończy się jedno z wysłanych wcześniej
+            if(outstanding.size() >= limit) {
+                waiting.add(request);
+                return request.future;
+            }
+            start(request);
+        }
+        request.sender.send(request.id);
+        return request.future;
+    }
+
+    /**
+     * Metoda kończy żądanie, na które druga strona przesłała odpowiedź.
+     * @param requestId Identyfikator żądania z nagłówka odpowiedzi.
+     * @param result Wynik żądania.
+     * @return true jeżeli żądanie zostało zakończone, false jeżeli nie oczekiwało na odpowiedź.
+     */
+    public boolean complete(int requestId, boolean result) {
+        Request request;
+        synchronized(this) {
+            request = outstanding.get(requestId);
+        }
+        return request != null && finish(request, result, null);
+    }
+
+    /**
+     * Metoda kończy żądanie z podaną komendą dotyczące podanej ścieżki, np. gdy żądany plik został odebrany.
+     * @param command Komenda żądania.
+     * @param relativePath Ścieżka do pliku, którego dotyczy żądanie.
+     * @param result Wynik żądania.
+     * @return true jeżeli żądanie zostało zakończone, false jeżeli takie żądanie nie zostało zgłoszone.
+     */
+    public boolean complete(Command command, String relativePath, boolean result) {
+        Request request;
+        synchronized(this) {
+            request = requests.get(key(command, relativePath));
+        }
+        return request != null && finish(request, result, null);
+    }
+
+    /**
+     * Metoda kończy wyjątkowo żądanie z podaną komendą dotyczące podanej ścieżki, np. gdy odebranie żądanego pliku
+     * się nie powiodło. Kolejne żądanie dotyczące tej ścieżki zostanie wysłane ponownie.
+     * @param command Komenda żądania.
+     * @param relativePath Ścieżka do pliku, którego dotyczy żądanie.
+     * @param cause Przyczyna niepowodzenia.
+     * @return true jeżeli żądanie zostało zakończone, false jeżeli takie żądanie nie zostało zgłoszone.
+     */
+    public boolean fail(Command command, String relativePath, Throwable cause) {
+        Request request;
+        synchronized(this) {
+            request = requests.get(key(command, relativePath));
+        }
+        return request != null && finish(request, null, cause);
+    }
+
+    /**
+     * Metoda kończy wyjątkowo wszystkie niezakończone żądania, np. po zamknięciu połączenia. Kolejne żądania są
+     * kończone wyjątkowo od razu.
+     */
+    public void close() {
+        List<Request> pending;
+        synchronized(this) {
+            closed = true;
+            pending = new ArrayList<>(requests.values());
+            for(Request request : pending) {
+                if(request.expiry != null)
+                    request.expiry.cancel(false);
+            }
+            requests.clear();
+            outstanding.clear();
+            waiting.clear();
+        }
+        for(Request request : pending)
+            request.future.completeExceptionally(new IOException("Connection is closed"));
+    }
+
+    /**
+     * Metoda zwraca liczbę żądań oczekujących na odpowiedź.
+     * @return Liczba wysłanych i niezakończonych żądań.
+     */
+    public synchronized int getOutstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Metoda zwraca liczbę żądań czekających na wysłanie z powodu limitu.
+     * @return Liczba żądań w kolejce.
+     */
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    /**
+     * Metoda zwraca średni czas od wysłania żądania do jego zakończenia.
+     * @return Średni czas zakończonych żądań w milisekundach lub 0, gdy żadne żądanie nie zostało zakończone.
+     */
+    public synchronized double getAverageLatency() {
+        return completed == 0 ? 0 : totalLatency / 1e6 / completed;
+    }
+
+    // Usuwa żądanie, ustala jego wynik lub kończy je wyjątkowo i wysyła żądania, które zmieściły się w limicie
+    private boolean finish(Request request, Boolean result, Throwable failure) {
+        List<Request> started;
+        synchronized(this) {
+            if(!requests.remove(request.key, request))
+                return false;
+            if(request.id == FrameHeader.NO_REQUEST) {
+                // Żądanie nie zostało jeszcze wysłane, np. plik został odebrany z innego powodu
+                waiting.remove(request);
+            } else {
+                outstanding.remove(request.id);
+                request.expiry.cancel(false);
+                completed++;
+                totalLatency += System.nanoTime() - request.sent;
+            }
+            started = startWaiting();
+        }
+        send(started);
+        if(failure != null)
+            request.future.completeExceptionally(failure);
+        else
+            request.future.complete(result);
+        return true;
+    }
+
+    // Nadaje żądaniu identyfikator i oznacza je jako wysłane, wywoływana z blokadą obiektu
+    private void start(Request request) {
+        do {
+            lastId++;
+        } while(lastId == FrameHeader.NO_REQUEST || outstanding.containsKey(lastId));
+        request.id = lastId;
+        request.sent = System.nanoTime();
+        outstanding.put(request.id, request);
+
+        // Żądanie bez odpowiedzi nie może zajmować miejsca w limicie bez końca
+        TimeoutException expired = new TimeoutException("Request " + request.key + " timed out");
+        request.expiry = timer.schedule(() -> finish(request, null, expired), timeout, TimeUnit.MILLISECONDS);
+    }
+
+    // Oznacza jako wysłane żądania czekające w kolejce, dla których jest miejsce, wywoływana z blokadą obiektu
+    private List<Request> startWaiting() {
+        List<Request> started = new ArrayList<>();
+        while(outstanding.size() < limit && !waiting.isEmpty()) {
+            Request request = waiting.poll();
+            start(request);
+            started.add(request);
+        }
+        return started;
+    }
+
+    // Wysyła żądania poza blokadą obiektu
+    private static void send(List<Request> started) {
+        for(Request request : started)
+            request.sender.send(request.id);
+    }
+
+    // Zwraca klucz żądania łączący komendę ze ścieżką
+    private static String key(Command command, String relativePath) {
+        return command.asInt() + ":" + relativePath;
+    }
+}
@@ -0,0 +1,170 @@
+package project.common;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa porządkuje zadania wysyłania według priorytetów: najpierw komunikaty sterujące (np. żądania usunięcia,
+ * powiadomienia, spisy plików), potem małe pliki, a na końcu duże pliki. Dzięki temu przesyłanie dużego pliku nie
+ * opóźnia wielu drobnych zmian zgłoszonych po nim.
+ *
+ * Każdy priorytet ma okres opóźnienia, a zadania są wykonywane w kolejności terminów, czyli chwili zgłoszenia
+ * powiększonej o opóźnienie priorytetu. Zadanie może więc zostać wyprzedzone tylko przez zadania zgłoszone przed
+ * upływem jego opóźnienia, co zapobiega zagłodzeniu dużych plików. Zadania z tym samym kluczem (zazwyczaj ścieżką
+ * pliku) nigdy się nie wyprzedzają, np. żądanie usunięcia pliku nie wyprzedzi wysyłania tego pliku.
+ *
+ * Kolejka nie jest bezpieczna wielowątkowo, dostęp do niej musi synchronizować właściciel.
+ */
+public class PriorityTaskQueue {
+
+    /** Domyślny rozmiar pliku w bajtach, powyżej którego plik jest wysyłany z priorytetem dużych plików. */
+    public static final long DEFAULT_SMALL_SIZE = 1024 * 1024;
+
+    /** Domyślny okres opóźnienia dużych plików w milisekundach, po którym nie mogą już zostać wyprzedzone. */
+    public static final long DEFAULT_AGING_PERIOD = 5000;
+
+    // Aktualne progi klasyfikacji i okres opóźnienia dużych plików
+    private static volatile long smallSize = DEFAULT_SMALL_SIZE;
+    private static volatile long agingPeriod = DEFAULT_AGING_PERIOD;
+
+    /**
+     * Typ wyliczeniowy zawierający priorytety zadań wysyłania, od najwyższego.
+     */
+    public enum Priority {
+        /** Komunikaty bez zawartości plików. */
+        CONTROL,
+        /** Pliki nie większe niż próg małych plików. */
+        SMALL,
+        /** Pliki większe niż próg małych plików. */
+        LARGE;
+
+        /**
+         * Metoda zwraca priorytet wysyłania pliku o podanym rozmiarze.
+         * @param size Rozmiar pliku w bajtach.
+         * @return Priorytet małych lub dużych plików.
+         */
+        public static Priority forSize(long size) {
+            return size > smallSize ? LARGE : SMALL;
+        }
+
+        // Zwraca okres opóźnienia priorytetu w nanosekundach
+        private long delay() {
+            switch(this) {
+                case CONTROL: return 0;
+                case SMALL: return TimeUnit.MILLISECONDS.toNanos(agingPeriod) / 20;
+                default: return TimeUnit.MILLISECONDS.toNanos(agingPeriod);
+            }
+        }
+    }
+
+    // Zadanie oczekujące w kolejce
+    private static class Entry {
+        Runnable task;
+        String key;
+        long deadline;
+        long sequence;
+    }
+
+    // Zadania według terminów, a przy równych terminach według kolejności zgłoszenia
+    private PriorityQueue<Entry> entries = new PriorityQueue<>((a, b) -> a.deadline != b.deadline ?
+            Long.compare(a.deadline, b.deadline) : Long.compare(a.sequence, b.sequence));
+
+    // Ostatnio zgłoszone zadania oczekujące w kolejce według kluczy
+    private Map<String, Entry> lastByKey = new HashMap<>();
+
+    // Numer kolejnego zgłoszenia
+    private long sequence;
+
+    /**
+     * Metoda zwraca rozmiar pliku, powyżej którego plik jest wysyłany z priorytetem dużych plików.
+     * @return Próg małych plików w bajtach.
+     */
+    public static long getSmallSize() {
+        return smallSize;
+    }
+
+    /**
+     * Metoda zmienia rozmiar pliku, powyżej którego plik jest wysyłany z priorytetem dużych plików.
+     * @param size Próg małych plików w bajtach.
+     */
+    public static void setSmallSize(long size) {
+        smallSize = size;
+    }
+
+    /**
+     * Metoda zwraca okres opóźnienia dużych plików. Małe pliki mają opóźnienie dwadzieścia razy krótsze.
+     * @return Okres opóźnienia w milisekundach.
+     */
+    public static long getAgingPeriod() {
+        return agingPeriod;
+    }
+
+    /**
+     * Metoda zmienia okres opóźnienia dużych plików. Zerowy okres oznacza wykonywanie zadań w kolejności zgłoszenia.
+     * @param period Okres opóźnienia w milisekundach.
+     */
+    public static void setAgingPeriod(long period) {
+        if(period < 0)
+            throw new IllegalArgumentException("Aging period must not be negative");
+        agingPeriod = period;
+    }
+
+    /**
+     * Metoda dodaje zadanie do kolejki.
+     * @param key Klucz zadania, zazwyczaj ścieżka pliku, lub null gdy zadanie nie dotyczy pliku.
+     * @param priority Priorytet zadania.
+     * @param task Zadanie wysyłania.
+     */
+    public void add(String key, Priority priority, Runnable task) {
+        Entry entry = new Entry();
+        entry.task = task;
+        entry.key = key;
+        entry.deadline = System.nanoTime() + priority.delay();
+        entry.sequence = sequence++;
+
+        // Zadanie nie może wyprzedzić wcześniejszego zadania z tym samym kluczem
+        if(key != null) {
+            Entry last = lastByKey.put(key, entry);
+            if(last != null && last.deadline - entry.deadline > 0)
+                entry.deadline = last.deadline;
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Metoda usuwa z kolejki i zwraca zadanie o najwcześniejszym terminie.
+     * @return Zadanie lub null, gdy kolejka jest pusta.
+     */
+    public Runnable poll() {
+        Entry entry = entries.poll();
+        if(entry == null)
+            return null;
+        if(entry.key != null)
+            lastByKey.remove(entry.key, entry);
+        return entry.task;
+    }
+
+    /**
+     * Metoda zwraca liczbę zadań w kolejce.
+     * @return Liczba oczekujących zadań.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Metoda informuje, czy kolejka jest pusta.
+     * @return true jeżeli w kolejce nie ma zadań, false w przeciwnym wypadku.
+     */
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Metoda usuwa z kolejki wszystkie zadania.
+     */
+    public void clear() {
+        entries.clear();
+        lastByKey.clear();
+    }
+}
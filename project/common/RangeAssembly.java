@@ -0,0 +1,255 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Klasa składa plik przesyłany równolegle w wielu fragmentach, które mogą napływać jednocześnie różnymi połączeniami
+ * i w dowolnej kolejności. Każdy fragment jest zapisywany do pliku częściowego bezpośrednio na swojej pozycji, więc
+ * fragmenty nie muszą być nigdzie buforowane. Plik jest kompletny, gdy odebrano wszystkie bajty od pozycji, od której
+ * nadawca rozpoczął przesyłanie, do końca pliku.
+ *
+ * Jeżeli któryś z fragmentów nie zostanie odebrany w całości lub składanie zostanie przerwane, po zakończeniu
+ * pozostałych fragmentów zachowywany jest jedynie ciągły początek pliku, aby można było wznowić jego odbieranie.
+ */
+public class RangeAssembly {
+
+    /**
+     * Klasa reprezentuje pojedynczy odbierany fragment pliku.
+     */
+    public class Range implements WritableByteChannel {
+
+        // Pozycja i długość fragmentu
+        private long start;
+        private long length;
+
+        // Liczba zapisanych bajtów
+        private long written;
+
+        // Flaga informująca, że fragment jest nadal odbierany
+        private boolean open = true;
+
+        // Tworzy fragment o podanej pozycji i długości
+        private Range(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        /**
+         * Metoda zapisuje kolejną porcję danych fragmentu na jej pozycji w pliku.
+         * @param buffer Bufor z danymi.
+         * @return Liczba zapisanych bajtów.
+         * @throws IOException Wyjątek wyrzucany, gdy dane wykraczają poza fragment lub zapis się nie powiedzie.
+         */
+        public int write(ByteBuffer buffer) throws IOException {
+            if(buffer.remaining() > length - written)
+                throw new IOException("Range overflow");
+            int count = 0;
+            while(buffer.hasRemaining())
+                count += channel.write(buffer, start + written + count);
+            written += count;
+            return count;
+        }
+
+        /**
+         * Metoda przekazuje na pozycję fragmentu w pliku podaną liczbę bajtów odczytanych bezpośrednio z kanału.
+         * @param source Kanał z którego odczytywane są dane fragmentu.
+         * @param count Liczba bajtów do odczytania.
+         * @throws IOException Wyjątek wyrzucany, gdy kanał skończy się przedwcześnie lub zapis się nie powiedzie.
+         */
+        public void transferFrom(ReadableByteChannel source, long count) throws IOException {
+            if(count > length - written)
+                throw new IOException("Range overflow");
+            FileTransfer.receive(source, channel, start + written, count);
+            written += count;
+        }
+
+        /**
+         * Metoda informuje, czy fragment jest nadal odbierany.
+         * @return true jeżeli fragment jest odbierany, false w przeciwnym wypadku.
+         */
+        public boolean isOpen() {
+            return open;
+        }
+
+        /**
+         * Metoda kończy odbieranie fragmentu.
+         */
+        public void close() {
+            complete();
+        }
+
+        /**
+         * Metoda kończy odbieranie fragmentu i informuje, czy w jego wyniku cały plik został złożony. Wartość true
+         * jest zwracana tylko dla jednego fragmentu, więc tylko jeden odbiorca zajmuje się złożonym plikiem.
+         * @return true jeżeli plik został złożony w całości, false w przeciwnym wypadku.
+         */
+        public boolean complete() {
+            return finish(this);
+        }
+    }
+
+    // Parametry przekazane w konstruktorze
+    private PartialFile partial;
+    private long modificationTime;
+    private long size;
+    private long offset;
+    private long transfer;
+
+    // Kanał pliku częściowego, do którego zapisywane są fragmenty
+    private FileChannel channel;
+
+    // Odbierane i odebrane fragmenty według ich pozycji
+    private TreeMap<Long, Range> ranges = new TreeMap<>();
+
+    // Liczba odbieranych fragmentów oraz liczba bajtów odebranych fragmentów
+    private int pending;
+    private long received;
+
+    // Flagi informujące, że któryś fragment nie został odebrany lub składanie zostało zakończone
+    private boolean failed;
+    private boolean closed;
+
+    /**
+     * Konstruuje obiekt składający plik.
+     * @param partial Plik częściowy do którego zapisywane są fragmenty.
+     * @param modificationTime Data modyfikacji odbieranej wersji pliku.
+     * @param size Rozmiar odbieranej wersji pliku.
+     * @param offset Pozycja od której nadawca przesyła plik, wcześniejsze dane znajdują się w pliku częściowym.
+     * @param transfer Identyfikator transferu nadany przez nadawcę.
+     */
+    public RangeAssembly(PartialFile partial, long modificationTime, long size, long offset, long transfer) {
+        this.partial = partial;
+        this.modificationTime = modificationTime;
+        this.size = size;
+        this.offset = offset;
+        this.transfer = transfer;
+    }
+
+    /**
+     * Metoda rozpoczyna składanie, otwierając plik częściowy. Gdy nie uda się go otworzyć, składanie jest od razu
+     * zakończone, a kolejne fragmenty tego transferu są odrzucane.
+     * @throws IOException Wyjątek wyrzucany, gdy plik jest już odbierany, nie można wznowić odbierania od pozycji
+     *                     nadawcy lub nie można otworzyć pliku.
+     */
+    public synchronized void start() throws IOException {
+        try {
+            channel = partial.openScattered(modificationTime, size, offset);
+        } catch(IOException e) {
+            closed = true;
+            throw e;
+        }
+    }
+
+    /**
+     * Metoda zwraca plik częściowy do którego zapisywane są fragmenty.
+     * @return Plik częściowy.
+     */
+    public PartialFile getPartial() {
+        return partial;
+    }
+
+    /**
+     * Metoda zwraca datę modyfikacji składanej wersji pliku.
+     * @return Data modyfikacji pliku.
+     */
+    public long getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Metoda sprawdza, czy obiekt składa plik z podanego transferu.
+     * @param transfer Identyfikator transferu.
+     * @return true jeżeli fragmenty tego transferu należą do tego obiektu, false w przeciwnym wypadku.
+     */
+    public boolean belongsTo(long transfer) {
+        return this.transfer == transfer;
+    }
+
+    /**
+     * Metoda rozpoczyna odbieranie fragmentu pliku.
+     * @param start Pozycja fragmentu w pliku.
+     * @param length Długość fragmentu.
+     * @return Fragment do którego należy zapisać dane lub null, gdy składanie zostało zakończone lub fragment jest
+     *         niepoprawny, wtedy dane fragmentu należy pominąć.
+     */
+    public synchronized Range open(long start, long length) {
+        if(closed || failed || start < offset || length <= 0 || start + length > size)
+            return null;
+
+        // Fragmenty nie mogą na siebie zachodzić
+        Map.Entry<Long, Range> previous = ranges.floorEntry(start);
+        Map.Entry<Long, Range> next = ranges.ceilingEntry(start);
+        if(previous != null && previous.getKey() + previous.getValue().length > start)
+            return null;
+        if(next != null && next.getKey() < start + length)
+            return null;
+
+        Range range = new Range(start, length);
+        ranges.put(start, range);
+        pending++;
+        return range;
+    }
+
+    /**
+     * Metoda przerywa składanie, np. gdy nadawca się rozłączył. Po zakończeniu odbieranych fragmentów zachowywany
+     * jest ciągły początek pliku.
+     */
+    public synchronized void abort() {
+        if(closed)
+            return;
+        failed = true;
+        if(pending == 0)
+            close();
+    }
+
+    /**
+     * Metoda informuje, czy składanie zostało zakończone, pomyślnie lub nie.
+     * @return true jeżeli składanie zostało zakończone, false w przeciwnym wypadku.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    // Kończy odbieranie fragmentu, zwraca true gdy dzięki niemu plik został złożony
+    private synchronized boolean finish(Range range) {
+        if(!range.open)
+            return false;
+        range.open = false;
+        pending--;
+        received += range.written;
+        if(range.written != range.length)
+            failed = true;
+
+        if(!failed && received == size - offset) {
+            close();
+            return true;
+        }
+        if(failed && pending == 0)
+            close();
+        return false;
+    }
+
+    // Zamyka plik częściowy, niekompletny plik jest przycinany do ciągłego początku
+    private void close() {
+        closed = true;
+        try { channel.close(); }
+        catch(IOException e) {}
+        if(failed)
+            partial.keep(prefix());
+    }
+
+    // Wyznacza długość ciągłego początku pliku, który został odebrany bez luk
+    private long prefix() {
+        long position = offset;
+        Range range;
+        while((range = ranges.get(position)) != null) {
+            position += range.written;
+            if(range.written < range.length)
+                break;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,169 @@
+package project.common;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje informację o częściowo odebranym pliku, którą odbiorca dołącza do żądania przesłania pliku.
+ * Zawiera liczbę odebranych bajtów, wersję pliku (datę modyfikacji i rozmiar), której dotyczą, oraz skrót ostatnich
+ * odebranych bajtów. Nadawca wznawia przesyłanie od podanej pozycji tylko wtedy, gdy jego wersja pliku jest taka sama,
+ * a skrót odpowiadającego fragmentu jego pliku się zgadza. W przeciwnym wypadku plik jest wysyłany od początku.
+ */
+public class Resume {
+
+    /** Liczba ostatnich odebranych bajtów, których skrót jest porównywany przez nadawcę. */
+    public static final int TAIL_SIZE = 64 * 1024;
+
+    // Brak częściowo odebranych danych
+    private static final Resume NONE = new Resume(0, 0, 0, null);
+
+    // Parametry przekazane w konstruktorze
+    private long offset;
+    private long modificationTime;
+    private long size;
+    private byte[] tail;
+
+    /**
+     * Konstruuje informację o częściowo odebranym pliku.
+     * @param offset Liczba odebranych bajtów.
+     * @param modificationTime Data modyfikacji odbieranej wersji pliku.
+     * @param size Rozmiar odbieranej wersji pliku.
+     * @param tail Skrót ostatnich odebranych bajtów.
+     */
+    public Resume(long offset, long modificationTime, long size, byte[] tail) {
+        this.offset = offset;
+        this.modificationTime = modificationTime;
+        this.size = size;
+        this.tail = tail;
+    }
+
+    /**
+     * Metoda zwraca informację oznaczającą brak częściowo odebranych danych.
+     * @return Informacja o przesyłaniu od początku pliku.
+     */
+    public static Resume none() {
+        return NONE;
+    }
+
+    /**
+     * Metoda zwraca liczbę odebranych bajtów.
+     * @return Pozycja od której odbiorca chce wznowić przesyłanie.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Metoda wyznacza pozycję od której nadawca może wznowić przesyłanie swojej wersji pliku.
+     * @param source Plik nadawcy.
+     * @param modificationTime Data modyfikacji pliku nadawcy.
+     * @param size Rozmiar pliku nadawcy.
+     * @return Pozycja od której należy wysłać plik, 0 jeżeli plik trzeba wysłać od początku.
+     */
+    public long offsetFor(File source, long modificationTime, long size) {
+        return offsetFor(FileSlice.of(source, size), modificationTime, size);
+    }
+
+    /**
+     * Metoda wyznacza pozycję od której nadawca może wznowić przesyłanie swojej wersji pliku, której zawartość
+     * opisana jest ciągiem zakresów plików.
+     * @param source Ciąg zakresów opisujący zawartość pliku nadawcy.
+     * @param modificationTime Data modyfikacji pliku nadawcy.
+     * @param size Rozmiar pliku nadawcy.
+     * @return Pozycja od której należy wysłać plik, 0 jeżeli plik trzeba wysłać od początku.
+     */
+    public long offsetFor(List<FileSlice> source, long modificationTime, long size) {
+        if(offset <= 0 || offset > size || this.modificationTime != modificationTime || this.size != size)
+            return 0;
+        try {
+            return Arrays.equals(tail, digestTail(source, offset)) ? offset : 0;
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Metoda zapisuje informację do strumienia.
+     * @param output Strumień do którego zapisywana jest informacja.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.writeLong(offset);
+        if(offset > 0) {
+            output.writeLong(modificationTime);
+            output.writeLong(size);
+            Manifest.writeHash(output, tail);
+        }
+    }
+
+    /**
+     * Metoda odczytuje informację zapisaną za pomocą metody write.
+     * @param input Strumień z którego odczytywana jest informacja.
+     * @return Odczytana informacja.
+     * @throws IOException Wyjątek wyrzucany, gdy odczyt się nie powiedzie.
+     */
+    public static Resume read(DataInputStream input) throws IOException {
+        long offset = input.readLong();
+        if(offset <= 0)
+            return NONE;
+        long modificationTime = input.readLong();
+        long size = input.readLong();
+        return new Resume(offset, modificationTime, size, Manifest.readHash(input));
+    }
+
+    /**
+     * Metoda zapisuje listę żądanych plików wraz z informacjami o ich częściowo odebranych danych, w postaci używanej
+     * przez komendę NEED_FILES.
+     * @param output Strumień do którego zapisywana jest lista.
+     * @param requests Informacje o częściowo odebranych danych według ścieżek plików.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public static void writeRequests(DataOutputStream output, Map<String, Resume> requests) throws IOException {
+        output.writeInt(requests.size());
+        for(Map.Entry<String, Resume> request : requests.entrySet()) {
+            output.writeUTF(request.getKey());
+            request.getValue().write(output);
+        }
+    }
+
+    /**
+     * Metoda odczytuje listę żądanych plików zapisaną za pomocą metody writeRequests.
+     * @param input Strumień z którego odczytywana jest lista.
+     * @return Informacje o częściowo odebranych danych według ścieżek plików, w kolejności żądania.
+     * @throws IOException Wyjątek wyrzucany, gdy lista jest niepoprawna.
+     */
+    public static Map<String, Resume> readRequests(DataInputStream input) throws IOException {
+        int count = input.readInt();
+        Map<String, Resume> requests = new LinkedHashMap<>();
+        for(int i = 0; i < count; i++) {
+            String path = SafePath.check(input.readUTF());
+            requests.put(path, read(input));
+        }
+        return requests;
+    }
+
+    /**
+     * Metoda wyznacza skrót MD5 ostatnich bajtów pliku przed podaną pozycją.
+     * @param file Plik, którego fragment jest odczytywany.
+     * @param offset Pozycja, przed którą znajduje się fragment.
+     * @return Skrót fragmentu pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy plik jest krótszy od podanej pozycji lub odczyt się nie powiedzie.
+     */
+    static byte[] digestTail(File file, long offset) throws IOException {
+        return digestTail(FileSlice.of(file, offset), offset);
+    }
+
+    // Wyznacza skrót MD5 ostatnich bajtów zawartości opisanej ciągiem zakresów przed podaną pozycją
+    private static byte[] digestTail(List<FileSlice> content, long offset) throws IOException {
+        MessageDigest digest;
+        try { digest = MessageDigest.getInstance("MD5"); }
+        // Każda implementacja Javy musi udostępniać algorytm MD5
+        catch(NoSuchAlgorithmException e) { throw new IllegalStateException(e); }
+
+        long start = Math.max(0, offset - TAIL_SIZE);
+        byte[] buffer = new byte[(int) (offset - start)];
+        FileSlice.read(content, start, buffer, 0, buffer.length);
+        return digest.digest(buffer);
+    }
+}
@@ -0,0 +1,84 @@
+package project.common;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Klasa sprawdza ścieżki plików i loginy otrzymane od drugiej strony połączenia, zanim zostaną użyte do wskazania
+ * pliku na dysku. Ścieżka względna z separatorem '/' może zawierać jedynie nazwy plików i katalogów, dlatego ścieżki
+ * bezwzględne oraz elementy '..' i puste są odrzucane, a elementy '.' pomijane. Dzięki temu plik wskazany przez
+ * ścieżkę zawsze znajduje się w katalogu użytkownika, a nie np. w katalogu nadrzędnym lub w katalogu innego
+ * użytkownika.
+ *
+ * Ścieżki są sprawdzane przy odczytywaniu parametrów komend, a niepoprawna ścieżka powoduje błąd połączenia. Metoda
+ * resolve sprawdza dodatkowo, czy wyznaczony plik znajduje się w katalogu, w miejscach, w których ścieżka zamieniana
+ * jest na plik.
+ */
+public class SafePath {
+
+    /**
+     * Metoda sprawdza ścieżkę pliku względem katalogu i zwraca ją w postaci znormalizowanej.
+     * @param relativePath Ścieżka pliku względem katalogu, z separatorem '/'.
+     * @return Ścieżka bez elementów '.'.
+     * @throws IOException Wyjątek wyrzucany, gdy ścieżka jest bezwzględna, pusta lub wychodzi poza katalog.
+     */
+    public static String check(String relativePath) throws IOException {
+        String normalized = normalize(relativePath);
+        if(normalized == null)
+            throw new IOException("Invalid path " + relativePath);
+        return normalized;
+    }
+
+    /**
+     * Metoda sprawdza login użytkownika, który jest nazwą jego katalogu w katalogu serwera. Login nie może zawierać
+     * separatora ani zaczynać się od kropki, ponieważ takie nazwy mają katalogi robocze serwera.
+     * @param login Login użytkownika.
+     * @return Sprawdzony login.
+     * @throws IOException Wyjątek wyrzucany, gdy login nie jest poprawną nazwą katalogu.
+     */
+    public static String checkLogin(String login) throws IOException {
+        if(login.startsWith(".") || !login.equals(normalize(login)) || login.indexOf('/') >= 0)
+            throw new IOException("Invalid login " + login);
+        return login;
+    }
+
+    /**
+     * Metoda wyznacza plik wskazany przez ścieżkę względem katalogu i sprawdza, czy znajduje się on w tym katalogu.
+     * @param root Katalog, względem którego podana jest ścieżka.
+     * @param relativePath Ścieżka pliku względem katalogu, z separatorem '/'.
+     * @return Plik w katalogu.
+     * @throws IllegalArgumentException Wyjątek wyrzucany, gdy ścieżka wychodzi poza katalog.
+     */
+    public static File resolve(File root, String relativePath) {
+        String normalized = normalize(relativePath);
+        if(normalized != null) {
+            Path directory = root.toPath().toAbsolutePath().normalize();
+            Path path = directory.resolve(normalized).normalize();
+            if(path.startsWith(directory) && !path.equals(directory))
+                return new File(root, normalized);
+        }
+        throw new IllegalArgumentException("Path " + relativePath + " is outside of " + root);
+    }
+
+    // Pomija elementy '.' ścieżki, zwraca null gdy ścieżka jest bezwzględna lub zawiera elementy puste albo '..'
+    private static String normalize(String relativePath) {
+        if(relativePath.indexOf('\\') >= 0 || relativePath.indexOf('\0') >= 0)
+            return null;
+        StringBuilder normalized = new StringBuilder();
+        for(String name : relativePath.split("/", -1)) {
+            if(name.equals("."))
+                continue;
+            if(name.isEmpty() || name.equals("..") || (normalized.length() == 0 && isDrive(name)))
+                return null;
+            if(normalized.length() > 0)
+                normalized.append('/');
+            normalized.append(name);
+        }
+        return normalized.length() > 0 ? normalized.toString() : null;
+    }
+
+    // Sprawdza, czy pierwszy element ścieżki wskazuje dysk w systemie Windows, np. "C:"
+    private static boolean isDrive(String name) {
+        return name.length() >= 2 && name.charAt(1) == ':' && Character.isLetter(name.charAt(0));
+    }
+}
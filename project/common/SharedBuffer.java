@@ -0,0 +1,216 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje bufor poza stertą Javy, którego zawartość, np. plik odczytany jednokrotnie z dysku, jest wysyłana
+ * wieloma połączeniami jednocześnie. Każdy, kto korzysta z bufora (np. połączenie, które umieściło go w kolejce ramek),
+ * posiada własne odwołanie i zwalnia je po zakończeniu korzystania z bufora. Bufor zwolniony przez wszystkich trafia
+ * do puli i jest wykorzystywany ponownie, dzięki czemu częste wysyłanie plików nie wymaga przydzielania pamięci poza
+ * stertą, która jest zwalniana dopiero przez odśmiecanie pamięci.
+ *
+ * Łączny rozmiar buforów jest ograniczony. Gdy limit zostałby przekroczony, bufor nie jest tworzony, a zawartość
+ * należy odczytać w zwykły sposób.
+ */
+public class SharedBuffer {
+
+    /** Domyślny łączny rozmiar buforów w bajtach. */
+    public static final long DEFAULT_MEMORY_LIMIT = 256L * 1024 * 1024;
+
+    // Najmniejszy rozmiar bufora, rozmiary buforów są potęgami dwójki, aby można je było wykorzystywać ponownie
+    private static final int MIN_CAPACITY = 4096;
+
+    // Aktualny łączny rozmiar buforów
+    private static volatile long memoryLimit = DEFAULT_MEMORY_LIMIT;
+
+    // Wolne bufory według rozmiarów, łączny rozmiar wszystkich buforów oraz buforów w puli, dostęp synchronizowany na puli
+    private static final Map<Integer, Deque<ByteBuffer>> pool = new HashMap<>();
+    private static long allocated;
+    private static long pooled;
+
+    // Bufor z zawartością i długość zawartości
+    private ByteBuffer buffer;
+    private int size;
+
+    // Liczba odwołań do bufora, dostęp synchronizowany na obiekcie
+    private int references = 1;
+
+    /**
+     * Konstruuje obiekt z jednym odwołaniem, posiadanym przez tworzącego.
+     * @param buffer Bufor z zawartością.
+     * @param size Długość zawartości.
+     */
+    private SharedBuffer(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Metoda zwraca łączny rozmiar buforów.
+     * @return Łączny rozmiar buforów w bajtach.
+     */
+    public static long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    /**
+     * Metoda zmienia łączny rozmiar buforów. Istniejące bufory nie są zwalniane.
+     * @param limit Nowy łączny rozmiar buforów w bajtach.
+     */
+    public static void setMemoryLimit(long limit) {
+        if(limit < 0)
+            throw new IllegalArgumentException("Memory limit must not be negative");
+        memoryLimit = limit;
+    }
+
+    /**
+     * Metoda odczytuje do bufora początek pliku.
+     * @param file Odczytywany plik.
+     * @param size Liczba bajtów do odczytania.
+     * @return Bufor z zawartością pliku, posiadający jedno odwołanie, lub null, gdy przekroczyłby łączny rozmiar buforów.
+     * @throws IOException Wyjątek wyrzucany, gdy plik jest krótszy niż podano lub odczyt się nie powiedzie.
+     */
+    public static SharedBuffer read(File file, long size) throws IOException {
+        return read(FileSlice.of(file, size));
+    }
+
+    /**
+     * Metoda odczytuje do bufora zawartość opisaną ciągiem zakresów plików.
+     * @param content Ciąg zakresów opisujący odczytywaną zawartość.
+     * @return Bufor z zawartością, posiadający jedno odwołanie, lub null, gdy przekroczyłby łączny rozmiar buforów.
+     * @throws IOException Wyjątek wyrzucany, gdy któryś z plików jest krótszy niż podano lub odczyt się nie powiedzie.
+     */
+    public static SharedBuffer read(List<FileSlice> content) throws IOException {
+        SharedBuffer shared = allocate(FileSlice.length(content));
+        if(shared == null)
+            return null;
+        try {
+            ByteBuffer target = shared.buffer.duplicate();
+            for(FileSlice slice : content) {
+                try(FileChannel channel = new FileInputStream(slice.getFile()).getChannel()) {
+                    target.limit(target.position() + (int) slice.getLength());
+                    long position = slice.getOffset();
+                    while(target.hasRemaining()) {
+                        int count = channel.read(target, position);
+                        if(count < 0)
+                            throw new EOFException();
+                        position += count;
+                    }
+                }
+            }
+            return shared;
+        } catch(IOException e) {
+            shared.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Metoda kopiuje do bufora podane bajty.
+     * @param data Kopiowane bajty.
+     * @param length Liczba bajtów do skopiowania.
+     * @return Bufor z kopią bajtów, posiadający jedno odwołanie, lub null, gdy przekroczyłby łączny rozmiar buforów.
+     */
+    public static SharedBuffer copyOf(byte[] data, int length) {
+        SharedBuffer shared = allocate(length);
+        if(shared != null)
+            shared.buffer.duplicate().put(data, 0, length);
+        return shared;
+    }
+
+    /**
+     * Metoda zwraca długość zawartości bufora.
+     * @return Długość zawartości w bajtach.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Metoda zwraca zawartość bufora do odczytu. Każde wywołanie zwraca obiekt z własną pozycją, więc zawartość może być
+     * odczytywana jednocześnie przez wiele wątków.
+     * @return Zawartość bufora tylko do odczytu.
+     */
+    public ByteBuffer getData() {
+        ByteBuffer data = buffer.asReadOnlyBuffer();
+        data.clear();
+        data.limit(size);
+        return data;
+    }
+
+    /**
+     * Metoda dodaje odwołanie do bufora, które należy zwolnić metodą release.
+     */
+    public synchronized void retain() {
+        if(references == 0)
+            throw new IllegalStateException("Buffer was released");
+        references++;
+    }
+
+    /**
+     * Metoda zwalnia odwołanie do bufora. Po zwolnieniu ostatniego odwołania bufor wraca do puli.
+     */
+    public void release() {
+        synchronized(this) {
+            if(references == 0)
+                throw new IllegalStateException("Buffer was released");
+            if(--references > 0)
+                return;
+        }
+        free(buffer);
+        buffer = null;
+    }
+
+    // Tworzy bufor o podanej długości zawartości, wykorzystując bufor z puli, zwraca null gdy limit zostałby przekroczony
+    private static SharedBuffer allocate(long size) {
+        if(size > Integer.MAX_VALUE / 2)
+            return null;
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit((int) Math.max(1, size - 1)) << 1);
+        synchronized(pool) {
+            Deque<ByteBuffer> free = pool.get(capacity);
+            if(free != null && !free.isEmpty()) {
+                pooled -= capacity;
+                return new SharedBuffer(free.pop(), (int) size);
+            }
+
+            // Zwolnienie buforów innych rozmiarów z puli, aby zmieścić nowy bufor w limicie
+            Iterator<Deque<ByteBuffer>> buffers = pool.values().iterator();
+            while(allocated + capacity > memoryLimit && buffers.hasNext()) {
+                Deque<ByteBuffer> unused = buffers.next();
+                while(allocated + capacity > memoryLimit && !unused.isEmpty()) {
+                    int released = unused.pop().capacity();
+                    allocated -= released;
+                    pooled -= released;
+                }
+            }
+            if(allocated + capacity > memoryLimit)
+                return null;
+            allocated += capacity;
+        }
+
+        try {
+            return new SharedBuffer(ByteBuffer.allocateDirect(capacity), (int) size);
+        } catch(OutOfMemoryError e) {
+            synchronized(pool) {
+                allocated -= capacity;
+            }
+            return null;
+        }
+    }
+
+    // Zwraca bufor do puli, pula zajmuje co najwyżej czwartą część łącznego rozmiaru buforów
+    private static void free(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        synchronized(pool) {
+            if(pooled + capacity > memoryLimit / 4) {
+                allocated -= capacity;
+                return;
+            }
+            pool.computeIfAbsent(capacity, key -> new ArrayDeque<>()).push(buffer);
+            pooled += capacity;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package project.common;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Klasa wysyła duży plik jednym połączeniem w kolejnych fragmentach o ograniczonej długości. Każdy fragment jest
+ * osobną ramką SEND_RANGE wysyłaną przez osobne zadanie kolejki wysyłania, więc pomiędzy fragmentami kolejka może
+ * wysłać komunikaty sterujące i małe pliki zgłoszone w trakcie przesyłania, np. żądanie usunięcia innego pliku nie
+ * czeka na przesłanie całego dużego pliku. Odbiorca składa fragmenty tak samo, jak fragmenty przesyłane równolegle.
+ *
+ * Kolejny fragment jest zgłaszany dopiero, gdy poprzedni zostanie przekazany do gniazda, aby połączenie nieblokujące
+ * nie gromadziło w swojej kolejce fragmentów, za którymi czekałyby później zgłoszone komunikaty. Przesyłanie można
+ * przerwać, np. gdy plik zostanie usunięty, a odbiorca zachowuje wtedy odebrany początek pliku.
+ *
+ * Pliki, które dobrze się kompresują, są wysyłane komendą SEND_COMPRESSED_RANGE, przy czym każdy fragment jest
+ * kompresowany osobno w pamięci tuż przed wysłaniem. Dzięki temu kompresja nie wymaga zapisania całego
+ * skompresowanego pliku na dysku przed wysłaniem, a pierwsze dane trafiają do odbiorcy od razu. Fragment, dla którego
+ * zabrakło pamięci buforów, jest wysyłany bez kompresji.
+ */
+public class SlicedTransfer {
+
+    /** Długość fragmentu w bajtach przed kompresją, pliki nie dłuższe od niej są wysyłane jedną ramką. */
+    public static final long SLICE_SIZE = 1024 * 1024;
+
+    // Parametry przekazane w konstruktorze
+    private Connection connection;
+    private String relativePath;
+    private long modificationTime;
+    private long size;
+    private List<FileSlice> body;
+    private long offset;
+    private int level;
+    private Compression compression;
+
+    // Identyfikator transferu oraz pozycja kolejnego fragmentu, dostęp tylko z zadań wysyłania
+    private long transfer = ParallelTransfer.nextTransfer();
+    private long position;
+
+    // Liczba wysłanych bajtów i czas ich wysyłania, z których wyznaczana jest przepustowość łącza
+    private long sentBytes;
+    private long sendingNanos;
+
+    // Flaga informująca, że pozostałe fragmenty nie mają już być wysyłane
+    private volatile boolean cancelled;
+
+    /**
+     * Konstruuje obiekt wysyłający zawartość pliku opisaną ciągiem zakresów plików, od podanej pozycji.
+     * @param connection Połączenie, którym wysyłane są fragmenty.
+     * @param relativePath Ścieżka do pliku po stronie odbiorcy.
+     * @param modificationTime Data modyfikacji pliku.
+     * @param size Rozmiar pliku.
+     * @param body Ciąg zakresów opisujący zawartość pliku.
+     * @param offset Pozycja od której wysyłany jest plik.
+     * @param level Poziom kompresji fragmentów lub Compression.NONE, gdy plik jest wysyłany bez kompresji.
+     * @param compression Obiekt, któremu przekazywana jest przepustowość łącza zmierzona podczas wysyłania.
+     */
+    public SlicedTransfer(Connection connection, String relativePath, long modificationTime, long size,
+                          List<FileSlice> body, long offset, int level, Compression compression) {
+        this.connection = connection;
+        this.relativePath = relativePath;
+        this.modificationTime = modificationTime;
+        this.size = size;
+        this.body = body;
+        this.offset = offset;
+        this.level = level;
+        this.compression = compression;
+        this.position = offset;
+    }
+
+    /**
+     * Metoda informuje, czy opłaca się przesłać podaną liczbę bajtów w kilku fragmentach.
+     * @param remaining Liczba bajtów pliku do przesłania.
+     * @return true jeżeli plik powinien zostać podzielony na fragmenty, false w przeciwnym wypadku.
+     */
+    public static boolean isWorthwhile(long remaining) {
+        return remaining > SLICE_SIZE;
+    }
+
+    /**
+     * Metoda zwraca ścieżkę do wysyłanego pliku po stronie odbiorcy.
+     * @return Ścieżka do pliku.
+     */
+    public String getRelativePath() {
+        return relativePath;
+    }
+
+    /**
+     * Metoda wysyła kolejny fragment pliku i czeka, aż zostanie przekazany do gniazda. Powinna być wywoływana przez
+     * kolejne zadania kolejki wysyłania, dopóki zwraca true. Po wysłaniu ostatniego fragmentu przekazuje zmierzoną
+     * przepustowość łącza, o ile wysyłanie czekało na przekazanie danych do gniazda.
+     * @return true jeżeli pozostały fragmenty do wysłania, false gdy plik został wysłany lub przesyłanie przerwano.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie fragmentu się nie powiedzie.
+     */
+    public boolean sendNext() throws IOException {
+        if(cancelled || position >= size)
+            return false;
+        long start = position;
+        long length = Math.min(SLICE_SIZE, size - start);
+        SharedBuffer compressed = level == Compression.NONE ? null : Compression.compress(body, start, length, level);
+
+        long begin = System.nanoTime();
+        if(compressed != null) {
+            sentBytes += compressed.getSize();
+            connection.send(Command.SEND_COMPRESSED_RANGE, stream -> {
+                writeHeader(stream, start);
+                stream.writeLong(length);
+            }, compressed);
+        } else {
+            sentBytes += length;
+            connection.send(Command.SEND_RANGE, stream -> writeHeader(stream, start), FileSlice.range(body, start, length));
+        }
+        position += length;
+        if(position < size)
+            connection.flush();
+        sendingNanos += System.nanoTime() - begin;
+
+        if(position >= size) {
+            if(connection.isBlocking())
+                compression.record(sentBytes, sendingNanos);
+            return false;
+        }
+        return !cancelled;
+    }
+
+    /**
+     * Metoda przerywa przesyłanie, pozostałe fragmenty nie zostaną wysłane. Może być wywoływana z dowolnego wątku.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    // Zapisuje parametry wspólne dla fragmentów wysyłanych bez kompresji i skompresowanych
+    private void writeHeader(DataOutputStream stream, long start) throws IOException {
+        stream.writeUTF(relativePath);
+        stream.writeLong(modificationTime);
+        stream.writeLong(size);
+        stream.writeLong(offset);
+        stream.writeLong(transfer);
+        stream.writeLong(start);
+    }
+}
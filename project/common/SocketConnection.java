@@ -0,0 +1,209 @@
+package project.common;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Klasa jest blokującą implementacją połączenia opartą na kanale gniazda. Zawartość plików jest wysyłana za pomocą
+ * FileChannel.transferTo, dzięki czemu w trybie bez kopiowania dane są przekazywane przez jądro systemu bezpośrednio
+ * z pliku do gniazda. Wysyłanie ramek jest bezpieczne wielowątkowo, natomiast odbieranie powinno odbywać się
+ * z jednego wątku. Gdy przepustowość połączenia jest ograniczona, wątki przesyłające dane ramek czekają na spłatę
+ * żetonów, a zawartość plików przechodzi przez bufory.
+ */
+public class SocketConnection implements Connection {
+
+    // Kanał przekazany w konstruktorze
+    private SocketChannel channel;
+
+    // Bufory nagłówka odbieranej ramki oraz pomijanych danych i dekoder nagłówka, wykorzystywane ponownie dla każdej ramki
+    private ByteBuffer header = ByteBuffer.allocate(FrameHeader.SIZE);
+    private ByteBuffer skipBuffer;
+    private FrameHeader decoder = new FrameHeader();
+
+    // Wiadro ograniczające wysyłane dane oraz kanały z ograniczeniami przepustowości danych ramek
+    private volatile TokenBucket sendBucket;
+    private volatile ReadableByteChannel limitedInput;
+    private volatile WritableByteChannel limitedOutput;
+
+    // Blokada synchronizująca wysyłanie ramek, bloki synchronized przypinałyby czekający wątek wirtualny do wątku systemowego
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Ostatnio odebrana ramka, której dane mogą nie być jeszcze odczytane
+    private Frame current;
+
+    // Flaga informująca o zamknięciu połączenia
+    private volatile boolean closed;
+
+    /**
+     * Konstruuje połączenie korzystające z przekazanego, nawiązanego już kanału w trybie blokującym.
+     * @param channel Kanał gniazda połączenia.
+     */
+    public SocketConnection(SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Metoda zwraca adres IP drugiej strony połączenia.
+     * @return Adres IP drugiej strony połączenia.
+     */
+    public InetAddress getAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * Metoda informuje, czy połączenie zostało zamknięte.
+     * @return true jeżeli połączenie zostało zamknięte, false w przeciwnym wypadku.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Metoda ustawia ograniczenia przepustowości danych odbieranych i wysyłanych ramek.
+     * @param receive Wiadro ograniczające odbierane dane lub null, gdy nie są ograniczane.
+     * @param send Wiadro ograniczające wysyłane dane lub null, gdy nie są ograniczane.
+     */
+    public void setBandwidth(TokenBucket receive, TokenBucket send) {
+        limitedInput = receive == null ? null : receive.limit((ReadableByteChannel) channel);
+        limitedOutput = send == null ? null : send.limit((WritableByteChannel) channel);
+        sendBucket = send;
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz zawartość pliku.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param offset Pozycja w pliku od której wysyłana jest zawartość.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @param temporary true jeżeli plik ma zostać usunięty po wysłaniu, false w przeciwnym wypadku.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    public void send(Command command, int requestId, HeaderWriter header, File body, long offset, long size, boolean temporary) throws IOException {
+        try {
+            send(command, requestId, header, body == null ? Collections.emptyList() : Collections.singletonList(new FileSlice(body, offset, size)));
+        } finally {
+            if(temporary && body != null)
+                body.delete();
+        }
+    }
+
+    /**
+     * Metoda wysyła ramkę zawierającą komendę, jej parametry oraz kolejno zawartości podanych zakresów plików.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Ciąg zakresów plików, których zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    public void send(Command command, int requestId, HeaderWriter header, List<FileSlice> body) throws IOException {
+        ByteBuffer encoded = ByteBuffer.wrap(FrameHeader.encode(command, requestId, header, FileSlice.length(body)));
+
+        // Otwarcie pierwszego pliku przed wysłaniem nagłówka, aby brak pliku nie przerwał ramki w połowie
+        FileChannel file = body.isEmpty() ? null : new FileInputStream(body.get(0).getFile()).getChannel();
+        try {
+            writeLock.lock();
+            try {
+                // Wysłanie nagłówka i parametrów
+                while(encoded.hasRemaining())
+                    channel.write(encoded);
+
+                // Wysłanie zawartości kolejnych zakresów
+                for(int i = 0; i < body.size(); i++) {
+                    if(i > 0) {
+                        file.close();
+                        file = new FileInputStream(body.get(i).getFile()).getChannel();
+                    }
+                    FileTransfer.send(file, body.get(i).getOffset(), body.get(i).getLength(), output());
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            if(file != null)
+                file.close();
+        }
+    }
+
+    /**
+     * Metoda wysyła ramkę, której danymi jest zawartość współdzielonego bufora, i zwalnia odwołanie do bufora.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Bufor którego zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy wysłanie się nie powiedzie.
+     */
+    public void send(Command command, HeaderWriter header, SharedBuffer body) throws IOException {
+        try {
+            ByteBuffer encoded = ByteBuffer.wrap(FrameHeader.encode(command, FrameHeader.NO_REQUEST, header, body.getSize()));
+            ByteBuffer data = body.getData();
+            writeLock.lock();
+            try {
+                while(encoded.hasRemaining())
+                    channel.write(encoded);
+                WritableByteChannel output = output();
+                while(data.hasRemaining())
+                    output.write(data);
+            } finally {
+                writeLock.unlock();
+            }
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * Metoda odbiera kolejną ramkę. Nieodczytane dane poprzedniej ramki są pomijane.
+     * @return Odebrana ramka.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie zostanie przerwane.
+     */
+    public Frame receive() throws IOException {
+        if(current != null) {
+            if(skipBuffer == null)
+                skipBuffer = ByteBuffer.allocate(FileTransfer.getChunkSize());
+            current.skipBody(skipBuffer);
+        }
+
+        // Odczytanie nagłówka
+        header.clear();
+        readFully(header);
+        decoder.decode(header);
+
+        // Odczytanie parametrów
+        byte[] parameters = new byte[decoder.getParameterLength()];
+        readFully(ByteBuffer.wrap(parameters));
+
+        ReadableByteChannel input = limitedInput != null ? limitedInput : channel;
+        current = new Frame(Command.fromInt(decoder.getCommand()), decoder.getRequestId(), parameters, decoder.getBodyLength(), input);
+        return current;
+    }
+
+    /**
+     * Metoda zamyka połączenie.
+     */
+    public void close() {
+        closed = true;
+        try { channel.close(); }
+        catch(IOException e) {}
+    }
+
+    // Zwraca kanał do którego zapisywane są dane ramek, bezpośrednio do gniazda, gdy przepustowość nie jest ograniczona,
+    // aby zawartość plików była przekazywana bez kopiowania
+    private WritableByteChannel output() {
+        TokenBucket bucket = sendBucket;
+        WritableByteChannel output = limitedOutput;
+        return bucket != null && output != null && bucket.isLimited() ? output : channel;
+    }
+
+    // Wypełnia cały bufor danymi odczytanymi z kanału
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0)
+                throw new EOFException();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package project.common;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa tworzy wątki i pule wątków, w których wykonywane są blokujące operacje wejścia/wyjścia, np. obsługa połączeń
+ * i przesyłanie plików. W trybie wirtualnym każde zadanie działa we własnym wątku wirtualnym, który podczas oczekiwania
+ * na gniazdo lub dysk nie zajmuje wątku systemowego, dlatego obsługa dziesiątek tysięcy połączeń nie wymaga
+ * dziesiątek tysięcy wątków systemowych i ich stosów, a kod obsługi połączeń pozostaje zwykłym kodem blokującym.
+ *
+ * Rodzaj wątków jest wybierany przy tworzeniu każdego wątku i każdej puli, więc serwer i klient działające w jednym
+ * procesie mogą używać różnych rodzajów wątków. Wątki wirtualne są dostępne od Javy 21, więc są tworzone przez odbicie,
+ * a w starszych wersjach zamiast nich tworzone są zwykłe wątki.
+ */
+public class Threads {
+
+    // Fabryka wątków wirtualnych oraz metoda sprawdzająca rodzaj wątku, null gdy wątki wirtualne nie są dostępne
+    private static final ThreadFactory virtualFactory = virtualFactory();
+    private static final Method isVirtualMethod = isVirtualMethod();
+
+    /**
+     * Metoda informuje, czy maszyna wirtualna obsługuje wątki wirtualne.
+     * @return true jeżeli wątki wirtualne są dostępne, false w przeciwnym wypadku.
+     */
+    public static boolean isVirtualSupported() {
+        return virtualFactory != null;
+    }
+
+    /**
+     * Metoda informuje, czy bieżący wątek jest wątkiem wirtualnym. Wątki wirtualne są krótkotrwałe i może ich być
+     * bardzo wiele, dlatego nie powinny przechowywać dużych buforów w zmiennych lokalnych wątku.
+     * @return true jeżeli bieżący wątek jest wątkiem wirtualnym, false w przeciwnym wypadku.
+     */
+    public static boolean isVirtualThread() {
+        if(isVirtualMethod == null)
+            return false;
+        try {
+            return (Boolean) isVirtualMethod.invoke(Thread.currentThread());
+        } catch(ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Metoda tworzy nieuruchomiony wątek wykonujący zadanie. Wątki wirtualne zawsze są wątkami demonami.
+     * @param name Nazwa wątku.
+     * @param task Zadanie wątku.
+     * @param virtual true aby utworzyć wątek wirtualny, o ile są dostępne, false aby utworzyć zwykły wątek.
+     * @return Utworzony wątek.
+     */
+    public static Thread newThread(String name, Runnable task, boolean virtual) {
+        return virtual && isVirtualSupported() ? virtualThread(name, task) : new Thread(task, name);
+    }
+
+    /**
+     * Metoda tworzy pulę wątków dla zadań wykonujących blokujące operacje. W puli wirtualnej każde zadanie jest
+     * wykonywane w nowym wątku wirtualnym, w przeciwnym wypadku zadania wykonują zwykłe wątki, które po zakończeniu
+     * zadania są wykorzystywane ponownie.
+     * @param name Nazwa wątków puli.
+     * @param daemon true jeżeli zwykłe wątki puli mają być demonami, false w przeciwnym wypadku.
+     * @param virtual true aby pula tworzyła wątki wirtualne, o ile są dostępne, false aby tworzyła zwykłe wątki.
+     * @return Utworzona pula wątków.
+     */
+    public static ExecutorService newPool(String name, boolean daemon, boolean virtual) {
+        // Wątki wirtualne nie są wykorzystywane ponownie, więc pula nie przechowuje bezczynnych wątków
+        if(virtual && isVirtualSupported()) {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+                    runnable -> virtualThread(name, runnable));
+        }
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(daemon);
+            return thread;
+        });
+    }
+
+    // Tworzy nieuruchomiony wątek wirtualny
+    private static Thread virtualThread(String name, Runnable task) {
+        Thread thread = virtualFactory.newThread(task);
+        thread.setName(name);
+        return thread;
+    }
+
+    // Tworzy przez odbicie fabrykę wątków wirtualnych, zwraca null gdy nie są dostępne
+    private static ThreadFactory virtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Wyszukuje metodę sprawdzającą, czy wątek jest wirtualny, zwraca null gdy wątki wirtualne nie są dostępne
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch(NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
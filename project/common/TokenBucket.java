@@ -0,0 +1,222 @@
+package project.common;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa ogranicza przepustowość metodą wiadra żetonów. Wiadro napełnia się z szybkością równą ograniczeniu, a jego
+ * pojemność odpowiada jednej sekundzie przesyłania, więc po okresie bezczynności można jednorazowo przesłać tyle
+ * danych, ile przypada na sekundę. Przesłanie danych zabiera z wiadra żetony, a gdy ich zabraknie, wiadro zadłuża się
+ * i zwraca czas, przez który należy wstrzymać przesyłanie, aby spłacić dług. Dzięki temu wiadro nie wymaga osobnego
+ * wątku i może być używane zarówno przez wątki, które po prostu czekają, jak i przez pętlę zdarzeń, która wstrzymuje
+ * jedynie obsługę danego połączenia.
+ *
+ * Wiadro może mieć wiadro nadrzędne, np. wiadro klienta może należeć do wiadra użytkownika, a to do wiadra całego
+ * serwera. Dane przesłane przez wiadro są wtedy liczone również we wszystkich wiadrach nadrzędnych, a czas oczekiwania
+ * jest najdłuższym z ich czasów. Wiadro bez ograniczenia nie liczy danych, więc gdy żadne wiadro w łańcuchu nie jest
+ * ograniczone, kanały zwracane przez metody limit przekazują dane bez żadnego dodatkowego kosztu.
+ */
+public class TokenBucket {
+
+    /** Wartość ograniczenia oznaczająca brak ograniczenia przepustowości. */
+    public static final long UNLIMITED = 0;
+
+    /** Największa liczba bajtów przesyłana jednorazowo przez kanały z ograniczeniem przepustowości. */
+    public static final int QUANTUM = 64 * 1024;
+
+    // Wiadro nadrzędne przekazane w konstruktorze
+    private TokenBucket parent;
+
+    // Ograniczenie przepustowości w bajtach na sekundę
+    private volatile long rate = UNLIMITED;
+
+    // Liczba żetonów, ujemna w przypadku długu, oraz chwila ostatniego napełnienia, dostęp synchronizowany na obiekcie
+    private double tokens;
+    private long refilled;
+
+    /**
+     * Konstruuje wiadro bez ograniczenia i bez wiadra nadrzędnego.
+     */
+    public TokenBucket() {
+        this(null);
+    }
+
+    /**
+     * Konstruuje wiadro bez ograniczenia należące do podanego wiadra nadrzędnego.
+     * @param parent Wiadro nadrzędne lub null.
+     */
+    public TokenBucket(TokenBucket parent) {
+        this.parent = parent;
+    }
+
+    /**
+     * Metoda zwraca ograniczenie przepustowości tego wiadra, bez uwzględnienia wiader nadrzędnych.
+     * @return Ograniczenie w bajtach na sekundę lub UNLIMITED.
+     */
+    public long getRate() {
+        return rate;
+    }
+
+    /**
+     * Metoda zmienia ograniczenie przepustowości. Zmiana obowiązuje od razu, również w trwających transferach.
+     * @param rate Ograniczenie w bajtach na sekundę lub UNLIMITED.
+     */
+    public synchronized void setRate(long rate) {
+        if(rate < 0)
+            throw new IllegalArgumentException("Rate must not be negative");
+
+        // Wiadro zaczyna pełne, a dług przy zmniejszeniu ograniczenia nie może przekroczyć jednej sekundy przesyłania
+        if(this.rate == UNLIMITED)
+            tokens = rate;
+        else
+            tokens = Math.max(-rate, Math.min(tokens, rate));
+        refilled = System.nanoTime();
+        this.rate = rate;
+    }
+
+    /**
+     * Metoda informuje, czy to wiadro lub którekolwiek z wiader nadrzędnych ogranicza przepustowość.
+     * @return true jeżeli przepustowość jest ograniczona, false w przeciwnym wypadku.
+     */
+    public boolean isLimited() {
+        for(TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            if(bucket.rate != UNLIMITED)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Metoda zabiera żetony odpowiadające przesłanym danym z tego wiadra i wszystkich wiader nadrzędnych.
+     * @param bytes Liczba przesłanych bajtów.
+     * @return Czas w nanosekundach, przez który należy wstrzymać przesyłanie, lub 0, gdy można przesyłać dalej.
+     */
+    public long take(long bytes) {
+        long delay = 0;
+        for(TokenBucket bucket = this; bucket != null; bucket = bucket.parent) {
+            if(bucket.rate != UNLIMITED)
+                delay = Math.max(delay, bucket.takeOwn(bytes));
+        }
+        return delay;
+    }
+
+    /**
+     * Metoda zabiera żetony odpowiadające danym i czeka, aż zostaną spłacone.
+     * @param bytes Liczba przesyłanych bajtów.
+     * @throws InterruptedIOException Wyjątek wyrzucany, gdy oczekiwanie zostanie przerwane.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long delay = take(bytes);
+        if(delay <= 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Metoda zwraca kanał odczytujący dane z podanego kanału z ograniczeniem przepustowości tego wiadra. Gdy
+     * przepustowość nie jest ograniczona, dane są odczytywane bezpośrednio.
+     * @param channel Kanał z którego odczytywane są dane.
+     * @return Kanał z ograniczeniem przepustowości.
+     */
+    public ReadableByteChannel limit(ReadableByteChannel channel) {
+        return new LimitedInput(channel);
+    }
+
+    /**
+     * Metoda zwraca kanał zapisujący dane do podanego kanału z ograniczeniem przepustowości tego wiadra. Gdy
+     * przepustowość nie jest ograniczona, dane są zapisywane bezpośrednio.
+     * @param channel Kanał do którego zapisywane są dane.
+     * @return Kanał z ograniczeniem przepustowości.
+     */
+    public WritableByteChannel limit(WritableByteChannel channel) {
+        return new LimitedOutput(channel);
+    }
+
+    // Napełnia wiadro, zabiera z niego żetony i zwraca czas spłaty długu w nanosekundach
+    private synchronized long takeOwn(long bytes) {
+        long limit = rate;
+        if(limit == UNLIMITED)
+            return 0;
+        long now = System.nanoTime();
+        tokens = Math.min(limit, tokens + (now - refilled) * (limit / 1e9));
+        refilled = now;
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / limit * 1e9);
+    }
+
+    // Zwraca bufor ograniczony do jednorazowo przesyłanej liczby bajtów
+    private static ByteBuffer slice(ByteBuffer buffer) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(slice.position() + Math.min(slice.remaining(), QUANTUM));
+        return slice;
+    }
+
+    // Kanał odczytujący dane z ograniczeniem przepustowości, żetony są zabierane po odczytaniu danych
+    private class LimitedInput implements ReadableByteChannel {
+        private ReadableByteChannel channel;
+
+        LimitedInput(ReadableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if(!isLimited())
+                return channel.read(buffer);
+            ByteBuffer slice = slice(buffer);
+            int count = channel.read(slice);
+            if(count > 0) {
+                buffer.position(slice.position());
+                acquire(count);
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Kanał zapisujący dane z ograniczeniem przepustowości, żetony są zabierane przed zapisaniem danych
+    private class LimitedOutput implements WritableByteChannel {
+        private WritableByteChannel channel;
+
+        LimitedOutput(WritableByteChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int write(ByteBuffer buffer) throws IOException {
+            if(!isLimited())
+                return channel.write(buffer);
+            ByteBuffer slice = slice(buffer);
+            acquire(slice.remaining());
+            int count = channel.write(slice);
+            buffer.position(slice.position());
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
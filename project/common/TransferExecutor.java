@@ -0,0 +1,27 @@
+package project.common;
+
+import java.util.concurrent.*;
+
+/**
+ * Interfejs obiektu wykonującego zadania wysyłania według ich priorytetów, opisanych w klasie PriorityTaskQueue. Zadania
+ * zgłaszane bez priorytetu są traktowane jak komunikaty sterujące, które nie dotyczą żadnego pliku.
+ */
+public interface TransferExecutor extends Executor {
+
+    /**
+     * Metoda zgłasza zadanie wysyłania o podanym priorytecie.
+     * @param key Klucz zadania, zazwyczaj ścieżka pliku, lub null gdy zadanie nie dotyczy pliku. Zadania z tym samym
+     *            kluczem są wykonywane w kolejności zgłoszenia.
+     * @param priority Priorytet zadania.
+     * @param task Zadanie wysyłania.
+     */
+    void execute(String key, PriorityTaskQueue.Priority priority, Runnable task);
+
+    /**
+     * Metoda zgłasza komunikat sterujący, który nie dotyczy żadnego pliku.
+     * @param task Zadanie wysyłania.
+     */
+    default void execute(Runnable task) {
+        execute(null, PriorityTaskQueue.Priority.CONTROL, task);
+    }
+}
@@ -0,0 +1,75 @@
+package project.common;
+
+import java.util.concurrent.*;
+
+/**
+ * Klasa wykonuje zadania wysyłania jedno po drugim, według priorytetów opisanych w klasie PriorityTaskQueue, w puli wątków
+ * podanej w konstruktorze. Harmonogram zajmuje co najwyżej jeden wątek puli naraz, a gdy nie ma zadań, nie zajmuje
+ * żadnego.
+ */
+public class TransferScheduler implements TransferExecutor {
+
+    // Pula wątków przekazana w konstruktorze
+    private Executor pool;
+
+    // Oczekujące zadania, dostęp synchronizowany na obiekcie
+    private PriorityTaskQueue tasks = new PriorityTaskQueue();
+    private boolean draining;
+
+    /**
+     * Konstruuje harmonogram wykonujący zadania w podanej puli wątków.
+     * @param pool Pula wątków.
+     */
+    public TransferScheduler(Executor pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Metoda zgłasza zadanie wysyłania o podanym priorytecie. Zadania zgłaszane po zamknięciu puli są pomijane.
+     * @param key Klucz zadania, zazwyczaj ścieżka pliku, lub null gdy zadanie nie dotyczy pliku.
+     * @param priority Priorytet zadania.
+     * @param task Zadanie wysyłania.
+     */
+    public synchronized void execute(String key, PriorityTaskQueue.Priority priority, Runnable task) {
+        tasks.add(key, priority, task);
+        if(draining)
+            return;
+        draining = true;
+        try {
+            pool.execute(this::drain);
+        } catch(RejectedExecutionException e) {
+            // Pula została już zamknięta, więc zadania nie mają znaczenia
+            draining = false;
+            tasks.clear();
+        }
+    }
+
+    /**
+     * Metoda zwraca liczbę zadań oczekujących na wykonanie.
+     * @return Liczba oczekujących zadań.
+     */
+    public synchronized int getDepth() {
+        return tasks.size();
+    }
+
+    // Wykonuje zadania według priorytetów, dopóki są jakieś zadania
+    private void drain() {
+        while(true) {
+            Runnable task;
+            synchronized(this) {
+                task = tasks.poll();
+                if(task == null) {
+                    draining = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                // Błąd jednego zadania nie może wstrzymać wykonywania pozostałych
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+}
@@ -1,8 +1,9 @@
 package project.server.backend;
 
 import java.io.*;
-import java.net.*;
+import java.nio.channels.*;
 import java.util.concurrent.*;
+import project.common.*;
 
 /**
  * Klasa reprezentująca zadanie które akceptuje wszystkie przychodzące na dany socket połączenia
@@ -13,18 +14,21 @@ import java.util.concurrent.*;
 class ServerAccepter implements Runnable {
 
     // Parametry przekazane w konstruktorze
-    private ServerSocket serverSocket;
+    private ServerSocketChannel serverChannel;
     private ServerClientsManager clientsManager;
     private ServerListener serverListener;
 
     // Pula w której umieszczane są wątki obsługujące poszczególne połączenia
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    private ExecutorService executor;
 
-    public ServerAccepter(ServerSocket serverSocket, ServerClientsManager clientsManager, ServerListener serverListener) {
+    public ServerAccepter(ServerSocketChannel serverChannel, ServerClientsManager clientsManager, ServerListener serverListener, boolean virtual) {
         // Zapamiętanie wszystkich przekazanych parametrów
-        this.serverSocket = serverSocket;
+        this.serverChannel = serverChannel;
         this.clientsManager = clientsManager;
         this.serverListener = serverListener;
+
+        // Połączenia są obsługiwane przez wątki wirtualne lub zwykłe wątki, zależnie od silnika serwera
+        executor = Threads.newPool("connection", false, virtual);
     }
 
     /**
@@ -33,8 +37,8 @@ class ServerAccepter implements Runnable {
     public void run() {
         try {
             while(!Thread.interrupted()) {
-                Socket socket = serverSocket.accept();
-                executor.execute(new ServerReader(socket, clientsManager, serverListener));
+                SocketChannel channel = serverChannel.accept();
+                executor.execute(new ServerReader(channel, clientsManager, serverListener));
             }
             // Wyjątek ten jest zgłaszany gdy socket zostanie zamknięty, co dokonuje się podczas zatrzymywania serwera.
         } catch(IOException e) {
@@ -1,7 +1,9 @@
 package project.server.backend;
 
+import project.common.*;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 
 /**
  * Klasa umożliwia uruchomienie serwera z daną konfiguracją oraz jego zatrzymanie. Po stworzeniu objektu
@@ -11,6 +13,10 @@ import java.net.*;
  * Podczas konstrukcji objektu należy przekazać jako parametr objekt implementujący interfejs ServerListener.
  * Jest to interfejs, który umożliwia użytkownikom klasy zdefiniowanie reakcji na zdarzenia, które mogą wystąpić
  * po stronie serwera.
+ *
+ * Podczas konstrukcji można również wybrać silnik serwera, czyli sposób obsługi połączeń z klientami. Przepustowość
+ * przesyłania plików można ograniczyć dla całego serwera, każdego użytkownika i każdego klienta metodą
+ * setBandwidthLimit, również w trakcie działania serwera.
  */
 public class ServerBackend {
 
@@ -26,11 +32,56 @@ public class ServerBackend {
         SHUT_DOWN;
     }
 
+    /**
+     * Typ wyliczeniowy reprezentuje dostępne silniki serwera.
+     */
+    public enum Engine {
+        /** Każde połączenie jest obsługiwane przez osobny wątek wykonujący blokujące operacje wejścia/wyjścia. */
+        BLOCKING,
+        /** Połączenia są obsługiwane przez stałą liczbę pętli zdarzeń opartych na selektorze. */
+        SELECTOR,
+        /**
+         * Każde połączenie jest obsługiwane przez osobny wątek wirtualny wykonujący blokujące operacje wejścia/wyjścia.
+         * Wymaga Javy 21, w starszych wersjach używane są zwykłe wątki, jak w silniku BLOCKING.
+         */
+        VIRTUAL;
+    }
+
+    /**
+     * Typ wyliczeniowy reprezentuje dostępne sposoby przechowywania plików użytkowników.
+     */
+    public enum Storage {
+        /** Każdy plik użytkownika jest przechowywany jako zwykła kopia w katalogu użytkownika. */
+        PLAIN,
+        /** Pliki są dzielone na fragmenty, a każdy unikalny fragment jest przechowywany raz dla wszystkich użytkowników. */
+        CHUNKED;
+    }
+
+    /**
+     * Typ wyliczeniowy reprezentuje zakresy ograniczeń przepustowości.
+     */
+    public enum Bandwidth {
+        /** Łączna przepustowość wszystkich klientów serwera. */
+        SERVER,
+        /** Przepustowość każdego użytkownika, łącznie dla wszystkich jego klientów. */
+        USER,
+        /** Przepustowość każdego klienta, łącznie dla wszystkich jego połączeń. */
+        CLIENT;
+    }
+
+    /** Domyślna liczba pętli zdarzeń silnika opartego na selektorze. */
+    public static final int DEFAULT_EVENT_LOOPS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     // Parametry, które zostały przekazane w konstruktorze
     private int port;
     private String rootDirectory;
     private ServerListener serverListener;
     private InetAddress address;
+    private Engine engine;
+    private Storage storage;
+
+    // Magazyn przechowujący pliki użytkowników
+    private ServerStorage fileStorage;
 
     // Soket na którym serwer oczekuja na połączenia
     private ServerSocket serverSocket;
@@ -48,30 +99,66 @@ public class ServerBackend {
      * Konstruuje obiekt serwera o podanej konfiguracji.
      * @param rootDirectory Ścieżka do bazowego katalogu serwera, w którym będą umieszczane katalogi poszczególnych
      *                      użytkoników. Jeżeli katalog nie istnieje to zostanie utworzony.
-     * @param port Numer portu na którym będzie nasłuchiwał serwer i na który będzie wysyłał dane klientom.
+     * @param port Numer portu na którym będzie nasłuchiwał serwer i przez który klienty nawiązują z nim połączenie.
      * @param serverAddress Adres serwera, który będzie ustawiony jako adres źródłowy dla wszystkich wysyłanych komunikatów.
      * @param serverListener Interfejs umożliwiający zdefiniowanie reakcji na zdarzenia, które mogą wystąpić po stronie serwera.
      * @throws IOException Wyjątek wyrzucany gdy wystąpi problem podczas tworzenia gniazda.
      */
     public ServerBackend(String rootDirectory, int port, InetAddress serverAddress, ServerListener serverListener) throws IOException {
+        this(rootDirectory, port, serverAddress, serverListener, Engine.BLOCKING);
+    }
+
+    /**
+     * Konstruuje obiekt serwera o podanej konfiguracji, korzystający z wybranego silnika.
+     * @param rootDirectory Ścieżka do bazowego katalogu serwera, w którym będą umieszczane katalogi poszczególnych
+     *                      użytkoników. Jeżeli katalog nie istnieje to zostanie utworzony.
+     * @param port Numer portu na którym będzie nasłuchiwał serwer i przez który klienty nawiązują z nim połączenie.
+     * @param serverAddress Adres serwera, który będzie ustawiony jako adres źródłowy dla wszystkich wysyłanych komunikatów.
+     * @param serverListener Interfejs umożliwiający zdefiniowanie reakcji na zdarzenia, które mogą wystąpić po stronie serwera.
+     * @param engine Silnik serwera obsługujący połączenia z klientami.
+     * @throws IOException Wyjątek wyrzucany gdy wystąpi problem podczas tworzenia gniazda.
+     */
+    public ServerBackend(String rootDirectory, int port, InetAddress serverAddress, ServerListener serverListener, Engine engine) throws IOException {
+        this(rootDirectory, port, serverAddress, serverListener, engine, Storage.PLAIN);
+    }
+
+    /**
+     * Konstruuje obiekt serwera o podanej konfiguracji, korzystający z wybranego silnika i sposobu przechowywania plików.
+     * @param rootDirectory Ścieżka do bazowego katalogu serwera, w którym będą umieszczane katalogi poszczególnych
+     *                      użytkoników. Jeżeli katalog nie istnieje to zostanie utworzony.
+     * @param port Numer portu na którym będzie nasłuchiwał serwer i przez który klienty nawiązują z nim połączenie.
+     * @param serverAddress Adres serwera, który będzie ustawiony jako adres źródłowy dla wszystkich wysyłanych komunikatów.
+     * @param serverListener Interfejs umożliwiający zdefiniowanie reakcji na zdarzenia, które mogą wystąpić po stronie serwera.
+     * @param engine Silnik serwera obsługujący połączenia z klientami.
+     * @param storage Sposób przechowywania plików użytkowników. Katalog serwera może być używany tylko z jednym
+     *                sposobem przechowywania.
+     * @throws IOException Wyjątek wyrzucany gdy wystąpi problem podczas tworzenia gniazda lub przygotowania katalogu serwera.
+     */
+    public ServerBackend(String rootDirectory, int port, InetAddress serverAddress, ServerListener serverListener, Engine engine, Storage storage) throws IOException {
         // Zapamiętami przekazanym parametrów
         this.port = port;
         this.rootDirectory = rootDirectory;
         this.serverListener = serverListener;
+        this.address = serverAddress;
+        this.engine = engine;
+        this.storage = storage;
 
         // Ustawienie stanu serwera
         this.state = State.READY;
 
-        // Stworzenie gniazda
-        serverSocket = new ServerSocket(port, 256, serverAddress);
-
-        // Stworzenie menadżera klientów
-        this.clientsManager = new ServerClientsManager(rootDirectory, port, serverListener);
-
-        // Stworzenie katalogu serwera jeżeli nie istnieje
+        // Stworzenie katalogu serwera jeżeli nie istnieje oraz przygotowanie magazynu plików
         File directory = new File(rootDirectory);
         if(!directory.exists())
             directory.mkdirs();
+        this.fileStorage = ServerStorage.create(storage, rootDirectory);
+
+        // Stworzenie gniazda za pomocą kanału, co pozwala przesyłać pliki bez kopiowania w obu silnikach
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(serverAddress, port), 256);
+        serverSocket = serverChannel.socket();
+
+        // Stworzenie menadżera klientów
+        this.clientsManager = new ServerClientsManager(rootDirectory, fileStorage, serverListener, isVirtual());
     }
 
     /**
@@ -90,6 +177,62 @@ public class ServerBackend {
         return address;
     }
 
+    /**
+     * Metoda zwraca silnik serwera obsługujący połączenia z klientami.
+     * @return Silnik serwera.
+     */
+    public Engine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Metoda zwraca sposób przechowywania plików użytkowników.
+     * @return Sposób przechowywania plików.
+     */
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Metoda ustawia ograniczenie przepustowości przesyłania plików w podanym zakresie. Ograniczenie obowiązuje od razu,
+     * również dla zalogowanych klientów i w trwających transferach. Domyślnie przepustowość nie jest ograniczona.
+     * @param scope Zakres ograniczenia.
+     * @param upload Ograniczenie danych przesyłanych przez klienty do serwera w bajtach na sekundę lub
+     *               TokenBucket.UNLIMITED.
+     * @param download Ograniczenie danych wysyłanych przez serwer do klientów w bajtach na sekundę lub
+     *                 TokenBucket.UNLIMITED.
+     */
+    public void setBandwidthLimit(Bandwidth scope, long upload, long download) {
+        clientsManager.setBandwidthLimit(scope, upload, download);
+    }
+
+    /**
+     * Metoda zwraca ograniczenie przepustowości danych przesyłanych przez klienty do serwera w podanym zakresie.
+     * @param scope Zakres ograniczenia.
+     * @return Ograniczenie w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     */
+    public long getUploadLimit(Bandwidth scope) {
+        return clientsManager.getUploadLimit(scope);
+    }
+
+    /**
+     * Metoda zwraca ograniczenie przepustowości danych wysyłanych przez serwer do klientów w podanym zakresie.
+     * @param scope Zakres ograniczenia.
+     * @return Ograniczenie w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     */
+    public long getDownloadLimit(Bandwidth scope) {
+        return clientsManager.getDownloadLimit(scope);
+    }
+
+    /**
+     * Metoda zwraca spis plików użytkownika, niezależnie od sposobu ich przechowywania.
+     * @param login Login użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    public Manifest getFiles(String login) {
+        return fileStorage.list(login);
+    }
+
     /**
      * Metoda zwraca ścieżkę do katalogu serwera, zawierająca katalogi poszczególnych użytkowników.
      * @return Ścieżka do katalogu serwera.
@@ -121,7 +264,23 @@ public class ServerBackend {
         if(state!=State.READY)
             return;
 
-        acceptingThread = new Thread(new ServerAccepter(serverSocket, clientsManager, serverListener));
+        // Wybór zadania akceptującego połączenia odpowiedniego dla silnika
+        Runnable accepter;
+        if(engine == Engine.SELECTOR) {
+            try {
+                accepter = new ServerChannelAccepter(serverSocket.getChannel(), clientsManager, serverListener, DEFAULT_EVENT_LOOPS);
+            } catch(IOException e) {
+                serverListener.errorOccured("IOException occured while creating event loops");
+                return;
+            }
+        }
+        else {
+            if(engine == Engine.VIRTUAL && !isVirtual())
+                serverListener.log("!! Virtual threads are not available, using platform threads");
+            accepter = new ServerAccepter(serverSocket.getChannel(), clientsManager, serverListener, isVirtual());
+        }
+
+        acceptingThread = new Thread(accepter);
         acceptingThread.start();
         serverListener.log("# Server is running on port " + port);
         state = State.RUNNING;
@@ -144,4 +303,9 @@ public class ServerBackend {
         serverListener.log("# Server is stopped");
         state = State.SHUT_DOWN;
     }
+
+    // Informuje, czy połączenia i wysyłanie są obsługiwane przez wątki wirtualne
+    private boolean isVirtual() {
+        return engine == Engine.VIRTUAL && Threads.isVirtualSupported();
+    }
 }
@@ -0,0 +1,74 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * Zadanie akceptujące połączenia w silniku serwera opartym na selektorze. W przeciwieństwie do ServerAccepter nie
+ * uruchamia osobnego wątku dla każdego połączenia, lecz przydziela połączenia po kolei stałej liczbie pętli zdarzeń,
+ * z których każda działa w jednym wątku. Odebrane ramki są obsługiwane przez wspólną pulę wątków obsługi, więc
+ * zapisywanie i zatwierdzanie odbieranych plików nie wstrzymuje pętli.
+ */
+class ServerChannelAccepter implements Runnable {
+
+    // Parametry przekazane w konstruktorze
+    private ServerSocketChannel serverChannel;
+
+    // Pętle zdarzeń obsługujące połączenia
+    private ServerEventLoop[] loops;
+
+    // Pula wątków obsługujących ramki odebrane przez wszystkie pętle
+    private ExecutorService handlers = Threads.newPool("handler", true, false);
+
+    /**
+     * Konstruuje obiekt akceptujący połączenia na przekazanym kanale.
+     * @param serverChannel Kanał na którym akceptowane są połączenia.
+     * @param clientsManager Menedżer klientów przekazywany sesjom połączeń.
+     * @param serverListener Obiekt słuchacza zdarzeń.
+     * @param loopCount Liczba pętli zdarzeń, a więc i wątków obsługujących połączenia.
+     * @throws IOException Wyjątek wyrzucany, gdy nie można utworzyć pętli zdarzeń.
+     */
+    ServerChannelAccepter(ServerSocketChannel serverChannel, ServerClientsManager clientsManager,
+                          ServerListener serverListener, int loopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.loops = new ServerEventLoop[loopCount];
+        for(int i=0; i<loopCount; i++)
+            loops[i] = new ServerEventLoop(clientsManager, serverListener, handlers);
+    }
+
+    /**
+     * Zadanie polegające na uruchomieniu pętli zdarzeń, akceptowaniu połączeń i przydzielaniu ich pętlom.
+     */
+    public void run() {
+        // Uruchomienie pętli zdarzeń
+        Thread[] threads = new Thread[loops.length];
+        for(int i=0; i<loops.length; i++) {
+            threads[i] = new Thread(loops[i], "event-loop-" + i);
+            threads[i].start();
+        }
+
+        try {
+            int next = 0;
+            while(!Thread.interrupted()) {
+                SocketChannel channel = serverChannel.accept();
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+            // Wyjątek ten jest zgłaszany gdy kanał zostanie zamknięty, co dokonuje się podczas zatrzymywania serwera.
+        } catch(IOException e) {}
+
+        // Zatrzymanie pętli zdarzeń i oczekiwanie na ich zakończenie
+        for(int i=0; i<loops.length; i++) {
+            loops[i].shutdown();
+            try { threads[i].join(); }
+            // Wyjątek bardzo mało prawdopodobny
+            catch(InterruptedException e) {}
+        }
+
+        // Zadania kończące sesje zamkniętych połączeń zostaną jeszcze wykonane
+        handlers.shutdown();
+    }
+}
@@ -0,0 +1,661 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Klasa jest nieblokującą implementacją połączenia używaną przez silnik serwera oparty na selektorze. Wysyłane ramki
+ * trafiają do kolejki, którą pętla zdarzeń opróżnia, gdy gniazdo jest gotowe do zapisu, więc wysyłanie nie blokuje
+ * pętli. Gdy klient nie nadąża z odbieraniem i w kolejce czeka zbyt wiele ramek, wątki wysyłające spoza pętli czekają
+ * na wysłanie części z nich, dzięki czemu kolejki wysyłania klientów mogą spowalniać źródła wiadomości. Przychodzące
+ * dane są składane w ramki przyrostowo: nagłówek, parametry, a następnie dane przekazywane kawałkami do odbiorcy
+ * zwróconego przez sesję. Bufory nagłówka i parametrów oraz dekoder nagłówka są wykorzystywane ponownie dla kolejnych
+ * ramek. Gdy odebrane lub wysłane dane przekroczą ograniczenie przepustowości, połączenie przestaje odczytywać lub
+ * wysyłać dane do czasu spłaty żetonów, a pętla zdarzeń w tym czasie obsługuje pozostałe połączenia.
+ *
+ * Pętla zdarzeń wykonuje jedynie nieblokujące operacje na gnieździe. Obsługa komend przez sesję, zapisywanie danych
+ * ramek przez odbiorców i ich zamykanie, np. zatwierdzenie odebranego pliku wraz z wyznaczeniem jego skrótu, są
+ * wykonywane po kolei przez pulę wątków obsługi, przy czym połączenie zajmuje co najwyżej jeden wątek puli naraz.
+ * Gdy pula nie nadąża z zapisywaniem odebranych danych, połączenie przestaje odczytywać dane z gniazda do czasu
+ * zapisania ich części, więc dane oczekujące na zapis nie zajmują dowolnie dużo pamięci.
+ */
+class ServerChannelConnection implements Connection {
+
+    /** Liczba ramek oczekujących na wysłanie, powyżej której wątki wysyłające czekają. */
+    public static final int MAX_OUTGOING = 64;
+
+    /** Liczba odebranych bajtów oczekujących na obsługę, powyżej której połączenie przestaje odczytywać dane. */
+    public static final int MAX_PENDING_INPUT = 1024 * 1024;
+
+    // Rozmiar bufora parametrów, powyżej którego bufor nie jest zatrzymywany dla kolejnych ramek
+    private static final int RETAINED_PARAMETERS = 64 * 1024;
+
+    // Etapy odczytu ramki
+    private enum ReadState { HEADER, PARAMETERS, BODY }
+
+    // Zadanie obsługi odebranych danych wykonywane przez pulę wątków obsługi
+    private interface Task {
+        void run() throws IOException;
+    }
+
+    // Ramka oczekująca na wysłanie
+    private static class OutgoingFrame {
+        ByteBuffer header;
+        File body;
+        boolean temporary;
+        Iterator<FileSlice> slices;
+        long position;
+        long remaining;
+        FileChannel channel;
+        boolean buffered;
+        ByteBuffer buffer;
+        SharedBuffer shared;
+        ByteBuffer data;
+    }
+
+    // Parametry przekazane w konstruktorze
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ServerEventLoop loop;
+    private Executor handlers;
+
+    // Sesja reagująca na odebrane komendy
+    private ServerSession session;
+
+    // Zadania obsługi odebranych ramek wykonywane po kolei przez pulę wątków obsługi, flaga informująca, że któryś
+    // wątek puli je wykonuje, oraz liczba odebranych bajtów, których zadania nie zostały jeszcze wykonane
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private AtomicBoolean handling = new AtomicBoolean();
+    private AtomicLong pendingInput = new AtomicLong();
+
+    // Flaga informująca o błędzie obsługi, po którym pozostałe ramki są pomijane, dostęp tylko z zadań obsługi
+    private boolean failed;
+
+    // Kolejka ramek oczekujących na wysłanie
+    private Queue<OutgoingFrame> outgoing = new ConcurrentLinkedQueue<>();
+
+    // Stan odczytu aktualnej ramki
+    private ReadState state = ReadState.HEADER;
+    private ByteBuffer header = ByteBuffer.allocate(FrameHeader.SIZE);
+    private ByteBuffer parameters = ByteBuffer.allocate(256);
+    private FrameHeader decoder = new FrameHeader();
+    private long bodyRemaining;
+
+    // Odbiorca danych aktualnej ramki, dostęp tylko z zadań obsługi
+    private ServerReceiver receiver;
+
+    // Wiadra ograniczające odbierane i wysyłane dane ramek
+    private volatile TokenBucket receiveBucket;
+    private volatile TokenBucket sendBucket;
+
+    // Odczyt i wysyłanie wstrzymane przez ograniczenie przepustowości wraz z chwilami wznowienia, dostęp z wątku pętli
+    private boolean readPaused;
+    private boolean writePaused;
+    private long readResume;
+    private long writeResume;
+
+    // Odczyt wstrzymany do czasu obsłużenia części odebranych danych
+    private volatile boolean readBlocked;
+
+    // Flagi informujące o zamknięciu połączenia oraz o zakończeniu jego sesji
+    private volatile boolean closed;
+    private boolean disconnected;
+
+    /**
+     * Konstruuje połączenie obsługiwane przez pętlę zdarzeń.
+     * @param channel Nieblokujący kanał połączenia.
+     * @param key Klucz pod którym kanał jest zarejestrowany w selektorze pętli.
+     * @param loop Pętla zdarzeń obsługująca połączenie.
+     * @param handlers Pula wątków obsługujących odebrane ramki.
+     */
+    ServerChannelConnection(SocketChannel channel, SelectionKey key, ServerEventLoop loop, Executor handlers) {
+        this.channel = channel;
+        this.key = key;
+        this.loop = loop;
+        this.handlers = handlers;
+    }
+
+    /**
+     * Metoda ustala sesję, która będzie reagowała na odebrane komendy.
+     * @param session Sesja połączenia.
+     */
+    void setSession(ServerSession session) {
+        this.session = session;
+    }
+
+    /**
+     * Metoda zwraca adres IP drugiej strony połączenia.
+     * @return Adres IP drugiej strony połączenia.
+     */
+    public InetAddress getAddress() {
+        return channel.socket().getInetAddress();
+    }
+
+    /**
+     * Metoda informuje, czy połączenie zostało zamknięte.
+     * @return true jeżeli połączenie zostało zamknięte, false w przeciwnym wypadku.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Metoda informuje, że wysyłanie ramek jedynie umieszcza je w kolejce.
+     * @return Zawsze false.
+     */
+    public boolean isBlocking() {
+        return false;
+    }
+
+    /**
+     * Metoda ustawia ograniczenia przepustowości danych odbieranych i wysyłanych ramek.
+     * @param receive Wiadro ograniczające odbierane dane lub null, gdy nie są ograniczane.
+     * @param send Wiadro ograniczające wysyłane dane lub null, gdy nie są ograniczane.
+     */
+    public void setBandwidth(TokenBucket receive, TokenBucket send) {
+        this.receiveBucket = receive;
+        this.sendBucket = send;
+    }
+
+    /**
+     * Metoda umieszcza ramkę w kolejce do wysłania. Wątek spoza pętli zdarzeń czeka, gdy w kolejce jest zbyt wiele
+     * ramek, a wątek pętli nigdy nie jest blokowany.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Plik którego zawartość jest wysyłana lub null, gdy ramka nie zawiera danych.
+     * @param offset Pozycja w pliku od której wysyłana jest zawartość.
+     * @param size Liczba bajtów pliku do wysłania.
+     * @param temporary true jeżeli plik ma zostać usunięty po wysłaniu, false w przeciwnym wypadku.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie jest zamknięte.
+     */
+    public void send(Command command, int requestId, HeaderWriter header, File body, long offset, long size, boolean temporary) throws IOException {
+        OutgoingFrame frame = new OutgoingFrame();
+        frame.body = body;
+        frame.temporary = temporary;
+        frame.slices = body == null ? Collections.emptyIterator() : Collections.singletonList(new FileSlice(body, offset, size)).iterator();
+        enqueue(frame, command, requestId, header, body == null ? 0 : size);
+    }
+
+    /**
+     * Metoda umieszcza w kolejce do wysłania ramkę, której danymi są kolejno zawartości podanych zakresów plików.
+     * Pliki są otwierane dopiero wtedy, gdy pętla zdarzeń zacznie wysyłać ich zakresy.
+     * @param command Wysyłana komenda.
+     * @param requestId Identyfikator żądania lub FrameHeader.NO_REQUEST.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Ciąg zakresów plików, których zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie jest zamknięte.
+     */
+    public void send(Command command, int requestId, HeaderWriter header, List<FileSlice> body) throws IOException {
+        OutgoingFrame frame = new OutgoingFrame();
+        frame.slices = body.iterator();
+        enqueue(frame, command, requestId, header, FileSlice.length(body));
+    }
+
+    /**
+     * Metoda umieszcza w kolejce do wysłania ramkę, której danymi jest zawartość współdzielonego bufora. Odwołanie do
+     * bufora jest zwalniane po wysłaniu lub porzuceniu ramki.
+     * @param command Wysyłana komenda.
+     * @param header Obiekt zapisujący parametry komendy lub null, gdy komenda nie ma parametrów.
+     * @param body Bufor którego zawartość jest wysyłana.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie jest zamknięte.
+     */
+    public void send(Command command, HeaderWriter header, SharedBuffer body) throws IOException {
+        OutgoingFrame frame = new OutgoingFrame();
+        frame.shared = body;
+        frame.data = body.getData();
+        enqueue(frame, command, FrameHeader.NO_REQUEST, header, body.getSize());
+    }
+
+    /**
+     * Metoda czeka, aż pętla zdarzeń wyśle wszystkie ramki z kolejki. W wątku pętli metoda nie czeka, ponieważ
+     * wstrzymałaby wysyłanie.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie zostało zamknięte przed wysłaniem ramek.
+     */
+    @Override
+    public void flush() throws IOException {
+        if(loop.isLoopThread())
+            return;
+        try {
+            synchronized(outgoing) {
+                while(!outgoing.isEmpty() && !closed)
+                    outgoing.wait();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if(closed)
+            throw new IOException("Connection is closed");
+    }
+
+    /**
+     * Metoda zamyka połączenie. Może być wywoływana z dowolnego wątku, a sesja połączenia jest następnie kończona
+     * przez pętlę zdarzeń.
+     */
+    public void close() {
+        closed = true;
+        key.cancel();
+        try { channel.close(); }
+        catch(IOException e) {}
+
+        // Obudzenie wątków czekających na wysłanie ramek oraz powiadomienie pętli o zamknięciu
+        synchronized(outgoing) {
+            outgoing.notifyAll();
+        }
+        loop.requestWrite(this);
+    }
+
+    /**
+     * Metoda zamyka połączenie i kończy jego sesję. Wywoływana jest przez pętlę zdarzeń, a sesja jest kończona przez
+     * pulę wątków obsługi po obsłużeniu wszystkich odebranych wcześniej ramek.
+     */
+    void disconnect() {
+        if(disconnected)
+            return;
+        disconnected = true;
+        close();
+
+        // Zwolnienie zasobów niewysłanych ramek
+        OutgoingFrame frame;
+        while((frame = outgoing.poll()) != null)
+            closeBody(frame);
+
+        // Zwolnienie zasobów nieodebranej ramki i zakończenie sesji, również po błędzie obsługi
+        schedule(() -> {
+            if(receiver != null) {
+                try { receiver.close(); }
+                catch(IOException e) {}
+                receiver = null;
+            }
+            session.disconnected();
+        });
+    }
+
+    /**
+     * Metoda włącza oczekiwanie na gotowość gniazda do zapisu, a gdy połączenie zostało zamknięte przez inny wątek,
+     * kończy jego sesję. Wywoływana jest przez pętlę zdarzeń.
+     */
+    void enableWrites() {
+        // Połączenie zamknięte przez inny wątek
+        if(closed) {
+            disconnect();
+            return;
+        }
+        if(key.isValid() && !writePaused)
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Metoda wznawia odczyt wstrzymany do czasu obsłużenia części odebranych danych, o ile zostały już obsłużone.
+     * Wywoływana jest przez pętlę zdarzeń.
+     */
+    void resumeReads() {
+        if(!readBlocked || pendingInput.get() > MAX_PENDING_INPUT / 2)
+            return;
+        readBlocked = false;
+        if(key.isValid() && !readPaused)
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Metoda wznawia odczyt i wysyłanie, których czas wstrzymania upłynął. Wywoływana jest przez pętlę zdarzeń.
+     * @param now Bieżąca chwila według System.nanoTime.
+     */
+    void resume(long now) {
+        if(readPaused && readResume - now <= 0)
+            readPaused = false;
+        if(writePaused && writeResume - now <= 0)
+            writePaused = false;
+        if(key.isValid()) {
+            int ops = readPaused || readBlocked ? 0 : SelectionKey.OP_READ;
+            if(!writePaused && !outgoing.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        }
+    }
+
+    /**
+     * Metoda odczytuje dostępne dane z gniazda i przetwarza je. Wywoływana jest przez pętlę zdarzeń.
+     * @param buffer Bufor pętli zdarzeń do którego odczytywane są dane.
+     * @throws IOException Wyjątek wyrzucany, gdy połączenie zostało zamknięte lub zerwane.
+     */
+    void onReadable(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        if(read < 0)
+            throw new EOFException();
+        buffer.flip();
+
+        // Wstrzymanie odczytu, gdy odebrane dane przekroczyły ograniczenie przepustowości
+        TokenBucket bucket = receiveBucket;
+        if(read > 0 && bucket != null && bucket.isLimited()) {
+            long delay = bucket.take(read);
+            if(delay > 0) {
+                readPaused = true;
+                readResume = System.nanoTime() + delay;
+                loop.resumeLater(this, delay);
+                if(key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        while(buffer.hasRemaining() && !closed) {
+            // Składanie nagłówka ramki
+            if(state == ReadState.HEADER) {
+                transfer(buffer, header);
+                if(header.hasRemaining())
+                    break;
+                decoder.decode(header);
+                bodyRemaining = decoder.getBodyLength();
+                header.clear();
+
+                // Bufor parametrów jest powiększany tylko wtedy, gdy parametry się w nim nie mieszczą
+                if(parameters.capacity() < decoder.getParameterLength())
+                    parameters = ByteBuffer.allocate(decoder.getParameterLength());
+                parameters.clear();
+                parameters.limit(decoder.getParameterLength());
+                state = ReadState.PARAMETERS;
+            }
+
+            // Składanie parametrów komendy
+            if(state == ReadState.PARAMETERS) {
+                transfer(buffer, parameters);
+                if(parameters.hasRemaining())
+                    break;
+                handleFrame(Command.fromInt(decoder.getCommand()), decoder.getRequestId(),
+                        Arrays.copyOf(parameters.array(), parameters.limit()), bodyRemaining);
+                if(parameters.capacity() > RETAINED_PARAMETERS)
+                    parameters = ByteBuffer.allocate(256);
+                state = ReadState.BODY;
+            }
+
+            // Przekazywanie danych ramki do odbiorcy
+            if(state == ReadState.BODY) {
+                int count = (int) Math.min(buffer.remaining(), bodyRemaining);
+                if(count > 0) {
+                    // Dane są kopiowane, ponieważ bufor pętli zostanie użyty ponownie przed ich zapisaniem
+                    ByteBuffer data = ByteBuffer.allocate(count);
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.limit(slice.position() + count);
+                    data.put(slice).flip();
+                    receiveBody(data);
+                    buffer.position(buffer.position() + count);
+                    bodyRemaining -= count;
+                }
+                if(bodyRemaining == 0)
+                    finishFrame();
+            }
+        }
+
+        // Wstrzymanie odczytu, gdy pula wątków obsługi nie nadąża z obsługą odebranych danych
+        if(pendingInput.get() > MAX_PENDING_INPUT && !readBlocked) {
+            readBlocked = true;
+            if(key.isValid())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+            // Zadania mogły zostać wykonane zanim odczyt został wstrzymany
+            resumeReads();
+        }
+    }
+
+    /**
+     * Metoda wysyła oczekujące ramki w takim zakresie, na jaki pozwala gniazdo. Wywoływana jest przez pętlę zdarzeń.
+     * @throws IOException Wyjątek wyrzucany, gdy wysyłanie się nie powiedzie.
+     */
+    void onWritable() throws IOException {
+        if(writePaused)
+            return;
+        OutgoingFrame frame;
+        while((frame = outgoing.peek()) != null) {
+            // Wysłanie nagłówka
+            channel.write(frame.header);
+            if(frame.header.hasRemaining())
+                return;
+
+            // Wysłanie zawartości pliku
+            if(!writeBody(frame))
+                return;
+
+            outgoing.poll();
+            closeBody(frame);
+            synchronized(outgoing) {
+                outgoing.notifyAll();
+            }
+        }
+
+        // Wszystko zostało wysłane, więc nie trzeba czekać na gotowość do zapisu
+        if(key.isValid())
+            key.interestOps(readPaused || readBlocked ? 0 : SelectionKey.OP_READ);
+        if(!outgoing.isEmpty())
+            loop.requestWrite(this);
+    }
+
+    // Umieszcza ramkę w kolejce, a gdy nie można jej wysłać, zwalnia jej zawartość
+    private void enqueue(OutgoingFrame frame, Command command, int requestId, HeaderWriter header, long bodyLength) throws IOException {
+        try {
+            // Oczekiwanie, aż pętla zdarzeń wyśle część zaległych ramek
+            if(!loop.isLoopThread()) {
+                synchronized(outgoing) {
+                    while(outgoing.size() >= MAX_OUTGOING && !closed)
+                        outgoing.wait();
+                }
+            }
+            if(closed)
+                throw new IOException("Connection is closed");
+            frame.header = ByteBuffer.wrap(FrameHeader.encode(command, requestId, header, bodyLength));
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeBody(frame);
+            throw new InterruptedIOException();
+        } catch(IOException e) {
+            closeBody(frame);
+            throw e;
+        }
+        outgoing.add(frame);
+        loop.requestWrite(this);
+    }
+
+    // Zleca sesji obsługę komendy odebranej ramki
+    private void handleFrame(Command command, int requestId, byte[] parameters, long bodyLength) {
+        submit(parameters.length, () -> {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(parameters));
+            receiver = session.handle(command, requestId, input, bodyLength);
+        });
+    }
+
+    // Zleca odbiorcy zapisanie kawałka danych ramki
+    private void receiveBody(ByteBuffer data) {
+        submit(data.remaining(), () -> {
+            if(receiver != null)
+                receiver.write(data);
+        });
+    }
+
+    // Zleca zamknięcie odbiorcy odebranej ramki i przygotowuje odczyt kolejnej
+    private void finishFrame() {
+        submit(0, () -> {
+            if(receiver != null) {
+                ServerReceiver finished = receiver;
+                receiver = null;
+                finished.close();
+            }
+            if(!session.isActive())
+                close();
+        });
+        state = ReadState.HEADER;
+    }
+
+    // Zleca obsługę odebranych danych o podanej liczbie bajtów
+    private void submit(int bytes, Task task) {
+        pendingInput.addAndGet(bytes);
+        schedule(() -> {
+            try {
+                // Po błędzie obsługi połączenie jest zamykane, a pozostałe ramki pomijane
+                if(!failed)
+                    task.run();
+            } catch(IOException | RuntimeException e) {
+                if(e instanceof RuntimeException)
+                    loop.log("!! Error occured while handling message");
+                failed = true;
+                close();
+            } finally {
+                if(pendingInput.addAndGet(-bytes) <= MAX_PENDING_INPUT / 2 && readBlocked)
+                    loop.requestResume(this);
+            }
+        });
+    }
+
+    // Dodaje zadanie do kolejki i w razie potrzeby zajmuje wątek puli do jej opróżnienia
+    private void schedule(Runnable task) {
+        tasks.add(task);
+        if(handling.compareAndSet(false, true))
+            handlers.execute(this::handleTasks);
+    }
+
+    // Wykonuje po kolei zadania obsługi, dopóki kolejka nie jest pusta
+    private void handleTasks() {
+        do {
+            Runnable task;
+            while((task = tasks.poll()) != null)
+                task.run();
+            handling.set(false);
+
+            // Zadanie mogło zostać dodane po opróżnieniu kolejki, ale przed zwolnieniem flagi
+        } while(!tasks.isEmpty() && handling.compareAndSet(false, true));
+    }
+
+    // Wysyła zawartość ramki z bufora lub z kolejnych zakresów plików, zwraca true gdy cała zawartość została wysłana
+    private boolean writeBody(OutgoingFrame frame) throws IOException {
+        // Zawartość współdzielonego bufora jest wysyłana bezpośrednio z niego
+        if(frame.data != null) {
+            while(frame.data.hasRemaining()) {
+                int count = write(frame.data);
+                if(count == 0 || pauseWrites(count))
+                    return false;
+            }
+            return true;
+        }
+
+        while(frame.remaining > 0 || (frame.buffer != null && frame.buffer.hasRemaining()) || frame.slices.hasNext()) {
+            // Otwarcie pliku kolejnego zakresu, gdy zawartość poprzedniego została wysłana
+            if(frame.remaining == 0 && (frame.buffer == null || !frame.buffer.hasRemaining())) {
+                if(frame.channel != null)
+                    frame.channel.close();
+                FileSlice slice = frame.slices.next();
+                frame.channel = new FileInputStream(slice.getFile()).getChannel();
+                frame.position = slice.getOffset();
+                frame.remaining = slice.getLength();
+                frame.buffered = !FileTransfer.isZeroCopy();
+            }
+            if(!writeSlice(frame))
+                return false;
+        }
+        return true;
+    }
+
+    // Wysyła zawartość zakresu otwartego pliku ramki, zwraca true gdy cała zawartość zakresu została wysłana
+    private boolean writeSlice(OutgoingFrame frame) throws IOException {
+        // Przekazanie zawartości pliku przez jądro systemu, dopóki plik nie okaże się krótszy niż zapowiedziano
+        if(!frame.buffered) {
+            while(frame.remaining > 0 && frame.position < frame.channel.size()) {
+                long length = isSendLimited() ? Math.min(frame.remaining, TokenBucket.QUANTUM) : frame.remaining;
+                long count = frame.channel.transferTo(frame.position, length, channel);
+                if(count == 0)
+                    return false;
+                frame.position += count;
+                frame.remaining -= count;
+                if(pauseWrites(count))
+                    return false;
+            }
+            frame.buffered = true;
+            if(frame.remaining == 0)
+                return true;
+        }
+
+        // Bufor jest przydzielany raz dla ramki i wykorzystywany dla kolejnych zakresów
+        if(frame.buffer == null) {
+            frame.buffer = ByteBuffer.allocate(FileTransfer.getChunkSize());
+            frame.buffer.flip();
+        }
+
+        while(frame.remaining > 0 || frame.buffer.hasRemaining()) {
+            // Doczytanie kolejnego fragmentu pliku, brakujące bajty są uzupełniane zerami
+            if(!frame.buffer.hasRemaining()) {
+                frame.buffer.clear();
+                frame.buffer.limit((int) Math.min(frame.buffer.capacity(), frame.remaining));
+                if(frame.channel.read(frame.buffer, frame.position) < 0)
+                    while(frame.buffer.hasRemaining())
+                        frame.buffer.put((byte) 0);
+                frame.buffer.flip();
+                frame.position += frame.buffer.remaining();
+                frame.remaining -= frame.buffer.remaining();
+            }
+
+            int count = write(frame.buffer);
+            if(frame.buffer.hasRemaining() || pauseWrites(count))
+                return false;
+        }
+        return true;
+    }
+
+    // Informuje, czy wysyłane dane ramek są ograniczane
+    private boolean isSendLimited() {
+        TokenBucket bucket = sendBucket;
+        return bucket != null && bucket.isLimited();
+    }
+
+    // Zapisuje dane do gniazda, przy ograniczonej przepustowości co najwyżej TokenBucket.QUANTUM bajtów naraz
+    private int write(ByteBuffer data) throws IOException {
+        if(data.remaining() <= TokenBucket.QUANTUM || !isSendLimited())
+            return channel.write(data);
+        ByteBuffer slice = data.duplicate();
+        slice.limit(slice.position() + TokenBucket.QUANTUM);
+        int count = channel.write(slice);
+        data.position(slice.position());
+        return count;
+    }
+
+    // Zabiera żetony za wysłane dane, a gdy przekroczyły ograniczenie, wstrzymuje wysyłanie i zwraca true
+    private boolean pauseWrites(long count) {
+        TokenBucket bucket = sendBucket;
+        if(count <= 0 || bucket == null || !bucket.isLimited())
+            return false;
+        long delay = bucket.take(count);
+        if(delay <= 0)
+            return false;
+        writePaused = true;
+        writeResume = System.nanoTime() + delay;
+        loop.resumeLater(this, delay);
+        if(key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    // Zamyka plik wysyłanej ramki, plik tymczasowy jest usuwany, a odwołanie do współdzielonego bufora zwalniane
+    private void closeBody(OutgoingFrame frame) {
+        if(frame.channel != null) {
+            try { frame.channel.close(); }
+            catch(IOException e) {}
+        }
+        if(frame.temporary && frame.body != null)
+            frame.body.delete();
+        if(frame.shared != null)
+            frame.shared.release();
+    }
+
+    // Przepisuje z bufora źródłowego tyle bajtów, ile mieści się w buforze docelowym
+    private static void transfer(ByteBuffer source, ByteBuffer target) {
+        int count = Math.min(source.remaining(), target.remaining());
+        ByteBuffer slice = source.duplicate();
+        slice.limit(slice.position() + count);
+        target.put(slice);
+        source.position(source.position() + count);
+    }
+}
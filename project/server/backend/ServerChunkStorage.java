@@ -0,0 +1,364 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Magazyn, w którym pliki są dzielone na fragmenty wyznaczane na podstawie zawartości (content-defined chunking),
+ * a każdy unikalny fragment jest przechowywany tylko raz w katalogu fragmentów, pod nazwą będącą jego skrótem SHA-256.
+ * W katalogu użytkownika zamiast zawartości pliku zapisywany jest jego przepis, czyli rozmiar, data modyfikacji,
+ * skrót całej zawartości oraz lista fragmentów. Dzięki temu ta sama zawartość u wielu użytkowników lub w kolejnych wersjach pliku nie zajmuje
+ * dodatkowego miejsca na dysku i nie jest ponownie zapisywana.
+ *
+ * Granice fragmentów wyznaczane są za pomocą toczącego się skrótu Gear, dlatego wstawienie danych w środku pliku
+ * zmienia jedynie sąsiednie fragmenty. Odczytywany plik nie jest składany z fragmentów, lecz udostępniany jako ciąg
+ * plików fragmentów, które połączenia wysyłają kolejno. Fragmenty, do których nie odwołuje się żaden przepis, są
+ * usuwane podczas uruchamiania serwera.
+ */
+class ServerChunkStorage implements ServerStorage {
+
+    /** Nazwa katalogu fragmentów w katalogu serwera. */
+    static final String CHUNKS_DIRECTORY = ".chunks";
+
+    // Minimalny, przeciętny i maksymalny rozmiar fragmentu
+    private static final int MIN_CHUNK = 16 * 1024;
+    private static final long CHUNK_MASK = (1 << 16) - 1;
+    private static final int MAX_CHUNK = 256 * 1024;
+
+    // Liczba identyfikująca plik przepisu
+    private static final int RECIPE_MAGIC = 0x46434b31;
+
+    // Długość skrótu fragmentu
+    private static final int HASH_LENGTH = 32;
+
+    // Tablica losowych wartości skrótu Gear, stała dla wszystkich uruchomień serwera
+    private static final long[] GEAR = new long[256];
+    static {
+        Random random = new Random(0x46696c65436c6f75L);
+        for(int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    // Katalog serwera, katalog fragmentów oraz katalog roboczy
+    private String rootDirectory;
+    private File chunks;
+    private File staging;
+
+    /**
+     * Konstruuje magazyn w podanym katalogu serwera. Usuwane są pozostałości po nieukończonych transferach oraz
+     * fragmenty, do których nie odwołuje się żaden przepis.
+     * @param rootDirectory Katalog serwera.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się przygotować katalogów magazynu.
+     */
+    ServerChunkStorage(String rootDirectory) throws IOException {
+        this.rootDirectory = rootDirectory;
+        this.staging = ServerPlainStorage.prepareStaging(rootDirectory);
+        this.chunks = new File(rootDirectory, CHUNKS_DIRECTORY);
+        if(!chunks.isDirectory() && !chunks.mkdirs())
+            throw new IOException("Unable to create chunks directory");
+        collectGarbage();
+    }
+
+    /**
+     * Metoda zwraca spis wszystkich plików użytkownika na podstawie ich przepisów.
+     * @param login Login użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    public Manifest list(String login) {
+        // Przepisy mają te same ścieżki co pliki użytkownika, również w podkatalogach
+        Manifest manifest = new Manifest();
+        for(Manifest.Entry recipe : Manifest.scan(new File(rootDirectory, login)).getEntries()) {
+            Manifest.Entry entry = stat(login, recipe.getPath());
+            if(entry != null)
+                manifest.add(entry);
+        }
+        return manifest;
+    }
+
+    /**
+     * Metoda zwraca opis pliku użytkownika odczytany z jego przepisu.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    public Manifest.Entry stat(String login, String relativePath) {
+        File recipe = locate(login, relativePath);
+        if(!recipe.isFile())
+            return null;
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(recipe)))) {
+            return readHeader(input, relativePath);
+        } catch(IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Metoda zwraca plik przepisu, który zmienia się przy każdej zmianie pliku użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Plik przepisu.
+     */
+    public File locate(String login, String relativePath) {
+        return SafePath.resolve(new File(rootDirectory, login), relativePath);
+    }
+
+    /**
+     * Metoda udostępnia zawartość pliku użytkownika jako ciąg plików fragmentów odczytany z jego przepisu.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Zawartość pliku lub null, gdy plik nie istnieje.
+     * @throws IOException Wyjątek wyrzucany, gdy brakuje fragmentu lub odczyt przepisu się nie powiedzie.
+     */
+    public Snapshot open(String login, String relativePath) throws IOException {
+        File recipe = locate(login, relativePath);
+        if(!recipe.isFile())
+            return null;
+
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(recipe)))) {
+            Manifest.Entry entry = readHeader(input, relativePath);
+            int count = input.readInt();
+            List<FileSlice> slices = new ArrayList<>(count);
+            byte[] hash = new byte[HASH_LENGTH];
+            for(int i = 0; i < count; i++) {
+                input.readFully(hash);
+                long length = input.readInt();
+
+                // Brakujący fragment jest wykrywany przed wysłaniem, aby nie przerwał ramki w połowie
+                File chunk = chunkFile(hash);
+                if(!chunk.isFile())
+                    throw new FileNotFoundException("Missing chunk of " + relativePath);
+                slices.add(new FileSlice(chunk, 0, length));
+            }
+            return new Snapshot(slices, entry.getSize(), entry.getModificationTime(), staging);
+        }
+    }
+
+    /**
+     * Metoda tworzy pusty plik tymczasowy w katalogu roboczym.
+     * @return Plik tymczasowy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć pliku.
+     */
+    public File stage() throws IOException {
+        return File.createTempFile("upload", ".part", staging);
+    }
+
+    /**
+     * Metoda dzieli odebrany plik na fragmenty, zapisuje fragmenty, których jeszcze nie ma w magazynie, oraz zapisuje
+     * przepis pliku w katalogu użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @param staged Plik tymczasowy z zawartością.
+     * @param modificationTime Data modyfikacji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się zapisać fragmentów lub przepisu.
+     */
+    public void commit(String login, String relativePath, File staged, long modificationTime) throws IOException {
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        DataOutputStream entries = new DataOutputStream(list);
+        int count = 0;
+        long size = 0;
+
+        // Podział pliku na fragmenty i zapisanie nowych fragmentów, jednocześnie wyznaczany jest skrót całego pliku
+        MessageDigest digest = HashCache.newDigest();
+        MessageDigest fileDigest = HashCache.newDigest();
+        try(InputStream input = new FileInputStream(staged)) {
+            Chunker chunker = new Chunker(input);
+            byte[] chunk = chunker.getBuffer();
+            int length;
+            while((length = chunker.next()) > 0) {
+                int start = chunker.getOffset();
+                digest.update(chunk, start, length);
+                fileDigest.update(chunk, start, length);
+                byte[] hash = digest.digest();
+                storeChunk(hash, chunk, start, length);
+                entries.write(hash);
+                entries.writeInt(length);
+                count++;
+                size += length;
+            }
+        } finally {
+            staged.delete();
+        }
+
+        // Zapisanie przepisu do pliku tymczasowego i podmiana przepisu
+        File recipe = stage();
+        try(DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recipe)))) {
+            output.writeInt(RECIPE_MAGIC);
+            output.writeLong(size);
+            output.writeLong(modificationTime);
+            output.write(fileDigest.digest());
+            output.writeInt(count);
+            list.writeTo(output);
+        } catch(IOException e) {
+            recipe.delete();
+            throw e;
+        }
+        File target = locate(login, relativePath);
+        target.getParentFile().mkdirs();
+        Files.move(recipe.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        target.setLastModified(modificationTime);
+    }
+
+    /**
+     * Metoda usuwa przepis pliku użytkownika. Fragmenty są usuwane przy następnym uruchomieniu serwera, jeżeli nie
+     * odwołuje się do nich żaden inny przepis.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return true jeżeli plik został usunięty, false jeżeli plik nie istniał.
+     */
+    public boolean delete(String login, String relativePath) {
+        File file = locate(login, relativePath);
+        boolean deleted = file.delete();
+        ServerStorage.removeEmptyParents(file, new File(rootDirectory, login));
+        return deleted;
+    }
+
+    // Zapisuje fragment, jeżeli nie ma go jeszcze w magazynie
+    private void storeChunk(byte[] hash, byte[] data, int offset, int length) throws IOException {
+        File file = chunkFile(hash);
+        if(file.exists())
+            return;
+
+        file.getParentFile().mkdirs();
+        File temporary = stage();
+        try {
+            try(OutputStream output = new FileOutputStream(temporary)) {
+                output.write(data, offset, length);
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    // Zwraca plik fragmentu o podanym skrócie
+    private File chunkFile(byte[] hash) {
+        String name = toHex(hash);
+        return new File(new File(chunks, name.substring(0, 2)), name);
+    }
+
+    // Usuwa fragmenty, do których nie odwołuje się żaden przepis
+    private void collectGarbage() {
+        // Zebranie fragmentów używanych przez przepisy wszystkich użytkowników. Przepis, którego nie udało się odczytać,
+        // może odwoływać się do dowolnych fragmentów, więc wtedy żaden fragment nie jest usuwany
+        Set<String> used = new HashSet<>();
+        File[] users = new File(rootDirectory).listFiles();
+        if(users == null)
+            return;
+        try {
+            for(File user : users) {
+                if(!user.isDirectory() || user.getName().startsWith("."))
+                    continue;
+                for(Manifest.Entry recipe : Manifest.scan(user).getEntries())
+                    collectChunks(new File(user, recipe.getPath()), used);
+            }
+        } catch(IOException e) {
+            return;
+        }
+
+        // Usunięcie pozostałych fragmentów
+        File[] prefixes = chunks.listFiles();
+        if(prefixes == null)
+            return;
+        for(File prefix : prefixes) {
+            File[] files = prefix.listFiles();
+            if(files == null)
+                continue;
+            for(File file : files) {
+                if(!used.contains(file.getName()))
+                    file.delete();
+            }
+        }
+    }
+
+    // Dodaje do zbioru skróty fragmentów, do których odwołuje się przepis
+    private static void collectChunks(File recipe, Set<String> used) throws IOException {
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(recipe)))) {
+            readHeader(input, recipe.getName());
+            int count = input.readInt();
+            byte[] hash = new byte[HASH_LENGTH];
+            for(int i = 0; i < count; i++) {
+                input.readFully(hash);
+                input.readInt();
+                used.add(toHex(hash));
+            }
+        }
+    }
+
+    // Odczytuje nagłówek przepisu, po którym w strumieniu następuje liczba fragmentów
+    private static Manifest.Entry readHeader(DataInputStream input, String relativePath) throws IOException {
+        if(input.readInt() != RECIPE_MAGIC)
+            throw new IOException("Invalid recipe " + relativePath);
+        long size = input.readLong();
+        long modificationTime = input.readLong();
+        byte[] hash = new byte[HASH_LENGTH];
+        input.readFully(hash);
+        return new Manifest.Entry(relativePath, size, modificationTime, hash);
+    }
+
+    // Zamienia skrót na zapis szesnastkowy
+    private static String toHex(byte[] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for(byte value : hash)
+            builder.append(String.format("%02x", value));
+        return builder.toString();
+    }
+
+    // Dzieli zawartość strumienia na fragmenty, których granice wyznacza skrót Gear. Strumień jest odczytywany dużymi
+    // porcjami do bufora mieszczącego co najmniej jeden największy fragment, a granice są wyszukiwane w tablicy
+    private static class Chunker {
+        private InputStream input;
+        private byte[] buffer = new byte[2 * MAX_CHUNK];
+        private int offset;
+        private int length;
+        private int end;
+        private boolean finished;
+
+        Chunker(InputStream input) {
+            this.input = input;
+        }
+
+        // Zwraca bufor, w którym znajduje się aktualny fragment
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        // Zwraca pozycję aktualnego fragmentu w buforze
+        int getOffset() {
+            return offset;
+        }
+
+        // Wyznacza kolejny fragment i zwraca jego długość, 0 gdy strumień się skończył
+        int next() throws IOException {
+            offset += length;
+
+            // Przesunięcie pozostałych danych na początek bufora i doczytanie strumienia, gdy w buforze nie mieści się
+            // największy fragment
+            if(end - offset < MAX_CHUNK && !finished) {
+                System.arraycopy(buffer, offset, buffer, 0, end - offset);
+                end -= offset;
+                offset = 0;
+                while(end < buffer.length) {
+                    int count = input.read(buffer, end, buffer.length - end);
+                    if(count < 0) {
+                        finished = true;
+                        break;
+                    }
+                    end += count;
+                }
+            }
+
+            int limit = Math.min(end - offset, MAX_CHUNK);
+            long hash = 0;
+            length = 0;
+            while(length < limit) {
+                hash = (hash << 1) + GEAR[buffer[offset + length++] & 0xff];
+                if(length >= MIN_CHUNK && (hash & CHUNK_MASK) == 0)
+                    break;
+            }
+            return length;
+        }
+    }
+}
@@ -2,6 +2,7 @@ package project.server.backend;
 
 import java.net.*;
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 import project.common.*;
 
@@ -12,26 +13,77 @@ public class ServerClient {
 
     // Parametry przekazywane w konstruktorze
     private InetAddress addressIP;
-    private int port;
+    private Connection connection;
     private ServerUser user;
     private ServerListener serverListener;
+    private ExecutorService workers;
 
-    // Pula wątków w której umieszczane są wszystkie zadania wysyłania związane z klientem
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    // Kolejka w której umieszczane są wszystkie zadania wysyłania związane z klientem, wykonywane po kolei
+    private ServerSendQueue executor;
+
+    // Obiekt odkładający wysyłanie plików do momentu, aż przestaną się zmieniać
+    private Debouncer debouncer;
+
+    // Dodatkowe połączenia klienta, którymi równolegle przesyłane są fragmenty dużych plików
+    private List<Connection> streams = new CopyOnWriteArrayList<>();
+
+    // Obiekt dobierający liczbę połączeń na podstawie przepustowości łącza z klientem
+    private ParallelTransfer parallelTransfer = new ParallelTransfer();
+
+    // Pliki odbierane od klienta we fragmentach według ścieżek
+    private Map<String, RangeAssembly> assemblies = new HashMap<>();
+
+    // Duże pliki wysyłane klientowi w kolejnych fragmentach według ścieżek
+    private Map<String, SlicedTransfer> slicedTransfers = new ConcurrentHashMap<>();
+
+    // Możliwości protokołu obsługiwane przez klienta, przesłane podczas logowania
+    private volatile int capabilities;
+
+    // Identyfikator sesji nadany przez menedżera klientów, którym klient dołącza dodatkowe połączenia
+    private volatile long session;
+
+    // Obiekt decydujący o kompresji plików na podstawie szybkości kompresji i przepustowości łącza z klientem
+    private Compression compression = new Compression();
+
+    // Wersje plików wysyłane jednocześnie kilku klientom, oczekujące na wysłanie do tego klienta, według ścieżek
+    private Map<String, ServerFanout> fanouts = new ConcurrentHashMap<>();
+
+    // Żądania wysłane klientowi, oczekujące na odpowiedź lub na przesłanie pliku
+    private PendingRequests requests = new PendingRequests();
+
+    // Wiadra ograniczające przepustowość danych odbieranych od klienta i wysyłanych do niego wszystkimi połączeniami
+    private TokenBucket upload;
+    private TokenBucket download;
+
+    // Flaga informująca o wylogowaniu klienta
+    private volatile boolean loggedOut;
 
     /**
      * Konstruktor tworzy obiekt klienta o podanych parametrach.
      * @param addressIP Adres IP klienta
      * @param user Obiekt użytkownika do którego należy klient.
-     * @param port Numer port za pomocą którego klient będzie się komunikował.
+     * @param connection Trwałe połączenie za pomocą którego klient się komunikuje.
      * @param serverListener Obiekt słuchacza.
+     * @param workers Pula wątków serwera wykonująca zadania wysyłania, wspólna dla wszystkich klientów.
      */
-    public ServerClient(InetAddress addressIP, ServerUser user, int port, ServerListener serverListener) {
+    public ServerClient(InetAddress addressIP, ServerUser user, Connection connection, ServerListener serverListener,
+                        ExecutorService workers) {
         // Zapamiętanie parametrów
         this.addressIP = addressIP;
-        this.port = port;
+        this.connection = connection;
         this.user = user;
         this.serverListener = serverListener;
+        this.workers = workers;
+
+        // Dane klienta są liczone również w ograniczeniach jego użytkownika i całego serwera
+        upload = new TokenBucket(user.getUploadBucket());
+        download = new TokenBucket(user.getDownloadBucket());
+        connection.setBandwidth(upload, download);
+
+        // Klient, który przestał odbierać wiadomości, jest rozłączany
+        executor = new ServerSendQueue("Send queue of " + this, workers, ServerSendQueue.DEFAULT_CAPACITY, serverListener,
+                connection::close);
+        debouncer = new Debouncer(executor);
     }
 
     /**
@@ -51,11 +103,11 @@ public class ServerClient {
     }
 
     /**
-     * Metoda zwraca numer portu za pomocą którego klient się komunikuje.
-     * @return Numer portu.
+     * Metoda zwraca połączenie za pomocą którego klient się komunikuje.
+     * @return Połączenie z klientem.
      */
-    public int getPort() {
-        return port;
+    public Connection getConnection() {
+        return connection;
     }
 
     /**
@@ -67,56 +119,316 @@ public class ServerClient {
     }
 
     /**
-     * Metoda wykonuje zadania niezbędne, gdy klient się wyloguje, czyli zamyka związaną z nim pulę wątków.
+     * Metoda zwraca kolejkę zadań wysyłania do klienta, np. aby odczytać jej statystyki.
+     * @return Kolejka wysyłania do klienta.
+     */
+    public ServerSendQueue getSendQueue() {
+        return executor;
+    }
+
+    /**
+     * Metoda zwraca żądania wysłane klientowi, np. aby odczytać ich liczbę lub średni czas odpowiedzi.
+     * @return Żądania oczekujące na odpowiedź klienta.
+     */
+    public PendingRequests getRequests() {
+        return requests;
+    }
+
+    /**
+     * Metoda zwraca wiadro ograniczające przepustowość danych przesyłanych przez klienta do serwera.
+     * @return Wiadro danych odbieranych od klienta.
+     */
+    TokenBucket getUploadBucket() {
+        return upload;
+    }
+
+    /**
+     * Metoda zwraca wiadro ograniczające przepustowość danych wysyłanych przez serwer do klienta.
+     * @return Wiadro danych wysyłanych do klienta.
+     */
+    TokenBucket getDownloadBucket() {
+        return download;
+    }
+
+    /**
+     * Metoda dołącza do klienta dodatkowe połączenie, którym mogą być przesyłane fragmenty dużych plików.
+     * @param stream Dodatkowe połączenie z klientem.
+     */
+    void attachStream(Connection stream) {
+        stream.setBandwidth(upload, download);
+        streams.add(stream);
+    }
+
+    /**
+     * Metoda odłącza od klienta zamknięte dodatkowe połączenie.
+     * @param stream Dodatkowe połączenie z klientem.
+     */
+    void detachStream(Connection stream) {
+        streams.remove(stream);
+    }
+
+    /**
+     * Metoda wykonuje zadania niezbędne, gdy klient się wyloguje, czyli zamyka związaną z nim kolejkę wysyłania i dodatkowe
+     * połączenia oraz przerywa składanie plików, których fragmenty nie zostaną już odebrane.
      */
     public void logout() {
-        executor.shutdown();
+        loggedOut = true;
+        debouncer.close();
+        executor.close();
+        requests.close();
+        for(String relativePath : fanouts.keySet())
+            release(fanouts.remove(relativePath));
+        for(String relativePath : slicedTransfers.keySet())
+            cancelSlices(relativePath);
+        for(Connection stream : streams)
+            stream.close();
+        synchronized(assemblies) {
+            for(RangeAssembly assembly : assemblies.values())
+                assembly.abort();
+            assemblies.clear();
+        }
+    }
+
+    /**
+     * Metoda zwraca obiekt, do którego należy zapisać fragment pliku przesyłanego przez klienta równolegle. Pierwszy
+     * fragment transferu rozpoczyna składanie pliku, a fragment, który dopełni plik, zatwierdza go w magazynie
+     * i rozsyła pozostałym klientom użytkownika.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param modificationTime Data modyfikacji pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której klient wysyła plik.
+     * @param transfer Identyfikator transferu nadany przez klienta.
+     * @param start Pozycja fragmentu w pliku.
+     * @param length Długość fragmentu po rozpakowaniu.
+     * @param compressed true jeżeli dane fragmentu są skompresowane, false w przeciwnym wypadku.
+     * @return Obiekt odbierający fragment lub null, gdy fragment ma zostać pominięty.
+     */
+    ServerReceiver receiveRange(String relativePath, long modificationTime, long size, long offset, long transfer,
+                                long start, long length, boolean compressed) {
+        RangeAssembly assembly;
+        synchronized(assemblies) {
+            assembly = assemblies.get(relativePath);
+            if(assembly == null || !assembly.belongsTo(transfer)) {
+                // Poprzedni transfer tego pliku nie zostanie już dokończony
+                if(assembly != null)
+                    assembly.abort();
+                assembly = user.receiveFileRanges(relativePath, modificationTime, size, offset, transfer,
+                        () -> requestFullFile(relativePath));
+                assemblies.put(relativePath, assembly);
+            }
+        }
+
+        RangeAssembly.Range range = assembly.open(start, length);
+        if(range == null)
+            return null;
+        RangeAssembly finished = assembly;
+        return new ServerRangeUpload(user, relativePath, assembly, range, compressed, () -> {
+            synchronized(assemblies) {
+                assemblies.remove(relativePath, finished);
+            }
+            fileReceived(relativePath);
+        });
+    }
+
+    /**
+     * Metoda przerywa składanie pliku przesyłanego przez klienta we fragmentach, np. gdy klient usunął plik w trakcie
+     * jego wysyłania. Odebrany początek pliku jest zachowywany.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     */
+    void abortRanges(String relativePath) {
+        synchronized(assemblies) {
+            RangeAssembly assembly = assemblies.remove(relativePath);
+            if(assembly != null)
+                assembly.abort();
+        }
+    }
+
+    /**
+     * Metoda kończy żądanie przesłania pliku, który klient przesłał na serwer, i rozsyła plik pozostałym klientom
+     * użytkownika. Wywoływana jest po zatwierdzeniu pliku w magazynie.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     */
+    void fileReceived(String relativePath) {
+        requests.complete(Command.NEED_FILE, relativePath, true);
+        user.sendFileExcept(relativePath, this);
+    }
+
+    /**
+     * Metoda zwraca identyfikator sesji klienta, przesyłany klientowi w odpowiedzi na logowanie.
+     * @return Identyfikator sesji.
+     */
+    public long getSession() {
+        return session;
+    }
+
+    /**
+     * Metoda ustawia identyfikator sesji klienta. Wywoływana jest przez menedżera klientów przed dodaniem klienta.
+     * @param session Identyfikator sesji.
+     */
+    void setSession(long session) {
+        this.session = session;
+    }
+
+    /**
+     * Metoda ustawia możliwości protokołu obsługiwane przez klienta.
+     * @param capabilities Maska możliwości przesłana przez klienta podczas logowania.
+     */
+    void setCapabilities(int capabilities) {
+        this.capabilities = capabilities;
+    }
+
+    /**
+     * Metoda zwraca możliwości protokołu obsługiwane przez klienta.
+     * @return Maska możliwości przesłana przez klienta podczas logowania.
+     */
+    int getCapabilities() {
+        return capabilities;
     }
 
     /**
-     * Metoda wysyła klientowi wiadomość o udanym logowaniu.
+     * Metoda wysyła klientowi wiadomość o udanym logowaniu wraz z możliwościami protokołu obsługiwanymi przez serwer,
+     * identyfikatorem sesji oraz wersją protokołu serwera.
      */
     public void sendLoginSuccess() {
         executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+            void send(Connection connection) throws IOException {
                 serverListener.log("<< Sending login success to " + ServerClient.this.toString());
-                stream.writeInt(Command.LOGIN_SUCCESS.asInt());
+                connection.send(Command.LOGIN_SUCCESS, stream -> {
+                    stream.writeInt(Capability.supported());
+                    stream.writeLong(session);
+                    stream.writeInt(FrameHeader.VERSION);
+                });
             }
         });
     }
 
     /**
-     * Metoda wysyła klientowi plik.
+     * Metoda wysyła klientowi plik. Wysłanie następuje dopiero, gdy plik przestanie się zmieniać, a kolejne
+     * wywołania dla tego samego pliku przed jego wysłaniem skutkują tylko jednym wysłaniem.
      * @param relativePath Ścieżka do wysyłanego pliku względem katalogu użytkownika.
      */
     public void sendFile(String relativePath) {
-        try { TimeUnit.SECONDS.sleep(1); }
-        catch(Exception e) {};
+        sendFile(relativePath, Resume.none());
+    }
 
-        // Odczytanie czasu modyfikacji i rozmiaru pliku
-        File file = new File(user.getDirectory(), relativePath);
-        long modificationTime = file.lastModified();
-        long size = file.length();
+    /**
+     * Metoda wysyła klientowi plik wysyłany jednocześnie kilku klientom, którego zawartość jest odczytywana z magazynu
+     * tylko raz. Wysłanie następuje, tak jak w przypadku pozostałych plików, dopiero gdy plik przestanie się zmieniać.
+     * @param relativePath Ścieżka do wysyłanego pliku względem katalogu użytkownika.
+     * @param fanout Wysyłana wersja pliku, klient zwalnia swoje odwołanie do niej.
+     */
+    void sendFile(String relativePath, ServerFanout fanout) {
+        // Oczekująca wcześniejsza wersja pliku nie zostanie już wysłana
+        release(fanouts.put(relativePath, fanout));
+        if(loggedOut)
+            release(fanouts.remove(relativePath));
+        sendFile(relativePath);
+    }
 
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                // Powiadomienie o wysyłaniu pliku
-                serverListener.log("<< Sending file " + relativePath + " to " + ServerClient.this.toString());
-
-                // Wysłanie nagłówka
-                stream.writeInt(Command.SEND_FILE.asInt());
-                stream.writeUTF(relativePath);
-                stream.writeLong(modificationTime);
-                stream.writeLong(size);
-
-                // Wysyłanie zawartości pliku
-                try(FileInputStream input = new FileInputStream(file)) {
-                    for(long pos=0; pos<size; pos++) {
-                        int aByte = input.read();
-                        stream.write(aByte);
-                        stream.flush();
-                    }
+    /**
+     * Metoda wysyła klientowi plik, o który poprosił. Jeżeli klient posiada już początek tej samej wersji pliku,
+     * wysyłana jest jedynie pozostała część.
+     * @param relativePath Ścieżka do wysyłanego pliku względem katalogu użytkownika.
+     * @param resume Informacja o częściowo odebranych przez klienta danych pliku.
+     */
+    public void sendFile(String relativePath, Resume resume) {
+        debouncer.schedule(relativePath, user.locateFile(relativePath), priority(relativePath), new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                // Plik mógł zostać w międzyczasie usunięty
+                Manifest.Entry entry = user.getFileInfo(relativePath);
+                if(entry == null) {
+                    release(fanouts.remove(relativePath));
+                    return;
                 }
+
+                // Duże pliki są przesyłane różnicowo, więc najpierw potrzebna jest sygnatura wersji klienta,
+                // chyba że klient ma już część pliku i wystarczy dokończyć przesyłanie
+                if(resume.getOffset() == 0 && Delta.isWorthwhile(entry.getSize())) {
+                    serverListener.log("<< Sending signature request for " + relativePath + " to " + ServerClient.this.toString());
+                    connection.send(Command.REQUEST_SIGNATURE, stream -> stream.writeUTF(relativePath));
+                    return;
+                }
+
+                sendWholeFile(connection, relativePath, resume);
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła klientowi różnicę pomiędzy plikiem na serwerze a wersją klienta opisaną sygnaturą. Jeżeli
+     * sygnatura jest pusta lub różnica nie jest mniejsza od pliku, plik wysyłany jest w całości.
+     * @param relativePath Ścieżka do wysyłanego pliku względem katalogu użytkownika.
+     * @param signature Sygnatura wersji pliku posiadanej przez klienta.
+     */
+    public void sendFileDelta(String relativePath, Delta.Signature signature) {
+        executor.execute(relativePath, priority(relativePath), new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                // Klient nie posiada pliku lub nie udało mu się odtworzyć różnicy
+                if(signature.isEmpty()) {
+                    sendWholeFile(connection, relativePath, Resume.none());
+                    return;
+                }
+
+                ServerStorage.Snapshot snapshot = user.openFile(relativePath);
+                if(snapshot == null)
+                    return;
+
+                // Wyznaczenie różnicy, która nie opłaca się, gdy plik zmienił się prawie w całości
+                Delta.Patch patch;
+                try { patch = Delta.Patch.create(snapshot.getFile(), signature); }
+                finally { snapshot.release(); }
+                if(!patch.isSmaller()) {
+                    patch.discard();
+                    sendWholeFile(connection, relativePath, Resume.none());
+                    return;
+                }
+
+                // Klient otrzyma różnicę zamiast całego pliku
+                release(fanouts.remove(relativePath));
+                cancelSlices(relativePath);
+
+                serverListener.log("<< Sending delta of " + relativePath + " (" + patch.getLength() + " bytes) to " + ServerClient.this.toString());
+                connection.send(Command.SEND_DELTA, stream -> patch.writeHeader(stream, relativePath), patch.getFile(), patch.getLength(), true);
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła klientowi sygnaturę wersji pliku na serwerze, aby klient mógł przesłać go różnicowo. Gdy plik nie
+     * istnieje wysyłana jest pusta sygnatura.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     */
+    public void sendSignature(String relativePath) {
+        executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                ServerStorage.Snapshot snapshot = user.openFile(relativePath);
+                Delta.Signature signature;
+                try { signature = snapshot == null ? Delta.Signature.empty() : Delta.Signature.compute(snapshot.getFile()); }
+                finally { if(snapshot != null) snapshot.release(); }
+                serverListener.log("<< Sending signature of " + relativePath + " to " + ServerClient.this.toString());
+                connection.send(Command.SIGNATURE, stream -> {
+                    stream.writeUTF(relativePath);
+                    signature.write(stream);
+                });
+            }
+        });
+    }
+
+    /**
+     * Metoda prosi klienta o przesłanie pliku w całości, wysyłając mu pustą sygnaturę. Wykorzystywana jest, gdy nie
+     * udało się odtworzyć pliku z różnicy. Żądanie pliku oczekujące na wynik jest kończone wyjątkowo, ponieważ plik
+     * nie został odebrany, a kolejne żądanie tego pliku zostanie wysłane ponownie.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     */
+    public void requestFullFile(String relativePath) {
+        requests.fail(Command.NEED_FILE, relativePath, new IOException("Unable to receive file " + relativePath));
+        executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                serverListener.log("<< Requesting whole file " + relativePath + " from " + ServerClient.this.toString());
+                connection.send(Command.SIGNATURE, stream -> {
+                    stream.writeUTF(relativePath);
+                    Delta.Signature.empty().write(stream);
+                });
             }
         });
     }
@@ -126,43 +438,124 @@ public class ServerClient {
      * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
      */
     public void sendAdvertisement(String relativePath) {
-        // Odczytanie daty modyfikacji
-        File file = new File(user.getDirectory(), relativePath);
-        long modificationTime = file.lastModified();
+        checkFile(relativePath);
+    }
 
-        // Ignorowanie katalogów
-        if(file.isDirectory())
-            return;
+    /**
+     * Metoda wysyła klientowi powiadomienie o pliku istniejącym na serwerze i zwraca wynik, który klient odsyła, gdy
+     * ma już aktualną wersję pliku, w razie potrzeby po jej pobraniu. Równoczesne powiadomienia o tym samym pliku są
+     * łączone w jedno.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Wynik powiadomienia, false gdy plik nie istnieje na serwerze.
+     */
+    public CompletableFuture<Boolean> checkFile(String relativePath) {
+        // Odczytanie daty modyfikacji, katalogi i nieistniejące pliki są ignorowane
+        Manifest.Entry entry = user.getFileInfo(relativePath);
+        if(entry == null)
+            return CompletableFuture.completedFuture(false);
+        long modificationTime = entry.getModificationTime();
+        byte[] hash = entry.getHash();
 
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        return requests.submit(Command.CHECK_FILE, relativePath, requestId -> executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
                 serverListener.log("<< Sending advertisement about file " + relativePath + " to " + ServerClient.this.toString());
-                stream.writeInt(Command.CHECK_FILE.asInt());
-                stream.writeUTF(relativePath);
-                stream.writeLong(modificationTime);
+                connection.send(Command.CHECK_FILE, requestId, stream -> {
+                    stream.writeUTF(relativePath);
+                    stream.writeLong(modificationTime);
+                    Manifest.writeHash(stream, hash);
+                });
+            }
+        }));
+    }
+
+    /**
+     * Metoda wysyła klientowi w jednej ramce spis wszystkich plików, które istnieją w jego katalogu na serwerze.
+     */
+    public void sendManifest() {
+        executor.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Manifest manifest = user.getFiles();
+                serverListener.log("<< Sending manifest of " + manifest.size() + " files to " + ServerClient.this.toString());
+                connection.send(Command.MANIFEST, manifest::write);
             }
         });
     }
 
     /**
-     * Metoda wysyła klientowi powiadomienia o wszystkich plikach, które istnieją w jego katalogu na serwerze.
+     * Metoda wysyła klientowi skróty węzłów drzewa Merkle katalogu użytkownika, które klient powinien porównać ze
+     * swoimi.
+     * @param nodes Węzły drzewa.
      */
-    public void sendAdvertisements() {
-        String[] list = new File(user.getDirectory()).list();
-        for(String name : list)
-            sendAdvertisement(name);
+    public void sendTreeNodes(MerkleTree.Nodes nodes) {
+        executor.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                serverListener.log("<< Sending " + nodes.size() + " tree nodes to " + ServerClient.this.toString());
+                connection.send(Command.MERKLE_NODES, nodes::write);
+            }
+        });
     }
 
     /**
-     * Metoda wysyła klientowi żądanie, aby on przesłał na serwer dany plik.
+     * Metoda wysyła klientowi spis plików z liści drzewa Merkle, którymi różnią się katalogi klienta i serwera.
+     * @param reply true jeżeli spis jest odpowiedzią na spis klienta, false jeżeli klient powinien odesłać swój spis.
+     * @param leaves Numery liści.
+     * @param manifest Spis plików użytkownika należących do liści.
+     */
+    public void sendTreeEntries(boolean reply, List<Integer> leaves, Manifest manifest) {
+        executor.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                serverListener.log("<< Sending " + manifest.size() + " files of " + leaves.size() + " tree leaves to " + ServerClient.this.toString());
+                connection.send(Command.MERKLE_ENTRIES, stream -> {
+                    stream.writeBoolean(reply);
+                    MerkleTree.writeLeaves(stream, leaves);
+                    manifest.write(stream);
+                });
+            }
+        });
+    }
+
+    /**
+     * Metoda wysyła klientowi żądanie, aby on przesłał na serwer dany plik. Do żądania dołączana jest informacja
+     * o częściowo odebranych danych pliku, aby klient mógł wznowić przerwane przesyłanie.
      * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
      */
     public void sendRequest(String relativePath) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        requestFile(relativePath);
+    }
+
+    /**
+     * Metoda wysyła klientowi żądanie przesłania pliku na serwer i zwraca wynik, który jest ustalany po odebraniu
+     * i zatwierdzeniu pliku lub po otrzymaniu od klienta odpowiedzi, że nie posiada pliku. Równoczesne żądania tego
+     * samego pliku są łączone w jedno, a liczba żądań oczekujących na wynik jest ograniczona.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Wynik żądania, true gdy plik został odebrany, false gdy klient go nie posiada lub go usunął.
+     */
+    public CompletableFuture<Boolean> requestFile(String relativePath) {
+        return requests.submit(Command.NEED_FILE, relativePath, requestId -> executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Resume resume = user.getResume(relativePath);
                 serverListener.log("<< Sending send request for file " + relativePath + " to " + ServerClient.this.toString());
-                stream.writeInt(Command.NEED_FILE.asInt());
-                stream.writeUTF(relativePath);
+                connection.send(Command.NEED_FILE, requestId, stream -> {
+                    stream.writeUTF(relativePath);
+                    resume.write(stream);
+                });
+            }
+        }));
+    }
+
+    /**
+     * Metoda wysyła klientowi jedno żądanie, aby przesłał on na serwer wszystkie podane pliki, wraz z informacjami
+     * o ich częściowo odebranych danych.
+     * @param relativePaths Ścieżki do plików względem katalogu użytkownika.
+     */
+    public void sendRequests(List<String> relativePaths) {
+        executor.execute(new SendWrapper() {
+            void send(Connection connection) throws IOException {
+                Map<String, Resume> requests = new LinkedHashMap<>();
+                for(String relativePath : relativePaths)
+                    requests.put(relativePath, user.getResume(relativePath));
+                serverListener.log("<< Sending send request for " + relativePaths.size() + " files to " + ServerClient.this.toString());
+                connection.send(Command.NEED_FILES, stream -> Resume.writeRequests(stream, requests));
             }
         });
     }
@@ -172,39 +565,48 @@ public class ServerClient {
      * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
      */
     public void sendDelete(String relativePath) {
-        executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
+        // Plik oczekujący na wysłanie lub wysyłany we fragmentach nie istnieje już na serwerze
+        debouncer.cancel(relativePath);
+        release(fanouts.remove(relativePath));
+        cancelSlices(relativePath);
+
+        executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+            void send(Connection connection) throws IOException {
                 serverListener.log("<< Sending delete request for file " + relativePath + " to " + ServerClient.this.toString());
-                stream.writeInt(Command.DELETE_FILE.asInt());
-                stream.writeUTF(relativePath);
+                connection.send(Command.DELETE_FILE, stream -> stream.writeUTF(relativePath));
             }
         });
     }
 
     /**
-     * Wysłanie klientowi powiadomienie o aktywnym użytkowniku
-     * @param login Login aktywnego użytkownika
+     * Wysłanie klientowi jednego zbiorczego powiadomienia o aktywnych i nieaktywnych użytkownikach.
+     * @param active Loginy aktywnych użytkowników.
+     * @param inactive Loginy nieaktywnych użytkowników.
      */
-    public void sendUserActive(String login) {
+    public void sendPresence(List<String> active, List<String> inactive) {
         executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                serverListener.log("<< Sending active user notification to " + ServerClient.this.toString());
-                stream.writeInt(Command.USER_ACTIVE.asInt());
-                stream.writeUTF(login);
+            void send(Connection connection) throws IOException {
+                serverListener.log("<< Sending " + active.size() + " active and " + inactive.size() + " inactive users to " + ServerClient.this.toString());
+                connection.send(Command.PRESENCE, stream -> {
+                    writeLogins(stream, active);
+                    writeLogins(stream, inactive);
+                });
             }
         });
     }
 
     /**
-     * Wysłanie klientowi powiadomienie o nieaktywnym użytkowniku
-     * @param login Login nieaktywnego użytkownika
+     * Metoda wysyła klientowi odpowiedź na jego żądanie. Ramki bez identyfikatora żądania pozostają bez odpowiedzi.
+     * @param requestId Identyfikator żądania z nagłówka ramki.
+     * @param result Wynik żądania.
      */
-    public void sendUserInactive(String login) {
+    void sendResponse(int requestId, boolean result) {
+        if(requestId == FrameHeader.NO_REQUEST)
+            return;
         executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                serverListener.log("<< Sending inactive user notification to " + ServerClient.this.toString());
-                stream.writeInt(Command.USER_INACTIVE.asInt());
-                stream.writeUTF(login);
+            void send(Connection connection) throws IOException {
+                serverListener.log("<< Sending response " + result + " to request " + requestId + " of " + ServerClient.this.toString());
+                connection.send(Command.RESPONSE, requestId, stream -> stream.writeBoolean(result));
             }
         });
     }
@@ -215,8 +617,8 @@ public class ServerClient {
     public void sendServerDown() {
         serverListener.log("<< Sending server shutdown info to " + ServerClient.this.toString());
         executor.execute(new SendWrapper() {
-            void send(DataOutputStream stream) throws IOException {
-                stream.writeInt(Command.SERVER_DOWN.asInt());
+            void send(Connection connection) throws IOException {
+                connection.send(Command.SERVER_DOWN, null);
             }
         });
     }
@@ -230,21 +632,181 @@ public class ServerClient {
         return addressIP.getHostName() + "(" + user.getLogin() + ")";
     }
 
+    // Wysyła klientowi cały plik lub jego pozostałą część, jeżeli klient posiada już jego początek
+    private void sendWholeFile(Connection connection, String relativePath, Resume resume) throws IOException {
+        // Wcześniejsza wersja pliku, której fragmenty są jeszcze wysyłane, jest już nieaktualna
+        cancelSlices(relativePath);
+
+        // Plik wysyłany jednocześnie kilku klientom jest wysyłany ze współdzielonego bufora
+        ServerFanout fanout = fanouts.remove(relativePath);
+        if(fanout != null) {
+            try {
+                if(resume.getOffset() == 0 && sendShared(connection, relativePath, fanout))
+                    return;
+            } finally {
+                fanout.release();
+            }
+        }
+
+        // Udostępnienie zawartości pliku przez magazyn, plik mógł zostać w międzyczasie usunięty
+        ServerStorage.Snapshot snapshot = user.openFile(relativePath);
+        if(snapshot == null)
+            return;
+        long modificationTime = snapshot.getModificationTime();
+        long size = snapshot.getSize();
+        long offset = resume.offsetFor(snapshot.getSlices(), modificationTime, size);
+
+        // Powiadomienie o wysyłaniu pliku
+        serverListener.log("<< Sending file " + relativePath + " to " + ServerClient.this.toString() + (offset > 0 ? " from byte " + offset : ""));
+
+        // Pliki, które dobrze się kompresują, są przesyłane w postaci skompresowanej, o ile klient obsługuje kompresję,
+        // w fragmentach kompresowanych osobno tuż przed wysłaniem
+        int level = Capability.COMPRESSION.isIn(capabilities) ? compression.chooseLevel(snapshot.getSlices(), offset, size) : Compression.NONE;
+        if(level != Compression.NONE) {
+            sendSlices(connection, relativePath, modificationTime, size, snapshot.getSlices(), offset, level);
+            return;
+        }
+
+        // Duże pliki są przesyłane równolegle wszystkimi połączeniami klienta
+        List<Connection> connections = new ArrayList<>();
+        connections.add(connection);
+        connections.addAll(streams);
+        if(parallelTransfer.isWorthwhile(size - offset, connections.size())) {
+            parallelTransfer.send(connections, workers, relativePath, modificationTime, size, snapshot.getSlices(), offset);
+            return;
+        }
+
+        // Pozostałe duże pliki są wysyłane we fragmentach, pomiędzy którymi kolejka może wysłać inne komunikaty
+        if(SlicedTransfer.isWorthwhile(size - offset)) {
+            sendSlices(connection, relativePath, modificationTime, size, snapshot.getSlices(), offset, Compression.NONE);
+            return;
+        }
+
+        // Wysłanie nagłówka i zawartości pliku prosto z plików magazynu
+        long begin = System.nanoTime();
+        connection.send(Command.SEND_FILE, stream -> {
+            stream.writeUTF(relativePath);
+            stream.writeLong(modificationTime);
+            stream.writeLong(size);
+            stream.writeLong(offset);
+        }, FileSlice.range(snapshot.getSlices(), offset, size - offset));
+        measure(connection, size - offset, begin);
+    }
+
+    // Wysyła klientowi cały plik ze współdzielonego bufora, zwraca false gdy plik należy odczytać z magazynu
+    private boolean sendShared(Connection connection, String relativePath, ServerFanout fanout) throws IOException {
+        SharedBuffer content = fanout.getContent();
+        if(content == null)
+            return false;
+        long modificationTime = fanout.getModificationTime();
+        long size = content.getSize();
+
+        // Duże pliki są przesyłane równolegle wszystkimi połączeniami klienta, z których każde odczytuje swój fragment
+        if(parallelTransfer.isWorthwhile(size, streams.size() + 1)) {
+            content.release();
+            return false;
+        }
+
+        // Powiadomienie o wysyłaniu pliku
+        serverListener.log("<< Sending file " + relativePath + " to " + ServerClient.this.toString());
+
+        // Skompresowana zawartość jest również współdzielona przez klientów, którzy wybrali ten sam poziom kompresji
+        Command command = Command.SEND_FILE;
+        SharedBuffer body = content;
+        int level = Capability.COMPRESSION.isIn(capabilities) ? compression.chooseLevel(content.getData()) : Compression.NONE;
+        if(level != Compression.NONE) {
+            SharedBuffer compressed = fanout.getCompressed(level);
+            if(compressed != null) {
+                content.release();
+                command = Command.SEND_COMPRESSED;
+                body = compressed;
+            }
+        }
+
+        // Wysłanie nagłówka i zawartości bufora, połączenie zwalnia odwołanie do bufora
+        long length = body.getSize();
+        long begin = System.nanoTime();
+        connection.send(command, stream -> {
+            stream.writeUTF(relativePath);
+            stream.writeLong(modificationTime);
+            stream.writeLong(size);
+            stream.writeLong(0);
+        }, body);
+        measure(connection, length, begin);
+        return true;
+    }
+
+    // Rozpoczyna wysyłanie pliku we fragmentach, opcjonalnie kompresowanych
+    private void sendSlices(Connection connection, String relativePath, long modificationTime, long size,
+                            List<FileSlice> body, long offset, int level) throws IOException {
+        SlicedTransfer transfer = new SlicedTransfer(connection, relativePath, modificationTime, size, body, offset, level, compression);
+        slicedTransfers.put(relativePath, transfer);
+        sendSlice(transfer);
+    }
+
+    // Wysyła kolejny fragment pliku i zgłasza wysłanie następnego jako komunikat sterujący, który wyprzedzają jedynie
+    // zadania zgłoszone w trakcie wysyłania poprzedniego fragmentu
+    private void sendSlice(SlicedTransfer transfer) throws IOException {
+        String relativePath = transfer.getRelativePath();
+        boolean more = false;
+        try {
+            more = transfer.sendNext();
+        } finally {
+            if(!more)
+                slicedTransfers.remove(relativePath, transfer);
+        }
+        if(more) {
+            executor.execute(relativePath, PriorityTaskQueue.Priority.CONTROL, new SendWrapper() {
+                void send(Connection connection) throws IOException {
+                    sendSlice(transfer);
+                }
+            });
+        }
+    }
+
+    // Przerywa wysyłanie pliku we fragmentach, np. gdy plik został usunięty lub zostanie wysłana jego nowsza wersja
+    private void cancelSlices(String relativePath) {
+        SlicedTransfer transfer = slicedTransfers.remove(relativePath);
+        if(transfer != null)
+            transfer.cancel();
+    }
+
+    // Zapisuje liczbę loginów oraz loginy
+    private static void writeLogins(DataOutputStream stream, List<String> logins) throws IOException {
+        stream.writeInt(logins.size());
+        for(String login : logins)
+            stream.writeUTF(login);
+    }
+
+    // Zwalnia odwołanie klienta do wysyłanej wersji pliku
+    private static void release(ServerFanout fanout) {
+        if(fanout != null)
+            fanout.release();
+    }
+
+    // Zwraca priorytet wysyłania pliku na podstawie jego rozmiaru
+    private PriorityTaskQueue.Priority priority(String relativePath) {
+        Manifest.Entry entry = user.getFileInfo(relativePath);
+        return PriorityTaskQueue.Priority.forSize(entry == null ? 0 : entry.getSize());
+    }
+
+    // Uwzględnia przepustowość łącza zmierzoną podczas wysyłania, o ile wysyłanie czekało na przekazanie danych
+    private void measure(Connection connection, long bytes, long begin) {
+        if(connection.isBlocking())
+            compression.record(bytes, System.nanoTime() - begin);
+    }
+
     // Klasa pomocnicza pozwalająca uniknąć powtarzającego się kodu w metodach wysyłających
     private abstract class SendWrapper implements Runnable {
         public void run() {
-            executor.execute(() ->
-            {
-                try (Socket socket = new Socket(addressIP, port)) {
-                    DataOutputStream stream = new DataOutputStream(socket.getOutputStream());
-                    send(stream);
-                } catch (IOException e) {
-                    serverListener.log("!! Error occured while sending message");
-                }
-            });
+            try {
+                send(connection);
+            } catch (IOException e) {
+                serverListener.log("!! Error occured while sending message");
+            }
         }
 
-        // Metoda w której powinno wystąpić wysyłamie komunikatu za pomocą strumienia stream w klasach pochodnych
-        abstract void send(DataOutputStream stream) throws IOException;
+        // Metoda w której powinno wystąpić wysyłamie komunikatu za pomocą połączenia w klasach pochodnych
+        abstract void send(Connection connection) throws IOException;
     }
 }
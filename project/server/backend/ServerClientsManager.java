@@ -1,97 +1,208 @@
 package project.server.backend;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.net.*;
+import java.security.*;
+import project.common.*;
 
 /**
  * Klasa menedżera klientów odpowiedzialna za zarządzanie wszystkimi klientami, które są połączone z serwerem.
  * Gdy za pomocą menedżera dodawany jest nowy klient na słuchaczu zdarzeń wywoływana jest metoda userLoggedIn,
  * a gdy klient jest usuwany wywoływane jest metoda userLoggedOut.
+ *
+ * Klienty i użytkownicy są przechowywani w mapach współbieżnych, więc logowania wielu klientów jednocześnie nie
+ * czekają na siebie nawzajem. Utworzenie użytkownika razem z dodaniem jego pierwszego klienta oraz usunięcie ostatniego
+ * klienta razem z usunięciem użytkownika są wykonywane atomowo dla danego loginu, dzięki czemu równoczesne logowanie
+ * i wylogowanie klientów tego samego użytkownika nie gubi użytkownika ani klienta. Powiadomienia są wysyłane poza
+ * tymi operacjami i przeglądają aktualne wartości map bez ich blokowania. Powiadomienia o aktywności użytkowników
+ * są rozsyłane zbiorczo, a nowy klient otrzymuje spis aktywnych użytkowników w jednej wiadomości.
+ *
+ * Klienty są rozróżniane identyfikatorami sesji nadawanymi przy logowaniu, a nie adresami IP, ponieważ kilka klientów
+ * może łączyć się z tego samego adresu, np. zza NAT lub z jednego komputera. Klient podaje identyfikator sesji przy
+ * dołączaniu dodatkowych połączeń.
+ *
+ * Menedżer przechowuje również ograniczenia przepustowości całego serwera, użytkowników i klientów. Wiadra klientów
+ * należą do wiader ich użytkowników, a te do wiader serwera, więc dane każdego klienta są liczone we wszystkich trzech
+ * ograniczeniach.
  */
 public class ServerClientsManager {
 
     // Parametry przekazane w konstruktorze
     private String rootDirectory;
-    private int port;
+    private ServerStorage storage;
     private ServerListener serverListener;
 
-    // Mapowanie adresów klientów na objekty klientów
-    private Map<InetAddress, ServerClient> clients = new HashMap<>();
+    // Mapowanie identyfikatorów sesji na objekty klientów
+    private ConcurrentMap<Long, ServerClient> clients = new ConcurrentHashMap<>();
+
+    // Generator identyfikatorów sesji, których nie można odgadnąć, aby nie można było dołączyć połączenia do cudzej sesji
+    private SecureRandom sessions = new SecureRandom();
 
     // Mapownie loginów użytkowników na objekty użytkowników
-    private Map<String, ServerUser> users = new HashMap<>();
+    private ConcurrentMap<String, ServerUser> users = new ConcurrentHashMap<>();
+
+    // Pula wątków wykonujących zadania wysyłania do wszystkich klientów
+    private ExecutorService workers;
+
+    // Obiekt rozsyłający zbiorczo powiadomienia o aktywności użytkowników
+    private ServerPresence presence;
+
+    // Wiadra ograniczające łączną przepustowość danych przesyłanych do serwera i wysyłanych przez serwer
+    private TokenBucket upload = new TokenBucket();
+    private TokenBucket download = new TokenBucket();
+
+    // Ograniczenia przepustowości każdego użytkownika i każdego klienta w bajtach na sekundę
+    private volatile long userUpload = TokenBucket.UNLIMITED;
+    private volatile long userDownload = TokenBucket.UNLIMITED;
+    private volatile long clientUpload = TokenBucket.UNLIMITED;
+    private volatile long clientDownload = TokenBucket.UNLIMITED;
+
+    /**
+     * Konstruuje objekt menedżera klientów korzystający ze zwykłego magazynu plików z indeksem, tak jak serwer
+     * @param rootDirectory Ścieżka do katalogu głównego serwera
+     * @param serverListener Objekt słuchacza zdarzeń
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się przygotować katalogu roboczego lub katalog serwera był
+     *                     wcześniej używany przez magazyn innego rodzaju
+     */
+    public ServerClientsManager(String rootDirectory, ServerListener serverListener) throws IOException {
+        this(rootDirectory, ServerStorage.create(ServerBackend.Storage.PLAIN, rootDirectory), serverListener, false);
+    }
 
     /**
-     * Konstruuje objekt menedżera klientów
+     * Konstruuje objekt menedżera klientów korzystający z podanego magazynu plików.
      * @param rootDirectory Ścieżka do katalogu głównego serwera
-     * @param port Numer portu na którym działa serwer i klienty
+     * @param storage Magazyn przechowujący pliki użytkowników
      * @param serverListener Objekt słuchacza zdarzeń
+     * @param virtual true jeżeli zadania wysyłania mają być wykonywane w wątkach wirtualnych, false w przeciwnym wypadku
      */
-    public ServerClientsManager(String rootDirectory, int port, ServerListener serverListener) {
+    ServerClientsManager(String rootDirectory, ServerStorage storage, ServerListener serverListener, boolean virtual) {
         // Zapamiętanie przekazanych parametrów
         this.rootDirectory = rootDirectory;
-        this.port = port;
+        this.storage = storage;
         this.serverListener = serverListener;
+
+        // Wysyłanie do wszystkich klientów odbywa się we wspólnej puli wątków
+        workers = Threads.newPool("sender", true, virtual);
+        presence = new ServerPresence(users, workers);
     }
 
     /**
      * Metoda dodaje nowego klienta o przekazanym adresie IP oraz loginie.
      * @param address Adres IP nowego użytkownika.
      * @param login Login nowego użytkownika.
+     * @param connection Trwałe połączenie z nowym klientem.
+     * @param capabilities Maska możliwości protokołu przesłana przez klienta podczas logowania.
+     * @return Obiekt dodanego klienta.
      */
-    public void addClient(InetAddress address, String login) {
-        ServerUser user = users.get(login);
+    public ServerClient addClient(InetAddress address, String login, Connection connection, int capabilities) {
+        // Nazwa hosta klienta jest zapamiętywana przez adres, więc jej ustalenie przed zablokowaniem loginu sprawia,
+        // że tworzenie klienta w ramach atomowej operacji nie czeka na serwer nazw
+        address.getHostName();
 
-        // Jeżeli nie ma zalogowanego żadnego innego klienta z tym loginem, to stwórz obiekt użytkownika
-        if(user==null) {
+        // Utworzenie użytkownika, jeżeli nie ma zalogowanego żadnego innego klienta z tym loginem, i dodanie do niego
+        // klienta, atomowo względem usuwania ostatniego klienta użytkownika
+        ServerClient[] added = new ServerClient[1];
+        boolean[] joined = new boolean[1];
+        ServerUser user = users.compute(login, (key, existing) -> {
+            ServerUser current = existing;
+            if(current == null) {
+                current = new ServerUser(login, rootDirectory, storage, serverListener, upload, download);
+                current.getUploadBucket().setRate(userUpload);
+                current.getDownloadBucket().setRate(userDownload);
+                joined[0] = true;
+            }
+            added[0] = new ServerClient(address, current, connection, serverListener, workers);
+            added[0].getUploadBucket().setRate(clientUpload);
+            added[0].getDownloadBucket().setRate(clientDownload);
+            added[0].setCapabilities(capabilities);
+            current.registerClient(added[0]);
+            return current;
+        });
+        ServerClient newClient = added[0];
+        long session;
+        do {
+            session = sessions.nextLong();
+            newClient.setSession(session);
+        } while(session == 0 || clients.putIfAbsent(session, newClient) != null);
+
+        if(joined[0]) {
+            // Powiadomienie wszystkich klientów o nowym aktywnym użytkowniku
             sendUserActiveEveryone(login);
-            user = new ServerUser(login, rootDirectory, serverListener);
-            users.put(login, user);
 
             // Wywołanie metod słuchacza
             serverListener.userLoggedIn(user.getLogin(), user.getDirectory());
             serverListener.log("# User " + login + " joined");
         }
 
-        // Dodanie klienta do użytkownika
-        ServerClient newClient = new ServerClient(address, user, port, serverListener);
-        clients.put(address, newClient);
-        user.registerClient(newClient);
-
-        // Wysłanie wszystkim użytkownikom informacji o nowym aktywnym użytkowniku
+        // Wysłanie nowemu klientowi spisu wszystkich aktywnych użytkowników
         sendAllActiveUsersToClient(newClient);
+        return newClient;
     }
 
     /**
-     * Metoda usuwa klienta
-     * @param address Adres IP klienta, który będzie usunięty.
+     * Metoda usuwa wszystkie klienty połączone z podanego adresu IP.
+     * @param address Adres IP klientów, które będą usunięte.
      */
     public void removeClient(InetAddress address) {
-        // Usówanie klienta o podanym IP
-        ServerClient client = clients.remove(address);
+        for(ServerClient client : clients.values()) {
+            if(client.getIpAddress().equals(address))
+                removeClient(client);
+        }
+    }
+
+    /**
+     * Metoda usuwa klienta, o ile nie został już usunięty, np. przez równoczesne wylogowanie i zerwanie połączenia.
+     * @param client Klient, który będzie usunięty.
+     * @return true jeżeli klient został usunięty, false jeżeli został usunięty wcześniej.
+     */
+    public boolean removeClient(ServerClient client) {
+        if(!clients.remove(client.getSession(), client))
+            return false;
         client.logout();
-        ServerUser user = client.getUser();
-        user.unregisterClient(client);
 
         // Jeżeli żaden klient nie jest już zalogowany z tą nazwą użytkownika, to usuń też obiekt użytkownika
-        if(user.getClientCount()==0) {
-            users.remove(user);
+        ServerUser user = client.getUser();
+        boolean[] left = new boolean[1];
+        users.computeIfPresent(user.getLogin(), (key, current) -> {
+            current.unregisterClient(client);
+            left[0] = current.getClientCount() == 0;
+            return left[0] ? null : current;
+        });
+
+        if(left[0]) {
             sendUserInactiveEveryone(user.getLogin());
 
             // Wywołanie metod słuchacza
             serverListener.userLoggedOut(user.getLogin());
             serverListener.log("# User " + user.getLogin() + " left");
         }
+        return true;
+    }
+
+    /**
+     * Metoda zwraca obiekt klienta o podanym identyfikatorze sesji. Klient ten musiał być wcześniej dodany do
+     * menedżera. W przeciwnym wypadku metoda zwraca null.
+     * @param session Identyfikator sesji klienta.
+     * @return Obiekt klienta lub null.
+     */
+    public ServerClient getClient(long session) {
+        return clients.get(session);
     }
 
     /**
-     * Metoda zwraca obiekt klienta o podanym adresie IP. Klient ten musiał być wcześniej dodany do menedżera.
-     * W przeciwnym wypadku metoda zwraca null.
+     * Metoda zwraca jeden z klientów połączonych z podanego adresu IP. Z jednego adresu może być połączonych kilka
+     * klientów, więc do rozróżniania klientów należy używać identyfikatorów sesji.
      * @param address Adres ip klienta.
      * @return Obiekt klienta lub null.
      */
     public ServerClient getClient(InetAddress address) {
-        return clients.get(address);
+        for(ServerClient client : clients.values()) {
+            if(client.getIpAddress().equals(address))
+                return client;
+        }
+        return null;
     }
 
     /**
@@ -105,31 +216,89 @@ public class ServerClientsManager {
     }
 
     /**
-     * Metoda wysyła wszystkim użytkownikom powiadomienie o nowym aktywnym
-     * użytkowniku.
+     * Metoda ustawia ograniczenie przepustowości w podanym zakresie. Ograniczenie obowiązuje od razu, również dla
+     * zalogowanych użytkowników i klientów oraz w trwających transferach.
+     * @param scope Zakres ograniczenia.
+     * @param upload Ograniczenie danych przesyłanych do serwera w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     * @param download Ograniczenie danych wysyłanych przez serwer w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     */
+    public void setBandwidthLimit(ServerBackend.Bandwidth scope, long upload, long download) {
+        if(upload < 0 || download < 0)
+            throw new IllegalArgumentException("Bandwidth limit must not be negative");
+        switch(scope) {
+            case SERVER:
+                this.upload.setRate(upload);
+                this.download.setRate(download);
+                break;
+            case USER:
+                userUpload = upload;
+                userDownload = download;
+                for(ServerUser user : users.values()) {
+                    user.getUploadBucket().setRate(upload);
+                    user.getDownloadBucket().setRate(download);
+                }
+                break;
+            case CLIENT:
+                clientUpload = upload;
+                clientDownload = download;
+                for(ServerClient client : clients.values()) {
+                    client.getUploadBucket().setRate(upload);
+                    client.getDownloadBucket().setRate(download);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Metoda zwraca ograniczenie przepustowości danych przesyłanych do serwera w podanym zakresie.
+     * @param scope Zakres ograniczenia.
+     * @return Ograniczenie w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     */
+    public long getUploadLimit(ServerBackend.Bandwidth scope) {
+        switch(scope) {
+            case SERVER: return upload.getRate();
+            case USER: return userUpload;
+            default: return clientUpload;
+        }
+    }
+
+    /**
+     * Metoda zwraca ograniczenie przepustowości danych wysyłanych przez serwer w podanym zakresie.
+     * @param scope Zakres ograniczenia.
+     * @return Ograniczenie w bajtach na sekundę lub TokenBucket.UNLIMITED.
+     */
+    public long getDownloadLimit(ServerBackend.Bandwidth scope) {
+        switch(scope) {
+            case SERVER: return download.getRate();
+            case USER: return userDownload;
+            default: return clientDownload;
+        }
+    }
+
+    /**
+     * Metoda wysyła wszystkim klientom powiadomienie o nowym aktywnym użytkowniku. Powiadomienie jest wysyłane
+     * z niewielkim opóźnieniem, razem z innymi zmianami aktywności użytkowników.
      * @param login Login nowego aktywnego użytkownika.
      */
     public void sendUserActiveEveryone(String login) {
-        for(ServerUser user : users.values())
-            user.sendActiveUserEveryone(login);
+        presence.changed(login);
     }
 
     /**
-     * Metoda wysyła wszystkim użytkownikom powiadomienie o nieaktywnym użytkowniku.
+     * Metoda wysyła wszystkim klientom powiadomienie o nieaktywnym użytkowniku. Powiadomienie jest wysyłane
+     * z niewielkim opóźnieniem, razem z innymi zmianami aktywności użytkowników.
      * @param login Login nieaktywnego użytkownika.
      */
     public void sendUserInactiveEveryone(String login) {
-        for(ServerUser user : users.values())
-            user.sendInactiveUserEveryone(login);
+        presence.changed(login);
     }
 
     /**
-     * Metoda wysyła do wyznaczonego klienta ciąg wiadomości o wszystkich aktywnych użytkownikach.
-     * @param client Klient do którego mają zostać wysłane powiadomienia o aktywnych użytkownikach.
+     * Metoda wysyła do wyznaczonego klienta spis wszystkich aktywnych użytkowników.
+     * @param client Klient do którego ma zostać wysłany spis aktywnych użytkowników.
      */
     public void sendAllActiveUsersToClient(ServerClient client) {
-        for(ServerUser user : users.values())
-            client.sendUserActive(user.getLogin());
+        presence.sendSnapshot(client);
     }
 
     /**
@@ -0,0 +1,92 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Klasa reprezentuje plik odbierany od klienta w postaci skompresowanej. Odbierane dane są rozpakowywane w miarę ich
+ * napływania i zapisywane do pliku częściowego tak samo jak dane pliku przesyłanego bez kompresji, więc przerwane
+ * odbieranie można wznowić od liczby rozpakowanych bajtów.
+ */
+class ServerCompressedUpload extends ServerUpload {
+
+    // Obiekt rozpakowujący odbierane dane do pliku częściowego
+    private Compression.Inflating inflating = new Compression.Inflating(new Inflated());
+
+    /**
+     * Konstruuje obiekt odbierający skompresowany plik.
+     * @param user Użytkownik do którego katalogu zapisywany jest plik.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param partial Plik częściowy do którego zapisywane są rozpakowane dane.
+     * @param modificationTime Data modyfikacji, która ma być ustawiona dla pliku.
+     * @param size Rozmiar odbieranego pliku po rozpakowaniu.
+     * @param offset Pozycja od której nadawca wysyła dane, dotychczasowe dane są zachowywane.
+     * @param completion Akcja wykonywana po pomyślnym odebraniu całego pliku lub null.
+     * @throws IOException Wyjątek wyrzucany, gdy nie można otworzyć pliku do zapisu lub wznowić odbierania.
+     */
+    ServerCompressedUpload(ServerUser user, String relativePath, PartialFile partial, long modificationTime, long size,
+                           long offset, Runnable completion) throws IOException {
+        super(user, relativePath, partial, modificationTime, size, offset, completion);
+    }
+
+    /**
+     * Metoda rozpakowuje kolejny fragment skompresowanych danych i zapisuje wynik do pliku.
+     * @param buffer Bufor ze skompresowanymi danymi.
+     * @return Liczba przetworzonych bajtów skompresowanych danych.
+     * @throws IOException Wyjątek wyrzucany, gdy dane są niepoprawne lub zapis się nie powiedzie.
+     */
+    @Override
+    public int write(ByteBuffer buffer) throws IOException {
+        return inflating.write(buffer);
+    }
+
+    /**
+     * Metoda odczytuje z kanału podaną liczbę bajtów skompresowanych danych, rozpakowuje je i zapisuje wynik do pliku.
+     * @param source Kanał z którego odczytywane są skompresowane dane.
+     * @param count Liczba bajtów do odczytania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał skończy się przedwcześnie, dane są niepoprawne lub zapis się
+     *                     nie powiedzie.
+     */
+    @Override
+    public void transferFrom(ReadableByteChannel source, long count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.getChunkSize());
+        while(count > 0) {
+            buffer.clear();
+            if(count < buffer.capacity())
+                buffer.limit((int) count);
+            int read = source.read(buffer);
+            if(read < 0)
+                throw new EOFException();
+            buffer.flip();
+            write(buffer);
+            count -= read;
+        }
+    }
+
+    /**
+     * Metoda kończy odbieranie pliku, zwalniając zasoby dekompresji.
+     * @throws IOException Wyjątek wyrzucany, gdy zamknięcie pliku się nie powiedzie.
+     */
+    @Override
+    public void close() throws IOException {
+        if(!isOpen())
+            return;
+        inflating.end();
+        super.close();
+    }
+
+    // Kanał przekazujący rozpakowane dane do zapisu w pliku częściowym
+    private class Inflated implements WritableByteChannel {
+        public int write(ByteBuffer buffer) throws IOException {
+            return ServerCompressedUpload.super.write(buffer);
+        }
+
+        public boolean isOpen() {
+            return ServerCompressedUpload.this.isOpen();
+        }
+
+        public void close() {}
+    }
+}
@@ -0,0 +1,83 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje plik odbierany od klienta różnicowo. Różnica jest najpierw zapisywana do pliku tymczasowego,
+ * a po jej odebraniu nowa wersja pliku jest odtwarzana ze starej wersji i różnicy do kolejnego pliku tymczasowego,
+ * który jest następnie zatwierdzany w magazynie. Jeżeli odtworzony plik nie zgadza się ze skrótem podanym przez
+ * nadawcę, wykonywana jest akcja zastępcza, która prosi nadawcę o przesłanie całego pliku.
+ */
+class ServerDeltaUpload extends ServerUpload {
+
+    // Parametry przekazane w konstruktorze
+    private ServerUser user;
+    private String relativePath;
+    private File delta;
+    private long fileSize;
+    private byte[] digest;
+    private Runnable fallback;
+
+    /**
+     * Konstruuje obiekt odbierający różnicę pliku.
+     * @param user Użytkownik do którego katalogu zapisywany jest plik.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika, którego obecna wersja jest podstawą różnicy.
+     * @param delta Plik tymczasowy do którego zapisywana jest różnica.
+     * @param modificationTime Data modyfikacji, która ma być ustawiona dla pliku.
+     * @param fileSize Rozmiar nowej wersji pliku.
+     * @param digest Skrót MD5 nowej wersji pliku.
+     * @param deltaSize Liczba bajtów różnicy, które mają zostać odebrane.
+     * @param completion Akcja wykonywana po pomyślnym odtworzeniu pliku lub null.
+     * @param fallback Akcja wykonywana, gdy nie udało się odtworzyć pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie można otworzyć pliku tymczasowego.
+     */
+    ServerDeltaUpload(ServerUser user, String relativePath, File delta, long modificationTime, long fileSize, byte[] digest,
+                      long deltaSize, Runnable completion, Runnable fallback) throws IOException {
+        super(user, relativePath, new PartialFile(delta, true), modificationTime, deltaSize, 0, completion);
+        this.user = user;
+        this.relativePath = relativePath;
+        this.delta = delta;
+        this.fileSize = fileSize;
+        this.digest = digest;
+        this.fallback = fallback;
+    }
+
+    /**
+     * Metoda odtwarza nową wersję pliku z odebranej różnicy i zatwierdza ją w magazynie.
+     * @param complete true jeżeli odebrano całą różnicę, false w przeciwnym wypadku.
+     * @return true jeżeli plik został odtworzony i zatwierdzony, false w przeciwnym wypadku.
+     */
+    boolean finish(boolean complete) {
+        if(!complete) {
+            getPartial().discard();
+            return false;
+        }
+
+        ServerStorage.Snapshot base = null;
+        File part = null;
+        try(DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(delta)))) {
+            base = user.openFile(relativePath);
+            if(base == null)
+                throw new FileNotFoundException(relativePath);
+            part = user.stageFile();
+            byte[] result = Delta.apply(base.getFile(), input, part);
+
+            // Odtworzony plik różni się od pliku nadawcy, np. gdy stara wersja zmieniła się w międzyczasie
+            if(part.length() != fileSize || !Arrays.equals(result, digest))
+                throw new IOException("Digest mismatch");
+        } catch(IOException e) {
+            user.getServerListener().log("!! Unable to apply delta for file " + relativePath + ", requesting whole file");
+            if(part != null)
+                part.delete();
+            fallback.run();
+            return false;
+        } finally {
+            if(base != null)
+                base.release();
+            getPartial().discard();
+        }
+        return commit(part);
+    }
+}
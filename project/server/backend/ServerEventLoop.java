@@ -0,0 +1,241 @@
+package project.server.backend;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pętla zdarzeń silnika serwera opartego na selektorze. Każda pętla działa w jednym wątku i obsługuje dowolnie wiele
+ * nieblokujących połączeń: odczytuje przychodzące dane, składa z nich ramki i wysyła oczekujące ramki, gdy tylko
+ * gniazdo jest gotowe do zapisu. Dzięki temu kilka wątków wystarcza do obsługi tysięcy klientów. Połączenia, które
+ * przekroczyły ograniczenie przepustowości, przestają być obsługiwane do czasu wznowienia wyznaczonego przez pętlę,
+ * więc ograniczenie nie wstrzymuje pozostałych połączeń.
+ */
+class ServerEventLoop implements Runnable {
+
+    /** Rozmiar bufora do którego odczytywane są dane z gniazd. */
+    public static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    // Parametry przekazane w konstruktorze
+    private ServerClientsManager clientsManager;
+    private ServerListener serverListener;
+    private Executor handlers;
+
+    // Selektor oczekujący na zdarzenia wszystkich połączeń pętli
+    private Selector selector;
+
+    // Kanały oczekujące na rejestrację oraz połączenia, które mają dane do wysłania
+    private Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>();
+    private Queue<ServerChannelConnection> writeRequests = new ConcurrentLinkedQueue<>();
+    private Queue<ServerChannelConnection> resumeRequests = new ConcurrentLinkedQueue<>();
+
+    // Połączenie wstrzymane przez ograniczenie przepustowości
+    private static class Pause {
+        long deadline;
+        ServerChannelConnection connection;
+    }
+
+    // Wstrzymane połączenia według terminów wznowienia, dostęp tylko z wątku pętli
+    private PriorityQueue<Pause> pauses = new PriorityQueue<>((a, b) -> Long.signum(a.deadline - b.deadline));
+
+    // Bufor współdzielony przez wszystkie połączenia pętli
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    // Flaga informująca, czy pętla ma nadal działać
+    private volatile boolean running = true;
+
+    // Wątek w którym działa pętla
+    private volatile Thread thread;
+
+    // Flaga oznaczająca wątki pętli zdarzeń, które nie mogą czekać na inne wątki
+    private static final ThreadLocal<Boolean> loopThread = new ThreadLocal<>();
+
+    /**
+     * Konstruuje pętlę zdarzeń.
+     * @param clientsManager Menedżer klientów przekazywany sesjom połączeń.
+     * @param serverListener Obiekt słuchacza zdarzeń.
+     * @param handlers Pula wątków obsługujących ramki odebrane przez połączenia pętli.
+     * @throws IOException Wyjątek wyrzucany, gdy nie można otworzyć selektora.
+     */
+    ServerEventLoop(ServerClientsManager clientsManager, ServerListener serverListener, Executor handlers)
+            throws IOException {
+        this.clientsManager = clientsManager;
+        this.serverListener = serverListener;
+        this.handlers = handlers;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Metoda przekazuje pętli nowe połączenie do obsługi. Może być wywoływana z dowolnego wątku.
+     * @param channel Kanał nowego połączenia.
+     */
+    void register(SocketChannel channel) {
+        newChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Metoda informuje pętlę, że połączenie ma dane do wysłania. Może być wywoływana z dowolnego wątku.
+     * @param connection Połączenie z danymi do wysłania.
+     */
+    void requestWrite(ServerChannelConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Metoda informuje pętlę, że połączenie może wznowić odczyt wstrzymany do czasu obsłużenia odebranych danych.
+     * Wywoływana jest przez wątki obsługi.
+     * @param connection Połączenie ze wstrzymanym odczytem.
+     */
+    void requestResume(ServerChannelConnection connection) {
+        resumeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Metoda przekazuje słuchaczowi zdarzeń komunikat dotyczący połączenia pętli.
+     * @param message Treść komunikatu.
+     */
+    void log(String message) {
+        serverListener.log(message);
+    }
+
+    /**
+     * Metoda informuje, czy jest wywoływana w wątku pętli, który nie może czekać na wysłanie danych.
+     * @return true jeżeli bieżący wątek jest wątkiem pętli, false w przeciwnym wypadku.
+     */
+    boolean isLoopThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Metoda informuje, czy jest wywoływana w wątku którejkolwiek pętli zdarzeń. Czekanie w takim wątku, np. na miejsce
+     * w kolejce wysyłania innego klienta, wstrzymałoby wszystkie połączenia pętli.
+     * @return true jeżeli bieżący wątek jest wątkiem pętli zdarzeń, false w przeciwnym wypadku.
+     */
+    static boolean isAnyLoopThread() {
+        return loopThread.get() != null;
+    }
+
+    /**
+     * Metoda wznawia obsługę połączenia po upływie podanego czasu. Wywoływana jest przez połączenie w wątku pętli.
+     * @param connection Połączenie wstrzymane przez ograniczenie przepustowości.
+     * @param delay Czas wstrzymania w nanosekundach.
+     */
+    void resumeLater(ServerChannelConnection connection, long delay) {
+        Pause pause = new Pause();
+        pause.deadline = System.nanoTime() + delay;
+        pause.connection = connection;
+        pauses.add(pause);
+    }
+
+    /**
+     * Metoda zatrzymuje pętlę i zamyka wszystkie jej połączenia.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Zadanie polegające na obsługiwaniu zdarzeń wszystkich połączeń pętli.
+     */
+    public void run() {
+        thread = Thread.currentThread();
+        loopThread.set(Boolean.TRUE);
+        try {
+            while(running) {
+                selector.select(timeout());
+                registerChannels();
+                enableWrites();
+                resumeReads();
+                resumeConnections();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+            }
+        } catch(IOException e) {
+            serverListener.errorOccured("IOException occured in event loop");
+        } finally {
+            closeAll();
+        }
+    }
+
+    // Rejestruje w selektorze kanały przekazane przez akceptującego połączenia
+    private void registerChannels() throws IOException {
+        SocketChannel channel;
+        while((channel = newChannels.poll()) != null) {
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            ServerChannelConnection connection = new ServerChannelConnection(channel, key, this, handlers);
+            connection.setSession(new ServerSession(connection, clientsManager, serverListener));
+            key.attach(connection);
+        }
+    }
+
+    // Włącza oczekiwanie na możliwość zapisu dla połączeń, które mają dane do wysłania
+    private void enableWrites() {
+        ServerChannelConnection connection;
+        while((connection = writeRequests.poll()) != null)
+            connection.enableWrites();
+    }
+
+    // Wznawia odczyt połączeń, których odebrane dane zostały obsłużone
+    private void resumeReads() {
+        ServerChannelConnection connection;
+        while((connection = resumeRequests.poll()) != null)
+            connection.resumeReads();
+    }
+
+    // Zwraca czas oczekiwania selektora w milisekundach do najbliższego wznowienia połączenia, 0 oznacza brak limitu
+    private long timeout() {
+        Pause pause = pauses.peek();
+        if(pause == null)
+            return 0;
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(pause.deadline - System.nanoTime() + 999_999));
+    }
+
+    // Wznawia obsługę połączeń, których czas wstrzymania upłynął
+    private void resumeConnections() {
+        long now = System.nanoTime();
+        while(!pauses.isEmpty() && pauses.peek().deadline - now <= 0)
+            pauses.poll().connection.resume(now);
+    }
+
+    // Obsługuje zdarzenia pojedynczego połączenia
+    private void handle(SelectionKey key) {
+        ServerChannelConnection connection = (ServerChannelConnection) key.attachment();
+        try {
+            if(key.isValid() && key.isReadable())
+                connection.onReadable(readBuffer);
+            if(key.isValid() && key.isWritable())
+                connection.onWritable();
+        } catch(IOException | CancelledKeyException e) {
+            connection.disconnect();
+        } catch(RuntimeException e) {
+            // Błąd podczas obsługi zdarzenia nie może zatrzymać pętli obsługującej pozostałe połączenia
+            serverListener.log("!! Error occured while handling message");
+            connection.disconnect();
+        }
+    }
+
+    // Zamyka wszystkie połączenia pętli oraz selektor
+    private void closeAll() {
+        for(SelectionKey key : new ArrayList<>(selector.keys()))
+            ((ServerChannelConnection) key.attachment()).disconnect();
+        SocketChannel channel;
+        while((channel = newChannels.poll()) != null) {
+            try { channel.close(); }
+            catch(IOException e) {}
+        }
+        try { selector.close(); }
+        catch(IOException e) {}
+    }
+}
@@ -0,0 +1,131 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje jedną wersję pliku wysyłaną do kilku klientów użytkownika, np. po przesłaniu pliku przez jednego
+ * z nich. Zawartość pliku jest odczytywana z magazynu tylko raz, przy pierwszym wysłaniu, do współdzielonego bufora,
+ * z którego wysyłają ją połączenia wszystkich klientów. Podobnie kompresja na danym poziomie jest wykonywana tylko raz.
+ * Każdy klient wysyła plik w ramach własnej kolejki wysyłania, więc klient wolno odbierający nie opóźnia pozostałych.
+ *
+ * Obiekt posiada po jednym odwołaniu dla każdego klienta, któremu plik ma zostać wysłany, a bufory są zwalniane, gdy
+ * wszyscy klienci zwolnią swoje odwołania. Pliki większe niż MAX_SIZE oraz pliki, których bufory przekroczyłyby
+ * łączny rozmiar buforów, są wysyłane przez każdego klienta w zwykły sposób.
+ */
+class ServerFanout {
+
+    /** Największy rozmiar pliku, którego zawartość jest współdzielona. */
+    static final long MAX_SIZE = 16 * 1024 * 1024;
+
+    // Parametry przekazane w konstruktorze
+    private ServerUser user;
+    private String relativePath;
+    private int references;
+
+    // Zawartość pliku wraz z jego atrybutami oraz skompresowane zawartości według poziomów, dostęp synchronizowany na obiekcie
+    private boolean loaded;
+    private SharedBuffer content;
+    private long size;
+    private long modificationTime;
+    private Map<Integer, SharedBuffer> compressed = new HashMap<>();
+
+    /**
+     * Konstruuje obiekt wysyłający plik podanej liczbie klientów.
+     * @param user Użytkownik, do którego należy plik.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param references Liczba klientów, którym plik ma zostać wysłany.
+     */
+    ServerFanout(ServerUser user, String relativePath, int references) {
+        // Zapamiętanie parametrów
+        this.user = user;
+        this.relativePath = relativePath;
+        this.references = references;
+    }
+
+    /**
+     * Metoda zwraca zawartość pliku, odczytując ją przy pierwszym wywołaniu. Zwrócone odwołanie do bufora należy
+     * zwolnić, np. przekazując bufor połączeniu.
+     * @return Zawartość pliku lub null, gdy nie jest współdzielona albo plik został w międzyczasie zmieniony.
+     */
+    synchronized SharedBuffer getContent() {
+        if(!loaded) {
+            loaded = true;
+            load();
+        }
+        if(content == null)
+            return null;
+
+        // Nowsza wersja pliku zostanie wysłana osobno
+        Manifest.Entry entry = user.getFileInfo(relativePath);
+        if(entry == null || entry.getSize() != size || entry.getModificationTime() != modificationTime)
+            return null;
+        content.retain();
+        return content;
+    }
+
+    /**
+     * Metoda zwraca datę modyfikacji pliku, którego zawartość zwróciła metoda getContent.
+     * @return Data modyfikacji pliku.
+     */
+    synchronized long getModificationTime() {
+        return modificationTime;
+    }
+
+    /**
+     * Metoda zwraca zawartość pliku skompresowaną na podanym poziomie, kompresując ją przy pierwszym wywołaniu dla
+     * danego poziomu. Metodę należy wywoływać po otrzymaniu zawartości z metody getContent. Zwrócone odwołanie do
+     * bufora należy zwolnić.
+     * @param level Poziom kompresji.
+     * @return Skompresowana zawartość pliku lub null, gdy przekroczyłaby łączny rozmiar buforów.
+     */
+    synchronized SharedBuffer getCompressed(int level) {
+        SharedBuffer buffer = compressed.get(level);
+        if(buffer == null && content != null) {
+            buffer = Compression.compress(content, level);
+            if(buffer == null)
+                return null;
+            compressed.put(level, buffer);
+        }
+        if(buffer != null)
+            buffer.retain();
+        return buffer;
+    }
+
+    /**
+     * Metoda zwalnia odwołanie klienta. Po zwolnieniu odwołań przez wszystkich klientów zwalniane są bufory.
+     */
+    synchronized void release() {
+        if(--references > 0)
+            return;
+        if(content != null)
+            content.release();
+        content = null;
+        for(SharedBuffer buffer : compressed.values())
+            buffer.release();
+        compressed.clear();
+    }
+
+    // Odczytuje zawartość pliku z magazynu do współdzielonego bufora, gdy nie udało się jej odczytać, każdy klient
+    // odczyta plik samodzielnie
+    private void load() {
+        Manifest.Entry entry = user.getFileInfo(relativePath);
+        if(entry == null || entry.getSize() > MAX_SIZE)
+            return;
+        try {
+            ServerStorage.Snapshot snapshot = user.openFile(relativePath);
+            if(snapshot == null)
+                return;
+            try {
+                content = SharedBuffer.read(snapshot.getSlices());
+                size = snapshot.getSize();
+                modificationTime = snapshot.getModificationTime();
+            } finally {
+                snapshot.release();
+            }
+        } catch(IOException e) {
+            content = null;
+        }
+    }
+}
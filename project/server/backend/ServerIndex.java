@@ -0,0 +1,301 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Klasa przechowuje w pamięci opisy wszystkich plików jednego użytkownika (rozmiar, data modyfikacji, skrót zawartości
+ * oraz numer wersji), aby spisy plików i sprawdzanie aktualności nie wymagały odwoływania się do systemu plików.
+ * Opisy są zapisywane w zwięzłym pliku odwzorowanym w pamięci, do którego każda zmiana jest dopisywana jako
+ * pojedynczy rekord, więc zmiana jednego pliku nie wymaga zapisywania całego indeksu. Gdy nieaktualnych rekordów jest
+ * więcej niż aktualnych, plik indeksu jest przepisywany od nowa. Razem z indeksem aktualizowane jest drzewo Merkle
+ * plików użytkownika, używane do uzgadniania katalogów z klientami.
+ *
+ * Plik indeksu składa się z nagłówka (liczba identyfikująca, długość poprawnych danych, kolejny numer wersji) oraz
+ * rekordów dodania lub usunięcia pliku. Długość w nagłówku jest zmieniana dopiero po zapisaniu rekordu, dlatego
+ * przerwany zapis rekordu nie uszkadza indeksu.
+ */
+class ServerIndex {
+
+    // Liczba identyfikująca plik indeksu
+    private static final int MAGIC = 0x46434931;
+
+    // Rozmiar nagłówka oraz położenie jego pól
+    private static final int HEADER_SIZE = 20;
+    private static final int USED_POSITION = 4;
+    private static final int VERSION_POSITION = 12;
+
+    // Rodzaje rekordów
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    // Początkowy rozmiar odwzorowanego obszaru
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Klasa reprezentuje opis pliku wraz z numerem jego wersji.
+     */
+    private static class Record {
+        Manifest.Entry entry;
+        long version;
+
+        Record(Manifest.Entry entry, long version) {
+            this.entry = entry;
+            this.version = version;
+        }
+    }
+
+    // Plik indeksu
+    private File file;
+
+    // Opisy plików według ścieżek
+    private Map<String, Record> records = new HashMap<>();
+
+    // Drzewo Merkle opisanych plików
+    private MerkleTree tree = new MerkleTree();
+
+    // Kanał pliku indeksu i odwzorowany obszar pliku
+    private FileChannel channel;
+    private MappedByteBuffer map;
+
+    // Długość poprawnych danych pliku, numer wersji kolejnej zmiany oraz liczba zapisanych rekordów
+    private long used;
+    private long nextVersion = 1;
+    private int written;
+
+    /**
+     * Konstruuje indeks zapisywany w podanym pliku i wczytuje zapisane wcześniej opisy plików.
+     * @param file Plik indeksu.
+     */
+    ServerIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Metoda wczytuje opisy plików zapisane w pliku indeksu.
+     * @return true jeżeli indeks został wczytany, false gdy plik indeksu nie istnieje lub jest uszkodzony, wtedy
+     *         indeks należy odbudować.
+     */
+    synchronized boolean load() {
+        if(!file.isFile())
+            return false;
+        try {
+            open(file.length());
+            if(map.getInt(0) != MAGIC)
+                return false;
+            used = map.getLong(USED_POSITION);
+            nextVersion = map.getLong(VERSION_POSITION);
+            if(used < HEADER_SIZE || used > map.capacity())
+                return false;
+
+            // Odtworzenie opisów z kolejnych rekordów
+            ByteBuffer data = map.duplicate();
+            data.position(HEADER_SIZE);
+            data.limit((int) used);
+            while(data.hasRemaining()) {
+                byte type = data.get();
+                String path = readString(data);
+                if(type == PUT) {
+                    long size = data.getLong();
+                    long modificationTime = data.getLong();
+                    long version = data.getLong();
+                    byte[] hash = new byte[data.get() & 0xff];
+                    data.get(hash);
+                    records.put(path, new Record(new Manifest.Entry(path, size, modificationTime, hash.length == 0 ? null : hash), version));
+                }
+                else if(type == REMOVE)
+                    records.remove(path);
+                else
+                    throw new IOException("Unknown index record");
+                written++;
+            }
+            for(Record record : records.values())
+                tree.put(record.entry);
+            return true;
+        } catch(IOException | RuntimeException e) {
+            records.clear();
+            written = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Metoda zastępuje zawartość indeksu opisami plików ze spisu, np. utworzonego na podstawie magazynu, gdy indeks
+     * nie istniał lub był uszkodzony.
+     * @param manifest Spis plików użytkownika.
+     */
+    synchronized void rebuild(Manifest manifest) {
+        records.clear();
+        tree = new MerkleTree(manifest);
+        for(Manifest.Entry entry : manifest.getEntries())
+            records.put(entry.getPath(), new Record(entry, nextVersion++));
+        compact();
+    }
+
+    /**
+     * Metoda zwraca opis pliku.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    synchronized Manifest.Entry get(String relativePath) {
+        Record record = records.get(relativePath);
+        return record == null ? null : record.entry;
+    }
+
+    /**
+     * Metoda zwraca numer wersji pliku, który zwiększa się przy każdej zmianie pliku.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Numer wersji pliku lub 0, gdy plik nie istnieje.
+     */
+    synchronized long getVersion(String relativePath) {
+        Record record = records.get(relativePath);
+        return record == null ? 0 : record.version;
+    }
+
+    /**
+     * Metoda zwraca drzewo Merkle plików użytkownika, aktualizowane przy każdej zmianie indeksu.
+     * @return Drzewo plików użytkownika.
+     */
+    synchronized MerkleTree getTree() {
+        return tree;
+    }
+
+    /**
+     * Metoda zwraca spis wszystkich plików użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    synchronized Manifest list() {
+        Manifest manifest = new Manifest();
+        for(Record record : records.values())
+            manifest.add(record.entry);
+        return manifest;
+    }
+
+    /**
+     * Metoda zapamiętuje nowy opis pliku, nadając mu kolejny numer wersji.
+     * @param entry Opis pliku.
+     */
+    synchronized void put(Manifest.Entry entry) {
+        Record record = new Record(entry, nextVersion++);
+        records.put(entry.getPath(), record);
+        tree.put(entry);
+        append(PUT, entry.getPath(), record);
+    }
+
+    /**
+     * Metoda usuwa opis pliku.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     */
+    synchronized void remove(String relativePath) {
+        if(records.remove(relativePath) != null) {
+            tree.remove(relativePath);
+            nextVersion++;
+            append(REMOVE, relativePath, null);
+        }
+    }
+
+    // Dopisuje rekord do pliku indeksu, a gdy nieaktualnych rekordów jest zbyt wiele, przepisuje cały plik
+    private void append(byte type, String relativePath, Record record) {
+        if(written >= 2 * records.size() + 1024) {
+            compact();
+            return;
+        }
+        try {
+            byte[] encoded = encode(type, relativePath, record);
+            if(map == null || used + encoded.length > map.capacity())
+                open(Math.max(INITIAL_CAPACITY, 2 * (used + encoded.length)));
+            ByteBuffer data = map.duplicate();
+            data.position((int) used);
+            data.put(encoded);
+
+            // Rekord staje się częścią indeksu dopiero po zmianie długości w nagłówku
+            used += encoded.length;
+            map.putLong(VERSION_POSITION, nextVersion);
+            map.putLong(USED_POSITION, used);
+            written++;
+        } catch(IOException e) {
+            // Indeks na dysku jest nieaktualny, więc zostanie odbudowany przy kolejnym uruchomieniu
+            close();
+            file.delete();
+        }
+    }
+
+    // Przepisuje wszystkie aktualne opisy do nowego pliku indeksu, który zastępuje dotychczasowy plik
+    private void compact() {
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(MAGIC);
+            output.writeLong(0);
+            output.writeLong(nextVersion);
+            for(Map.Entry<String, Record> entry : records.entrySet())
+                output.write(encode(PUT, entry.getKey(), entry.getValue()));
+            byte[] data = bytes.toByteArray();
+            ByteBuffer.wrap(data).putLong(USED_POSITION, data.length);
+
+            file.getParentFile().mkdirs();
+            Files.write(temporary.toPath(), data);
+            close();
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            used = data.length;
+            written = records.size();
+            open(Math.max(INITIAL_CAPACITY, 2 * used));
+        } catch(IOException e) {
+            temporary.delete();
+            close();
+            file.delete();
+        }
+    }
+
+    // Odwzorowuje w pamięci podaną liczbę bajtów pliku indeksu, w razie potrzeby powiększając plik
+    private void open(long capacity) throws IOException {
+        if(capacity > Integer.MAX_VALUE)
+            throw new IOException("Index too large");
+        if(channel == null)
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+
+    // Zamyka plik indeksu, odwzorowany obszar jest zwalniany przez odśmiecanie pamięci
+    private void close() {
+        map = null;
+        if(channel != null) {
+            try { channel.close(); }
+            catch(IOException e) {}
+            channel = null;
+        }
+    }
+
+    // Koduje rekord pliku indeksu
+    private static byte[] encode(byte type, String relativePath, Record record) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        output.writeByte(type);
+        byte[] path = relativePath.getBytes(StandardCharsets.UTF_8);
+        output.writeShort(path.length);
+        output.write(path);
+        if(type == PUT) {
+            Manifest.Entry entry = record.entry;
+            byte[] hash = entry.getHash() == null ? new byte[0] : entry.getHash();
+            output.writeLong(entry.getSize());
+            output.writeLong(entry.getModificationTime());
+            output.writeLong(record.version);
+            output.writeByte(hash.length);
+            output.write(hash);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Odczytuje ścieżkę zapisaną w rekordzie
+    private static String readString(ByteBuffer data) {
+        byte[] bytes = new byte[data.getShort() & 0xffff];
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,138 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.util.*;
+
+/**
+ * Magazyn, który odpowiada na pytania o pliki użytkowników na podstawie indeksu przechowywanego w pamięci, a zawartość
+ * plików przechowuje w magazynie przekazanym w konstruktorze. Spisy plików i opisy pojedynczych plików nie wymagają
+ * więc odczytywania katalogów ani atrybutów plików. Indeks jest aktualizowany przy każdym zatwierdzeniu i usunięciu
+ * pliku, a przy pierwszym użyciu jest wczytywany z dysku lub, gdy nie istnieje, tworzony na podstawie magazynu.
+ */
+class ServerIndexedStorage implements ServerStorage {
+
+    /** Nazwa katalogu w katalogu serwera, w którym przechowywane są indeksy użytkowników. */
+    static final String INDEX_DIRECTORY = ".index";
+
+    // Parametry przekazane w konstruktorze
+    private String rootDirectory;
+    private ServerStorage storage;
+
+    // Indeksy plików według loginów użytkowników
+    private Map<String, ServerIndex> indexes = new HashMap<>();
+
+    /**
+     * Konstruuje magazyn indeksujący pliki przechowywane w podanym magazynie.
+     * @param rootDirectory Katalog serwera.
+     * @param storage Magazyn przechowujący zawartość plików.
+     */
+    ServerIndexedStorage(String rootDirectory, ServerStorage storage) {
+        this.rootDirectory = rootDirectory;
+        this.storage = storage;
+    }
+
+    /**
+     * Metoda zwraca spis wszystkich plików użytkownika z indeksu.
+     * @param login Login użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    public Manifest list(String login) {
+        return index(login).list();
+    }
+
+    /**
+     * Metoda zwraca opis pliku użytkownika z indeksu.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    public Manifest.Entry stat(String login, String relativePath) {
+        return index(login).get(relativePath);
+    }
+
+    /**
+     * Metoda zwraca drzewo Merkle plików użytkownika, aktualizowane razem z indeksem.
+     * @param login Login użytkownika.
+     * @return Drzewo plików użytkownika.
+     */
+    @Override
+    public MerkleTree tree(String login) {
+        return index(login).getTree();
+    }
+
+    /**
+     * Metoda zwraca plik na dysku, którego zmiana oznacza zmianę pliku użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Plik reprezentujący plik użytkownika na dysku.
+     */
+    public File locate(String login, String relativePath) {
+        return storage.locate(login, relativePath);
+    }
+
+    /**
+     * Metoda udostępnia zawartość pliku użytkownika do odczytu. Po odczytaniu należy wywołać metodę release.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Zawartość pliku lub null, gdy plik nie istnieje.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się odczytać pliku.
+     */
+    public Snapshot open(String login, String relativePath) throws IOException {
+        return storage.open(login, relativePath);
+    }
+
+    /**
+     * Metoda tworzy pusty plik tymczasowy, do którego można odebrać zawartość pliku.
+     * @return Plik tymczasowy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć pliku.
+     */
+    public File stage() throws IOException {
+        return storage.stage();
+    }
+
+    /**
+     * Metoda zatwierdza odebrany plik tymczasowy jako nową wersję pliku użytkownika i zapisuje jej opis w indeksie.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @param staged Plik tymczasowy z zawartością.
+     * @param modificationTime Data modyfikacji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się zapisać pliku.
+     */
+    public void commit(String login, String relativePath, File staged, long modificationTime) throws IOException {
+        ServerIndex index = index(login);
+        storage.commit(login, relativePath, staged, modificationTime);
+
+        // Opis nowej wersji pochodzi z magazynu, który zna już jej skrót
+        Manifest.Entry entry = storage.stat(login, relativePath);
+        if(entry != null)
+            index.put(entry);
+        else
+            index.remove(relativePath);
+    }
+
+    /**
+     * Metoda usuwa plik użytkownika oraz jego opis z indeksu.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return true jeżeli plik został usunięty, false jeżeli plik nie istniał.
+     */
+    public boolean delete(String login, String relativePath) {
+        ServerIndex index = index(login);
+        boolean deleted = storage.delete(login, relativePath);
+        index.remove(relativePath);
+        return deleted;
+    }
+
+    // Zwraca indeks plików użytkownika, wczytując go lub tworząc przy pierwszym użyciu
+    private synchronized ServerIndex index(String login) {
+        ServerIndex index = indexes.get(login);
+        if(index == null) {
+            index = new ServerIndex(new File(new File(rootDirectory, INDEX_DIRECTORY), login));
+            if(!index.load())
+                index.rebuild(storage.list(login));
+            indexes.put(login, index);
+        }
+        return index;
+    }
+}
@@ -0,0 +1,148 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Magazyn, w którym każdy plik użytkownika jest przechowywany jako zwykła kopia w katalogu użytkownika.
+ * Odbierane pliki są zapisywane w katalogu roboczym i przenoszone na miejsce dopiero po zatwierdzeniu.
+ * Skróty zawartości plików są przechowywane w ukrytym pliku w katalogu każdego użytkownika.
+ */
+class ServerPlainStorage implements ServerStorage {
+
+    /** Nazwa katalogu roboczego w katalogu serwera. */
+    static final String STAGING_DIRECTORY = ".staging";
+
+    // Katalog serwera oraz katalog roboczy
+    private String rootDirectory;
+    private File staging;
+
+    // Skróty zawartości plików według loginów użytkowników
+    private Map<String, HashCache> hashCaches = new HashMap<>();
+
+    /**
+     * Konstruuje magazyn w podanym katalogu serwera. Pozostałości po nieukończonych transferach są usuwane.
+     * @param rootDirectory Katalog serwera.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć katalogu roboczego.
+     */
+    ServerPlainStorage(String rootDirectory) throws IOException {
+        this.rootDirectory = rootDirectory;
+        this.staging = prepareStaging(rootDirectory);
+    }
+
+    /**
+     * Metoda zwraca spis wszystkich plików w katalogu użytkownika.
+     * @param login Login użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    public Manifest list(String login) {
+        return hashCache(login).scan();
+    }
+
+    /**
+     * Metoda zwraca opis pliku użytkownika na podstawie pliku na dysku wraz ze skrótem jego zawartości.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    public Manifest.Entry stat(String login, String relativePath) {
+        File file = locate(login, relativePath);
+        if(!file.isFile())
+            return null;
+        return new Manifest.Entry(relativePath, file.length(), file.lastModified(), hashCache(login).hash(relativePath));
+    }
+
+    /**
+     * Metoda zwraca plik w katalogu użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Plik w katalogu użytkownika.
+     */
+    public File locate(String login, String relativePath) {
+        return SafePath.resolve(new File(rootDirectory, login), relativePath);
+    }
+
+    /**
+     * Metoda udostępnia plik z katalogu użytkownika bez tworzenia kopii.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Zawartość pliku lub null, gdy plik nie istnieje.
+     */
+    public Snapshot open(String login, String relativePath) {
+        File file = locate(login, relativePath);
+        if(!file.isFile())
+            return null;
+        return new Snapshot(file, file.length(), file.lastModified());
+    }
+
+    /**
+     * Metoda tworzy pusty plik tymczasowy w katalogu roboczym.
+     * @return Plik tymczasowy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć pliku.
+     */
+    public File stage() throws IOException {
+        return File.createTempFile("upload", ".part", staging);
+    }
+
+    /**
+     * Metoda przenosi odebrany plik tymczasowy na miejsce pliku użytkownika i zapamiętuje skrót jego zawartości.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @param staged Plik tymczasowy z zawartością.
+     * @param modificationTime Data modyfikacji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się przenieść pliku.
+     */
+    public void commit(String login, String relativePath, File staged, long modificationTime) throws IOException {
+        byte[] hash = HashCache.compute(staged);
+        File file = locate(login, relativePath);
+        file.getParentFile().mkdirs();
+        staged.setLastModified(modificationTime);
+        Files.move(staged.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        file.setLastModified(modificationTime);
+        hashCache(login).put(relativePath, hash);
+    }
+
+    /**
+     * Metoda usuwa plik z katalogu użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return true jeżeli plik został usunięty, false jeżeli plik nie istniał.
+     */
+    public boolean delete(String login, String relativePath) {
+        File file = locate(login, relativePath);
+        boolean deleted = file.delete();
+        ServerStorage.removeEmptyParents(file, new File(rootDirectory, login));
+        hashCache(login).forget(relativePath);
+        return deleted;
+    }
+
+    // Zwraca obiekt przechowujący skróty plików użytkownika, wczytując go przy pierwszym użyciu
+    private synchronized HashCache hashCache(String login) {
+        HashCache cache = hashCaches.get(login);
+        if(cache == null) {
+            cache = new HashCache(new File(rootDirectory, login));
+            hashCaches.put(login, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * Metoda tworzy pusty katalog roboczy w katalogu serwera.
+     * @param rootDirectory Katalog serwera.
+     * @return Katalog roboczy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć katalogu.
+     */
+    static File prepareStaging(String rootDirectory) throws IOException {
+        File staging = new File(rootDirectory, STAGING_DIRECTORY);
+        File[] leftovers = staging.listFiles();
+        if(leftovers != null) {
+            for(File leftover : leftovers)
+                leftover.delete();
+        }
+        if(!staging.isDirectory() && !staging.mkdirs())
+            throw new IOException("Unable to create staging directory");
+        return staging;
+    }
+}
@@ -0,0 +1,90 @@
+package project.server.backend;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa rozsyła klientom powiadomienia o aktywnych i nieaktywnych użytkownikach. Zmiany, które nastąpiły w krótkim
+ * okresie, są zbierane i rozsyłane razem, więc podczas wielu jednoczesnych logowań każdy klient otrzymuje jedną
+ * wiadomość z wieloma zmianami, a nie osobną wiadomość o każdym użytkowniku.
+ *
+ * Rozsyłany jest aktualny stan użytkowników, których dotyczyły zmiany, a nie same zmiany, dlatego kolejne zalogowania
+ * i wylogowania tego samego użytkownika skutkują jednym powiadomieniem, a klient, który otrzymał spis aktywnych
+ * użytkowników w trakcie zbierania zmian, po ich rozesłaniu zna poprawny stan.
+ */
+class ServerPresence {
+
+    /** Okres zbierania zmian przed ich rozesłaniem w milisekundach. */
+    static final long BATCH_PERIOD = 100;
+
+    // Wspólny wątek odliczający czas dla wszystkich obiektów
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Parametry przekazane w konstruktorze
+    private Map<String, ServerUser> users;
+    private ExecutorService workers;
+
+    // Loginy użytkowników, których stan zmienił się od ostatniego rozesłania, dostęp synchronizowany na obiekcie
+    private Set<String> changed = new LinkedHashSet<>();
+    private boolean scheduled;
+
+    /**
+     * Konstruuje obiekt rozsyłający powiadomienia klientom podanych użytkowników.
+     * @param users Zalogowani użytkownicy według loginów, na podstawie których ustalany jest stan użytkowników.
+     * @param workers Pula wątków, w której rozsyłane są powiadomienia.
+     */
+    ServerPresence(Map<String, ServerUser> users, ExecutorService workers) {
+        this.users = users;
+        this.workers = workers;
+    }
+
+    /**
+     * Metoda zgłasza zmianę stanu użytkownika. Powiadomienie zostanie rozesłane razem z pozostałymi zmianami zgłoszonymi
+     * w okresie zbierania zmian.
+     * @param login Login użytkownika, który stał się aktywny lub nieaktywny.
+     */
+    void changed(String login) {
+        synchronized(this) {
+            changed.add(login);
+            if(scheduled)
+                return;
+            scheduled = true;
+        }
+
+        // Rozsyłanie może czekać na miejsce w kolejkach klientów, więc nie odbywa się w wątku odliczającym czas
+        timer.schedule(() -> workers.execute(this::flush), BATCH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Metoda wysyła klientowi spis wszystkich aktywnych użytkowników.
+     * @param client Klient, który się zalogował.
+     */
+    void sendSnapshot(ServerClient client) {
+        client.sendPresence(new ArrayList<>(users.keySet()), Collections.emptyList());
+    }
+
+    // Rozsyła wszystkim klientom aktualny stan użytkowników, których dotyczyły zebrane zmiany
+    private void flush() {
+        Set<String> logins;
+        synchronized(this) {
+            logins = changed;
+            changed = new LinkedHashSet<>();
+            scheduled = false;
+        }
+
+        List<String> active = new ArrayList<>();
+        List<String> inactive = new ArrayList<>();
+        for(String login : logins) {
+            if(users.containsKey(login))
+                active.add(login);
+            else
+                inactive.add(login);
+        }
+        for(ServerUser user : users.values())
+            user.sendPresenceEveryone(active, inactive);
+    }
+}
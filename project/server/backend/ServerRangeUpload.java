@@ -0,0 +1,121 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Klasa reprezentuje fragment pliku odbieranego od klienta we fragmentach, np. równolegle kilkoma połączeniami. Dane
+ * fragmentu są zapisywane na jego pozycji w pliku częściowym wspólnym dla wszystkich fragmentów transferu, a dane
+ * skompresowanego fragmentu są rozpakowywane w miarę ich napływania. Po zamknięciu fragmentu, który dopełnił plik,
+ * plik jest zatwierdzany w magazynie i wykonywana jest akcja kończąca.
+ */
+class ServerRangeUpload implements ServerReceiver {
+
+    // Parametry przekazane w konstruktorze
+    private ServerUser user;
+    private String relativePath;
+    private RangeAssembly assembly;
+    private RangeAssembly.Range range;
+    private Runnable completion;
+
+    // Obiekt rozpakowujący dane skompresowanego fragmentu lub null, gdy fragment nie jest skompresowany
+    private Compression.Inflating inflating;
+
+    /**
+     * Konstruuje obiekt odbierający fragment pliku.
+     * @param user Użytkownik do którego katalogu zapisywany jest plik.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param assembly Obiekt składający plik z fragmentów.
+     * @param range Odbierany fragment.
+     * @param compressed true jeżeli dane fragmentu są skompresowane, false w przeciwnym wypadku.
+     * @param completion Akcja wykonywana po złożeniu całego pliku lub null.
+     */
+    ServerRangeUpload(ServerUser user, String relativePath, RangeAssembly assembly, RangeAssembly.Range range,
+                      boolean compressed, Runnable completion) {
+        this.user = user;
+        this.relativePath = relativePath;
+        this.assembly = assembly;
+        this.range = range;
+        this.completion = completion;
+        if(compressed)
+            inflating = new Compression.Inflating(range);
+    }
+
+    /**
+     * Metoda zapisuje kolejną porcję danych fragmentu, w razie potrzeby rozpakowując ją.
+     * @param buffer Bufor z danymi.
+     * @return Liczba przetworzonych bajtów.
+     * @throws IOException Wyjątek wyrzucany, gdy dane są niepoprawne, wykraczają poza fragment lub zapis się nie
+     *                     powiedzie.
+     */
+    public int write(ByteBuffer buffer) throws IOException {
+        return inflating == null ? range.write(buffer) : inflating.write(buffer);
+    }
+
+    /**
+     * Metoda przekazuje na pozycję fragmentu podaną liczbę bajtów odczytanych bezpośrednio z kanału.
+     * @param source Kanał z którego odczytywane są dane fragmentu.
+     * @param count Liczba bajtów do odczytania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    public void transferFrom(ReadableByteChannel source, long count) throws IOException {
+        if(inflating == null) {
+            range.transferFrom(source, count);
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(FileTransfer.getChunkSize());
+        while(count > 0) {
+            buffer.clear();
+            if(count < buffer.capacity())
+                buffer.limit((int) count);
+            int read = source.read(buffer);
+            if(read < 0)
+                throw new EOFException();
+            buffer.flip();
+            inflating.write(buffer);
+            count -= read;
+        }
+    }
+
+    /**
+     * Metoda informuje, czy fragment jest nadal odbierany.
+     * @return true jeżeli fragment jest odbierany, false w przeciwnym wypadku.
+     */
+    public boolean isOpen() {
+        return range.isOpen();
+    }
+
+    /**
+     * Metoda kończy odbieranie fragmentu. Jeżeli był to ostatni brakujący fragment, plik jest zatwierdzany
+     * w magazynie i wykonywana jest akcja kończąca.
+     */
+    public void close() {
+        if(!range.isOpen())
+            return;
+        if(inflating != null)
+            inflating.end();
+        if(!range.complete()) {
+            if(assembly.isClosed())
+                user.getServerListener().log("!! Error occured while receiving file " + relativePath);
+            return;
+        }
+
+        PartialFile partial = assembly.getPartial();
+        try {
+            user.commitFile(relativePath, partial.getFile(), assembly.getModificationTime());
+        } catch(IOException e) {
+            user.getServerListener().log("!! Unable to store file " + relativePath);
+            partial.discard();
+            return;
+        }
+        partial.complete();
+
+        // Powiadomienie o dokonaniu zmian w katalogu użytkownika
+        user.getServerListener().filesUpdated(user.getLogin());
+
+        if(completion != null)
+            completion.run();
+    }
+}
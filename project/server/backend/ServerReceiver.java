@@ -0,0 +1,20 @@
+package project.server.backend;
+
+import java.io.*;
+import java.nio.channels.*;
+
+/**
+ * Interfejs reprezentuje odbiorcę danych ramki zwracanego przez sesję. Silnik blokujący przekazuje mu dane bezpośrednio
+ * z gniazda, a silnik oparty na selektorze zapisuje je kawałkami w miarę ich napływania. Po przekazaniu wszystkich
+ * danych lub zerwaniu połączenia odbiorca jest zamykany.
+ */
+interface ServerReceiver extends WritableByteChannel {
+
+    /**
+     * Metoda przekazuje odbiorcy podaną liczbę bajtów odczytanych bezpośrednio z kanału.
+     * @param source Kanał z którego odczytywane są dane ramki.
+     * @param count Liczba bajtów do odczytania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    void transferFrom(ReadableByteChannel source, long count) throws IOException;
+}
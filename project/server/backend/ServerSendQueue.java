@@ -0,0 +1,222 @@
+package project.server.backend;
+
+import project.common.*;
+import java.util.concurrent.*;
+
+/**
+ * Klasa reprezentuje kolejkę zadań wysyłania do jednego klienta. Zadania są wykonywane po kolei przez pulę wątków
+ * przekazaną w konstruktorze, wspólną dla wszystkich klientów serwera, przy czym kolejka zajmuje co najwyżej jeden wątek puli naraz. Kolejność zadań
+ * wyznaczają ich priorytety (komunikaty sterujące, małe pliki, duże pliki), opisane w klasie PriorityTaskQueue, więc duży
+ * plik nie opóźnia zgłoszonych po nim drobnych zmian. Wiadomości dotyczące tego samego pliku docierają do klienta
+ * w kolejności wysłania (np. żądanie usunięcia nie wyprzedzi wysyłanego pliku), a liczba wątków zależy od liczby
+ * klientów, do których trwa wysyłanie, a nie od liczby wysyłanych wiadomości.
+ *
+ * Kolejka ma ograniczoną pojemność. Gdy klient nie nadąża z odbieraniem, wątek zgłaszający kolejne zadanie czeka,
+ * aż w kolejce zwolni się miejsce, co spowalnia źródło wiadomości. Jeżeli miejsce nie zwolni się w określonym czasie,
+ * klient jest uznawany za niedziałającego i wywoływana jest akcja przekazana w konstruktorze, która powinna go rozłączyć.
+ * Wątki pętli zdarzeń nigdy nie czekają, ponieważ wstrzymałyby wszystkie połączenia pętli, więc zgłoszenie przez nie
+ * zadania do pełnej kolejki od razu rozłącza klienta.
+ * Kolejka udostępnia również statystyki, np. liczbę oczekujących zadań i liczbę wstrzymań zgłaszających.
+ */
+public class ServerSendQueue implements TransferExecutor {
+
+    /** Domyślna pojemność kolejki. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // Maksymalny czas oczekiwania na miejsce w kolejce w milisekundach
+    private static final long OFFER_TIMEOUT = 30000;
+
+    // Parametry przekazane w konstruktorze
+    private String name;
+    private ExecutorService workers;
+    private int capacity;
+    private ServerListener serverListener;
+    private Runnable onOverflow;
+
+    // Oczekujące zadania oraz wątek, który aktualnie je wykonuje, dostęp synchronizowany na obiekcie
+    private PriorityTaskQueue tasks = new PriorityTaskQueue();
+    private Thread drainer;
+    private boolean draining;
+    private boolean closed;
+
+    // Statystyki kolejki
+    private int maxDepth;
+    private long submitted;
+    private long completed;
+    private long blocked;
+    private long blockedNanos;
+
+    /**
+     * Konstruuje kolejkę o podanej pojemności.
+     * @param name Nazwa kolejki używana w komunikatach, np. opis klienta.
+     * @param workers Pula wątków wykonujących zadania kolejki, wspólna dla wielu kolejek.
+     * @param capacity Maksymalna liczba oczekujących zadań.
+     * @param serverListener Słuchacz, któremu zgłaszane są wstrzymania zgłaszających.
+     * @param onOverflow Akcja wywoływana, gdy w kolejce nie zwolniło się miejsce w określonym czasie.
+     */
+    public ServerSendQueue(String name, ExecutorService workers, int capacity, ServerListener serverListener, Runnable onOverflow) {
+        // Zapamiętanie parametrów
+        this.name = name;
+        this.workers = workers;
+        this.capacity = capacity;
+        this.serverListener = serverListener;
+        this.onOverflow = onOverflow;
+    }
+
+    /**
+     * Metoda dodaje zadanie o podanym priorytecie do kolejki. Jeżeli kolejka jest pełna, wątek czeka, aż zwolni się
+     * w niej miejsce, a wątek pętli zdarzeń od razu rozłącza klienta. Zadania zgłaszane po zamknięciu kolejki są
+     * pomijane, ponieważ klient jest już rozłączony.
+     * @param key Klucz zadania, zazwyczaj ścieżka pliku, lub null gdy zadanie nie dotyczy pliku.
+     * @param priority Priorytet zadania.
+     * @param task Zadanie wysyłania.
+     */
+    public void execute(String key, PriorityTaskQueue.Priority priority, Runnable task) {
+        boolean overflow = false;
+        synchronized(this) {
+            // Zadanie zgłoszone przez inne zadanie tej kolejki nie może czekać na samo siebie
+            if(!closed && tasks.size() >= capacity && Thread.currentThread() != drainer)
+                overflow = ServerEventLoop.isAnyLoopThread() || !await();
+
+            // Klient, który nie odbiera wiadomości, zostanie rozłączony, więc oczekujące i kolejne zadania są pomijane
+            if(overflow) {
+                closed = true;
+                tasks.clear();
+            }
+            if(!closed) {
+                tasks.add(key, priority, task);
+                submitted++;
+                maxDepth = Math.max(maxDepth, tasks.size());
+                if(!draining) {
+                    draining = true;
+                    workers.execute(this::drain);
+                }
+            }
+        }
+
+        if(overflow) {
+            serverListener.log("!! " + name + " is not receiving messages, disconnecting");
+            onOverflow.run();
+        }
+    }
+
+    /**
+     * Metoda zamyka kolejkę. Zadania znajdujące się już w kolejce zostaną wykonane, a kolejne zadania są pomijane.
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Metoda zwraca liczbę zadań oczekujących w kolejce.
+     * @return Liczba oczekujących zadań.
+     */
+    public synchronized int getDepth() {
+        return tasks.size();
+    }
+
+    /**
+     * Metoda zwraca największą liczbę zadań, które jednocześnie oczekiwały w kolejce.
+     * @return Największa liczba oczekujących zadań.
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Metoda zwraca liczbę zadań dodanych do kolejki.
+     * @return Liczba dodanych zadań.
+     */
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * Metoda zwraca liczbę wykonanych zadań.
+     * @return Liczba wykonanych zadań.
+     */
+    public synchronized long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Metoda zwraca liczbę przypadków, w których zgłaszający musiał czekać na miejsce w pełnej kolejce.
+     * @return Liczba wstrzymań zgłaszających.
+     */
+    public synchronized long getBlocked() {
+        return blocked;
+    }
+
+    /**
+     * Metoda zwraca łączny czas oczekiwania zgłaszających na miejsce w kolejce.
+     * @return Czas oczekiwania w milisekundach.
+     */
+    public synchronized long getBlockedTime() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos);
+    }
+
+    /**
+     * Metoda zwraca tekstowy opis statystyk kolejki.
+     * @return Opis statystyk kolejki.
+     */
+    @Override
+    public synchronized String toString() {
+        return name + ": depth " + tasks.size() + "/" + capacity + ", max " + maxDepth + ", submitted " + submitted +
+                ", completed " + completed + ", blocked " + blocked + " (" + getBlockedTime() + " ms)";
+    }
+
+    // Czeka na miejsce w pełnej kolejce, zwraca false gdy miejsce nie zwolniło się w określonym czasie
+    private boolean await() {
+        // Kolejne wstrzymania są zgłaszane coraz rzadziej
+        blocked++;
+        if(Long.bitCount(blocked) == 1)
+            serverListener.log("## " + name + " is receiving slowly, holding back new messages");
+
+        long begin = System.nanoTime();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(OFFER_TIMEOUT);
+        try {
+            while(!closed && tasks.size() >= capacity) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blockedNanos += System.nanoTime() - begin;
+        }
+    }
+
+    // Wykonuje po kolei zadania z kolejki, dopóki kolejka nie jest pusta
+    private void drain() {
+        synchronized(this) {
+            drainer = Thread.currentThread();
+        }
+        while(true) {
+            Runnable task;
+            synchronized(this) {
+                task = tasks.poll();
+                if(task == null) {
+                    draining = false;
+                    drainer = null;
+                    return;
+                }
+                notifyAll();
+            }
+
+            try {
+                task.run();
+            } catch(RuntimeException e) {
+                serverListener.log("!! Error occured while sending message");
+            }
+
+            synchronized(this) {
+                completed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Klasa reprezentuje sesję pojedynczego połączenia z klientem i zawiera reakcje serwera na wszystkie komendy.
+ * Jest wspólna dla obu silników serwera: blokującego, w którym każde połączenie obsługuje osobny wątek,
+ * oraz opartego na selektorze, w którym ramki są składane kawałkami przez pętlę zdarzeń. Silnik przekazuje sesji
+ * komendę wraz z jej parametrami, a jeżeli ramka zawiera dane, zapisuje je do zwróconego przez sesję odbiorcy.
+ */
+class ServerSession {
+
+    // Parametry przekazane w konstruktorze
+    private Connection connection;
+    private ServerClientsManager clientsManager;
+    private ServerListener serverListener;
+
+    // Klient obsługiwany przez to połączenie, znany po odebraniu komendy logowania
+    private ServerClient client;
+
+    // Flaga informująca, czy sesja nie została jeszcze zakończona
+    private boolean active = true;
+
+    // Flaga informująca, że połączenie jest dodatkowym połączeniem klienta zalogowanego innym połączeniem
+    private boolean stream;
+
+    /**
+     * Konstruuje sesję dla przekazanego połączenia.
+     * @param connection Połączenie z klientem.
+     * @param clientsManager Menedżer za pomocą którego będą dodawane oraz usówane klienty.
+     * @param serverListener Słuchacz za pomocą którego będą zgłaszanie zachodzące zdarzenia.
+     */
+    ServerSession(Connection connection, ServerClientsManager clientsManager, ServerListener serverListener) {
+        this.connection = connection;
+        this.clientsManager = clientsManager;
+        this.serverListener = serverListener;
+    }
+
+    /**
+     * Metoda informuje, czy sesja jest aktywna. Sesja przestaje być aktywna po wylogowaniu klienta.
+     * @return true jeżeli sesja jest aktywna, false w przeciwnym wypadku.
+     */
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Metoda reaguje na odebraną komendę.
+     * @param command Odebrana komenda lub null, gdy komenda jest nieznana.
+     * @param requestId Identyfikator żądania z nagłówka ramki.
+     * @param input Strumień parametrów komendy.
+     * @param bodyLength Liczba bajtów danych ramki.
+     * @return Odbiorca danych ramki lub null, gdy dane ramki mają zostać pominięte.
+     * @throws IOException Wyjątek wyrzucany, gdy parametry komendy są niepoprawne.
+     */
+    ServerReceiver handle(Command command, int requestId, DataInputStream input, long bodyLength) throws IOException {
+        InetAddress address = connection.getAddress();
+
+        // Otrzymano komendę logowania
+        if(command == Command.LOGIN) {
+            String login = SafePath.checkLogin(input.readUTF());
+            int capabilities = input.available() > 0 ? input.readInt() : 0;
+            int version = input.available() > 0 ? input.readInt() : 0;
+
+            // Klient o niezgodnej wersji protokołu otrzymuje wyjaśnienie zamiast odpowiedzi, której by nie zrozumiał
+            if(!FrameHeader.isSupported(version)) {
+                serverListener.log("!! Rejecting login from " + address.getHostName() + "(" + login + ")" + " with unsupported protocol version " + version);
+                connection.send(Command.LOGIN_REJECTED, stream -> {
+                    stream.writeInt(FrameHeader.VERSION);
+                    stream.writeUTF("Unsupported protocol version " + version + ", server uses version " + FrameHeader.VERSION);
+                });
+                return null;
+            }
+            client = clientsManager.addClient(address, login, connection, capabilities);
+            serverListener.log(">> receiving login request from " + address.getHostName() + "(" + login + ")" + " to " + login);
+            client.sendLoginSuccess();
+
+            // Klient obsługujący drzewa Merkle sam rozpoczyna uzgadnianie katalogów
+            if(!Capability.MERKLE.isIn(capabilities))
+                client.sendManifest();
+            return null;
+        }
+
+        // Otrzymano prośbę o dołączenie dodatkowego połączenia do zalogowanego klienta
+        if(command == Command.ATTACH_STREAM) {
+            String login = SafePath.checkLogin(input.readUTF());
+            ServerClient owner = clientsManager.getClient(input.readLong());
+            if(owner == null || !owner.getUser().getLogin().equals(login)) {
+                serverListener.log("!! Rejecting stream from " + address.getHostName() + "(" + login + ")" + " which is not logged in");
+                active = false;
+                return null;
+            }
+            serverListener.log(">> attaching stream to " + owner);
+            owner.attachStream(connection);
+            client = owner;
+            stream = true;
+            return null;
+        }
+
+        // Ignorowanie komend od niezalogowanych klientów oraz nieznanych komend
+        if(client == null || command == null) {
+            serverListener.log("!! Ignoring unexpected message from " + address.getHostName());
+            return null;
+        }
+
+        // Otrzymano komendę wylogowania
+        if(command == Command.LOGOUT) {
+            serverListener.log(">> receiving logout from " + client);
+            clientsManager.removeClient(client);
+            client = null;
+            active = false;
+        }
+
+        // Użytkownik przesłał plik, bez zmian lub w postaci skompresowanej
+        else if(command == Command.SEND_FILE || command == Command.SEND_COMPRESSED) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            ServerClient sendingClient = client;
+            ServerUser user = client.getUser();
+            boolean compressed = command == Command.SEND_COMPRESSED;
+            serverListener.log(">> receiving " + (compressed ? "compressed " : "") + "file " + relativePath + " from " + client + (offset > 0 ? " from byte " + offset : ""));
+            return user.receiveFileData(relativePath, modificationTime, size, offset, compressed,
+                    () -> sendingClient.fileReceived(relativePath),
+                    () -> sendingClient.requestFullFile(relativePath));
+        }
+
+        // Użytkownik przesłał fragment pliku wysyłanego równolegle
+        else if(command == Command.SEND_RANGE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            long transfer = input.readLong();
+            long start = input.readLong();
+            serverListener.log(">> receiving range of file " + relativePath + " from byte " + start + " from " + client);
+            return client.receiveRange(relativePath, modificationTime, size, offset, transfer, start, bodyLength, false);
+        }
+
+        // Użytkownik przesłał skompresowany fragment pliku, rozpakowywany w trakcie odbierania
+        else if(command == Command.SEND_COMPRESSED_RANGE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            long offset = input.readLong();
+            long transfer = input.readLong();
+            long start = input.readLong();
+            long length = input.readLong();
+            serverListener.log(">> receiving compressed range of file " + relativePath + " from byte " + start + " from " + client);
+            return client.receiveRange(relativePath, modificationTime, size, offset, transfer, start, length, true);
+        }
+
+        // Użytkownik wysłał plik do innego użytkownika
+        else if(command == Command.SEND_TO_USER) {
+            String login = SafePath.checkLogin(input.readUTF());
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+
+            ServerUser user = clientsManager.getUser(login);
+            serverListener.log(">> receiving file " + relativePath + " from " + client + " to " + login);
+
+            // Jeżeli użytkownik docelowy istnieje
+            if(user != null) {
+                String targetPath = relativePath + " (from " + client.getUser().getLogin() + ")";
+                return user.receiveFileData(targetPath, modificationTime, size, 0, () -> user.sendFileEveryone(targetPath), null);
+            }
+        }
+
+        // Otrzymano żądanie wysłania pliku
+        else if(command == Command.NEED_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            Resume resume = Resume.read(input);
+            serverListener.log(">> receiving file request for " + relativePath + " from " + client);
+
+            // Klient czeka na plik, więc o jego braku trzeba go powiadomić
+            if(client.getUser().getFileInfo(relativePath) == null)
+                client.sendResponse(requestId, false);
+            else
+                client.sendFile(relativePath, resume);
+        }
+
+        // Otrzymano żądanie usunięcia pliku
+        else if(command == Command.DELETE_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            serverListener.log(">> receiving delete request for " + relativePath + " from " + client);
+            ServerUser user = client.getUser();
+            boolean deleted = user.deleteFile(relativePath);
+            if(deleted) user.sendDeleteExcept(relativePath, client);
+
+            // Usuniętego pliku nie trzeba już pobierać od klienta
+            client.abortRanges(relativePath);
+            client.getRequests().complete(Command.NEED_FILE, relativePath, false);
+        }
+
+        // Otrzymano ogłoszenie o aktualnym pliku
+        else if(command == Command.CHECK_FILE) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            byte[] hash = Manifest.readHash(input);
+
+            serverListener.log(">> Checking if file " + relativePath + " from " + client + " is up to date");
+            ServerClient checkingClient = client;
+            if(client.getUser().isUpToDate(relativePath, modificationTime, hash))
+                client.sendResponse(requestId, true);
+            else
+                client.requestFile(relativePath).whenComplete((received, error) ->
+                        checkingClient.sendResponse(requestId, error == null && received));
+        }
+
+        // Otrzymano odpowiedź na żądanie wysłane klientowi
+        else if(command == Command.RESPONSE) {
+            boolean result = input.readBoolean();
+            serverListener.log(">> receiving response " + result + " to request " + requestId + " from " + client);
+            client.getRequests().complete(requestId, result);
+        }
+
+        // Klient chce przesłać plik różnicowo i prosi o sygnaturę wersji na serwerze
+        else if(command == Command.REQUEST_SIGNATURE) {
+            String relativePath = SafePath.check(input.readUTF());
+            serverListener.log(">> receiving signature request for " + relativePath + " from " + client);
+            client.sendSignature(relativePath);
+        }
+
+        // Otrzymano sygnaturę wersji pliku u klienta, więc można wysłać mu różnicę
+        else if(command == Command.SIGNATURE) {
+            String relativePath = SafePath.check(input.readUTF());
+            Delta.Signature signature = Delta.Signature.read(input);
+            serverListener.log(">> receiving signature of " + relativePath + " from " + client);
+            client.sendFileDelta(relativePath, signature);
+        }
+
+        // Użytkownik przesłał plik różnicowo
+        else if(command == Command.SEND_DELTA) {
+            String relativePath = SafePath.check(input.readUTF());
+            long modificationTime = input.readLong();
+            long size = input.readLong();
+            byte[] digest = new byte[input.readUnsignedShort()];
+            input.readFully(digest);
+            ServerClient sendingClient = client;
+            ServerUser user = client.getUser();
+            serverListener.log(">> receiving delta of " + relativePath + " from " + client);
+            return user.receiveFileDelta(relativePath, modificationTime, size, digest, bodyLength,
+                    () -> sendingClient.fileReceived(relativePath),
+                    () -> sendingClient.requestFullFile(relativePath));
+        }
+
+        // Otrzymano spis plików klienta
+        else if(command == Command.MANIFEST) {
+            Manifest manifest = Manifest.read(input);
+            serverListener.log(">> receiving manifest of " + manifest.size() + " files from " + client);
+
+            // Porównanie spisu z katalogiem użytkownika i zażądanie nowszych plików jednym komunikatem
+            List<String> needed = manifest.newerThan(client.getUser().getFiles());
+            if(!needed.isEmpty())
+                client.sendRequests(needed);
+        }
+
+        // Otrzymano skróty węzłów drzewa Merkle katalogu klienta
+        else if(command == Command.MERKLE_NODES) {
+            MerkleTree.Nodes nodes = MerkleTree.Nodes.read(input);
+            serverListener.log(">> receiving " + nodes.size() + " tree nodes from " + client);
+
+            // Zejście w głąb różniących się poddrzew oraz porównanie plików różniących się liści
+            List<Integer> leaves = new ArrayList<>();
+            MerkleTree tree = client.getUser().getTree();
+            MerkleTree.Nodes children = tree.compare(nodes, leaves);
+            if(!children.isEmpty())
+                client.sendTreeNodes(children);
+            if(!leaves.isEmpty())
+                client.sendTreeEntries(false, leaves, tree.entries(leaves));
+        }
+
+        // Otrzymano spis plików klienta z różniących się liści drzewa Merkle
+        else if(command == Command.MERKLE_ENTRIES) {
+            boolean reply = input.readBoolean();
+            List<Integer> leaves = MerkleTree.readLeaves(input);
+            Manifest manifest = Manifest.read(input);
+            serverListener.log(">> receiving " + manifest.size() + " files of " + leaves.size() + " tree leaves from " + client);
+
+            // Zażądanie nowszych plików i odesłanie własnego spisu tych liści, aby klient mógł zrobić to samo
+            Manifest local = client.getUser().getTree().entries(leaves);
+            List<String> needed = manifest.newerThan(local);
+            if(!needed.isEmpty())
+                client.sendRequests(needed);
+            if(!reply)
+                client.sendTreeEntries(true, leaves, local);
+        }
+
+        // Otrzymano żądanie wysłania wielu plików
+        else if(command == Command.NEED_FILES) {
+            Map<String, Resume> requests = Resume.readRequests(input);
+            serverListener.log(">> receiving file request for " + requests.size() + " files from " + client);
+            for(Map.Entry<String, Resume> request : requests.entrySet())
+                client.sendFile(request.getKey(), request.getValue());
+        }
+
+        return null;
+    }
+
+    /**
+     * Metoda kończy sesję po zamknięciu lub zerwaniu połączenia. Klient, który rozłączył się bez wylogowania jest
+     * usuwany z menedżera klientów, a zamknięte dodatkowe połączenie jest odłączane od klienta.
+     */
+    void disconnected() {
+        active = false;
+        if(stream) {
+            if(client != null)
+                client.detachStream(connection);
+        }
+        else if(client != null && clientsManager.removeClient(client))
+            serverListener.log("!! Connection with " + client + " was lost");
+        client = null;
+    }
+}
@@ -0,0 +1,235 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Interfejs reprezentuje sposób przechowywania plików użytkowników na serwerze. Pliki są zawsze najpierw odbierane
+ * do pliku tymczasowego w katalogu roboczym magazynu, a dopiero po odebraniu całości zatwierdzane, dzięki czemu
+ * pozostali klienci nigdy nie widzą niekompletnych plików.
+ *
+ * Dostępne są dwie implementacje: zwykła, w której każdy plik użytkownika jest osobną kopią w jego katalogu, oraz
+ * oparta na fragmentach, w której pliki są dzielone na fragmenty wyznaczane na podstawie zawartości, a każdy
+ * unikalny fragment jest przechowywany tylko raz dla wszystkich użytkowników i wersji plików. Obie są opakowywane
+ * przez magazyn indeksujący, który przechowuje opisy plików w pamięci.
+ */
+interface ServerStorage {
+
+    /** Nazwa pliku w katalogu serwera, w którym zapisany jest rodzaj magazynu. */
+    String MARKER = ".storage";
+
+    /**
+     * Klasa reprezentuje zawartość pliku udostępnioną do odczytu, np. w celu wysłania jej klientowi. Zawartość jest
+     * opisana ciągiem zakresów plików, który można wysłać lub odczytać bez kopiowania zawartości. Jeden plik
+     * z zawartością jest tworzony dopiero wtedy, gdy jest potrzebny, np. do odtworzenia różnicy.
+     */
+    class Snapshot {
+
+        // Parametry przekazane w konstruktorze
+        private List<FileSlice> slices;
+        private long size;
+        private long modificationTime;
+        private File staging;
+
+        // Plik z zawartością oraz informacja, czy został złożony tylko na potrzeby odczytu i należy go usunąć
+        private File file;
+        private boolean temporary;
+
+        /**
+         * Konstruuje obiekt udostępniający zawartość pliku.
+         * @param file Plik z zawartością.
+         * @param size Rozmiar pliku.
+         * @param modificationTime Data modyfikacji pliku.
+         */
+        Snapshot(File file, long size, long modificationTime) {
+            this.file = file;
+            this.slices = FileSlice.of(file, size);
+            this.size = size;
+            this.modificationTime = modificationTime;
+        }
+
+        /**
+         * Konstruuje obiekt udostępniający zawartość złożoną z zakresów plików.
+         * @param slices Ciąg zakresów opisujący zawartość pliku.
+         * @param size Rozmiar pliku.
+         * @param modificationTime Data modyfikacji pliku.
+         * @param staging Katalog roboczy, w którym na żądanie składany jest plik z zawartością.
+         */
+        Snapshot(List<FileSlice> slices, long size, long modificationTime, File staging) {
+            this.slices = slices;
+            this.size = size;
+            this.modificationTime = modificationTime;
+            this.staging = staging;
+        }
+
+        /**
+         * Metoda zwraca ciąg zakresów plików opisujący zawartość.
+         * @return Ciąg zakresów plików.
+         */
+        List<FileSlice> getSlices() {
+            return slices;
+        }
+
+        /**
+         * Metoda zwraca plik z zawartością. Zawartość złożona z zakresów jest przy pierwszym wywołaniu zapisywana
+         * w pliku tymczasowym, który jest usuwany przez metodę release.
+         * @return Plik z zawartością.
+         * @throws IOException Wyjątek wyrzucany, gdy nie udało się złożyć zawartości.
+         */
+        File getFile() throws IOException {
+            if(file != null)
+                return file;
+            File assembled = File.createTempFile("upload", ".part", staging);
+            try(InputStream input = FileSlice.open(slices);
+                OutputStream output = new FileOutputStream(assembled)) {
+                FileTransfer.copy(input, output, size);
+            } catch(IOException e) {
+                assembled.delete();
+                throw e;
+            }
+            assembled.setLastModified(modificationTime);
+            file = assembled;
+            temporary = true;
+            return file;
+        }
+
+        /**
+         * Metoda zwraca rozmiar pliku.
+         * @return Rozmiar pliku w bajtach.
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Metoda zwraca datę modyfikacji pliku.
+         * @return Data modyfikacji pliku.
+         */
+        long getModificationTime() {
+            return modificationTime;
+        }
+
+        /**
+         * Metoda zwalnia zawartość, usuwając złożony plik tymczasowy.
+         */
+        void release() {
+            if(temporary)
+                file.delete();
+        }
+    }
+
+    /**
+     * Metoda tworzy magazyn wybranego rodzaju w katalogu serwera, którego opisy plików są przechowywane w indeksie.
+     * @param type Rodzaj magazynu.
+     * @param rootDirectory Katalog serwera.
+     * @return Utworzony magazyn.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się przygotować katalogów magazynu lub katalog serwera
+     *                     był wcześniej używany przez magazyn innego rodzaju.
+     */
+    static ServerStorage create(ServerBackend.Storage type, String rootDirectory) throws IOException {
+        // Odczytanie rodzaju magazynu używanego dotychczas, katalogi bez oznaczenia pochodzą ze zwykłego magazynu
+        File marker = new File(rootDirectory, MARKER);
+        String existing = null;
+        if(marker.isFile())
+            existing = new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8).trim();
+        else {
+            File[] users = new File(rootDirectory).listFiles();
+            for(File user : users == null ? new File[0] : users) {
+                if(user.isDirectory() && !user.getName().startsWith("."))
+                    existing = ServerBackend.Storage.PLAIN.name();
+            }
+        }
+        if(existing != null && !existing.equals(type.name()))
+            throw new IOException("Server directory uses " + existing + " storage");
+        Files.write(marker.toPath(), type.name().getBytes(StandardCharsets.UTF_8));
+
+        ServerStorage storage;
+        if(type == ServerBackend.Storage.CHUNKED)
+            storage = new ServerChunkStorage(rootDirectory);
+        else
+            storage = new ServerPlainStorage(rootDirectory);
+        return new ServerIndexedStorage(rootDirectory, storage);
+    }
+
+    /**
+     * Metoda zwraca spis wszystkich plików użytkownika wraz ze skrótami ich zawartości.
+     * @param login Login użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    Manifest list(String login);
+
+    /**
+     * Metoda zwraca opis pliku użytkownika wraz ze skrótem jego zawartości, jeżeli jest znany.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    Manifest.Entry stat(String login, String relativePath);
+
+    /**
+     * Metoda zwraca drzewo Merkle opisujące pliki użytkownika.
+     * @param login Login użytkownika.
+     * @return Drzewo plików użytkownika.
+     */
+    default MerkleTree tree(String login) {
+        return new MerkleTree(list(login));
+    }
+
+    /**
+     * Metoda zwraca plik na dysku, którego zmiana oznacza zmianę pliku użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Plik reprezentujący plik użytkownika na dysku.
+     */
+    File locate(String login, String relativePath);
+
+    /**
+     * Metoda udostępnia zawartość pliku użytkownika do odczytu. Po odczytaniu należy wywołać metodę release.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return Zawartość pliku lub null, gdy plik nie istnieje.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się odczytać pliku.
+     */
+    Snapshot open(String login, String relativePath) throws IOException;
+
+    /**
+     * Metoda tworzy pusty plik tymczasowy w katalogu roboczym magazynu, do którego można odebrać zawartość pliku.
+     * @return Plik tymczasowy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć pliku.
+     */
+    File stage() throws IOException;
+
+    /**
+     * Metoda zatwierdza odebrany plik tymczasowy jako nową wersję pliku użytkownika. Plik tymczasowy przestaje
+     * istnieć.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @param staged Plik tymczasowy z zawartością.
+     * @param modificationTime Data modyfikacji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się zapisać pliku.
+     */
+    void commit(String login, String relativePath, File staged, long modificationTime) throws IOException;
+
+    /**
+     * Metoda usuwa plik użytkownika.
+     * @param login Login użytkownika.
+     * @param relativePath Ścieżka pliku względem katalogu użytkownika.
+     * @return true jeżeli plik został usunięty, false jeżeli plik nie istniał.
+     */
+    boolean delete(String login, String relativePath);
+
+    /**
+     * Metoda usuwa katalogi, które po usunięciu pliku pozostały puste, aż do katalogu użytkownika.
+     * @param file Usunięty plik.
+     * @param userDirectory Katalog użytkownika, który nie jest usuwany.
+     */
+    static void removeEmptyParents(File file, File userDirectory) {
+        for(File parent = file.getParentFile(); parent != null && !parent.equals(userDirectory); parent = parent.getParentFile()) {
+            if(!parent.delete())
+                return;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package project.server.backend;
+
+import project.common.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Klasa reprezentuje plik odbierany od klienta. Dane pliku są zapisywane do pliku częściowego w miarę ich napływania,
+ * dzięki czemu mogą być dostarczane zarówno ze strumienia jak i kawałkami przez pętlę zdarzeń. Po zamknięciu obiektu
+ * kompletny plik jest zatwierdzany w magazynie jako nowa wersja pliku użytkownika i wykonywana jest akcja kończąca,
+ * np. rozesłanie pliku pozostałym klientom. Niekompletny plik pozostaje na dysku, aby można było wznowić jego
+ * odbieranie.
+ */
+class ServerUpload implements ServerReceiver {
+
+    // Parametry przekazane w konstruktorze
+    private ServerUser user;
+    private String relativePath;
+    private PartialFile partial;
+    private long modificationTime;
+    private Runnable completion;
+
+    // Liczba bajtów, które mają zostać odebrane
+    private long size;
+
+    // Kanał do którego zapisywane są dane pliku
+    private FileChannel channel;
+
+    // Liczba zapisanych bajtów
+    private long written;
+
+    /**
+     * Konstruuje obiekt odbierający plik.
+     * @param user Użytkownik do którego katalogu zapisywany jest plik.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param partial Plik częściowy do którego zapisywane są odbierane dane.
+     * @param modificationTime Data modyfikacji, która ma być ustawiona dla pliku.
+     * @param size Rozmiar odbieranego pliku.
+     * @param offset Pozycja od której nadawca wysyła dane, dotychczasowe dane są zachowywane.
+     * @param completion Akcja wykonywana po pomyślnym odebraniu całego pliku lub null.
+     * @throws IOException Wyjątek wyrzucany, gdy nie można otworzyć pliku do zapisu lub wznowić odbierania.
+     */
+    ServerUpload(ServerUser user, String relativePath, PartialFile partial, long modificationTime, long size, long offset,
+                 Runnable completion) throws IOException {
+        this.user = user;
+        this.relativePath = relativePath;
+        this.partial = partial;
+        this.modificationTime = modificationTime;
+        this.size = size - offset;
+        this.completion = completion;
+        this.channel = partial.open(modificationTime, size, offset);
+    }
+
+    /**
+     * Metoda zwraca plik częściowy do którego zapisywane są dane.
+     * @return Plik częściowy.
+     */
+    PartialFile getPartial() {
+        return partial;
+    }
+
+    /**
+     * Metoda zapisuje kolejny fragment danych pliku.
+     * @param buffer Bufor z danymi.
+     * @return Liczba zapisanych bajtów.
+     * @throws IOException Wyjątek wyrzucany, gdy zapis się nie powiedzie.
+     */
+    public int write(ByteBuffer buffer) throws IOException {
+        int count = 0;
+        while(buffer.hasRemaining())
+            count += channel.write(buffer);
+        written += count;
+        return count;
+    }
+
+    /**
+     * Metoda przekazuje do pliku podaną liczbę bajtów odczytanych bezpośrednio z kanału, bez kopiowania ich
+     * przez bufory pośrednie.
+     * @param source Kanał z którego odczytywane są dane pliku.
+     * @param count Liczba bajtów do odczytania.
+     * @throws IOException Wyjątek wyrzucany, gdy kanał skończy się przedwcześnie lub zapis się nie powiedzie.
+     */
+    public void transferFrom(ReadableByteChannel source, long count) throws IOException {
+        long start = channel.position();
+        try { FileTransfer.receive(source, channel, count); }
+        finally { written += channel.position() - start; }
+    }
+
+    /**
+     * Metoda informuje, czy plik jest nadal odbierany.
+     * @return true jeżeli plik jest odbierany, false w przeciwnym wypadku.
+     */
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * Metoda kończy odbieranie pliku. Jeżeli odebrano cały plik to jest on zatwierdzany w magazynie
+     * i wykonywana jest akcja kończąca.
+     * @throws IOException Wyjątek wyrzucany, gdy zamknięcie pliku się nie powiedzie.
+     */
+    public void close() throws IOException {
+        if(!channel.isOpen())
+            return;
+        channel.close();
+
+        // Plik nie został odebrany w całości, np. z powodu zerwania połączenia
+        boolean complete = written == size;
+        if(!complete)
+            user.getServerListener().log("!! Error occured while receiving file " + relativePath);
+        if(!finish(complete))
+            return;
+
+        // Powiadomienie o dokonaniu zmian w katalogu użytkownika
+        user.getServerListener().filesUpdated(user.getLogin());
+
+        if(completion != null)
+            completion.run();
+    }
+
+    /**
+     * Metoda wywoływana po zakończeniu odbierania danych, zatwierdza odebrany plik w magazynie lub zachowuje
+     * niekompletne dane. Klasy pochodne mogą przetworzyć odebrane dane przed zatwierdzeniem.
+     * @param complete true jeżeli odebrano wszystkie dane, false w przeciwnym wypadku.
+     * @return true jeżeli plik został zatwierdzony, false w przeciwnym wypadku.
+     */
+    boolean finish(boolean complete) {
+        if(!complete) {
+            partial.keep();
+            return false;
+        }
+        boolean committed = commit(partial.getFile());
+        partial.complete();
+        return committed;
+    }
+
+    /**
+     * Metoda zatwierdza plik tymczasowy jako nową wersję pliku użytkownika.
+     * @param staged Plik tymczasowy z zawartością pliku.
+     * @return true jeżeli plik został zatwierdzony, false w przeciwnym wypadku.
+     */
+    boolean commit(File staged) {
+        try {
+            user.commitFile(relativePath, staged, modificationTime);
+            return true;
+        } catch(IOException e) {
+            user.getServerListener().log("!! Unable to store file " + relativePath);
+            staged.delete();
+            return false;
+        }
+    }
+}
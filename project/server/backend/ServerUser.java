@@ -1,7 +1,9 @@
 package project.server.backend;
 
+import project.common.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Klasa reprezentuje pojedyńczego użytkownika. Użytkonik posiada własny login oraz katalog.
@@ -9,25 +11,42 @@ import java.util.*;
  */
 public class ServerUser {
 
+    /** Nazwa katalogu w katalogu serwera, w którym przechowywane są częściowo odebrane pliki. */
+    static final String PARTIAL_DIRECTORY = ".partial";
+
     // Parametry podawane w konstruktorze
     private String login;
     private String directory;
+    private String rootDirectory;
+    private ServerStorage storage;
     private ServerListener serverListener;
 
-    // Lista klientów związanych z danym użytkownikiem
-    private List<ServerClient> clients = new LinkedList();
+    // Lista klientów związanych z danym użytkownikiem, rozsyłanie przegląda jej migawkę bez blokowania
+    private List<ServerClient> clients = new CopyOnWriteArrayList<>();
+
+    // Wiadra ograniczające przepustowość danych przesyłanych przez wszystkich klientów użytkownika do serwera i z serwera
+    private TokenBucket upload;
+    private TokenBucket download;
 
     /**
      * Konstruuje obiekt użytkownika o podanym loginie oraz katalogu.
      * @param login Login użytkownika.
      * @param rootDirectory Katalog użytkownika.
+     * @param storage Magazyn przechowujący pliki użytkownika.
      * @param serverListener Obiekt słuchacza.
+     * @param serverUpload Wiadro ograniczające przepustowość danych przesyłanych do serwera przez wszystkich klientów.
+     * @param serverDownload Wiadro ograniczające przepustowość danych wysyłanych przez serwer do wszystkich klientów.
      */
-    public ServerUser(String login, String rootDirectory, ServerListener serverListener) {
+    ServerUser(String login, String rootDirectory, ServerStorage storage, ServerListener serverListener,
+               TokenBucket serverUpload, TokenBucket serverDownload) {
         // Zapamiętanie parametrów
         this.login = login;
         this.directory = rootDirectory + "/" + login;
+        this.rootDirectory = rootDirectory;
+        this.storage = storage;
         this.serverListener = serverListener;
+        this.upload = new TokenBucket(serverUpload);
+        this.download = new TokenBucket(serverDownload);
 
         // Stworzenie katalogu użytkownika, jeżeli nie istnieje
         File file = new File(directory);
@@ -59,6 +78,79 @@ public class ServerUser {
         return serverListener;
     }
 
+    /**
+     * Metoda zwraca spis wszystkich plików użytkownika.
+     * @return Spis plików użytkownika.
+     */
+    public Manifest getFiles() {
+        return storage.list(login);
+    }
+
+    /**
+     * Metoda zwraca drzewo Merkle opisujące pliki użytkownika.
+     * @return Drzewo plików użytkownika.
+     */
+    public MerkleTree getTree() {
+        return storage.tree(login);
+    }
+
+    /**
+     * Metoda zwraca opis pliku użytkownika.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Opis pliku lub null, gdy plik nie istnieje.
+     */
+    public Manifest.Entry getFileInfo(String relativePath) {
+        return storage.stat(login, relativePath);
+    }
+
+    /**
+     * Metoda zwraca plik na dysku, którego zmiana oznacza zmianę pliku użytkownika.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Plik reprezentujący plik użytkownika na dysku.
+     */
+    File locateFile(String relativePath) {
+        return storage.locate(login, relativePath);
+    }
+
+    /**
+     * Metoda udostępnia zawartość pliku użytkownika do odczytu. Po odczytaniu należy wywołać metodę release.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Zawartość pliku lub null, gdy plik nie istnieje.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się odczytać pliku.
+     */
+    ServerStorage.Snapshot openFile(String relativePath) throws IOException {
+        return storage.open(login, relativePath);
+    }
+
+    /**
+     * Metoda zatwierdza odebrany plik tymczasowy jako nową wersję pliku użytkownika.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param staged Plik tymczasowy z zawartością.
+     * @param modificationTime Data modyfikacji pliku.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się zapisać pliku.
+     */
+    void commitFile(String relativePath, File staged, long modificationTime) throws IOException {
+        storage.commit(login, relativePath, staged, modificationTime);
+    }
+
+    /**
+     * Metoda tworzy pusty plik tymczasowy, do którego można odebrać zawartość pliku.
+     * @return Plik tymczasowy.
+     * @throws IOException Wyjątek wyrzucany, gdy nie udało się utworzyć pliku.
+     */
+    File stageFile() throws IOException {
+        return storage.stage();
+    }
+
+    /**
+     * Metoda zwraca informację o częściowo odebranym pliku, którą należy dołączyć do żądania przesłania pliku.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @return Informacja o częściowo odebranych danych pliku.
+     */
+    Resume getResume(String relativePath) {
+        return partialFile(relativePath).getResume();
+    }
+
     /**
      * Metoda dodaje do użytkownika podanego klienta.
      * @param client Dodawany klient.
@@ -83,6 +175,22 @@ public class ServerUser {
         return clients.size();
     }
 
+    /**
+     * Metoda zwraca wiadro ograniczające przepustowość danych przesyłanych do serwera przez klientów użytkownika.
+     * @return Wiadro danych odbieranych od użytkownika.
+     */
+    TokenBucket getUploadBucket() {
+        return upload;
+    }
+
+    /**
+     * Metoda zwraca wiadro ograniczające przepustowość danych wysyłanych przez serwer do klientów użytkownika.
+     * @return Wiadro danych wysyłanych do użytkownika.
+     */
+    TokenBucket getDownloadBucket() {
+        return download;
+    }
+
     /**
      * Metoda usuwa plik w katalogu użytkownika i wywołuje na słuchaczu metodę filesUpdated, ponieważ katalog użytkownika się zmienił.
      * @param relativePath Ścieżka do usówanego pliku względem katalogu użytkownika.
@@ -90,8 +198,7 @@ public class ServerUser {
      */
     public boolean deleteFile(String relativePath) {
         // Usunięcie pliku
-        File file = new File(directory, relativePath);
-        boolean deleted = file.delete();
+        boolean deleted = storage.delete(login, relativePath);
 
         // Powiadomienie o dokonaniu zmian w katalogu serwera jeżeli nastąpiły
         if(deleted)
@@ -102,14 +209,18 @@ public class ServerUser {
     }
 
     /**
-     * Metoda zwraca odpowiedź czy plik dany ścieżką jest aktualny poprzez porównuje jego czasu modyfikacji z czasem modyfikacji podanym jako parametr.
+     * Metoda zwraca odpowiedź czy plik dany ścieżką jest aktualny. Plik o takiej samej zawartości jest zawsze aktualny,
+     * w pozostałych przypadkach porównywany jest jego czas modyfikacji z czasem modyfikacji podanym jako parametr.
      * @param relativePath Ścieżka do pliku, którego aktualność sprawdzamy, względem katalogu użytkownika.
      * @param compareTime Czas modyfikacji z którym czas modyfikacji pliku jest porównywany.
+     * @param hash Skrót zawartości pliku z którym porównywany jest plik lub null, gdy nie jest znany.
      * @return true jeżeli plik jest aktualny, false jeżeli nie jest aktualny.
      */
-    public boolean isUpToDate(String relativePath, long compareTime) {
-        File file = new File(directory, relativePath);
-        long modificationTime = file.lastModified();
+    public boolean isUpToDate(String relativePath, long compareTime, byte[] hash) {
+        Manifest.Entry entry = storage.stat(login, relativePath);
+        if(entry != null && hash != null && Arrays.equals(entry.getHash(), hash))
+            return true;
+        long modificationTime = entry == null ? 0 : entry.getModificationTime();
         if(modificationTime < compareTime)
             return false;
         return true;
@@ -121,10 +232,12 @@ public class ServerUser {
      * @param except Klient do którego plik ma nie być wysłany.
      */
     public void sendFileExcept(String relativePath, ServerClient except) {
+        List<ServerClient> targets = new ArrayList<>();
         for(ServerClient client : clients) {
             if(client != except)
-                client.sendFile(relativePath);
+                targets.add(client);
         }
+        sendFile(relativePath, targets);
     }
 
     /**
@@ -132,8 +245,7 @@ public class ServerUser {
      * @param relativePath Ścieżka do wysyłanego pliku względem katalogu użytkownika.
      */
     public void sendFileEveryone(String relativePath) {
-        for(ServerClient client : clients)
-            client.sendFile(relativePath);
+        sendFile(relativePath, new ArrayList<>(clients));
     }
 
     /**
@@ -158,21 +270,14 @@ public class ServerUser {
     }
 
     /**
-     * Metoda wysyła wszystkim klientom należącym do użytkownika wiadomość o aktywnym użytkowniku.
-     * @param login Login aktywnego użytkownika.
+     * Metoda wysyła wszystkim klientom należącym do użytkownika jedną wiadomość o aktywnych i nieaktywnych
+     * użytkownikach.
+     * @param active Loginy aktywnych użytkowników.
+     * @param inactive Loginy nieaktywnych użytkowników.
      */
-    public void sendActiveUserEveryone(String login) {
+    public void sendPresenceEveryone(List<String> active, List<String> inactive) {
         for(ServerClient client : clients)
-            client.sendUserActive(login);
-    }
-
-    /**
-     * Metoda wysyła wszystkim klientom należącym do użytkownika wiadomość o nieaktywnym użytkowniku.
-     * @param login Login nieaktywnego użytkownika.
-     */
-    public void sendInactiveUserEveryone(String login) {
-        for(ServerClient client : clients)
-            client.sendUserInactive(login);
+            client.sendPresence(active, inactive);
     }
 
     /**
@@ -184,41 +289,139 @@ public class ServerUser {
     }
 
     /**
-     * Metoda tworzy plik w katalogu użytkownika i wczytuje do niego zawartość ze strumienia.
+     * Metoda zwraca obiekt, do którego należy zapisać zawartość pliku w katalogu użytkownika. Zawartość jest
+     * odbierana do pliku częściowego, który po przerwaniu połączenia pozostaje na dysku, aby można było wznowić
+     * odbieranie. Po zamknięciu zwróconego obiektu plik jest zatwierdzany jako nowa wersja pliku, po czym wykonywana
+     * jest akcja kończąca.
      * @param relativePath Ścieżka do pliku który ma zostać utworzony względem katalogu użytkownika.
      * @param modificationTime Ostatnia data modyfikacji, która ma być ustawiona dla pliku.
-     * @param size Ilość danych, która ma zostć wczytana ze strumienia.
-     * @param input Śtrumień z którego mają zostać wczytane dane do pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której nadawca wysyła zawartość pliku.
+     * @param completion Akcja wykonywana po odebraniu całego pliku lub null.
+     * @param fallback Akcja wykonywana, gdy nie można wznowić odbierania od podanej pozycji lub null.
+     * @return Obiekt odbierający zawartość pliku lub null, gdy nie udało się utworzyć pliku.
      */
-    public void receiveFileData(String relativePath, long modificationTime, long size, DataInputStream input) {
+    ServerUpload receiveFileData(String relativePath, long modificationTime, long size, long offset,
+                                 Runnable completion, Runnable fallback) {
+        return receiveFileData(relativePath, modificationTime, size, offset, false, completion, fallback);
+    }
 
-        // Usuwanie pliku jeżeli taki już istnieje
-        File newFile = new File(directory, relativePath);
-        if (newFile.exists())
-            newFile.delete();
+    /**
+     * Metoda zwraca obiekt, do którego należy zapisać zawartość pliku w katalogu użytkownika, przesyłaną bez zmian
+     * lub w postaci skompresowanej.
+     * @param relativePath Ścieżka do pliku który ma zostać utworzony względem katalogu użytkownika.
+     * @param modificationTime Ostatnia data modyfikacji, która ma być ustawiona dla pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której nadawca wysyła zawartość pliku.
+     * @param compressed true jeżeli zawartość jest skompresowana, false w przeciwnym wypadku.
+     * @param completion Akcja wykonywana po odebraniu całego pliku lub null.
+     * @param fallback Akcja wykonywana, gdy nie można wznowić odbierania od podanej pozycji lub null.
+     * @return Obiekt odbierający zawartość pliku lub null, gdy nie udało się utworzyć pliku.
+     */
+    ServerUpload receiveFileData(String relativePath, long modificationTime, long size, long offset, boolean compressed,
+                                 Runnable completion, Runnable fallback) {
+        try {
+            return upload(relativePath, partialFile(relativePath), modificationTime, size, offset, compressed, completion);
+        } catch(IOException e) {
+            if(offset > 0) {
+                serverListener.log("!! Unable to resume file " + relativePath + ", requesting whole file");
+                if(fallback != null)
+                    fallback.run();
+                return null;
+            }
+        }
 
-        // Tworzenie nowego pliku
+        // Ten sam plik jest już odbierany przez inny transfer, więc zawartość trafia do pliku tymczasowego
         try {
-            newFile.createNewFile();
+            return upload(relativePath, new PartialFile(storage.stage(), true), modificationTime, size, 0, compressed, completion);
         } catch(IOException e) {
             serverListener.log("!! Unable to create file in user directory");
-            return;
+            return null;
         }
+    }
 
-        // Wpisywanie do pliku zawartości odczytywanej ze strumienia
-        try(FileOutputStream output = new FileOutputStream(newFile)) {
-            for (long pos = 0; pos < size; pos++) {
-                int aByte = input.read();
-                output.write(aByte);
+    /**
+     * Metoda tworzy obiekt składający plik w katalogu użytkownika z fragmentów przesyłanych równolegle kilkoma
+     * połączeniami. Fragmenty są zapisywane do pliku częściowego, a gdy jest on już odbierany przez inny transfer,
+     * do pliku tymczasowego. Jeżeli nie udało się rozpocząć składania, zwracany obiekt jest zakończony i odrzuca
+     * wszystkie fragmenty transferu.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param modificationTime Ostatnia data modyfikacji, która ma być ustawiona dla pliku.
+     * @param size Rozmiar pliku.
+     * @param offset Pozycja od której nadawca wysyła zawartość pliku.
+     * @param transfer Identyfikator transferu nadany przez nadawcę.
+     * @param fallback Akcja wykonywana, gdy nie można wznowić odbierania od podanej pozycji lub null.
+     * @return Obiekt składający plik.
+     */
+    RangeAssembly receiveFileRanges(String relativePath, long modificationTime, long size, long offset, long transfer,
+                                    Runnable fallback) {
+        RangeAssembly assembly = new RangeAssembly(partialFile(relativePath), modificationTime, size, offset, transfer);
+        try {
+            assembly.start();
+            return assembly;
+        } catch(IOException e) {
+            if(offset > 0) {
+                serverListener.log("!! Unable to resume file " + relativePath + ", requesting whole file");
+                if(fallback != null)
+                    fallback.run();
+                return assembly;
             }
+        }
+
+        // Ten sam plik jest już odbierany przez inny transfer, więc zawartość trafia do pliku tymczasowego
+        try {
+            assembly = new RangeAssembly(new PartialFile(storage.stage(), true), modificationTime, size, 0, transfer);
+            assembly.start();
         } catch(IOException e) {
-            serverListener.log("!! Error occured while receiving file " + relativePath);
+            serverListener.log("!! Unable to create file in user directory");
         }
+        return assembly;
+    }
 
-        // Ustawienie ostatniej daty modyfikacji pliku
-        newFile.setLastModified(modificationTime);
+    /**
+     * Metoda tworzy obiekt, do którego należy zapisać różnicę pliku w katalogu użytkownika. Po zamknięciu zwróconego
+     * obiektu nowa wersja pliku jest odtwarzana z jego starej wersji i różnicy.
+     * @param relativePath Ścieżka do pliku względem katalogu użytkownika.
+     * @param modificationTime Ostatnia data modyfikacji, która ma być ustawiona dla pliku.
+     * @param size Rozmiar nowej wersji pliku.
+     * @param digest Skrót MD5 nowej wersji pliku.
+     * @param deltaSize Ilość danych różnicy.
+     * @param completion Akcja wykonywana po odtworzeniu pliku lub null.
+     * @param fallback Akcja wykonywana, gdy nie udało się odtworzyć pliku.
+     * @return Obiekt odbierający różnicę lub null, gdy nie udało się utworzyć pliku tymczasowego.
+     */
+    ServerUpload receiveFileDelta(String relativePath, long modificationTime, long size, byte[] digest, long deltaSize,
+                                  Runnable completion, Runnable fallback) {
+        try {
+            return new ServerDeltaUpload(this, relativePath, storage.stage(), modificationTime, size, digest, deltaSize, completion, fallback);
+        } catch(IOException e) {
+            serverListener.log("!! Unable to create temporary file for delta");
+            return null;
+        }
+    }
+
+    // Zwraca plik częściowy, do którego odbierany jest plik użytkownika
+    private PartialFile partialFile(String relativePath) {
+        return new PartialFile(SafePath.resolve(new File(new File(rootDirectory, PARTIAL_DIRECTORY), login), relativePath));
+    }
+
+    // Wysyła plik podanym klientom, a gdy jest ich kilku, zawartość pliku jest odczytywana z magazynu tylko raz
+    private void sendFile(String relativePath, List<ServerClient> targets) {
+        if(targets.size() < 2) {
+            for(ServerClient client : targets)
+                client.sendFile(relativePath);
+            return;
+        }
+        ServerFanout fanout = new ServerFanout(this, relativePath, targets.size());
+        for(ServerClient client : targets)
+            client.sendFile(relativePath, fanout);
+    }
 
-        // Powiadomienie o dokonaniu zmian w katalogu użytkownika
-        serverListener.filesUpdated(login);
+    // Tworzy obiekt odbierający zawartość pliku bez zmian lub w postaci skompresowanej
+    private ServerUpload upload(String relativePath, PartialFile partial, long modificationTime, long size, long offset,
+                                boolean compressed, Runnable completion) throws IOException {
+        if(compressed)
+            return new ServerCompressedUpload(this, relativePath, partial, modificationTime, size, offset, completion);
+        return new ServerUpload(this, relativePath, partial, modificationTime, size, offset, completion);
     }
 }
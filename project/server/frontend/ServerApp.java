@@ -13,6 +13,14 @@ import static project.common.ImportantConstants.*;
 
 /**
  * Główna klasa serwera, zawiera metodę main.
+ *
+ * Pierwszym parametrem bez nazwy jest ścieżka do katalogu serwera. Konfigurację serwera można podać parametrami
+ * w postaci --nazwa=wartość lub w pliku właściwości wskazanym parametrem --config, przy czym parametry mają
+ * pierwszeństwo przed plikiem:
+ * engine - silnik serwera (BLOCKING, SELECTOR lub VIRTUAL),
+ * storage - sposób przechowywania plików (PLAIN lub CHUNKED),
+ * server-upload, server-download, user-upload, user-download, client-upload, client-download - ograniczenia
+ * przepustowości w bajtach na sekundę, 0 oznacza brak ograniczenia.
  * @author Łukasz Klimkiewicz
  */
 public class ServerApp extends Application {
@@ -32,6 +40,9 @@ public class ServerApp extends Application {
     /** Minimalna wysokość okna */
     public static final int MIN_HEIGHT = 500;
 
+    /** Nazwa parametru wskazującego plik konfiguracji */
+    public static final String CONFIG = "config";
+
     /**
      * Metoda uruchamia serwer oraz pokazuje interfejs graficzny.
      * @param primaryStage Objekt sceny stworzony przez JavaFX.
@@ -41,7 +52,7 @@ public class ServerApp extends Application {
     public void start(Stage primaryStage) throws Exception {
         // Ustalenie ścieżki do katalogu serwera
         String serverDirectory = null;
-        List<String> parameters = getParameters().getRaw();
+        List<String> parameters = getParameters().getUnnamed();
         if(parameters.size()>0)
             serverDirectory = parameters.get(0);
         else {
@@ -57,8 +68,37 @@ public class ServerApp extends Application {
         Parent root = loader.load();
         ServerLayoutController controller = loader.getController();
 
+        // Odczytanie konfiguracji z pliku i z parametrów
+        Properties config = new Properties();
+        ServerBackend.Engine engine;
+        ServerBackend.Storage storage;
+        try {
+            String file = getParameters().getNamed().get(CONFIG);
+            if(file != null) {
+                try(Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8")) { config.load(reader); }
+            }
+            config.putAll(getParameters().getNamed());
+            engine = ServerBackend.Engine.valueOf(config.getProperty("engine", "BLOCKING").toUpperCase());
+            storage = ServerBackend.Storage.valueOf(config.getProperty("storage", "PLAIN").toUpperCase());
+        } catch(IOException | IllegalArgumentException e) {
+            System.err.println("Invalid server configuration: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
         // Uruchomienie backendu
-        ServerBackend backend = new ServerBackend(serverDirectory, PORT, InetAddress.getByName(SERVER_ADDRESS), new ServerHandler(controller));
+        ServerBackend backend = new ServerBackend(serverDirectory, PORT, InetAddress.getByName(SERVER_ADDRESS), new ServerHandler(controller), engine, storage);
+        try {
+            for(ServerBackend.Bandwidth scope : ServerBackend.Bandwidth.values()) {
+                String prefix = scope.name().toLowerCase() + "-";
+                backend.setBandwidthLimit(scope, Long.parseLong(config.getProperty(prefix + "upload", "0")),
+                        Long.parseLong(config.getProperty(prefix + "download", "0")));
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println("Invalid bandwidth limit: " + e.getMessage());
+            System.exit(1);
+        }
+        controller.setBackend(backend);
         backend.startServer();
         controller.setDirectoryPath(serverDirectory);
 
@@ -86,7 +126,7 @@ public class ServerApp extends Application {
 
     /**
      * Metoda uruchamia mechanizm JavaFX.
-     * @param args argumenty, czyli ścieżka do katalogu serwera.
+     * @param args argumenty, czyli ścieżka do katalogu serwera oraz parametry konfiguracji serwera.
      */
     public static void main(String[] args) {
         launch(args);
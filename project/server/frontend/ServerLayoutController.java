@@ -7,6 +7,7 @@ import javafx.scene.input.*;
 import java.awt.Desktop;
 import java.io.*;
 import java.util.*;
+import project.server.backend.*;
 
 /**
  * Klasa jest kontrolerem interfejsu użytkownika zdefiniwanego w pliku FXML "ServerLayout"
@@ -31,6 +32,9 @@ public class ServerLayoutController {
     // Ścieżka do katalogu serwera. Jest potrzeba dla przycisku "open directory"
     private String directoryPath;
 
+    // Backend serwera przekazywany kartom użytkowników
+    private ServerBackend backend;
+
     /**
      * Metoda ustala ścieżkę do katalogu, który jest otwierany po wciśnięciu przycisku "Open directory".
      * @param directoryPath Ścieżka do katalogu serwera.
@@ -39,6 +43,14 @@ public class ServerLayoutController {
         this.directoryPath = directoryPath;
     }
 
+    /**
+     * Metoda ustala backend serwera, z którego karty odczytują spisy plików użytkowników.
+     * @param backend Backend serwera.
+     */
+    public void setBackend(ServerBackend backend) {
+        this.backend = backend;
+    }
+
     /**
      * Metoda zwraca ścieżkę do katalogu, który jest otwierany po wciśnięciu przycisku "Open directory".
      * @return Ścieżka do katalogu serwera.
@@ -78,6 +90,7 @@ public class ServerLayoutController {
         tabPane.getTabs().add(tab);
         ServerTabController tabController = loader.getController();
         tabController.setLogin(login);
+        tabController.setBackend(backend);
         tabController.setDirectoryPath(directoryPath);
         tabControllers.add(tabController);
 
@@ -4,7 +4,7 @@ import javafx.collections.*;
 import javafx.fxml.*;
 import javafx.scene.control.*;
 import project.common.*;
-import java.io.*;
+import project.server.backend.*;
 
 /**
  * Klasa jest kontrolerem JavaFX karty odpowiadającej pojedyńczemu użytkownikowi.
@@ -25,6 +25,9 @@ public class ServerTabController {
     // Ścieżka do katalogu, którego zawartość jest wyświetlana w karcie
     private String directoryPath;
 
+    // Backend serwera, od którego pobierany jest spis plików użytkownika
+    private ServerBackend backend;
+
     /**
      * Metoda ustala login użytkownika, który jest wyświetlany w tytule karty.
      * @param login Login użytkownika.
@@ -34,6 +37,14 @@ public class ServerTabController {
         tab.setText(login);
     }
 
+    /**
+     * Metoda ustala backend serwera, z którego magazynu odczytywany jest spis plików użytkownika.
+     * @param backend Backend serwera.
+     */
+    public void setBackend(ServerBackend backend) {
+        this.backend = backend;
+    }
+
     /**
      * Metoda ustala ścieżkę do katalogu, którego zawartość jest wyświetlana.
      * @param directoryPath Ścieżka do katalogu użytkownika.
@@ -66,10 +77,11 @@ public class ServerTabController {
         ObservableList items = table.getItems();
         items.clear();
 
-        for(File file : new File(directoryPath).listFiles()) {
-            String filename = file.getName();
-            long size = file.length();
-            items.add(new FileModel(filename, size, FileModel.convertToReadableTime(file.lastModified())));
+        // Pliki mogą nie istnieć na dysku w postaci zwykłych kopii, więc spis pochodzi z magazynu serwera
+        for(Manifest.Entry entry : backend.getFiles(login).getEntries()) {
+            String filename = entry.getPath();
+            long size = entry.getSize();
+            items.add(new FileModel(filename, size, FileModel.convertToReadableTime(entry.getModificationTime())));
         }
     }
 }